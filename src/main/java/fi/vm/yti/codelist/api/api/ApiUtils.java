@@ -105,6 +105,47 @@ public class ApiUtils {
         return builder.toString();
     }
 
+    /**
+     * Creates the next page resource URL that continues from the given cursor.
+     *
+     * @param apiVersion The REST API version string.
+     * @param apiPath    The path for the API resource.
+     * @param after      After timestamp in ISO 8601 format for filtering content.
+     * @param pageSize   Page size used in pagination.
+     * @param cursor     Cursor pointing after the last result of the current page.
+     * @return The next page URL.
+     */
+    public String createNextPageCursorUrl(final String apiVersion,
+                                          final String apiPath,
+                                          final String after,
+                                          final Integer pageSize,
+                                          final String cursor) {
+        final String port = publicApiServiceProperties.getPort();
+        final StringBuilder builder = new StringBuilder();
+        builder.append(publicApiServiceProperties.getScheme());
+        builder.append("://");
+        builder.append(publicApiServiceProperties.getHost());
+        if (port != null && port.length() > 0) {
+            builder.append(":");
+            builder.append(port);
+        }
+        builder.append(publicApiServiceProperties.getContextPath());
+        builder.append(ApiConstants.API_BASE_PATH);
+        builder.append("/");
+        builder.append(apiVersion);
+        builder.append(apiPath);
+        builder.append("/");
+        builder.append("?pageSize=");
+        builder.append(pageSize);
+        builder.append("&cursor=");
+        builder.append(cursor);
+        if (after != null && !after.isEmpty()) {
+            builder.append("&after=");
+            builder.append(after);
+        }
+        return builder.toString();
+    }
+
     /**
      * Creates a resource URL for given resource id with dynamic hostname, port and API context path mapping.
      *
@@ -0,0 +1,183 @@
+package fi.vm.yti.codelist.api.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.function.Function;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import org.elasticsearch.search.SearchHit;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.ISO8601Utils;
+
+import fi.vm.yti.codelist.api.domain.DeletionTracker;
+import fi.vm.yti.codelist.api.domain.Domain;
+import fi.vm.yti.codelist.api.domain.Tombstone;
+import fi.vm.yti.codelist.api.util.CursorUtils;
+import fi.vm.yti.codelist.common.model.Meta;
+
+/**
+ * Writes one page of the changes feed: the documents of all entity indices and the tombstones of deleted documents
+ * after the cursor position, merged in the order of their modified or deletion time and id.
+ *
+ * Documents are streamed from ElasticSearch batch by batch and copied with a {@link SourceDocumentCopier}, so the
+ * page is never held in memory. The results are written before the meta block and the cursor, because the cursor
+ * points after the last change written. The cursor also carries the time of the read and the epoch of the deletion
+ * tracker, so that the next page can tell whether deletions may have been missed since.
+ */
+public class ChangeFeedOutput implements StreamingOutput {
+
+    private static final String FIELD_NAME_META = "meta";
+    private static final String FIELD_NAME_RESULTS = "results";
+    private static final String FIELD_NAME_CURSOR = "cursor";
+    private static final String FIELD_NAME_TYPE = "type";
+    private static final String FIELD_NAME_ID = "id";
+    private static final String FIELD_NAME_MODIFIED = "modified";
+    private static final String FIELD_NAME_DELETED = "deleted";
+    private static final String FIELD_NAME_CONTENT = "content";
+
+    private final Domain domain;
+    private final DeletionTracker deletionTracker;
+    private final ObjectWriter metaWriter;
+    private final FilterOptions filterOptions;
+    private final String[] sourceExcludes;
+    private final int pageSize;
+    private final Object[] position;
+    private final long readAt;
+    private final Date before;
+    private final Function<String, String> nextPageUrl;
+    private Iterator<Tombstone> tombstones;
+    private Tombstone nextTombstone;
+    private int resultCount;
+    private long lastModified;
+    private String lastId;
+
+    /**
+     * @param domain          The domain the documents are streamed from.
+     * @param deletionTracker The tracker the tombstones are read from.
+     * @param metaWriter      The object writer used for the meta block.
+     * @param filterOptions   Filter options applied to the copied documents.
+     * @param sourceExcludes  The _source exclude patterns for the filter options.
+     * @param pageSize        The maximum number of changes on the page.
+     * @param position        The modified timestamp and id to continue after, or null to start from the beginning.
+     * @param readAt          The time of the request in epoch milliseconds.
+     * @param before          The latest modified or deletion time included on the page.
+     * @param nextPageUrl     Creates the URL of the next page from its cursor.
+     */
+    public ChangeFeedOutput(final Domain domain,
+                            final DeletionTracker deletionTracker,
+                            final ObjectWriter metaWriter,
+                            final FilterOptions filterOptions,
+                            final String[] sourceExcludes,
+                            final int pageSize,
+                            final Object[] position,
+                            final long readAt,
+                            final Date before,
+                            final Function<String, String> nextPageUrl) {
+        this.domain = domain;
+        this.deletionTracker = deletionTracker;
+        this.metaWriter = metaWriter;
+        this.filterOptions = filterOptions;
+        this.sourceExcludes = sourceExcludes;
+        this.pageSize = pageSize;
+        this.position = position;
+        this.readAt = readAt;
+        this.before = before;
+        this.nextPageUrl = nextPageUrl;
+    }
+
+    @Override
+    public void write(final OutputStream output) throws IOException {
+        if (position != null) {
+            lastModified = ((Number) position[0]).longValue();
+            lastId = (String) position[1];
+        }
+        tombstones = deletionTracker.getTombstonesAfter(lastModified, lastId).iterator();
+        nextTombstone();
+        try (final JsonGenerator generator = metaWriter.getFactory().createGenerator(output, JsonEncoding.UTF8)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartObject();
+            generator.writeArrayFieldStart(FIELD_NAME_RESULTS);
+            final SourceDocumentCopier copier = new SourceDocumentCopier(metaWriter.getFactory(), filterOptions);
+            domain.streamChanges(pageSize, position, before, filterOptions.getSourceIncludes(), sourceExcludes, batch -> {
+                for (final SearchHit hit : batch) {
+                    final long modified = ((Number) hit.getSortValues()[0]).longValue();
+                    final String id = (String) hit.getSortValues()[1];
+                    writeTombstonesBefore(generator, modified, id);
+                    if (resultCount >= pageSize) {
+                        return;
+                    }
+                    generator.writeStartObject();
+                    generator.writeStringField(FIELD_NAME_TYPE, hit.getType());
+                    generator.writeStringField(FIELD_NAME_ID, hit.getId());
+                    writeModified(generator, modified);
+                    generator.writeBooleanField(FIELD_NAME_DELETED, false);
+                    generator.writeFieldName(FIELD_NAME_CONTENT);
+                    copier.copy(hit.getSourceRef(), generator);
+                    generator.writeEndObject();
+                    advance(modified, id);
+                }
+                generator.flush();
+            });
+            writeTombstonesBefore(generator, Long.MAX_VALUE, null);
+            generator.writeEndArray();
+            final String cursor = lastId != null ? CursorUtils.encodeCursor(lastModified, lastId, readAt, deletionTracker.getEpoch()) : null;
+            final Meta meta = new Meta(200, pageSize, null, null);
+            meta.setResultCount(resultCount);
+            if (resultCount >= pageSize) {
+                meta.setNextPage(nextPageUrl.apply(cursor));
+            }
+            generator.writeFieldName(FIELD_NAME_META);
+            metaWriter.writeValue(generator, meta);
+            generator.writeStringField(FIELD_NAME_CURSOR, cursor);
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Writes the tombstones ordered before the given document, or all remaining ones when the id is null, until the
+     * page is full.
+     */
+    private void writeTombstonesBefore(final JsonGenerator generator,
+                                       final long modified,
+                                       final String id) throws IOException {
+        while (nextTombstone != null && resultCount < pageSize &&
+            (id == null || nextTombstone.getDeleted() < modified || (nextTombstone.getDeleted() == modified && nextTombstone.getId().compareTo(id) < 0))) {
+            generator.writeStartObject();
+            generator.writeStringField(FIELD_NAME_TYPE, nextTombstone.getType());
+            generator.writeStringField(FIELD_NAME_ID, nextTombstone.getId());
+            writeModified(generator, nextTombstone.getDeleted());
+            generator.writeBooleanField(FIELD_NAME_DELETED, true);
+            generator.writeEndObject();
+            advance(nextTombstone.getDeleted(), nextTombstone.getId());
+            nextTombstone();
+        }
+    }
+
+    private void writeModified(final JsonGenerator generator,
+                               final long modified) throws IOException {
+        generator.writeStringField(FIELD_NAME_MODIFIED, ISO8601Utils.format(new Date(modified), true));
+    }
+
+    private void advance(final long modified,
+                         final String id) {
+        lastModified = modified;
+        lastId = id;
+        resultCount++;
+    }
+
+    private void nextTombstone() {
+        nextTombstone = null;
+        if (tombstones.hasNext()) {
+            final Tombstone tombstone = tombstones.next();
+            if (tombstone.getDeleted() <= before.getTime()) {
+                nextTombstone = tombstone;
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package fi.vm.yti.codelist.api.api;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Writes a region of a file to the response with {@link FileChannel#transferTo}, so the content is not read through
+ * the heap in application code.
+ */
+public class FileRegionOutput implements StreamingOutput {
+
+    private final Path file;
+    private final long position;
+    private final long count;
+
+    public FileRegionOutput(final Path file,
+                            final long position,
+                            final long count) {
+        this.file = file;
+        this.position = position;
+        this.count = count;
+    }
+
+    @Override
+    public void write(final OutputStream output) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final WritableByteChannel target = Channels.newChannel(output);
+            long current = position;
+            long remaining = count;
+            while (remaining > 0) {
+                final long transferred = channel.transferTo(current, remaining, target);
+                if (transferred <= 0) {
+                    throw new EOFException("File ended before the expected length: " + file);
+                }
+                current += transferred;
+                remaining -= transferred;
+            }
+            output.flush();
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package fi.vm.yti.codelist.api.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static fi.vm.yti.codelist.common.constants.ApiConstants.*;
+
+/**
+ * Normalized serialization filter options for a request: the base filters that are always shown in full, the child
+ * resources expanded with the expand parameter, the sparse fieldset requested with the fields parameter and the
+ * language fallback order requested with the lang parameter.
+ *
+ * Unknown expand values have no effect on serialization and are dropped, so that equal options compare equal
+ * regardless of ordering, duplicates or stray values in the request.
+ */
+public final class FilterOptions {
+
+    public static final Set<String> FILTER_NAMES = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(
+        FILTER_NAME_CODEREGISTRY,
+        FILTER_NAME_CODESCHEME,
+        FILTER_NAME_CODE,
+        FILTER_NAME_EXTERNALREFERENCE,
+        FILTER_NAME_PROPERTYTYPE,
+        FILTER_NAME_DATACLASSIFICATION,
+        FILTER_NAME_ORGANIZATION
+    )));
+    public static final Set<String> LOCALIZED_PROPERTIES = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(
+        "prefLabel",
+        "definition",
+        "description",
+        "changeNote",
+        "title"
+    )));
+    private static final Map<String, String> PROPERTY_FILTERS = new HashMap<>();
+
+    static {
+        PROPERTY_FILTERS.put("codeRegistry", FILTER_NAME_CODEREGISTRY);
+        PROPERTY_FILTERS.put("codeScheme", FILTER_NAME_CODESCHEME);
+        PROPERTY_FILTERS.put("parentCodeScheme", FILTER_NAME_CODESCHEME);
+        PROPERTY_FILTERS.put("dataClassifications", FILTER_NAME_CODE);
+        PROPERTY_FILTERS.put("externalReferences", FILTER_NAME_EXTERNALREFERENCE);
+        PROPERTY_FILTERS.put("propertyType", FILTER_NAME_PROPERTYTYPE);
+        PROPERTY_FILTERS.put("organizations", FILTER_NAME_ORGANIZATION);
+    }
+
+    private final Set<String> baseFilters;
+    private final Set<String> expand;
+    private final Set<String> fields;
+    private final List<String> languages;
+    private final String[] sourceIncludes;
+    private final String[] sourceExcludes;
+
+    private FilterOptions(final Set<String> baseFilters,
+                          final Set<String> expand,
+                          final Set<String> fields,
+                          final List<String> languages) {
+        this.baseFilters = Collections.unmodifiableSet(baseFilters);
+        this.expand = Collections.unmodifiableSet(expand);
+        this.fields = Collections.unmodifiableSet(fields);
+        this.languages = Collections.unmodifiableList(languages);
+        this.sourceIncludes = fields.isEmpty() ? null : fields.toArray(new String[fields.size()]);
+        this.sourceExcludes = createSourceExcludes();
+    }
+
+    /**
+     * Returns the filter that controls the serialization of objects under the given property, or null if the
+     * property is always serialized in full.
+     *
+     * @param propertyName The property name.
+     * @return The filter name or null.
+     */
+    public static String getPropertyFilter(final String propertyName) {
+        return PROPERTY_FILTERS.get(propertyName);
+    }
+
+    /**
+     * Parses the lang parameter into a language fallback order. Language codes are lower cased and duplicates dropped.
+     *
+     * @param lang Comma separated language codes in order of preference, may be null.
+     * @return The languages in order of preference, empty if all languages are shown.
+     */
+    public static List<String> parseLanguages(final String lang) {
+        final Set<String> languages = new LinkedHashSet<>();
+        if (lang != null && !lang.isEmpty()) {
+            for (final String language : lang.split(",")) {
+                final String code = language.trim().toLowerCase();
+                if (!code.isEmpty()) {
+                    languages.add(code);
+                }
+            }
+        }
+        return new ArrayList<>(languages);
+    }
+
+    public static FilterOptions of(final String baseFilter,
+                                   final String expand) {
+        return of(Collections.singletonList(baseFilter), expand, null, null);
+    }
+
+    public static FilterOptions of(final String baseFilter,
+                                   final String expand,
+                                   final String fields,
+                                   final String lang) {
+        return of(Collections.singletonList(baseFilter), expand, fields, lang);
+    }
+
+    public static FilterOptions of(final Collection<String> baseFilters,
+                                   final String expand,
+                                   final String fields,
+                                   final String lang) {
+        final Set<String> normalizedBaseFilters = new TreeSet<>(baseFilters);
+        final Set<String> normalizedExpand = new TreeSet<>();
+        if (expand != null && !expand.isEmpty()) {
+            final List<String> filterOptions = Arrays.asList(expand.split(","));
+            for (final String filter : filterOptions) {
+                final String name = filter.trim();
+                if (FILTER_NAMES.contains(name) && !normalizedBaseFilters.contains(name)) {
+                    normalizedExpand.add(name);
+                }
+            }
+        }
+        final Set<String> normalizedFields = new TreeSet<>();
+        if (fields != null && !fields.isEmpty()) {
+            for (final String field : fields.split(",")) {
+                final String name = field.trim();
+                if (!name.isEmpty()) {
+                    normalizedFields.add(name);
+                }
+            }
+        }
+        return new FilterOptions(normalizedBaseFilters, normalizedExpand, normalizedFields, parseLanguages(lang));
+    }
+
+    public Set<String> getBaseFilters() {
+        return baseFilters;
+    }
+
+    public Set<String> getExpand() {
+        return expand;
+    }
+
+    /**
+     * Returns the top level fields requested with the fields parameter, empty if all fields are shown.
+     *
+     * @return The requested fields.
+     */
+    public Set<String> getFields() {
+        return fields;
+    }
+
+    public boolean hasFields() {
+        return !fields.isEmpty();
+    }
+
+    /**
+     * Returns the language fallback order for localized properties, empty if all languages are shown.
+     *
+     * @return The languages in order of preference.
+     */
+    public List<String> getLanguages() {
+        return languages;
+    }
+
+    public boolean hasLanguages() {
+        return !languages.isEmpty();
+    }
+
+    /**
+     * Selects the value of a localized property in the fallback order.
+     *
+     * @param localized The localized values by language.
+     * @return The language of the first value found, or null if none of the languages has a value.
+     */
+    public String selectLanguage(final Map<?, ?> localized) {
+        for (final String language : languages) {
+            if (localized.get(language) != null) {
+                return language;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if objects under the given filter are serialized in full instead of as references.
+     *
+     * @param filterName The filter name.
+     * @return true if the filter is a base filter or expanded.
+     */
+    public boolean isExpanded(final String filterName) {
+        return baseFilters.contains(filterName) || expand.contains(filterName);
+    }
+
+    /**
+     * Returns the _source include patterns for the requested fields, or null if all fields are included. The returned
+     * array must not be modified.
+     *
+     * @return The include patterns or null.
+     */
+    public String[] getSourceIncludes() {
+        return sourceIncludes;
+    }
+
+    /**
+     * Returns the _source exclude patterns for searches serialized with these options. Objects that are not expanded
+     * are shown as references, so everything nested deeper than their own fields is left out of the response from
+     * ElasticSearch, at any depth. The returned array must not be modified.
+     *
+     * @return The exclude patterns, empty if everything is expanded.
+     */
+    public String[] getSourceExcludes() {
+        return sourceExcludes;
+    }
+
+    /**
+     * Returns the _source exclude patterns, extended with the translations of localized properties that are outside
+     * of the requested languages. Translations are excluded by name, so only the languages known to be indexed can be
+     * left out in ElasticSearch and the fallback itself is resolved when the response is written.
+     *
+     * @param indexedLanguages The languages present in the index mappings.
+     * @return The exclude patterns.
+     */
+    public String[] getSourceExcludes(final Set<String> indexedLanguages) {
+        if (languages.isEmpty()) {
+            return sourceExcludes;
+        }
+        final Set<String> excludes = new TreeSet<>(Arrays.asList(sourceExcludes));
+        for (final String language : indexedLanguages) {
+            if (!languages.contains(language)) {
+                for (final String propertyName : LOCALIZED_PROPERTIES) {
+                    excludes.add(propertyName + "." + language);
+                    excludes.add("*." + propertyName + "." + language);
+                }
+            }
+        }
+        return excludes.toArray(new String[excludes.size()]);
+    }
+
+    private String[] createSourceExcludes() {
+        final Set<String> excludes = new TreeSet<>();
+        PROPERTY_FILTERS.forEach((propertyName, filterName) -> {
+            if (!isExpanded(filterName)) {
+                excludes.add(propertyName + ".*.*");
+                excludes.add("*." + propertyName + ".*.*");
+            }
+        });
+        return excludes.toArray(new String[excludes.size()]);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        final FilterOptions that = (FilterOptions) o;
+        return baseFilters.equals(that.baseFilters) && expand.equals(that.expand) && fields.equals(that.fields) && languages.equals(that.languages);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * baseFilters.hashCode() + expand.hashCode()) + fields.hashCode()) + languages.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "FilterOptions{baseFilters=" + baseFilters + ", expand=" + expand + ", fields=" + fields + ", languages=" + languages + "}";
+    }
+}
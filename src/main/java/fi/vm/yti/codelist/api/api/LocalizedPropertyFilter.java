@@ -0,0 +1,67 @@
+package fi.vm.yti.codelist.api.api;
+
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
+import com.fasterxml.jackson.databind.ser.PropertyWriter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
+
+/**
+ * Property filter for objects that are serialized in full, optionally limited to a sparse fieldset. When languages are
+ * requested, localized properties are written reduced to the first translation found in the fallback order.
+ */
+public class LocalizedPropertyFilter extends SimpleBeanPropertyFilter {
+
+    private final Set<String> includedProperties;
+    private final FilterOptions filterOptions;
+
+    /**
+     * @param includedProperties The properties to include, or null to include all properties.
+     * @param filterOptions      The filter options holding the language fallback order.
+     */
+    public LocalizedPropertyFilter(final Set<String> includedProperties,
+                                   final FilterOptions filterOptions) {
+        this.includedProperties = includedProperties;
+        this.filterOptions = filterOptions;
+    }
+
+    @Override
+    protected boolean include(final BeanPropertyWriter writer) {
+        return includedProperties == null || includedProperties.contains(writer.getName());
+    }
+
+    @Override
+    protected boolean include(final PropertyWriter writer) {
+        return includedProperties == null || includedProperties.contains(writer.getName());
+    }
+
+    @Override
+    public void serializeAsField(final Object pojo,
+                                 final JsonGenerator generator,
+                                 final SerializerProvider provider,
+                                 final PropertyWriter writer) throws Exception {
+        if (!include(writer)) {
+            if (!generator.canOmitFields()) {
+                writer.serializeAsOmittedField(pojo, generator, provider);
+            }
+            return;
+        }
+        if (filterOptions.hasLanguages() && writer instanceof BeanPropertyWriter && FilterOptions.LOCALIZED_PROPERTIES.contains(writer.getName())) {
+            final Object value = ((BeanPropertyWriter) writer).get(pojo);
+            if (value instanceof Map) {
+                final Map<?, ?> localized = (Map<?, ?>) value;
+                generator.writeObjectFieldStart(writer.getName());
+                final String language = filterOptions.selectLanguage(localized);
+                if (language != null) {
+                    generator.writeStringField(language, localized.get(language).toString());
+                }
+                generator.writeEndObject();
+                return;
+            }
+        }
+        writer.serializeAsField(pojo, generator, provider);
+    }
+}
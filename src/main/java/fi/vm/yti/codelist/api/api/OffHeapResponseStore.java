@@ -0,0 +1,349 @@
+package fi.vm.yti.codelist.api.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Second level store for encoded responses, kept outside of the Java heap in one preallocated direct buffer.
+ *
+ * The buffer is divided into fixed size blocks and every entry holds the blocks its body was written to, so memory is
+ * reused without fragmentation and released without waiting for garbage collection. Entries are evicted in least
+ * recently used order when blocks run out. An entry that is being read keeps its blocks until the read completes, even
+ * if it is evicted meanwhile.
+ */
+public class OffHeapResponseStore {
+
+    private final ByteBuffer arena;
+    private final int blockSize;
+    private final int maxEntryBytes;
+    private final long timeToLiveMillis;
+    private final int[] freeBlocks;
+    private int freeBlockCount;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public OffHeapResponseStore(final long maxBytes,
+                                final int blockSize,
+                                final int maxEntryBytes,
+                                final long timeToLiveMillis) {
+        final int blockCount = (int) Math.min(maxBytes / blockSize, Integer.MAX_VALUE / blockSize);
+        this.arena = ByteBuffer.allocateDirect(blockCount * blockSize);
+        this.blockSize = blockSize;
+        this.maxEntryBytes = maxEntryBytes;
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.freeBlocks = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            freeBlocks[i] = blockCount - 1 - i;
+        }
+        this.freeBlockCount = blockCount;
+    }
+
+    /**
+     * Looks up a live entry and holds its blocks until {@link Entry#writeTo} has completed or {@link Entry#release} has
+     * been called.
+     *
+     * @param key The normalized request.
+     * @return The entry or null.
+     */
+    public synchronized Entry acquire(final String key) {
+        final Entry entry = entries.get(key);
+        if (entry == null || entry.isExpired()) {
+            if (entry != null) {
+                remove(entry);
+            }
+            misses.increment();
+            return null;
+        }
+        entry.references++;
+        hits.increment();
+        return entry;
+    }
+
+    /**
+     * Stores a complete body, replacing any previous entry with the same key.
+     *
+     * @return true if the body was stored.
+     */
+    public boolean put(final String key,
+                       final byte[] body,
+                       final String contentType,
+                       final Map<String, String> headers) {
+        final Writer writer = newWriter();
+        try {
+            writer.write(body);
+        } catch (final IOException e) {
+            writer.discard();
+            return false;
+        }
+        return writer.commit(key, contentType, headers);
+    }
+
+    /**
+     * Starts writing a new entry, whose blocks are allocated as the body is written.
+     *
+     * @return The writer.
+     */
+    public Writer newWriter() {
+        return new Writer();
+    }
+
+    public synchronized void clear() {
+        for (final Entry entry : entries.values().toArray(new Entry[0])) {
+            remove(entry);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getUsedBytes() {
+        return (long) (freeBlocks.length - freeBlockCount) * blockSize;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private synchronized int allocateBlock() {
+        final Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+        while (freeBlockCount == 0 && leastRecentlyUsed.hasNext()) {
+            final Entry entry = leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+            entry.removed = true;
+            evictions.increment();
+            if (entry.references == 0) {
+                freeBlocks(entry.blocks, entry.blocks.length);
+            }
+        }
+        return freeBlockCount > 0 ? freeBlocks[--freeBlockCount] : -1;
+    }
+
+    private synchronized void release(final Entry entry) {
+        entry.references--;
+        if (entry.removed && entry.references == 0) {
+            freeBlocks(entry.blocks, entry.blocks.length);
+        }
+    }
+
+    private synchronized boolean commit(final Entry entry) {
+        final Entry previous = entries.put(entry.key, entry);
+        if (previous != null) {
+            previous.removed = true;
+            if (previous.references == 0) {
+                freeBlocks(previous.blocks, previous.blocks.length);
+            }
+        }
+        return true;
+    }
+
+    private void remove(final Entry entry) {
+        entries.remove(entry.key);
+        entry.removed = true;
+        if (entry.references == 0) {
+            freeBlocks(entry.blocks, entry.blocks.length);
+        }
+    }
+
+    private synchronized void freeBlocks(final int[] blocks,
+                                         final int count) {
+        for (int i = 0; i < count; i++) {
+            freeBlocks[freeBlockCount++] = blocks[i];
+        }
+    }
+
+    private ByteBuffer block(final int block,
+                             final int length) {
+        final ByteBuffer buffer = arena.duplicate();
+        buffer.position(block * blockSize);
+        buffer.limit(block * blockSize + length);
+        return buffer;
+    }
+
+    /**
+     * A stored body together with the headers needed to replay it.
+     */
+    public final class Entry {
+
+        private final String key;
+        private final int[] blocks;
+        private final int length;
+        private final String contentType;
+        private final Map<String, String> headers;
+        private final long expires;
+        private int references;
+        private boolean removed;
+
+        private Entry(final String key,
+                      final int[] blocks,
+                      final int length,
+                      final String contentType,
+                      final Map<String, String> headers) {
+            this.key = key;
+            this.blocks = blocks;
+            this.length = length;
+            this.contentType = contentType;
+            this.headers = headers;
+            this.expires = System.currentTimeMillis() + timeToLiveMillis;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        /**
+         * Writes the body and releases the entry acquired with {@link #acquire}.
+         *
+         * @param output The stream to write to.
+         * @throws IOException If writing fails.
+         */
+        public void writeTo(final OutputStream output) throws IOException {
+            try {
+                final byte[] chunk = new byte[Math.min(blockSize, Math.max(length, 1))];
+                int remaining = length;
+                for (int i = 0; remaining > 0; i++) {
+                    final ByteBuffer buffer = block(blocks[i], Math.min(blockSize, remaining));
+                    while (buffer.hasRemaining()) {
+                        final int count = Math.min(chunk.length, buffer.remaining());
+                        buffer.get(chunk, 0, count);
+                        output.write(chunk, 0, count);
+                        remaining -= count;
+                    }
+                }
+            } finally {
+                release(this);
+            }
+        }
+
+        /**
+         * Releases the entry acquired with {@link #acquire} without writing it.
+         */
+        public void release() {
+            OffHeapResponseStore.this.release(this);
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() > expires;
+        }
+    }
+
+    /**
+     * Writes a body into newly allocated blocks. Writing stops silently if the body exceeds the entry size limit or no
+     * blocks can be freed, in which case {@link #commit} stores nothing.
+     */
+    public final class Writer extends OutputStream {
+
+        private int[] blocks = new int[8];
+        private int blockCount;
+        private int length;
+        private boolean overflow;
+        private boolean closed;
+
+        private Writer() {
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{ (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b,
+                          final int off,
+                          final int len) throws IOException {
+            if (overflow || closed) {
+                return;
+            }
+            if ((long) length + len > maxEntryBytes) {
+                overflow();
+                return;
+            }
+            int offset = off;
+            int remaining = len;
+            while (remaining > 0) {
+                final int blockOffset = length % blockSize;
+                if (blockOffset == 0) {
+                    final int block = allocateBlock();
+                    if (block < 0) {
+                        overflow();
+                        return;
+                    }
+                    if (blockCount == blocks.length) {
+                        blocks = Arrays.copyOf(blocks, blockCount * 2);
+                    }
+                    blocks[blockCount++] = block;
+                }
+                final int count = Math.min(remaining, blockSize - blockOffset);
+                final ByteBuffer buffer = arena.duplicate();
+                buffer.position(blocks[blockCount - 1] * blockSize + blockOffset);
+                buffer.put(b, offset, count);
+                offset += count;
+                remaining -= count;
+                length += count;
+            }
+        }
+
+        public boolean isOverflow() {
+            return overflow;
+        }
+
+        /**
+         * Stores the written body as an entry, or releases the blocks if writing overflowed.
+         *
+         * @return true if the entry was stored.
+         */
+        public boolean commit(final String key,
+                              final String contentType,
+                              final Map<String, String> headers) {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            if (overflow) {
+                return false;
+            }
+            return OffHeapResponseStore.this.commit(new Entry(key, Arrays.copyOf(blocks, blockCount), length, contentType, headers));
+        }
+
+        /**
+         * Releases the blocks written so far without storing anything.
+         */
+        public void discard() {
+            if (!closed) {
+                closed = true;
+                freeBlocks(blocks, blockCount);
+                blockCount = 0;
+            }
+        }
+
+        private void overflow() {
+            overflow = true;
+            freeBlocks(blocks, blockCount);
+            blockCount = 0;
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package fi.vm.yti.codelist.api.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.inject.Inject;
+import javax.ws.rs.core.HttpHeaders;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import fi.vm.yti.codelist.api.domain.IndexChangeListener;
+import fi.vm.yti.codelist.api.util.GzipOutputStream;
+import static fi.vm.yti.codelist.api.util.ContentEncodingUtils.ENCODING_GZIP;
+
+/**
+ * Caches complete encoded responses, keyed by the normalized request, so that hot URLs are served without querying
+ * ElasticSearch or serializing anything.
+ *
+ * The cache is bounded by the total size of the cached bodies, entries expire after the configured time to live and
+ * everything is dropped when any index changes, because a listing may embed content from several indices.
+ *
+ * When an off-heap size is configured, an {@link OffHeapResponseStore} is consulted after the heap tier. Bodies too
+ * large for the heap tier, such as big exports, are recorded straight to it, and entries evicted from the heap tier for
+ * size are moved to it, so that large cached content stays out of the garbage collector's way.
+ *
+ * Compressible bodies are stored gzip compressed with a Content-Encoding header among the replayed headers, so that
+ * hits are sent to clients accepting gzip without compressing them again. The size limits apply to the stored bytes.
+ */
+@Component
+public class ResponseCache implements IndexChangeListener, PublicMetrics {
+
+    private final Cache<String, HeapResponse> responses;
+    private final OffHeapResponseStore offHeapStore;
+    private final int maxEntryBytes;
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder invalidations = new LongAdder();
+
+    @Inject
+    public ResponseCache(@Value("${application.cache.response.maxBytes:67108864}") final long maxBytes,
+                         @Value("${application.cache.response.maxEntryBytes:4194304}") final int maxEntryBytes,
+                         @Value("${application.cache.response.timeToLiveSeconds:60}") final long timeToLiveSeconds,
+                         @Value("${application.cache.response.offHeap.maxBytes:0}") final long offHeapMaxBytes,
+                         @Value("${application.cache.response.offHeap.blockSize:65536}") final int offHeapBlockSize,
+                         @Value("${application.cache.response.offHeap.maxEntryBytes:134217728}") final int offHeapMaxEntryBytes) {
+        this.maxEntryBytes = maxEntryBytes;
+        this.offHeapStore = offHeapMaxBytes > 0 ? new OffHeapResponseStore(offHeapMaxBytes, offHeapBlockSize, offHeapMaxEntryBytes, TimeUnit.SECONDS.toMillis(timeToLiveSeconds)) : null;
+        this.responses = Caffeine.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher((String key, HeapResponse response) -> 2 * key.length() + response.body.length)
+            .expireAfterWrite(timeToLiveSeconds, TimeUnit.SECONDS)
+            .removalListener((String key, HeapResponse response, RemovalCause cause) -> {
+                if (cause == RemovalCause.SIZE && offHeapStore != null && response != null && response.generation == generation.get()) {
+                    offHeapStore.put(key, response.body, response.contentType, response.headers);
+                }
+            })
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * Looks up a response from the heap tier and then from the off-heap tier.
+     *
+     * @param key The normalized request.
+     * @return The cached response, or null on a miss. The response must be either written with
+     * {@link CachedResponse#writeTo} or released with {@link CachedResponse#release}.
+     */
+    public CachedResponse get(final String key) {
+        final HeapResponse response = responses.getIfPresent(key);
+        if (response != null || offHeapStore == null) {
+            return response;
+        }
+        final OffHeapResponseStore.Entry entry = offHeapStore.acquire(key);
+        return entry != null ? new OffHeapResponse(entry) : null;
+    }
+
+    /**
+     * Starts recording a response body to be cached once it has been written completely.
+     *
+     * @param compress Whether the body is stored gzip compressed.
+     * @return The recorder.
+     * @throws IOException If the compressed stream cannot be started.
+     */
+    public Recorder startRecording(final boolean compress) throws IOException {
+        return new Recorder(generation.get(), compress);
+    }
+
+    @Override
+    public void indexChanged(final String indexName) {
+        invalidateAll();
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        responses.invalidateAll();
+        if (offHeapStore != null) {
+            offHeapStore.clear();
+        }
+        invalidations.increment();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final CacheStats stats = responses.stats();
+        final List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("cache.response.size", responses.estimatedSize()));
+        metrics.add(new Metric<>("cache.response.hits", stats.hitCount()));
+        metrics.add(new Metric<>("cache.response.misses", stats.missCount()));
+        metrics.add(new Metric<>("cache.response.hitRatio", stats.hitRate()));
+        metrics.add(new Metric<>("cache.response.evictions", stats.evictionCount()));
+        metrics.add(new Metric<>("cache.response.invalidations", invalidations.sum()));
+        if (offHeapStore != null) {
+            metrics.add(new Metric<>("cache.response.offheap.size", offHeapStore.size()));
+            metrics.add(new Metric<>("cache.response.offheap.bytes", offHeapStore.getUsedBytes()));
+            metrics.add(new Metric<>("cache.response.offheap.hits", offHeapStore.getHits()));
+            metrics.add(new Metric<>("cache.response.offheap.misses", offHeapStore.getMisses()));
+            metrics.add(new Metric<>("cache.response.offheap.evictions", offHeapStore.getEvictions()));
+        }
+        return metrics;
+    }
+
+    /**
+     * An encoded response body together with the headers needed to replay it.
+     */
+    public interface CachedResponse {
+
+        int getLength();
+
+        String getContentType();
+
+        /**
+         * @return The replayed headers other than the content type, such as the content disposition and validators.
+         */
+        Map<String, String> getHeaders();
+
+        /**
+         * Writes the body and releases the response.
+         */
+        void writeTo(final OutputStream output) throws IOException;
+
+        /**
+         * Releases the response without writing it. Releasing a response that has been written has no effect.
+         */
+        void release();
+    }
+
+    private static class HeapResponse implements CachedResponse {
+
+        private final byte[] body;
+        private final String contentType;
+        private final Map<String, String> headers;
+        private final long generation;
+
+        private HeapResponse(final byte[] body,
+                             final String contentType,
+                             final Map<String, String> headers,
+                             final long generation) {
+            this.body = body;
+            this.contentType = contentType;
+            this.headers = headers;
+            this.generation = generation;
+        }
+
+        public int getLength() {
+            return body.length;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        public void writeTo(final OutputStream output) throws IOException {
+            output.write(body);
+        }
+
+        public void release() {
+        }
+    }
+
+    /**
+     * An acquired off-heap entry, released exactly once whether it is written, released or both.
+     */
+    private static class OffHeapResponse implements CachedResponse {
+
+        private final OffHeapResponseStore.Entry entry;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private OffHeapResponse(final OffHeapResponseStore.Entry entry) {
+            this.entry = entry;
+        }
+
+        public int getLength() {
+            return entry.getLength();
+        }
+
+        public String getContentType() {
+            return entry.getContentType();
+        }
+
+        public Map<String, String> getHeaders() {
+            return entry.getHeaders();
+        }
+
+        public void writeTo(final OutputStream output) throws IOException {
+            if (!released.compareAndSet(false, true)) {
+                throw new IllegalStateException("Cached response has already been released");
+            }
+            entry.writeTo(output);
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                entry.release();
+            }
+        }
+    }
+
+    /**
+     * Records a response body as it is written, compressing it first if requested. Bodies up to the heap entry limit
+     * are buffered on the heap, larger ones are moved to the off-heap tier if there is one and dropped otherwise. Once
+     * the body has been dropped, the rest of it is no longer compressed.
+     *
+     * A compressing recorder can instead be handed the body as it is compressed for the client with
+     * {@link #recordEncoded}, so that the same content is not compressed twice.
+     */
+    public final class Recorder extends OutputStream {
+
+        private final long startGeneration;
+        private final boolean compress;
+        private final Body body = new Body();
+        private GzipOutputStream compressor;
+        private boolean encoded;
+        private boolean encodedComplete;
+        private boolean discarded;
+        private String pendingKey;
+        private String pendingContentType;
+        private Map<String, String> pendingHeaders;
+
+        private Recorder(final long startGeneration,
+                         final boolean compress) throws IOException {
+            this.startGeneration = startGeneration;
+            this.compress = compress;
+            this.compressor = compress ? new GzipOutputStream(body, 8192, false) : null;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{ (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b,
+                          final int off,
+                          final int len) throws IOException {
+            if (encoded || discarded) {
+                return;
+            }
+            if (body.isDropped()) {
+                endCompressor();
+                return;
+            }
+            if (compressor != null) {
+                compressor.write(b, off, len);
+            } else {
+                body.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        /**
+         * @return true if the body is still being recorded gzip compressed, so that it can be switched to
+         * {@link #recordEncoded}.
+         */
+        public boolean isCompressing() {
+            return compress && !encoded && !discarded && !body.isDropped();
+        }
+
+        /**
+         * Switches to recording the body as compressed by the caller, who writes the complete gzip stream to the
+         * returned stream and closes it. What has been recorded so far is dropped, and bytes written to the recorder
+         * itself are ignored from now on. The body is cached once the stream has been closed and {@link #commit} has
+         * been called, in either order.
+         *
+         * @return The stream to write the compressed body to.
+         */
+        public OutputStream recordEncoded() {
+            endCompressor();
+            body.reset();
+            encoded = true;
+            return new OutputStream() {
+
+                @Override
+                public void write(final int b) throws IOException {
+                    write(new byte[]{ (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(final byte[] b,
+                                  final int off,
+                                  final int len) throws IOException {
+                    if (!discarded && !encodedComplete) {
+                        body.write(b, off, len);
+                    }
+                }
+
+                @Override
+                public void close() {
+                    if (!encodedComplete) {
+                        encodedComplete = true;
+                        if (pendingKey != null) {
+                            store(pendingKey, pendingContentType, pendingHeaders);
+                        }
+                    }
+                }
+            };
+        }
+
+        /**
+         * Caches the recorded body, unless it was too large or the cache has been invalidated after recording started.
+         */
+        public void commit(final String key,
+                           final String contentType,
+                           final Map<String, String> headers) throws IOException {
+            if (discarded) {
+                return;
+            }
+            Map<String, String> storedHeaders = headers;
+            if (compress) {
+                storedHeaders = new LinkedHashMap<>(headers);
+                storedHeaders.put(HttpHeaders.CONTENT_ENCODING, ENCODING_GZIP);
+            }
+            if (encoded && !encodedComplete) {
+                pendingKey = key;
+                pendingContentType = contentType;
+                pendingHeaders = storedHeaders;
+                return;
+            }
+            if (compressor != null) {
+                compressor.close();
+                compressor = null;
+            }
+            store(key, contentType, storedHeaders);
+        }
+
+        /**
+         * Drops the recorded body.
+         */
+        public void discard() {
+            discarded = true;
+            pendingKey = null;
+            endCompressor();
+            body.drop();
+        }
+
+        private void store(final String key,
+                           final String contentType,
+                           final Map<String, String> headers) {
+            if (generation.get() != startGeneration) {
+                discard();
+                return;
+            }
+            if (body.heapBody != null) {
+                responses.put(key, new HeapResponse(body.heapBody.toByteArray(), contentType, headers, startGeneration));
+            } else if (body.offHeapBody != null) {
+                body.offHeapBody.commit(key, contentType, headers);
+            }
+        }
+
+        private void endCompressor() {
+            if (compressor != null) {
+                compressor.end();
+                compressor = null;
+            }
+        }
+    }
+
+    /**
+     * The stored bytes of a recorded body.
+     */
+    private final class Body extends OutputStream {
+
+        private ByteArrayOutputStream heapBody = new ByteArrayOutputStream();
+        private OffHeapResponseStore.Writer offHeapBody;
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{ (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b,
+                          final int off,
+                          final int len) throws IOException {
+            if (heapBody != null) {
+                if (heapBody.size() + len <= maxEntryBytes) {
+                    heapBody.write(b, off, len);
+                    return;
+                }
+                if (offHeapStore != null) {
+                    offHeapBody = offHeapStore.newWriter();
+                    heapBody.writeTo(offHeapBody);
+                }
+                heapBody = null;
+            }
+            if (offHeapBody != null) {
+                offHeapBody.write(b, off, len);
+            }
+        }
+
+        /**
+         * @return true if the body has grown too large to be stored and nothing more needs to be written.
+         */
+        private boolean isDropped() {
+            return heapBody == null && (offHeapBody == null || offHeapBody.isOverflow());
+        }
+
+        private void reset() {
+            drop();
+            heapBody = new ByteArrayOutputStream();
+        }
+
+        private void drop() {
+            heapBody = null;
+            if (offHeapBody != null) {
+                offHeapBody.discard();
+                offHeapBody = null;
+            }
+        }
+    }
+}
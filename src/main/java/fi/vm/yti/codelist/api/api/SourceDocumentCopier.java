@@ -0,0 +1,142 @@
+package fi.vm.yti.codelist.api.api;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.bytes.BytesReference;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import static fi.vm.yti.codelist.common.constants.ApiConstants.*;
+
+/**
+ * Copies indexed source documents to a JSON generator token by token, applying the serialization filter options.
+ *
+ * Objects under properties whose filter is not expanded are reduced to their reference field, and null valued fields
+ * are dropped as with the object mapper. When languages are requested, localized properties are reduced to the first
+ * translation found in the fallback order.
+ */
+public class SourceDocumentCopier {
+
+    private final JsonFactory factory;
+    private final FilterOptions filterOptions;
+
+    public SourceDocumentCopier(final JsonFactory factory,
+                                final FilterOptions filterOptions) {
+        this.factory = factory;
+        this.filterOptions = filterOptions;
+    }
+
+    /**
+     * Copies one source document as a JSON object. Sources that are not JSON objects are skipped.
+     *
+     * @param source    The source document.
+     * @param generator The generator to copy the document to.
+     * @throws IOException If parsing or writing fails.
+     */
+    public void copy(final BytesReference source,
+                     final JsonGenerator generator) throws IOException {
+        final BytesRef bytes = source.toBytesRef();
+        try (final JsonParser parser = factory.createParser(bytes.bytes, bytes.offset, bytes.length)) {
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                copyObject(parser, generator);
+            }
+        }
+    }
+
+    private void copyObject(final JsonParser parser,
+                            final JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String fieldName = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            if (token == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            generator.writeFieldName(fieldName);
+            final String filterName = FilterOptions.getPropertyFilter(fieldName);
+            if (filterName != null && !filterOptions.isExpanded(filterName)) {
+                copyReference(parser, generator, FILTER_NAME_ORGANIZATION.equals(filterName) ? FIELD_NAME_ID : FIELD_NAME_URI);
+            } else if (token == JsonToken.START_OBJECT && filterOptions.hasLanguages() && FilterOptions.LOCALIZED_PROPERTIES.contains(fieldName)) {
+                copyLocalized(parser, generator);
+            } else {
+                copyValue(parser, generator);
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    private void copyValue(final JsonParser parser,
+                           final JsonGenerator generator) throws IOException {
+        final JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.START_OBJECT) {
+            copyObject(parser, generator);
+        } else if (token == JsonToken.START_ARRAY) {
+            generator.writeStartArray();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                copyValue(parser, generator);
+            }
+            generator.writeEndArray();
+        } else {
+            generator.copyCurrentEvent(parser);
+        }
+    }
+
+    /**
+     * Copies a localized value map reduced to the translation selected by the language fallback order.
+     */
+    private void copyLocalized(final JsonParser parser,
+                               final JsonGenerator generator) throws IOException {
+        final Map<String, String> localized = new HashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String language = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.VALUE_STRING) {
+                localized.put(language, parser.getText());
+            } else {
+                parser.skipChildren();
+            }
+        }
+        generator.writeStartObject();
+        final String language = filterOptions.selectLanguage(localized);
+        if (language != null) {
+            generator.writeStringField(language, localized.get(language));
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * Copies an object, or an array of objects, reduced to the single field that is kept by the non-expanded filter.
+     */
+    private void copyReference(final JsonParser parser,
+                               final JsonGenerator generator,
+                               final String keptField) throws IOException {
+        final JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.START_ARRAY) {
+            generator.writeStartArray();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                copyReference(parser, generator, keptField);
+            }
+            generator.writeEndArray();
+        } else if (token == JsonToken.START_OBJECT) {
+            generator.writeStartObject();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String fieldName = parser.getCurrentName();
+                final JsonToken valueToken = parser.nextToken();
+                if (keptField.equals(fieldName) && valueToken != JsonToken.VALUE_NULL) {
+                    generator.writeFieldName(fieldName);
+                    generator.copyCurrentStructure(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            generator.writeEndObject();
+        } else {
+            generator.copyCurrentEvent(parser);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package fi.vm.yti.codelist.api.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.elasticsearch.common.bytes.BytesReference;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import fi.vm.yti.codelist.common.model.Meta;
+
+/**
+ * Writes a JSON listing in the same shape as {@link ResponseWrapper} by copying the indexed source documents to the
+ * response token by token with a {@link SourceDocumentCopier}, instead of deserializing them into model objects and
+ * serializing them again.
+ *
+ * The documents are parsed as JSON, but the listing can be generated in any data format supported by Jackson, such as
+ * Smile or CBOR, and is written by the {@code SourceListingWriter} in the negotiated format.
+ */
+public class SourceListingOutput {
+
+    private static final String FIELD_NAME_META = "meta";
+    private static final String FIELD_NAME_RESULTS = "results";
+
+    private final ObjectWriter metaWriter;
+    private final Meta meta;
+    private final List<BytesReference> sources;
+    private final FilterOptions filterOptions;
+
+    public SourceListingOutput(final ObjectWriter metaWriter,
+                               final Meta meta,
+                               final List<BytesReference> sources,
+                               final FilterOptions filterOptions) {
+        this.metaWriter = metaWriter;
+        this.meta = meta;
+        this.sources = sources;
+        this.filterOptions = filterOptions;
+    }
+
+    /**
+     * Writes the listing.
+     *
+     * @param output           The stream to write to, which is left open.
+     * @param generatorFactory The factory of the output data format, or null for JSON.
+     * @throws IOException If parsing or writing fails.
+     */
+    public void writeTo(final OutputStream output,
+                        final JsonFactory generatorFactory) throws IOException {
+        final JsonFactory factory = generatorFactory != null ? generatorFactory : metaWriter.getFactory();
+        try (final JsonGenerator generator = factory.createGenerator(output, JsonEncoding.UTF8)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartObject();
+            generator.writeFieldName(FIELD_NAME_META);
+            metaWriter.writeValue(generator, meta);
+            generator.writeArrayFieldStart(FIELD_NAME_RESULTS);
+            final SourceDocumentCopier copier = new SourceDocumentCopier(metaWriter.getFactory(), filterOptions);
+            for (final BytesReference source : sources) {
+                copier.copy(source, generator);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+    }
+}
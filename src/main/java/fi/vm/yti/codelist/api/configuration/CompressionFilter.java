@@ -0,0 +1,244 @@
+package fi.vm.yti.codelist.api.configuration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.Priority;
+import javax.inject.Inject;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import fi.vm.yti.codelist.api.api.FileRegionOutput;
+import fi.vm.yti.codelist.api.api.ResponseCache;
+import fi.vm.yti.codelist.api.util.GzipOutputStream;
+import static fi.vm.yti.codelist.api.resource.AbstractBaseResource.HEADER_IF_RANGE;
+import static fi.vm.yti.codelist.api.util.ContentEncodingUtils.ENCODING_GZIP;
+import static fi.vm.yti.codelist.api.util.ContentEncodingUtils.acceptsGzip;
+import static fi.vm.yti.codelist.api.util.ContentEncodingUtils.removeGzipSuffixes;
+import static fi.vm.yti.codelist.api.util.ContentEncodingUtils.toGzipEntityTag;
+
+/**
+ * Compresses successful responses of compressible content types with gzip for clients that accept it.
+ *
+ * Bodies are buffered up to the minimum size before deciding, so small responses are sent as is and nothing is
+ * compressed before it is known to pay off. Responses that already carry a Content-Encoding, such as cached or
+ * materialized content stored compressed, are not compressed again, and neither are files sent from disk or partial
+ * content. Compressed responses get the entity tag of the unencoded response with a "--gzip" suffix, which is removed
+ * from incoming validators before the resources and the response cache see them, and added back to the entity tag of
+ * a 304 Not Modified answering such a validator.
+ *
+ * The interceptor runs outside of the {@link ResponseCacheFilter}, which therefore sees unencoded bodies. When a
+ * response being recorded for the cache is compressed, the compressed bytes are also passed to the recorder, so that
+ * the body is compressed only once.
+ */
+@Component
+@Provider
+@Priority(Priorities.ENTITY_CODER)
+public class CompressionFilter implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+
+    private static final String PROPERTY_COMPRESS = CompressionFilter.class.getName() + ".compress";
+    private static final String PROPERTY_GZIP_VALIDATOR = CompressionFilter.class.getName() + ".gzipValidator";
+    private static final String HEADER_VARY_VALUE = HttpHeaders.ACCEPT_ENCODING;
+    private final boolean enabled;
+    private final int minResponseSize;
+    private final Set<String> mimeTypes;
+
+    @Inject
+    public CompressionFilter(@Value("${application.compression.enabled:true}") final boolean enabled,
+                             @Value("${application.compression.minResponseSize:2048}") final int minResponseSize,
+                             @Value("${application.compression.mimeTypes:application/json,application/csv,text/csv,text/plain,application/xml,text/xml,application/xls,application/x-ndjson}") final String mimeTypes) {
+        this.enabled = enabled;
+        this.minResponseSize = minResponseSize;
+        this.mimeTypes = new HashSet<>(Arrays.asList(mimeTypes.toLowerCase().split("\\s*,\\s*")));
+    }
+
+    /**
+     * Tells whether responses of a content type are compressed.
+     *
+     * @param mediaType The content type, may be null.
+     * @return True if compression is enabled and the content type is compressible.
+     */
+    public boolean isCompressible(final MediaType mediaType) {
+        return enabled && mediaType != null && mimeTypes.contains((mediaType.getType() + "/" + mediaType.getSubtype()).toLowerCase());
+    }
+
+    @Override
+    public void filter(final ContainerRequestContext request) {
+        final MultivaluedMap<String, String> headers = request.getHeaders();
+        for (final String name : new String[]{ HttpHeaders.IF_NONE_MATCH, HttpHeaders.IF_MATCH, HEADER_IF_RANGE }) {
+            final String value = headers.getFirst(name);
+            final String unencodedValue = removeGzipSuffixes(value);
+            if (value != null && !value.equals(unencodedValue)) {
+                headers.putSingle(name, unencodedValue);
+                request.setProperty(PROPERTY_GZIP_VALIDATOR, Boolean.TRUE);
+            }
+        }
+    }
+
+    @Override
+    public void filter(final ContainerRequestContext request,
+                       final ContainerResponseContext response) {
+        final MultivaluedMap<String, Object> headers = response.getHeaders();
+        final boolean notModified = response.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode() && request.getProperty(PROPERTY_GZIP_VALIDATOR) != null;
+        if (notModified || ENCODING_GZIP.equals(response.getHeaderString(HttpHeaders.CONTENT_ENCODING))) {
+            addVary(headers);
+            final Object entityTag = headers.getFirst(HttpHeaders.ETAG);
+            if (entityTag != null) {
+                headers.putSingle(HttpHeaders.ETAG, toGzipEntityTag(entityTag));
+            }
+            return;
+        }
+        if (response.getStatus() != Response.Status.OK.getStatusCode() || !response.hasEntity() || response.getEntity() instanceof FileRegionOutput ||
+            response.getHeaderString(HttpHeaders.CONTENT_ENCODING) != null || !isCompressible(response.getMediaType())) {
+            return;
+        }
+        addVary(headers);
+        if (acceptsGzip(request.getHeaderString(HttpHeaders.ACCEPT_ENCODING)) && (response.getLength() < 0 || response.getLength() >= minResponseSize)) {
+            request.setProperty(PROPERTY_COMPRESS, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public void aroundWriteTo(final WriterInterceptorContext context) throws IOException {
+        if (context.getProperty(PROPERTY_COMPRESS) == null) {
+            context.proceed();
+            return;
+        }
+        final OutputStream output = context.getOutputStream();
+        final CompressingOutputStream compressing = new CompressingOutputStream(context, output);
+        context.setOutputStream(compressing);
+        try {
+            context.proceed();
+            compressing.finish();
+        } finally {
+            compressing.end();
+            context.setOutputStream(output);
+        }
+    }
+
+    private static void addVary(final MultivaluedMap<String, Object> headers) {
+        final Object vary = headers.getFirst(HttpHeaders.VARY);
+        if (vary == null) {
+            headers.putSingle(HttpHeaders.VARY, HEADER_VARY_VALUE);
+        } else if (!vary.toString().toLowerCase().contains(HEADER_VARY_VALUE.toLowerCase())) {
+            headers.putSingle(HttpHeaders.VARY, vary + ", " + HEADER_VARY_VALUE);
+        }
+    }
+
+    /**
+     * Buffers the body until it reaches the minimum size and then switches to gzip, setting the encoding headers
+     * before anything has been written to the client. Flushes are deferred while buffering.
+     */
+    private final class CompressingOutputStream extends OutputStream {
+
+        private final WriterInterceptorContext context;
+        private final OutputStream output;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private OutputStream target;
+        private ResponseCache.Recorder recorder;
+        private boolean finished;
+
+        private CompressingOutputStream(final WriterInterceptorContext context,
+                                        final OutputStream output) {
+            this.context = context;
+            this.output = output;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{ (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b,
+                          final int off,
+                          final int len) throws IOException {
+            if (target != null) {
+                target.write(b, off, len);
+                return;
+            }
+            buffer.write(b, off, len);
+            if (buffer.size() >= minResponseSize) {
+                final MultivaluedMap<String, Object> headers = context.getHeaders();
+                headers.putSingle(HttpHeaders.CONTENT_ENCODING, ENCODING_GZIP);
+                headers.remove(HttpHeaders.CONTENT_LENGTH);
+                final Object entityTag = headers.getFirst(HttpHeaders.ETAG);
+                if (entityTag != null) {
+                    headers.putSingle(HttpHeaders.ETAG, toGzipEntityTag(entityTag));
+                }
+                target = new GzipOutputStream(createCompressedOutput(), 8192, true);
+                buffer.writeTo(target);
+                buffer = null;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (target != null) {
+                target.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+
+        private void finish() throws IOException {
+            if (target instanceof GzipOutputStream) {
+                target.close();
+            } else if (buffer != null) {
+                buffer.writeTo(output);
+                buffer = null;
+                target = output;
+            }
+            output.flush();
+            finished = true;
+        }
+
+        /**
+         * Releases the compressor. If the body was not finished, the recorded copy of the compressed bytes is dropped.
+         */
+        private void end() {
+            if (target instanceof GzipOutputStream) {
+                ((GzipOutputStream) target).end();
+            }
+            if (!finished && recorder != null) {
+                recorder.discard();
+            }
+        }
+
+        /**
+         * Returns the stream the compressed body is written to, which also passes it to the response cache if the
+         * response is being recorded there compressed.
+         */
+        private OutputStream createCompressedOutput() {
+            final OutputStream client = new CloseShieldOutputStream(output);
+            final Object property = context.getProperty(ResponseCacheFilter.PROPERTY_RECORDER);
+            if (property instanceof ResponseCache.Recorder && ((ResponseCache.Recorder) property).isCompressing()) {
+                recorder = (ResponseCache.Recorder) property;
+                return new TeeOutputStream(client, recorder.recordEncoded());
+            }
+            return client;
+        }
+    }
+}
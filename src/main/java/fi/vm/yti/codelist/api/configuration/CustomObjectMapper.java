@@ -3,6 +3,7 @@ package fi.vm.yti.codelist.api.configuration;
 import org.springframework.stereotype.Component;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 
@@ -12,9 +13,17 @@ public class CustomObjectMapper extends ObjectMapper {
     private static final long serialVersionUID = 1L;
 
     public CustomObjectMapper() {
-        super();
+        this(null);
+    }
+
+    /**
+     * Creates a mapper with the same settings for another data format, such as Smile or CBOR.
+     *
+     * @param factory The factory of the data format, or null for JSON.
+     */
+    public CustomObjectMapper(final JsonFactory factory) {
+        super(factory);
         configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
         setSerializationInclusion(JsonInclude.Include.NON_NULL);
     }
 }
-
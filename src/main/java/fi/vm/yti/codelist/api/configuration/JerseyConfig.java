@@ -6,8 +6,14 @@ import javax.ws.rs.core.MediaType;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.springframework.stereotype.Component;
 
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.jaxrs.cbor.JacksonJaxbCBORProvider;
 import com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider;
+import com.fasterxml.jackson.jaxrs.smile.JacksonJaxbSmileProvider;
 
+import fi.vm.yti.codelist.api.resource.AbstractBaseResource;
+import fi.vm.yti.codelist.api.resource.ChangeResource;
 import fi.vm.yti.codelist.api.resource.CodeRegistryResource;
 import fi.vm.yti.codelist.api.resource.CodeSchemeResource;
 import fi.vm.yti.codelist.api.resource.ExternalReferenceResource;
@@ -42,7 +48,7 @@ import io.swagger.annotations.SwaggerDefinition;
     host = "localhost:9601",
     basePath = ApiConstants.API_CONTEXT_PATH_RESTAPI + ApiConstants.API_BASE_PATH,
     consumes = {MediaType.APPLICATION_JSON},
-    produces = {MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN, "application/csv", "application/xls", "application/xlsx"},
+    produces = {MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN, "application/csv", "application/xls", "application/xlsx", "application/x-ndjson", AbstractBaseResource.MEDIA_TYPE_SMILE, AbstractBaseResource.MEDIA_TYPE_CBOR},
     schemes = {SwaggerDefinition.Scheme.HTTPS}
 )
 @Api(value = ApiConstants.API_BASE_PATH, description = "Code List Service - Public API Service")
@@ -53,9 +59,24 @@ public class JerseyConfig extends ResourceConfig {
         final JacksonJaxbJsonProvider provider = new JacksonJaxbJsonProvider();
         provider.setMapper(new CustomObjectMapper());
 
+        // Binary JSON formats for machine-to-machine clients.
+        final JacksonJaxbSmileProvider smileProvider = new JacksonJaxbSmileProvider();
+        smileProvider.setMapper(new CustomObjectMapper(new SmileFactory()));
+        register(smileProvider);
+        final JacksonJaxbCBORProvider cborProvider = new JacksonJaxbCBORProvider();
+        cborProvider.setMapper(new CustomObjectMapper(new CBORFactory()));
+        register(cborProvider);
+        register(SourceListingWriter.class);
+
         // CORS filtering.
         register(CorsFilter.class);
 
+        // Response compression.
+        register(CompressionFilter.class);
+
+        // Encoded response caching.
+        register(ResponseCacheFilter.class);
+
         // Health.
         register(PingResource.class);
 
@@ -68,5 +89,8 @@ public class JerseyConfig extends ResourceConfig {
         register(CodeSchemeResource.class);
         register(PropertyTypeResource.class);
         register(ExternalReferenceResource.class);
+
+        // API: Changes feed.
+        register(ChangeResource.class);
     }
 }
@@ -0,0 +1,212 @@
+package fi.vm.yti.codelist.api.configuration;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Priority;
+import javax.inject.Inject;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.springframework.stereotype.Component;
+
+import fi.vm.yti.codelist.api.api.ChangeFeedOutput;
+import fi.vm.yti.codelist.api.api.FileRegionOutput;
+import fi.vm.yti.codelist.api.api.ResponseCache;
+import fi.vm.yti.codelist.api.api.ResponseCache.CachedResponse;
+import fi.vm.yti.codelist.api.util.GunzipOutputStream;
+import static fi.vm.yti.codelist.api.resource.AbstractBaseResource.HEADER_CONTENT_DISPOSITION;
+import static fi.vm.yti.codelist.api.resource.AbstractBaseResource.HEADER_RANGE;
+import static fi.vm.yti.codelist.api.util.ContentEncodingUtils.ENCODING_GZIP;
+import static fi.vm.yti.codelist.api.util.ContentEncodingUtils.acceptsGzip;
+import static fi.vm.yti.codelist.common.constants.ApiConstants.API_PATH_VERSION_V1;
+
+/**
+ * Serves GET requests to the API from the {@link ResponseCache} and caches the encoded bodies of successful responses.
+ *
+ * Requests are keyed by the encoded path without trailing slashes, the encoded query parameters sorted by name and the
+ * Accept header, which together select the resource, the filtering and the content type. A hit is written as is with
+ * the cached content type and content disposition, without running the resource method or serializing anything.
+ * Requests with Cache-Control: no-cache bypass the lookup, but their responses are still cached. Bodies are recorded
+ * while they are streamed to the client, so caching does not delay the first response.
+ *
+ * The ETag and Last-Modified validators are cached with the body, together with the Vary header. A hit for a request
+ * with If-None-Match is answered with 304 Not Modified when the cached ETag matches, while requests with only
+ * If-Modified-Since are passed to the resource, which validates them against ElasticSearch.
+ *
+ * Range requests are passed to the resource as well, and files sent from disk are not cached, since they are
+ * already stored locally. Neither are pages of the changes feed, which depend on the time of the request and on the
+ * deletions tracked by this node rather than only on the indexed content.
+ *
+ * Bodies of compressible content types are stored gzip compressed. They are sent as stored to clients accepting gzip,
+ * with the compressed length, and decompressed while writing for other clients. When the {@link CompressionFilter}
+ * compresses the response for the client, the recorder is handed those bytes instead of compressing the body again.
+ */
+@Component
+@Provider
+@Priority(Priorities.USER)
+public class ResponseCacheFilter implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+
+    static final String PROPERTY_RECORDER = ResponseCacheFilter.class.getName() + ".recorder";
+    private static final String PROPERTY_CACHE_KEY = ResponseCacheFilter.class.getName() + ".key";
+    private static final String PROPERTY_CACHE_HEADERS = ResponseCacheFilter.class.getName() + ".headers";
+    private static final List<String> CACHED_HEADERS = Arrays.asList(HEADER_CONTENT_DISPOSITION, HttpHeaders.ETAG, HttpHeaders.LAST_MODIFIED, HttpHeaders.VARY);
+    private static final String CACHE_CONTROL_NO_CACHE = "no-cache";
+    private final ResponseCache responseCache;
+    private final CompressionFilter compressionFilter;
+
+    @Inject
+    public ResponseCacheFilter(final ResponseCache responseCache,
+                               final CompressionFilter compressionFilter) {
+        this.responseCache = responseCache;
+        this.compressionFilter = compressionFilter;
+    }
+
+    @Override
+    public void filter(final ContainerRequestContext request) throws IOException {
+        if (!HttpMethod.GET.equals(request.getMethod())) {
+            return;
+        }
+        final String path = normalizePath(request.getUriInfo().getPath(false));
+        if (!path.startsWith(API_PATH_VERSION_V1 + "/")) {
+            return;
+        }
+        final String key = createKey(path, request.getUriInfo().getQueryParameters(false), request.getHeaderString(HttpHeaders.ACCEPT));
+        final String cacheControl = request.getHeaderString(HttpHeaders.CACHE_CONTROL);
+        final boolean revalidate = request.getHeaderString(HttpHeaders.IF_MODIFIED_SINCE) != null && request.getHeaderString(HttpHeaders.IF_NONE_MATCH) == null;
+        if (!revalidate && request.getHeaderString(HEADER_RANGE) == null && (cacheControl == null || !cacheControl.contains(CACHE_CONTROL_NO_CACHE))) {
+            final CachedResponse cached = responseCache.get(key);
+            if (cached != null) {
+                request.abortWith(createCachedResponse(request, cached));
+                return;
+            }
+        }
+        request.setProperty(PROPERTY_CACHE_KEY, key);
+    }
+
+    @Override
+    public void filter(final ContainerRequestContext request,
+                       final ContainerResponseContext response) throws IOException {
+        if (response.getStatus() != Response.Status.OK.getStatusCode() || !response.hasEntity() || response.getEntity() instanceof FileRegionOutput || response.getEntity() instanceof ChangeFeedOutput) {
+            request.removeProperty(PROPERTY_CACHE_KEY);
+            return;
+        }
+        if (request.getProperty(PROPERTY_CACHE_KEY) != null) {
+            final Map<String, String> headers = new LinkedHashMap<>();
+            for (final String name : CACHED_HEADERS) {
+                final String value = response.getHeaderString(name);
+                if (value != null) {
+                    headers.put(name, value);
+                }
+            }
+            request.setProperty(PROPERTY_CACHE_HEADERS, Collections.unmodifiableMap(headers));
+        }
+    }
+
+    @Override
+    public void aroundWriteTo(final WriterInterceptorContext context) throws IOException {
+        final String key = (String) context.getProperty(PROPERTY_CACHE_KEY);
+        if (key == null) {
+            context.proceed();
+            return;
+        }
+        final OutputStream output = context.getOutputStream();
+        final ResponseCache.Recorder recorder = responseCache.startRecording(compressionFilter.isCompressible(context.getMediaType()));
+        context.setOutputStream(new TeeOutputStream(new CloseShieldOutputStream(output), recorder));
+        context.setProperty(PROPERTY_RECORDER, recorder);
+        try {
+            context.proceed();
+        } catch (final IOException | RuntimeException e) {
+            recorder.discard();
+            throw e;
+        } finally {
+            context.removeProperty(PROPERTY_RECORDER);
+            context.setOutputStream(output);
+        }
+        final String contentType = context.getMediaType() != null ? context.getMediaType().toString() : null;
+        @SuppressWarnings("unchecked") final Map<String, String> headers = (Map<String, String>) context.getProperty(PROPERTY_CACHE_HEADERS);
+        recorder.commit(key, contentType, headers != null ? headers : Collections.emptyMap());
+    }
+
+    /**
+     * Creates the response for a cache hit. The cached response is released here if its body is not sent, and by
+     * writing the body otherwise.
+     */
+    private static Response createCachedResponse(final ContainerRequestContext request,
+                                                 final CachedResponse cached) {
+        final String entityTag = cached.getHeaders().get(HttpHeaders.ETAG);
+        if (entityTag != null && request.getHeaderString(HttpHeaders.IF_NONE_MATCH) != null) {
+            final Response.ResponseBuilder notModified = request.getRequest().evaluatePreconditions(EntityTag.valueOf(entityTag));
+            if (notModified != null) {
+                cached.release();
+                for (final String name : Arrays.asList(HttpHeaders.LAST_MODIFIED, HttpHeaders.VARY)) {
+                    final String value = cached.getHeaders().get(name);
+                    if (value != null) {
+                        notModified.header(name, value);
+                    }
+                }
+                return notModified.build();
+            }
+        }
+        if (ENCODING_GZIP.equals(cached.getHeaders().get(HttpHeaders.CONTENT_ENCODING)) && !acceptsGzip(request.getHeaderString(HttpHeaders.ACCEPT_ENCODING))) {
+            final Response.ResponseBuilder response = Response.ok((StreamingOutput) output -> {
+                try (final GunzipOutputStream decompressing = new GunzipOutputStream(output)) {
+                    cached.writeTo(decompressing);
+                } finally {
+                    cached.release();
+                }
+            }, cached.getContentType());
+            cached.getHeaders().forEach((name, value) -> {
+                if (!HttpHeaders.CONTENT_ENCODING.equals(name)) {
+                    response.header(name, value);
+                }
+            });
+            return response.build();
+        }
+        final Response.ResponseBuilder response = Response.ok((StreamingOutput) cached::writeTo, cached.getContentType())
+            .header(HttpHeaders.CONTENT_LENGTH, cached.getLength());
+        cached.getHeaders().forEach(response::header);
+        return response.build();
+    }
+
+    private static String normalizePath(final String path) {
+        String normalized = path.startsWith("/") ? path : "/" + path;
+        while (normalized.length() > 1 && normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+
+    private static String createKey(final String path,
+                                    final Map<String, List<String>> queryParameters,
+                                    final String accept) {
+        final StringBuilder key = new StringBuilder(path);
+        char separator = '?';
+        for (final Map.Entry<String, List<String>> parameter : new TreeMap<>(queryParameters).entrySet()) {
+            for (final String value : parameter.getValue()) {
+                key.append(separator).append(parameter.getKey()).append('=').append(value);
+                separator = '&';
+            }
+        }
+        return key.append('#').append(accept != null ? accept : "").toString();
+    }
+}
@@ -0,0 +1,68 @@
+package fi.vm.yti.codelist.api.configuration;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import fi.vm.yti.codelist.api.api.SourceListingOutput;
+import static fi.vm.yti.codelist.api.resource.AbstractBaseResource.MEDIA_TYPE_CBOR;
+import static fi.vm.yti.codelist.api.resource.AbstractBaseResource.MEDIA_TYPE_SMILE;
+
+/**
+ * Writes {@link SourceListingOutput} listings as JSON, Smile or CBOR according to the negotiated content type.
+ */
+@Provider
+@Produces({MediaType.APPLICATION_JSON, MEDIA_TYPE_SMILE, MEDIA_TYPE_CBOR})
+public class SourceListingWriter implements MessageBodyWriter<SourceListingOutput> {
+
+    private static final JsonFactory SMILE_FACTORY = new SmileFactory();
+    private static final JsonFactory CBOR_FACTORY = new CBORFactory();
+
+    @Override
+    public boolean isWriteable(final Class<?> type,
+                               final Type genericType,
+                               final Annotation[] annotations,
+                               final MediaType mediaType) {
+        return SourceListingOutput.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public long getSize(final SourceListingOutput listing,
+                        final Class<?> type,
+                        final Type genericType,
+                        final Annotation[] annotations,
+                        final MediaType mediaType) {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(final SourceListingOutput listing,
+                        final Class<?> type,
+                        final Type genericType,
+                        final Annotation[] annotations,
+                        final MediaType mediaType,
+                        final MultivaluedMap<String, Object> httpHeaders,
+                        final OutputStream entityStream) throws IOException {
+        listing.writeTo(entityStream, getGeneratorFactory(mediaType));
+    }
+
+    private static JsonFactory getGeneratorFactory(final MediaType mediaType) {
+        if (mediaType != null && mediaType.isCompatible(MediaType.valueOf(MEDIA_TYPE_SMILE))) {
+            return SMILE_FACTORY;
+        } else if (mediaType != null && mediaType.isCompatible(MediaType.valueOf(MEDIA_TYPE_CBOR))) {
+            return CBOR_FACTORY;
+        }
+        return null;
+    }
+}
@@ -15,9 +15,13 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.http.HttpStatus;
 
 @Configuration
+@EnableScheduling
 @PropertySource(value = "classpath", ignoreResourceNotFound = true)
 public class SpringAppConfig {
 
@@ -33,6 +37,18 @@ public class SpringAppConfig {
     @Value(value = "${application.contextPath}")
     private String contextPath;
 
+    @Value("${application.elastic.responseThreads:16}")
+    private Integer elasticResponseThreads;
+
+    @Value("${application.response.writerThreads:64}")
+    private Integer responseWriterThreads;
+
+    @Value("${application.response.writerQueueCapacity:1000}")
+    private Integer responseWriterQueueCapacity;
+
+    @Value("${application.scheduler.threads:4}")
+    private Integer schedulerThreads;
+
     @Bean
     public static PropertySourcesPlaceholderConfigurer propertySourcesPlaceholderConfigurer() {
         return new PropertySourcesPlaceholderConfigurer();
@@ -54,4 +70,40 @@ public class SpringAppConfig {
         return new PreBuiltTransportClient(settings).addTransportAddress(address);
     }
 
+    @Bean
+    public ThreadPoolTaskExecutor elasticResponseExecutor() {
+        final ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(elasticResponseThreads);
+        executor.setMaxPoolSize(elasticResponseThreads);
+        executor.setThreadNamePrefix("elastic-response-");
+        return executor;
+    }
+
+    /**
+     * Writes resumed responses, which may stream exports from ElasticSearch to slow clients, so that the threads
+     * completing ElasticSearch futures are never blocked by response I/O. The queue is bounded, and responses that
+     * do not fit are answered with 503.
+     */
+    @Bean
+    public ThreadPoolTaskExecutor responseWriterExecutor() {
+        final ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(responseWriterThreads);
+        executor.setMaxPoolSize(responseWriterThreads);
+        executor.setQueueCapacity(responseWriterQueueCapacity);
+        executor.setThreadNamePrefix("response-writer-");
+        return executor;
+    }
+
+    /**
+     * Runs the scheduled tasks. Without this bean every task shares a single thread, so a long export
+     * materialization or deletion scan would hold up the index refresh that keeps caches and availability current.
+     */
+    @Bean
+    public ThreadPoolTaskScheduler taskScheduler() {
+        final ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(schedulerThreads);
+        scheduler.setThreadNamePrefix("scheduler-");
+        return scheduler;
+    }
+
 }
\ No newline at end of file
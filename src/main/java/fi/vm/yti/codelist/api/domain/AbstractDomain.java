@@ -0,0 +1,588 @@
+package fi.vm.yti.codelist.api.domain;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.lucene.search.join.ScoreMode;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.get.GetRequestBuilder;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.MultiMatchQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.search.aggregations.metrics.max.Max;
+import org.elasticsearch.search.aggregations.metrics.scripted.ScriptedMetric;
+import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.ISO8601DateFormat;
+
+import fi.vm.yti.codelist.common.model.Code;
+import fi.vm.yti.codelist.common.model.CodeRegistry;
+import fi.vm.yti.codelist.common.model.CodeScheme;
+import fi.vm.yti.codelist.common.model.ExternalReference;
+import fi.vm.yti.codelist.common.model.Meta;
+import fi.vm.yti.codelist.common.model.PropertyType;
+import static fi.vm.yti.codelist.common.constants.ApiConstants.*;
+import static java.lang.Math.toIntExact;
+import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
+import static org.elasticsearch.index.query.QueryBuilders.matchQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termsQuery;
+
+/**
+ * Shared ElasticSearch request construction and response mapping for the blocking and asynchronous Domain implementations.
+ */
+abstract class AbstractDomain {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AbstractDomain.class);
+    static final int MAX_SIZE = 10000;
+    private static final String AGGREGATION_MODIFIED = "modified";
+    private static final String AGGREGATION_MODIFIED_CHECKSUM = "modifiedChecksum";
+    private static final Script CHECKSUM_INIT_SCRIPT = new Script("params._agg.sum = 0L");
+    private static final Script CHECKSUM_MAP_SCRIPT = new Script("if (!doc['modified'].empty) { params._agg.sum += doc['modified'].value.getMillis() }");
+    private static final Script CHECKSUM_COMBINE_SCRIPT = new Script("return params._agg.sum");
+    private static final Script CHECKSUM_REDUCE_SCRIPT = new Script("long sum = 0L; for (s in params._aggs) { if (s != null) { sum += s } } return sum");
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    static final ObjectReader CODEREGISTRY_READER = MAPPER.readerFor(CodeRegistry.class);
+    static final ObjectReader CODESCHEME_READER = MAPPER.readerFor(CodeScheme.class);
+    static final ObjectReader CODE_READER = MAPPER.readerFor(Code.class);
+    static final ObjectReader PROPERTYTYPE_READER = MAPPER.readerFor(PropertyType.class);
+    static final ObjectReader EXTERNALREFERENCE_READER = MAPPER.readerFor(ExternalReference.class);
+    final Client client;
+    final IndexRegistry indexRegistry;
+    final EntityCache entityCache;
+
+    AbstractDomain(final Client client,
+                   final IndexRegistry indexRegistry,
+                   final EntityCache entityCache) {
+        this.client = client;
+        this.indexRegistry = indexRegistry;
+        this.entityCache = entityCache;
+    }
+
+    /**
+     * Returns true if the value is in the canonical UUID form, in which case it can be resolved as a document id.
+     */
+    static boolean isUuid(final String value) {
+        if (value == null || value.length() != 36) {
+            return false;
+        }
+        try {
+            UUID.fromString(value);
+            return true;
+        } catch (final IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    GetRequestBuilder createGetRequest(final String indexName,
+                                       final String type,
+                                       final String id) {
+        return client
+            .prepareGet(indexName, type, id.toLowerCase())
+            .setRealtime(true);
+    }
+
+    static boolean isInCodeRegistry(final CodeScheme codeScheme,
+                                    final String codeRegistryCodeValue) {
+        final CodeRegistry codeRegistry = codeScheme.getCodeRegistry();
+        return codeRegistry != null && codeRegistryCodeValue.equalsIgnoreCase(codeRegistry.getCodeValue());
+    }
+
+    static boolean isInCodeScheme(final Code code,
+                                  final String codeRegistryCodeValue,
+                                  final String codeSchemeCodeValue) {
+        final CodeScheme codeScheme = code.getCodeScheme();
+        return codeScheme != null &&
+            (codeSchemeCodeValue.equalsIgnoreCase(codeScheme.getCodeValue()) || (codeScheme.getId() != null && codeSchemeCodeValue.equalsIgnoreCase(codeScheme.getId().toString()))) &&
+            isInCodeRegistry(codeScheme, codeRegistryCodeValue);
+    }
+
+    SearchRequestBuilder createCodeRegistryRequest(final String codeRegistryCodeValue) {
+        final SearchRequestBuilder searchRequest = client
+            .prepareSearch(ELASTIC_INDEX_CODEREGISTRY)
+            .setTypes(ELASTIC_TYPE_CODEREGISTRY)
+            .addSort("codeValue.keyword", SortOrder.ASC);
+        final BoolQueryBuilder builder = boolQuery()
+            .filter(idOrCodeValueQuery(null, codeRegistryCodeValue));
+        searchRequest.setQuery(builder);
+        return searchRequest;
+    }
+
+    SearchRequestBuilder createCodeRegistriesRequest(final Integer pageSize,
+                                                     final Integer from,
+                                                     final String codeRegistryCodeValue,
+                                                     final String codeRegistryPrefLabel,
+                                                     final Date after,
+                                                     final Object[] searchAfter,
+                                                     final List<String> organizations) {
+        final SearchRequestBuilder searchRequest = client
+            .prepareSearch(ELASTIC_INDEX_CODEREGISTRY)
+            .setTypes(ELASTIC_TYPE_CODEREGISTRY)
+            .addSort("codeValue.keyword", SortOrder.ASC)
+            .addSort("id.keyword", SortOrder.ASC)
+            .setSize(pageSize != null ? pageSize : MAX_SIZE);
+        setPagination(searchRequest, from, searchAfter);
+        final BoolQueryBuilder builder = constructSearchQuery(codeRegistryCodeValue, codeRegistryPrefLabel, after);
+        if (organizations != null && !organizations.isEmpty()) {
+            builder.filter(termsQuery("organizations.id.keyword", organizations));
+        }
+        searchRequest.setQuery(builder);
+        return searchRequest;
+    }
+
+    SearchRequestBuilder createCodeSchemeRequest(final String codeSchemeId) {
+        final SearchRequestBuilder searchRequest = client
+            .prepareSearch(ELASTIC_INDEX_CODESCHEME)
+            .setTypes(ELASTIC_TYPE_CODESCHEME)
+            .setSize(1);
+        final BoolQueryBuilder builder = boolQuery()
+            .filter(idQuery(null, codeSchemeId));
+        searchRequest.setQuery(builder);
+        return searchRequest;
+    }
+
+    SearchRequestBuilder createCodeSchemeRequest(final String codeRegistryCodeValue,
+                                                 final String codeSchemeCodeValue) {
+        final SearchRequestBuilder searchRequest = client
+            .prepareSearch(ELASTIC_INDEX_CODESCHEME)
+            .setTypes(ELASTIC_TYPE_CODESCHEME)
+            .addSort("codeValue.keyword", SortOrder.ASC);
+        final BoolQueryBuilder builder = boolQuery()
+            .filter(idOrCodeValueQuery(null, codeSchemeCodeValue))
+            .filter(codeValueQuery("codeRegistry", codeRegistryCodeValue));
+        searchRequest.setQuery(builder);
+        return searchRequest;
+    }
+
+    SearchRequestBuilder createCodeSchemesRequest(final Integer pageSize,
+                                                  final Integer from,
+                                                  final String organizationId,
+                                                  final String codeRegistryCodeValue,
+                                                  final String codeRegistryPrefLabel,
+                                                  final String codeSchemeCodeValue,
+                                                  final String codeSchemePrefLabel,
+                                                  final List<String> statuses,
+                                                  final List<String> dataClassifications,
+                                                  final Date after,
+                                                  final Object[] searchAfter) {
+        final SearchRequestBuilder searchRequest = client
+            .prepareSearch(ELASTIC_INDEX_CODESCHEME)
+            .setTypes(ELASTIC_TYPE_CODESCHEME)
+            .addSort("codeValue.keyword", SortOrder.ASC)
+            .addSort("id.keyword", SortOrder.ASC)
+            .setSize(pageSize != null ? pageSize : MAX_SIZE);
+        setPagination(searchRequest, from, searchAfter);
+        final BoolQueryBuilder builder = constructSearchQuery(codeSchemeCodeValue, codeSchemePrefLabel, after);
+        if (organizationId != null) {
+            builder.filter(QueryBuilders.nestedQuery("codeRegistry.organizations", idQuery("codeRegistry.organizations", organizationId), ScoreMode.None));
+        }
+        if (codeRegistryCodeValue != null) {
+            builder.filter(codeValueQuery("codeRegistry", codeRegistryCodeValue));
+        }
+        if (codeRegistryPrefLabel != null) {
+            builder.must(QueryBuilders.nestedQuery("codeRegistry.prefLabel", QueryBuilders.multiMatchQuery(codeRegistryPrefLabel.toLowerCase() + "*", "prefLabel.*").type(MultiMatchQueryBuilder.Type.PHRASE_PREFIX), ScoreMode.None));
+        }
+        if (dataClassifications != null && !dataClassifications.isEmpty()) {
+            builder.filter(QueryBuilders.nestedQuery("dataClassifications", termsQuery("dataClassifications.codeValue.keyword", dataClassifications), ScoreMode.None));
+        }
+        if (statuses != null && !statuses.isEmpty()) {
+            builder.filter(termsQuery("status.keyword", statuses));
+        }
+        searchRequest.setQuery(builder);
+        return searchRequest;
+    }
+
+    SearchRequestBuilder createCodeRequest(final String codeRegistryCodeValue,
+                                           final String codeSchemeCodeValue,
+                                           final String codeCodeValue) {
+        final SearchRequestBuilder searchRequest = client
+            .prepareSearch(ELASTIC_INDEX_CODE)
+            .setTypes(ELASTIC_TYPE_CODE);
+        final BoolQueryBuilder builder = boolQuery()
+            .filter(idOrCodeValueQuery(null, codeCodeValue))
+            .filter(idOrCodeValueQuery("codeScheme", codeSchemeCodeValue))
+            .filter(codeValueQuery("codeScheme.codeRegistry", codeRegistryCodeValue));
+        searchRequest.setQuery(builder);
+        return searchRequest;
+    }
+
+    SearchRequestBuilder createCodesRequest(final Integer pageSize,
+                                            final Integer from,
+                                            final String codeRegistryCodeValue,
+                                            final String codeSchemeCodeValue,
+                                            final String codeCodeValue,
+                                            final String prefLabel,
+                                            final String broaderCodeId,
+                                            final List<String> statuses,
+                                            final Date after,
+                                            final Object[] searchAfter) {
+        final SearchRequestBuilder searchRequest = client
+            .prepareSearch(ELASTIC_INDEX_CODE)
+            .setTypes(ELASTIC_TYPE_CODE)
+            .addSort("codeValue.keyword", SortOrder.ASC)
+            .addSort("id.keyword", SortOrder.ASC)
+            .setSize(pageSize != null ? pageSize : MAX_SIZE);
+        setPagination(searchRequest, from, searchAfter);
+        final BoolQueryBuilder builder = constructSearchQuery(codeCodeValue, prefLabel, after);
+        builder.filter(idOrCodeValueQuery("codeScheme", codeSchemeCodeValue));
+        builder.filter(codeValueQuery("codeScheme.codeRegistry", codeRegistryCodeValue));
+        if (broaderCodeId != null && !broaderCodeId.isEmpty()) {
+            builder.filter(termQuery("broaderCodeId.keyword", broaderCodeId.toLowerCase()));
+        }
+        if (statuses != null && !statuses.isEmpty()) {
+            builder.filter(termsQuery("status.keyword", statuses));
+        }
+        searchRequest.setQuery(builder);
+        return searchRequest;
+    }
+
+    SearchRequestBuilder createPropertyTypeRequest(final String propertyTypeId) {
+        final SearchRequestBuilder searchRequest = client
+            .prepareSearch(ELASTIC_INDEX_PROPERTYTYPE)
+            .setTypes(ELASTIC_TYPE_PROPERTYTYPE);
+        final BoolQueryBuilder builder = boolQuery()
+            .filter(idQuery(null, propertyTypeId));
+        searchRequest.setQuery(builder);
+        return searchRequest;
+    }
+
+    SearchRequestBuilder createPropertyTypesRequest(final Integer pageSize,
+                                                    final Integer from,
+                                                    final String propertyTypePrefLabel,
+                                                    final String context,
+                                                    final Date after) {
+        final SearchRequestBuilder searchRequest = client
+            .prepareSearch(ELASTIC_INDEX_PROPERTYTYPE)
+            .setTypes(ELASTIC_TYPE_PROPERTYTYPE)
+            .setSize(pageSize != null ? pageSize : MAX_SIZE)
+            .setFrom(from != null ? from : 0);
+        final BoolQueryBuilder builder = constructSearchQuery(null, propertyTypePrefLabel, after);
+        if (context != null) {
+            builder.filter(QueryBuilders.prefixQuery("context", context.toLowerCase()));
+        }
+        searchRequest.setQuery(builder);
+        return searchRequest;
+    }
+
+    SearchRequestBuilder createExternalReferenceRequest(final String externalReferenceId) {
+        final SearchRequestBuilder searchRequest = client
+            .prepareSearch(ELASTIC_INDEX_EXTERNALREFERENCE)
+            .setTypes(ELASTIC_TYPE_EXTERNALREFERENCE);
+        final BoolQueryBuilder builder = boolQuery()
+            .filter(idQuery(null, externalReferenceId));
+        searchRequest.setQuery(builder);
+        return searchRequest;
+    }
+
+    SearchRequestBuilder createExternalReferencesRequest(final Integer pageSize,
+                                                         final Integer from,
+                                                         final String externalReferencePrefLabel,
+                                                         final CodeScheme codeScheme,
+                                                         final Date after) {
+        final SearchRequestBuilder searchRequest = client
+            .prepareSearch(ELASTIC_INDEX_EXTERNALREFERENCE)
+            .setTypes(ELASTIC_TYPE_EXTERNALREFERENCE)
+            .setSize(pageSize != null ? pageSize : MAX_SIZE)
+            .setFrom(from != null ? from : 0);
+        final BoolQueryBuilder builder = constructSearchQuery(null, externalReferencePrefLabel, after);
+        if (codeScheme != null) {
+            builder.filter(boolQuery()
+                .should(boolQuery()
+                    .filter(codeValueQuery("parentCodeScheme.codeRegistry", codeScheme.getCodeRegistry().getCodeValue()))
+                    .filter(idQuery("parentCodeScheme", codeScheme.getId().toString())))
+                .should(termQuery("global", true))
+                .minimumShouldMatch(1));
+        }
+        searchRequest.setQuery(builder);
+        return searchRequest;
+    }
+
+    /**
+     * Searches the documents of the given indices modified at or before the given time, ordered by the modified
+     * timestamp and id so that the changes can be continued with search_after from any position. The time is given in
+     * epoch milliseconds, so that the bound is not truncated to seconds.
+     */
+    SearchRequestBuilder createChangesRequest(final String[] indexNames,
+                                              final int size,
+                                              final Object[] searchAfter,
+                                              final Date before) {
+        final SearchRequestBuilder searchRequest = client
+            .prepareSearch(indexNames)
+            .setIndicesOptions(IndicesOptions.lenientExpandOpen())
+            .addSort("modified", SortOrder.ASC)
+            .addSort("id.keyword", SortOrder.ASC)
+            .setSize(size)
+            .setQuery(boolQuery().filter(QueryBuilders.rangeQuery("modified").lte(before.getTime()).format("epoch_millis")));
+        if (searchAfter != null) {
+            searchRequest.searchAfter(searchAfter);
+        }
+        return searchRequest;
+    }
+
+    /**
+     * Pages with search_after when a cursor is given, so that the cost of a page does not grow with its offset.
+     * The cursor values must match the codeValue.keyword and id.keyword sort of the request.
+     */
+    private void setPagination(final SearchRequestBuilder searchRequest,
+                               final Integer from,
+                               final Object[] searchAfter) {
+        if (searchAfter != null) {
+            searchRequest.searchAfter(searchAfter);
+        } else {
+            searchRequest.setFrom(from != null ? from : 0);
+        }
+    }
+
+    private BoolQueryBuilder constructSearchQuery(final String codeValue,
+                                                  final String prefLabel,
+                                                  final Date after) {
+        final BoolQueryBuilder builder = boolQuery();
+        if (codeValue != null) {
+            builder.filter(QueryBuilders.prefixQuery("codeValue", codeValue.toLowerCase()));
+        }
+        if (prefLabel != null) {
+            builder.must(QueryBuilders.nestedQuery("prefLabel", QueryBuilders.multiMatchQuery(prefLabel.toLowerCase() + "*", "prefLabel.*").type(MultiMatchQueryBuilder.Type.PHRASE_PREFIX), ScoreMode.None));
+        }
+        if (after != null) {
+            final ISO8601DateFormat dateFormat = new ISO8601DateFormat();
+            final String afterString = dateFormat.format(after);
+            builder.filter(QueryBuilders.rangeQuery("modified").gt(afterString));
+        }
+        return builder;
+    }
+
+    /**
+     * Matches the id of the object under the given path exactly. Ids are lower case UUIDs, so they are matched as
+     * keyword terms that can be cached as filters.
+     */
+    private static QueryBuilder idQuery(final String path,
+                                        final String id) {
+        return termQuery(fieldName(path, "id.keyword"), id.toLowerCase());
+    }
+
+    /**
+     * Matches the code value of the object under the given path. Code values are matched on the analyzed field, as
+     * the keyword field keeps the original case and lookups are case insensitive.
+     */
+    private static QueryBuilder codeValueQuery(final String path,
+                                               final String codeValue) {
+        return matchQuery(fieldName(path, "codeValue"), codeValue.toLowerCase());
+    }
+
+    private static QueryBuilder idOrCodeValueQuery(final String path,
+                                                   final String idOrCodeValue) {
+        if (!isUuid(idOrCodeValue)) {
+            return codeValueQuery(path, idOrCodeValue);
+        }
+        return boolQuery()
+            .should(idQuery(path, idOrCodeValue))
+            .should(codeValueQuery(path, idOrCodeValue))
+            .minimumShouldMatch(1);
+    }
+
+    private static String fieldName(final String path,
+                                    final String field) {
+        return path != null ? path + "." + field : field;
+    }
+
+    /**
+     * Returns the source of the first hit of the response, or null if the response is missing or empty.
+     */
+    static byte[] getFirstHitSource(final SearchResponse response) {
+        if (response != null && response.getHits().getTotalHits() > 0) {
+            final SearchHit hit = response.getHits().getAt(0);
+            if (hit != null && hit.hasSource()) {
+                return BytesReference.toBytes(hit.getSourceRef());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the source of a get response, or null if the response is missing or the document does not exist.
+     */
+    static byte[] getSource(final GetResponse response) {
+        if (response != null && response.isExists() && !response.isSourceEmpty()) {
+            return BytesReference.toBytes(response.getSourceAsBytesRef());
+        }
+        return null;
+    }
+
+    /**
+     * Reads a value from a document source, or returns null if the source is missing or cannot be read.
+     */
+    <T> T readValue(final ObjectReader reader,
+                    final byte[] source) {
+        if (source != null) {
+            try {
+                return reader.readValue(source);
+            } catch (IOException e) {
+                LOG.error("Reading value from JSON failed: " + new String(source, StandardCharsets.UTF_8) + ", message: " + e.getMessage(), e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Turns a search into a version query that returns no documents, only the hit count, the latest modified timestamp
+     * and the modified timestamp checksum of everything the search matches.
+     */
+    static SearchRequestBuilder asVersionRequest(final SearchRequestBuilder searchRequest) {
+        return addVersionAggregation(searchRequest.setSize(0));
+    }
+
+    /**
+     * Adds the modified timestamp aggregations of a version query to a search, so that the version of everything the
+     * search matches is computed in the same round trip as the page of documents.
+     *
+     * The checksum is a scripted sum of the modified timestamps kept as a long, because the sum of the stats
+     * aggregation is a double and loses precision once it grows past 2^53.
+     */
+    static SearchRequestBuilder addVersionAggregation(final SearchRequestBuilder searchRequest) {
+        return searchRequest
+            .addAggregation(AggregationBuilders.max(AGGREGATION_MODIFIED).field("modified"))
+            .addAggregation(AggregationBuilders.scriptedMetric(AGGREGATION_MODIFIED_CHECKSUM)
+                .initScript(CHECKSUM_INIT_SCRIPT)
+                .mapScript(CHECKSUM_MAP_SCRIPT)
+                .combineScript(CHECKSUM_COMBINE_SCRIPT)
+                .reduceScript(CHECKSUM_REDUCE_SCRIPT));
+    }
+
+    /**
+     * Combines the results of version queries into one content version. A missing response counts as an empty index.
+     */
+    static ContentVersion readVersion(final SearchResponse... responses) {
+        final StringBuilder fingerprint = new StringBuilder();
+        long lastModified = Long.MIN_VALUE;
+        for (final SearchResponse response : responses) {
+            if (fingerprint.length() > 0) {
+                fingerprint.append('/');
+            }
+            final Max max = response != null && response.getAggregations() != null ? response.getAggregations().get(AGGREGATION_MODIFIED) : null;
+            final ScriptedMetric checksum = response != null && response.getAggregations() != null ? response.getAggregations().get(AGGREGATION_MODIFIED_CHECKSUM) : null;
+            if (max == null || checksum == null) {
+                fingerprint.append('-');
+                continue;
+            }
+            fingerprint.append(response.getHits().getTotalHits());
+            if (!Double.isInfinite(max.getValue())) {
+                final long maxModified = (long) max.getValue();
+                fingerprint.append(':').append(maxModified).append(':').append(((Number) checksum.aggregation()).longValue());
+                lastModified = Math.max(lastModified, maxModified);
+            }
+        }
+        return new ContentVersion(fingerprint.toString(), lastModified != Long.MIN_VALUE ? new Date(lastModified) : null);
+    }
+
+    /**
+     * Reads all hits of the response in order and sets the result counts to meta.
+     */
+    <T> Set<T> readHits(final ObjectReader reader,
+                        final SearchResponse response,
+                        final Meta meta) {
+        final Set<T> results = new LinkedHashSet<>();
+        setResultCounts(meta, response);
+        response.getHits().forEach(hit -> {
+            try {
+                results.add(readHit(reader, hit));
+            } catch (IOException e) {
+                LOG.error("Reading value from JSON failed: " + hit.getSourceAsString() + ", message: " + e.getMessage());
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Collects the raw source of all hits in order and sets the result counts to meta.
+     */
+    SourceHits readSources(final SearchResponse response,
+                           final Meta meta) {
+        setResultCounts(meta, response);
+        final SearchHit[] hits = response.getHits().getHits();
+        final List<BytesReference> sources = new ArrayList<>(hits.length);
+        for (final SearchHit hit : hits) {
+            sources.add(hit.getSourceRef());
+        }
+        return new SourceHits(sources, hits.length > 0 ? hits[hits.length - 1].getSortValues() : null);
+    }
+
+    /**
+     * Collects the raw source of the hits of one batch in order without touching the result counts.
+     */
+    List<BytesReference> readSourceBatch(final SearchResponse response) {
+        final SearchHit[] hits = response.getHits().getHits();
+        final List<BytesReference> sources = new ArrayList<>(hits.length);
+        for (final SearchHit hit : hits) {
+            sources.add(hit.getSourceRef());
+        }
+        return sources;
+    }
+
+    /**
+     * Collects the document ids of the hits of one batch.
+     */
+    List<String> readIdBatch(final SearchResponse response) {
+        final SearchHit[] hits = response.getHits().getHits();
+        final List<String> ids = new ArrayList<>(hits.length);
+        for (final SearchHit hit : hits) {
+            ids.add(hit.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Reads the hits of one batch in order without touching the result counts.
+     */
+    <T> List<T> readBatch(final ObjectReader reader,
+                          final SearchResponse response) {
+        final List<T> results = new ArrayList<>(response.getHits().getHits().length);
+        response.getHits().forEach(hit -> {
+            try {
+                results.add(readHit(reader, hit));
+            } catch (IOException e) {
+                LOG.error("Reading value from JSON failed: " + hit.getSourceAsString() + ", message: " + e.getMessage());
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Deserializes the hit source directly from the source bytes without decoding it to a String first.
+     */
+    private static <T> T readHit(final ObjectReader reader,
+                                 final SearchHit hit) throws IOException {
+        final BytesRef source = hit.getSourceRef().toBytesRef();
+        return reader.readValue(source.bytes, source.offset, source.length);
+    }
+
+    private void setResultCounts(final Meta meta,
+                                 final SearchResponse response) {
+        final Integer totalResults = toIntExact(response.getHits().totalHits);
+        final Integer resultCount = toIntExact(response.getHits().getHits().length);
+        if (meta != null) {
+            meta.setTotalResults(totalResults);
+            meta.setResultCount(resultCount);
+        }
+        LOG.info("Search found: " + totalResults + " total hits.");
+    }
+}
@@ -0,0 +1,247 @@
+package fi.vm.yti.codelist.api.domain;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import fi.vm.yti.codelist.common.model.Code;
+import fi.vm.yti.codelist.common.model.CodeRegistry;
+import fi.vm.yti.codelist.common.model.CodeScheme;
+import fi.vm.yti.codelist.common.model.ExternalReference;
+import fi.vm.yti.codelist.common.model.Meta;
+import fi.vm.yti.codelist.common.model.PropertyType;
+
+/**
+ * Non-blocking variant of {@link Domain}, the returned futures complete when the ElasticSearch response arrives.
+ *
+ * The source listing methods take _source include and exclude patterns, so that content which is not shown in the
+ * response is not transferred from ElasticSearch at all. The source listings also compute the content version of the
+ * listing in the same round trip, the same one the version methods return.
+ */
+public interface AsyncDomain {
+
+    CompletableFuture<CodeRegistry> getCodeRegistry(final String codeRegistryCodeValue);
+
+    CompletableFuture<Set<CodeRegistry>> getCodeRegistries(final Integer pageSize,
+                                                           final Integer from,
+                                                           final String codeRegistryCodeValue,
+                                                           final String codeRegistryPrefLabel,
+                                                           final Date after,
+                                                           final Object[] searchAfter,
+                                                           final Meta meta,
+                                                           final List<String> organizations);
+
+    CompletableFuture<SourceHits> getCodeRegistrySources(final Integer pageSize,
+                                                         final Integer from,
+                                                         final String codeRegistryCodeValue,
+                                                         final String codeRegistryPrefLabel,
+                                                         final Date after,
+                                                         final Object[] searchAfter,
+                                                         final Meta meta,
+                                                         final List<String> organizations,
+                                                         final String[] sourceIncludes,
+                                                         final String[] sourceExcludes);
+
+    /**
+     * Returns the version of all code registries matching the filters, regardless of paging.
+     *
+     * @return The content version.
+     */
+    CompletableFuture<ContentVersion> getCodeRegistriesVersion(final String codeRegistryCodeValue,
+                                                               final String codeRegistryPrefLabel,
+                                                               final Date after,
+                                                               final List<String> organizations);
+
+    CompletableFuture<CodeScheme> getCodeSchemeWithId(final String codeSchemeId);
+
+    CompletableFuture<CodeScheme> getCodeScheme(final String codeSchemeId);
+
+    CompletableFuture<CodeScheme> getCodeScheme(final String codeRegistryCodeValue,
+                                                final String codeSchemeCodeValue);
+
+    CompletableFuture<Set<CodeScheme>> getCodeSchemes(final Integer pageSize,
+                                                      final Integer from,
+                                                      final String organizationId,
+                                                      final String codeRegistryCodeValue,
+                                                      final String codeRegistryPrefLabel,
+                                                      final String codeSchemeCodeValue,
+                                                      final String codeSchemeCodePrefLabel,
+                                                      final List<String> statuses,
+                                                      final List<String> dataClassifications,
+                                                      final Date after,
+                                                      final Object[] searchAfter,
+                                                      final Meta meta);
+
+    CompletableFuture<SourceHits> getCodeSchemeSources(final Integer pageSize,
+                                                       final Integer from,
+                                                       final String organizationId,
+                                                       final String codeRegistryCodeValue,
+                                                       final String codeRegistryPrefLabel,
+                                                       final String codeSchemeCodeValue,
+                                                       final String codeSchemeCodePrefLabel,
+                                                       final List<String> statuses,
+                                                       final List<String> dataClassifications,
+                                                       final Date after,
+                                                       final Object[] searchAfter,
+                                                       final Meta meta,
+                                                       final String[] sourceIncludes,
+                                                       final String[] sourceExcludes);
+
+    /**
+     * Returns the version of all code schemes matching the filters, regardless of paging.
+     *
+     * @return The content version.
+     */
+    CompletableFuture<ContentVersion> getCodeSchemesVersion(final String organizationId,
+                                                            final String codeRegistryCodeValue,
+                                                            final String codeRegistryPrefLabel,
+                                                            final String codeSchemeCodeValue,
+                                                            final String codeSchemeCodePrefLabel,
+                                                            final List<String> statuses,
+                                                            final List<String> dataClassifications,
+                                                            final Date after);
+
+    /**
+     * Looks up the code registry and its code schemes in a single multi search round trip.
+     *
+     * @return The code scheme sources, or null if the code registry does not exist.
+     */
+    CompletableFuture<SourceHits> getCodeRegistryCodeSchemeSources(final Integer pageSize,
+                                                                   final Integer from,
+                                                                   final String codeRegistryCodeValue,
+                                                                   final String codeRegistryPrefLabel,
+                                                                   final String codeSchemeCodeValue,
+                                                                   final String codeSchemeCodePrefLabel,
+                                                                   final List<String> statuses,
+                                                                   final List<String> dataClassifications,
+                                                                   final Date after,
+                                                                   final Object[] searchAfter,
+                                                                   final Meta meta,
+                                                                   final String[] sourceIncludes,
+                                                                   final String[] sourceExcludes);
+
+    /**
+     * Returns the version of the code registry together with all of its code schemes matching the filters, regardless
+     * of paging, in a single multi search round trip.
+     *
+     * @return The content version, or null if the code registry does not exist.
+     */
+    CompletableFuture<ContentVersion> getCodeRegistryCodeSchemesVersion(final String codeRegistryCodeValue,
+                                                                        final String codeRegistryPrefLabel,
+                                                                        final String codeSchemeCodeValue,
+                                                                        final String codeSchemeCodePrefLabel,
+                                                                        final List<String> statuses,
+                                                                        final List<String> dataClassifications,
+                                                                        final Date after);
+
+    CompletableFuture<Code> getCode(final String codeRegistryCodeValue,
+                                    final String codeSchemeCodeValue,
+                                    final String codeCodeValue);
+
+    CompletableFuture<Set<Code>> getCodes(final Integer pageSize,
+                                          final Integer from,
+                                          final String codeRegistryCodeValue,
+                                          final String codeSchemeCodeValue,
+                                          final String codeCodeValue,
+                                          final String prefLabel,
+                                          final String broaderCodeId,
+                                          final List<String> statuses,
+                                          final Date after,
+                                          final Object[] searchAfter,
+                                          final Meta meta);
+
+    CompletableFuture<SourceHits> getCodeSources(final Integer pageSize,
+                                                 final Integer from,
+                                                 final String codeRegistryCodeValue,
+                                                 final String codeSchemeCodeValue,
+                                                 final String codeCodeValue,
+                                                 final String prefLabel,
+                                                 final String broaderCodeId,
+                                                 final List<String> statuses,
+                                                 final Date after,
+                                                 final Object[] searchAfter,
+                                                 final Meta meta,
+                                                 final String[] sourceIncludes,
+                                                 final String[] sourceExcludes);
+
+    /**
+     * Looks up the code scheme and its codes in a single multi search round trip.
+     *
+     * @return The code sources, or null if the code scheme does not exist.
+     */
+    CompletableFuture<SourceHits> getCodeSchemeCodeSources(final Integer pageSize,
+                                                           final Integer from,
+                                                           final String codeRegistryCodeValue,
+                                                           final String codeSchemeCodeValue,
+                                                           final String codeCodeValue,
+                                                           final String prefLabel,
+                                                           final String broaderCodeId,
+                                                           final List<String> statuses,
+                                                           final Date after,
+                                                           final Object[] searchAfter,
+                                                           final Meta meta,
+                                                           final String[] sourceIncludes,
+                                                           final String[] sourceExcludes);
+
+    /**
+     * Returns the version of the code scheme together with all of its codes matching the filters, regardless of
+     * paging, in a single multi search round trip.
+     *
+     * @return The content version, or null if the code scheme does not exist.
+     */
+    CompletableFuture<ContentVersion> getCodeSchemeCodesVersion(final String codeRegistryCodeValue,
+                                                                final String codeSchemeCodeValue,
+                                                                final String codeCodeValue,
+                                                                final String prefLabel,
+                                                                final String broaderCodeId,
+                                                                final List<String> statuses,
+                                                                final Date after);
+
+    CompletableFuture<PropertyType> getPropertyType(final String propertyTypeId);
+
+    CompletableFuture<SourceHits> getPropertyTypeSources(final Integer pageSize,
+                                                         final Integer from,
+                                                         final String propertyTypePrefLabel,
+                                                         final String context,
+                                                         final Date after,
+                                                         final Meta meta,
+                                                         final String[] sourceIncludes,
+                                                         final String[] sourceExcludes);
+
+    /**
+     * Returns the version of all property types matching the filters, regardless of paging.
+     *
+     * @return The content version.
+     */
+    CompletableFuture<ContentVersion> getPropertyTypesVersion(final String propertyTypePrefLabel,
+                                                              final String context,
+                                                              final Date after);
+
+    CompletableFuture<ExternalReference> getExternalReference(final String externalReferenceId);
+
+    CompletableFuture<SourceHits> getExternalReferenceSources(final Integer pageSize,
+                                                              final Integer from,
+                                                              final String externalReferencePrefLabel,
+                                                              final CodeScheme codeScheme,
+                                                              final Date after,
+                                                              final Meta meta,
+                                                              final String[] sourceIncludes,
+                                                              final String[] sourceExcludes);
+
+    /**
+     * Returns the version of all external references matching the filters, regardless of paging.
+     *
+     * @return The content version.
+     */
+    CompletableFuture<ContentVersion> getExternalReferencesVersion(final String externalReferencePrefLabel,
+                                                                   final CodeScheme codeScheme,
+                                                                   final Date after);
+
+    /**
+     * Returns the languages of localized properties known from the index mappings, without a request to ElasticSearch.
+     *
+     * @return The indexed languages.
+     */
+    Set<String> getIndexedLanguages();
+}
@@ -0,0 +1,550 @@
+package fi.vm.yti.codelist.api.domain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetRequestBuilder;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.IndexNotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import fi.vm.yti.codelist.api.util.SingleFlight;
+import fi.vm.yti.codelist.api.util.SingleFlightRegistry;
+import fi.vm.yti.codelist.common.model.Code;
+import fi.vm.yti.codelist.common.model.CodeRegistry;
+import fi.vm.yti.codelist.common.model.CodeScheme;
+import fi.vm.yti.codelist.common.model.ExternalReference;
+import fi.vm.yti.codelist.common.model.Meta;
+import fi.vm.yti.codelist.common.model.PropertyType;
+import static fi.vm.yti.codelist.common.constants.ApiConstants.*;
+
+/**
+ * Domain implementation that executes searches with ElasticSearch action listeners instead of blocking on the response.
+ *
+ * Listener callbacks run on transport network threads, so the futures are completed on a separate executor to keep
+ * response mapping and serialization off those threads.
+ *
+ * Identical requests that are in flight at the same time are sent to ElasticSearch only once and share the response,
+ * which each caller then maps on its own. Requests are keyed by index and request source, so any difference in the
+ * parameters, including paging and _source filtering, results in a separate request.
+ */
+@Singleton
+@Service
+public class AsyncDomainImpl extends AbstractDomain implements AsyncDomain {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncDomainImpl.class);
+    private static final SourceHits EMPTY_SOURCE_HITS = new SourceHits(Collections.emptyList(), null, readVersion((SearchResponse) null));
+    private final Executor executor;
+    private final SingleFlight<String, GetResponse> gets;
+    private final SingleFlight<String, SearchResponse> searches;
+    private final SingleFlight<String, List<SearchResponse>> multiSearches;
+
+    @Inject
+    public AsyncDomainImpl(final Client client,
+                           final IndexRegistry indexRegistry,
+                           final EntityCache entityCache,
+                           @Named("elasticResponseExecutor") final Executor executor,
+                           final SingleFlightRegistry singleFlightRegistry) {
+        super(client, indexRegistry, entityCache);
+        this.executor = executor;
+        this.gets = singleFlightRegistry.create("elastic.get");
+        this.searches = singleFlightRegistry.create("elastic.search");
+        this.multiSearches = singleFlightRegistry.create("elastic.msearch");
+    }
+
+    public CompletableFuture<CodeRegistry> getCodeRegistry(final String codeRegistryCodeValue) {
+        return getDocument(ELASTIC_INDEX_CODEREGISTRY, ELASTIC_TYPE_CODEREGISTRY, CODEREGISTRY_READER, codeRegistryCodeValue, codeRegistryCodeValue, codeRegistry -> true,
+            () -> createCodeRegistryRequest(codeRegistryCodeValue));
+    }
+
+    public CompletableFuture<Set<CodeRegistry>> getCodeRegistries(final Integer pageSize,
+                                                                  final Integer from,
+                                                                  final String codeRegistryCodeValue,
+                                                                  final String codeRegistryPrefLabel,
+                                                                  final Date after,
+                                                                  final Object[] searchAfter,
+                                                                  final Meta meta,
+                                                                  final List<String> organizations) {
+        if (indexRegistry.isAvailable(ELASTIC_INDEX_CODEREGISTRY)) {
+            return executeSearch(ELASTIC_INDEX_CODEREGISTRY, createCodeRegistriesRequest(pageSize, from, codeRegistryCodeValue, codeRegistryPrefLabel, after, searchAfter, organizations))
+                .thenApply(response -> response != null ? readHits(CODEREGISTRY_READER, response, meta) : new LinkedHashSet<>());
+        }
+        return CompletableFuture.completedFuture(new LinkedHashSet<>());
+    }
+
+    public CompletableFuture<SourceHits> getCodeRegistrySources(final Integer pageSize,
+                                                                final Integer from,
+                                                                final String codeRegistryCodeValue,
+                                                                final String codeRegistryPrefLabel,
+                                                                final Date after,
+                                                                final Object[] searchAfter,
+                                                                final Meta meta,
+                                                                final List<String> organizations,
+                                                                final String[] sourceIncludes,
+                                                                final String[] sourceExcludes) {
+        if (indexRegistry.isAvailable(ELASTIC_INDEX_CODEREGISTRY)) {
+            return executeSearch(ELASTIC_INDEX_CODEREGISTRY, addVersionAggregation(createCodeRegistriesRequest(pageSize, from, codeRegistryCodeValue, codeRegistryPrefLabel, after, searchAfter, organizations).setFetchSource(sourceIncludes, sourceExcludes)))
+                .thenApply(response -> response != null ? readSources(response, meta).withVersion(readVersion(response)) : EMPTY_SOURCE_HITS);
+        }
+        return CompletableFuture.completedFuture(EMPTY_SOURCE_HITS);
+    }
+
+    public CompletableFuture<ContentVersion> getCodeRegistriesVersion(final String codeRegistryCodeValue,
+                                                                      final String codeRegistryPrefLabel,
+                                                                      final Date after,
+                                                                      final List<String> organizations) {
+        if (indexRegistry.isAvailable(ELASTIC_INDEX_CODEREGISTRY)) {
+            return executeSearch(ELASTIC_INDEX_CODEREGISTRY, asVersionRequest(createCodeRegistriesRequest(0, 0, codeRegistryCodeValue, codeRegistryPrefLabel, after, null, organizations)))
+                .thenApply(AbstractDomain::readVersion);
+        }
+        return CompletableFuture.completedFuture(readVersion((SearchResponse) null));
+    }
+
+    public CompletableFuture<CodeScheme> getCodeSchemeWithId(final String codeSchemeId) {
+        return getDocument(ELASTIC_INDEX_CODESCHEME, ELASTIC_TYPE_CODESCHEME, CODESCHEME_READER, "id:" + codeSchemeId, codeSchemeId, codeScheme -> true,
+            () -> createCodeSchemeRequest(codeSchemeId));
+    }
+
+    public CompletableFuture<CodeScheme> getCodeScheme(final String codeSchemeId) {
+        return getDocument(ELASTIC_INDEX_CODESCHEME, ELASTIC_TYPE_CODESCHEME, CODESCHEME_READER, "id:" + codeSchemeId, codeSchemeId, codeScheme -> true,
+            () -> createCodeSchemeRequest(codeSchemeId));
+    }
+
+    public CompletableFuture<CodeScheme> getCodeScheme(final String codeRegistryCodeValue,
+                                                       final String codeSchemeCodeValue) {
+        return getDocument(ELASTIC_INDEX_CODESCHEME, ELASTIC_TYPE_CODESCHEME, CODESCHEME_READER, codeRegistryCodeValue + "/" + codeSchemeCodeValue, codeSchemeCodeValue, codeScheme -> isInCodeRegistry(codeScheme, codeRegistryCodeValue),
+            () -> createCodeSchemeRequest(codeRegistryCodeValue, codeSchemeCodeValue));
+    }
+
+    public CompletableFuture<Set<CodeScheme>> getCodeSchemes(final Integer pageSize,
+                                                             final Integer from,
+                                                             final String organizationId,
+                                                             final String codeRegistryCodeValue,
+                                                             final String codeRegistryPrefLabel,
+                                                             final String codeSchemeCodeValue,
+                                                             final String codeSchemePrefLabel,
+                                                             final List<String> statuses,
+                                                             final List<String> dataClassifications,
+                                                             final Date after,
+                                                             final Object[] searchAfter,
+                                                             final Meta meta) {
+        if (indexRegistry.isAvailable(ELASTIC_INDEX_CODESCHEME)) {
+            return executeSearch(ELASTIC_INDEX_CODESCHEME, createCodeSchemesRequest(pageSize, from, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statuses, dataClassifications, after, searchAfter))
+                .thenApply(response -> response != null ? readHits(CODESCHEME_READER, response, meta) : new LinkedHashSet<>());
+        }
+        return CompletableFuture.completedFuture(new LinkedHashSet<>());
+    }
+
+    public CompletableFuture<SourceHits> getCodeSchemeSources(final Integer pageSize,
+                                                              final Integer from,
+                                                              final String organizationId,
+                                                              final String codeRegistryCodeValue,
+                                                              final String codeRegistryPrefLabel,
+                                                              final String codeSchemeCodeValue,
+                                                              final String codeSchemePrefLabel,
+                                                              final List<String> statuses,
+                                                              final List<String> dataClassifications,
+                                                              final Date after,
+                                                              final Object[] searchAfter,
+                                                              final Meta meta,
+                                                              final String[] sourceIncludes,
+                                                              final String[] sourceExcludes) {
+        if (indexRegistry.isAvailable(ELASTIC_INDEX_CODESCHEME)) {
+            return executeSearch(ELASTIC_INDEX_CODESCHEME, addVersionAggregation(createCodeSchemesRequest(pageSize, from, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statuses, dataClassifications, after, searchAfter).setFetchSource(sourceIncludes, sourceExcludes)))
+                .thenApply(response -> response != null ? readSources(response, meta).withVersion(readVersion(response)) : EMPTY_SOURCE_HITS);
+        }
+        return CompletableFuture.completedFuture(EMPTY_SOURCE_HITS);
+    }
+
+    public CompletableFuture<ContentVersion> getCodeSchemesVersion(final String organizationId,
+                                                                   final String codeRegistryCodeValue,
+                                                                   final String codeRegistryPrefLabel,
+                                                                   final String codeSchemeCodeValue,
+                                                                   final String codeSchemeCodePrefLabel,
+                                                                   final List<String> statuses,
+                                                                   final List<String> dataClassifications,
+                                                                   final Date after) {
+        if (indexRegistry.isAvailable(ELASTIC_INDEX_CODESCHEME)) {
+            return executeSearch(ELASTIC_INDEX_CODESCHEME, asVersionRequest(createCodeSchemesRequest(0, 0, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemeCodePrefLabel, statuses, dataClassifications, after, null)))
+                .thenApply(AbstractDomain::readVersion);
+        }
+        return CompletableFuture.completedFuture(readVersion((SearchResponse) null));
+    }
+
+    public CompletableFuture<SourceHits> getCodeRegistryCodeSchemeSources(final Integer pageSize,
+                                                                          final Integer from,
+                                                                          final String codeRegistryCodeValue,
+                                                                          final String codeRegistryPrefLabel,
+                                                                          final String codeSchemeCodeValue,
+                                                                          final String codeSchemePrefLabel,
+                                                                          final List<String> statuses,
+                                                                          final List<String> dataClassifications,
+                                                                          final Date after,
+                                                                          final Object[] searchAfter,
+                                                                          final Meta meta,
+                                                                          final String[] sourceIncludes,
+                                                                          final String[] sourceExcludes) {
+        if (!indexRegistry.isAvailable(ELASTIC_INDEX_CODEREGISTRY)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final SearchRequestBuilder parentRequest = asVersionRequest(createCodeRegistryRequest(codeRegistryCodeValue));
+        if (!indexRegistry.isAvailable(ELASTIC_INDEX_CODESCHEME)) {
+            return executeSearch(ELASTIC_INDEX_CODEREGISTRY, parentRequest)
+                .thenApply(response -> hasHits(response) ? EMPTY_SOURCE_HITS.withVersion(readVersion(response, null)) : null);
+        }
+        final SearchRequestBuilder childRequest = addVersionAggregation(createCodeSchemesRequest(pageSize, from, null, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statuses, dataClassifications, after, searchAfter).setFetchSource(sourceIncludes, sourceExcludes));
+        return executeMultiSearch(new String[]{ ELASTIC_INDEX_CODEREGISTRY, ELASTIC_INDEX_CODESCHEME }, parentRequest, childRequest)
+            .thenApply(responses -> {
+                if (!hasHits(responses.get(0))) {
+                    return null;
+                }
+                final SearchResponse response = responses.get(1);
+                final ContentVersion version = readVersion(responses.get(0), response);
+                return response != null ? readSources(response, meta).withVersion(version) : EMPTY_SOURCE_HITS.withVersion(version);
+            });
+    }
+
+    public CompletableFuture<ContentVersion> getCodeRegistryCodeSchemesVersion(final String codeRegistryCodeValue,
+                                                                               final String codeRegistryPrefLabel,
+                                                                               final String codeSchemeCodeValue,
+                                                                               final String codeSchemePrefLabel,
+                                                                               final List<String> statuses,
+                                                                               final List<String> dataClassifications,
+                                                                               final Date after) {
+        if (!indexRegistry.isAvailable(ELASTIC_INDEX_CODEREGISTRY)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final SearchRequestBuilder parentRequest = asVersionRequest(createCodeRegistryRequest(codeRegistryCodeValue));
+        if (!indexRegistry.isAvailable(ELASTIC_INDEX_CODESCHEME)) {
+            return executeSearch(ELASTIC_INDEX_CODEREGISTRY, parentRequest)
+                .thenApply(response -> hasHits(response) ? readVersion(response, null) : null);
+        }
+        final SearchRequestBuilder childRequest = asVersionRequest(createCodeSchemesRequest(0, 0, null, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statuses, dataClassifications, after, null));
+        return executeMultiSearch(new String[]{ ELASTIC_INDEX_CODEREGISTRY, ELASTIC_INDEX_CODESCHEME }, parentRequest, childRequest)
+            .thenApply(responses -> hasHits(responses.get(0)) ? readVersion(responses.get(0), responses.get(1)) : null);
+    }
+
+    public CompletableFuture<Code> getCode(final String codeRegistryCodeValue,
+                                           final String codeSchemeCodeValue,
+                                           final String codeCodeValue) {
+        return getDocument(ELASTIC_INDEX_CODE, ELASTIC_TYPE_CODE, CODE_READER, codeRegistryCodeValue + "/" + codeSchemeCodeValue + "/" + codeCodeValue, codeCodeValue, code -> isInCodeScheme(code, codeRegistryCodeValue, codeSchemeCodeValue),
+            () -> createCodeRequest(codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue));
+    }
+
+    public CompletableFuture<Set<Code>> getCodes(final Integer pageSize,
+                                                 final Integer from,
+                                                 final String codeRegistryCodeValue,
+                                                 final String codeSchemeCodeValue,
+                                                 final String codeCodeValue,
+                                                 final String prefLabel,
+                                                 final String broaderCodeId,
+                                                 final List<String> statuses,
+                                                 final Date after,
+                                                 final Object[] searchAfter,
+                                                 final Meta meta) {
+        if (indexRegistry.isAvailable(ELASTIC_INDEX_CODE)) {
+            return executeSearch(ELASTIC_INDEX_CODE, createCodesRequest(pageSize, from, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statuses, after, searchAfter))
+                .thenApply(response -> response != null ? readHits(CODE_READER, response, meta) : null);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    public CompletableFuture<SourceHits> getCodeSources(final Integer pageSize,
+                                                        final Integer from,
+                                                        final String codeRegistryCodeValue,
+                                                        final String codeSchemeCodeValue,
+                                                        final String codeCodeValue,
+                                                        final String prefLabel,
+                                                        final String broaderCodeId,
+                                                        final List<String> statuses,
+                                                        final Date after,
+                                                        final Object[] searchAfter,
+                                                        final Meta meta,
+                                                        final String[] sourceIncludes,
+                                                        final String[] sourceExcludes) {
+        if (indexRegistry.isAvailable(ELASTIC_INDEX_CODE)) {
+            return executeSearch(ELASTIC_INDEX_CODE, createCodesRequest(pageSize, from, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statuses, after, searchAfter).setFetchSource(sourceIncludes, sourceExcludes))
+                .thenApply(response -> response != null ? readSources(response, meta) : null);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    public CompletableFuture<SourceHits> getCodeSchemeCodeSources(final Integer pageSize,
+                                                                  final Integer from,
+                                                                  final String codeRegistryCodeValue,
+                                                                  final String codeSchemeCodeValue,
+                                                                  final String codeCodeValue,
+                                                                  final String prefLabel,
+                                                                  final String broaderCodeId,
+                                                                  final List<String> statuses,
+                                                                  final Date after,
+                                                                  final Object[] searchAfter,
+                                                                  final Meta meta,
+                                                                  final String[] sourceIncludes,
+                                                                  final String[] sourceExcludes) {
+        if (!indexRegistry.isAvailable(ELASTIC_INDEX_CODESCHEME) || !indexRegistry.isAvailable(ELASTIC_INDEX_CODE)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final SearchRequestBuilder parentRequest = asVersionRequest(createCodeSchemeRequest(codeRegistryCodeValue, codeSchemeCodeValue));
+        final SearchRequestBuilder childRequest = addVersionAggregation(createCodesRequest(pageSize, from, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statuses, after, searchAfter).setFetchSource(sourceIncludes, sourceExcludes));
+        return executeMultiSearch(new String[]{ ELASTIC_INDEX_CODESCHEME, ELASTIC_INDEX_CODE }, parentRequest, childRequest)
+            .thenApply(responses -> {
+                final SearchResponse response = responses.get(1);
+                if (!hasHits(responses.get(0)) || response == null) {
+                    return null;
+                }
+                return readSources(response, meta).withVersion(readVersion(responses.get(0), response));
+            });
+    }
+
+    public CompletableFuture<ContentVersion> getCodeSchemeCodesVersion(final String codeRegistryCodeValue,
+                                                                       final String codeSchemeCodeValue,
+                                                                       final String codeCodeValue,
+                                                                       final String prefLabel,
+                                                                       final String broaderCodeId,
+                                                                       final List<String> statuses,
+                                                                       final Date after) {
+        if (!indexRegistry.isAvailable(ELASTIC_INDEX_CODESCHEME) || !indexRegistry.isAvailable(ELASTIC_INDEX_CODE)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final SearchRequestBuilder parentRequest = asVersionRequest(createCodeSchemeRequest(codeRegistryCodeValue, codeSchemeCodeValue));
+        final SearchRequestBuilder childRequest = asVersionRequest(createCodesRequest(0, 0, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statuses, after, null));
+        return executeMultiSearch(new String[]{ ELASTIC_INDEX_CODESCHEME, ELASTIC_INDEX_CODE }, parentRequest, childRequest)
+            .thenApply(responses -> {
+                final SearchResponse response = responses.get(1);
+                if (!hasHits(responses.get(0)) || response == null) {
+                    return null;
+                }
+                return readVersion(responses.get(0), response);
+            });
+    }
+
+    public CompletableFuture<PropertyType> getPropertyType(final String propertyTypeId) {
+        return getDocument(ELASTIC_INDEX_PROPERTYTYPE, ELASTIC_TYPE_PROPERTYTYPE, PROPERTYTYPE_READER, null, propertyTypeId, propertyType -> true,
+            () -> createPropertyTypeRequest(propertyTypeId));
+    }
+
+    public CompletableFuture<SourceHits> getPropertyTypeSources(final Integer pageSize,
+                                                                final Integer from,
+                                                                final String propertyTypePrefLabel,
+                                                                final String context,
+                                                                final Date after,
+                                                                final Meta meta,
+                                                                final String[] sourceIncludes,
+                                                                final String[] sourceExcludes) {
+        if (indexRegistry.isAvailable(ELASTIC_INDEX_PROPERTYTYPE)) {
+            return executeSearch(ELASTIC_INDEX_PROPERTYTYPE, addVersionAggregation(createPropertyTypesRequest(pageSize, from, propertyTypePrefLabel, context, after).setFetchSource(sourceIncludes, sourceExcludes)))
+                .thenApply(response -> response != null ? readSources(response, meta).withVersion(readVersion(response)) : EMPTY_SOURCE_HITS);
+        }
+        return CompletableFuture.completedFuture(EMPTY_SOURCE_HITS);
+    }
+
+    public CompletableFuture<ContentVersion> getPropertyTypesVersion(final String propertyTypePrefLabel,
+                                                                     final String context,
+                                                                     final Date after) {
+        if (indexRegistry.isAvailable(ELASTIC_INDEX_PROPERTYTYPE)) {
+            return executeSearch(ELASTIC_INDEX_PROPERTYTYPE, asVersionRequest(createPropertyTypesRequest(0, 0, propertyTypePrefLabel, context, after)))
+                .thenApply(AbstractDomain::readVersion);
+        }
+        return CompletableFuture.completedFuture(readVersion((SearchResponse) null));
+    }
+
+    public CompletableFuture<ExternalReference> getExternalReference(final String externalReferenceId) {
+        return getDocument(ELASTIC_INDEX_EXTERNALREFERENCE, ELASTIC_TYPE_EXTERNALREFERENCE, EXTERNALREFERENCE_READER, null, externalReferenceId, externalReference -> true,
+            () -> createExternalReferenceRequest(externalReferenceId));
+    }
+
+    public CompletableFuture<SourceHits> getExternalReferenceSources(final Integer pageSize,
+                                                                     final Integer from,
+                                                                     final String externalReferencePrefLabel,
+                                                                     final CodeScheme codeScheme,
+                                                                     final Date after,
+                                                                     final Meta meta,
+                                                                     final String[] sourceIncludes,
+                                                                     final String[] sourceExcludes) {
+        if (indexRegistry.isAvailable(ELASTIC_INDEX_EXTERNALREFERENCE)) {
+            return executeSearch(ELASTIC_INDEX_EXTERNALREFERENCE, addVersionAggregation(createExternalReferencesRequest(pageSize, from, externalReferencePrefLabel, codeScheme, after).setFetchSource(sourceIncludes, sourceExcludes)))
+                .thenApply(response -> response != null ? readSources(response, meta).withVersion(readVersion(response)) : EMPTY_SOURCE_HITS);
+        }
+        return CompletableFuture.completedFuture(EMPTY_SOURCE_HITS);
+    }
+
+    public CompletableFuture<ContentVersion> getExternalReferencesVersion(final String externalReferencePrefLabel,
+                                                                          final CodeScheme codeScheme,
+                                                                          final Date after) {
+        if (indexRegistry.isAvailable(ELASTIC_INDEX_EXTERNALREFERENCE)) {
+            return executeSearch(ELASTIC_INDEX_EXTERNALREFERENCE, asVersionRequest(createExternalReferencesRequest(0, 0, externalReferencePrefLabel, codeScheme, after)))
+                .thenApply(AbstractDomain::readVersion);
+        }
+        return CompletableFuture.completedFuture(readVersion((SearchResponse) null));
+    }
+
+    public Set<String> getIndexedLanguages() {
+        return indexRegistry.getIndexedLanguages();
+    }
+
+    /**
+     * Resolves a single document through the entity cache. Lookups with a cache key are served from the cache when
+     * possible, lookups without one always go to ElasticSearch.
+     */
+    private <T> CompletableFuture<T> getDocument(final String indexName,
+                                                 final String type,
+                                                 final ObjectReader reader,
+                                                 final String cacheKey,
+                                                 final String idOrCodeValue,
+                                                 final Predicate<T> scope,
+                                                 final Supplier<SearchRequestBuilder> searchRequest) {
+        if (!indexRegistry.isAvailable(indexName)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return entityCache.getAsync(indexName, cacheKey, () -> findSource(indexName, type, reader, idOrCodeValue, scope, searchRequest))
+            .thenApply(source -> readValue(reader, source));
+    }
+
+    /**
+     * Finds the source of a single document. UUID values are fetched with a realtime get on the document id and
+     * accepted if they match the scope, other values and get misses are resolved with the search request.
+     */
+    private <T> CompletableFuture<byte[]> findSource(final String indexName,
+                                                     final String type,
+                                                     final ObjectReader reader,
+                                                     final String idOrCodeValue,
+                                                     final Predicate<T> scope,
+                                                     final Supplier<SearchRequestBuilder> searchRequest) {
+        if (!isUuid(idOrCodeValue)) {
+            return executeSearch(indexName, searchRequest.get()).thenApply(AbstractDomain::getFirstHitSource);
+        }
+        return executeGet(indexName, createGetRequest(indexName, type, idOrCodeValue)).thenCompose(response -> {
+            if (response == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            final byte[] source = getSource(response);
+            final T value = readValue(reader, source);
+            if (value != null && scope.test(value)) {
+                return CompletableFuture.completedFuture(source);
+            }
+            return executeSearch(indexName, searchRequest.get()).thenApply(AbstractDomain::getFirstHitSource);
+        });
+    }
+
+    /**
+     * Executes the get with a listener, completing with null if the index has gone missing. Concurrent gets of the
+     * same document share one request.
+     */
+    private CompletableFuture<GetResponse> executeGet(final String indexName,
+                                                      final GetRequestBuilder getRequest) {
+        final GetRequest request = getRequest.request();
+        return gets.executeAsync(request.index() + "/" + request.type() + "/" + request.id(), () -> doExecuteGet(indexName, getRequest));
+    }
+
+    private CompletableFuture<GetResponse> doExecuteGet(final String indexName,
+                                                        final GetRequestBuilder getRequest) {
+        final CompletableFuture<GetResponse> future = new CompletableFuture<>();
+        getRequest.execute(ActionListener.wrap(
+            response -> executor.execute(() -> future.complete(response)),
+            e -> executor.execute(() -> {
+                if (ExceptionsHelper.unwrapCause(e) instanceof IndexNotFoundException) {
+                    LOG.warn("Get failed due to missing index: " + indexName);
+                    indexRegistry.markUnavailable(indexName);
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(e);
+                }
+            })));
+        return future;
+    }
+
+    /**
+     * Executes the search with a listener, completing with null if the index has gone missing. Concurrent identical
+     * searches share one request.
+     */
+    private CompletableFuture<SearchResponse> executeSearch(final String indexName,
+                                                            final SearchRequestBuilder searchRequest) {
+        return searches.executeAsync(indexName + searchRequest, () -> doExecuteSearch(indexName, searchRequest));
+    }
+
+    private CompletableFuture<SearchResponse> doExecuteSearch(final String indexName,
+                                                              final SearchRequestBuilder searchRequest) {
+        final CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+        searchRequest.execute(ActionListener.wrap(
+            response -> executor.execute(() -> future.complete(response)),
+            e -> executor.execute(() -> {
+                if (ExceptionsHelper.unwrapCause(e) instanceof IndexNotFoundException) {
+                    LOG.warn("Search failed due to missing index: " + indexName);
+                    indexRegistry.markUnavailable(indexName);
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(e);
+                }
+            })));
+        return future;
+    }
+
+    /**
+     * Executes the searches as one multi search request. The responses are in request order, with null in place of
+     * searches that failed due to a missing index. Concurrent identical multi searches share one request.
+     */
+    private CompletableFuture<List<SearchResponse>> executeMultiSearch(final String[] indexNames,
+                                                                       final SearchRequestBuilder... searchRequests) {
+        return multiSearches.executeAsync(Arrays.toString(indexNames) + Arrays.toString(searchRequests), () -> doExecuteMultiSearch(indexNames, searchRequests));
+    }
+
+    private CompletableFuture<List<SearchResponse>> doExecuteMultiSearch(final String[] indexNames,
+                                                                         final SearchRequestBuilder... searchRequests) {
+        final CompletableFuture<List<SearchResponse>> future = new CompletableFuture<>();
+        final MultiSearchRequestBuilder multiSearchRequest = client.prepareMultiSearch();
+        for (final SearchRequestBuilder searchRequest : searchRequests) {
+            multiSearchRequest.add(searchRequest);
+        }
+        multiSearchRequest.execute(ActionListener.wrap(
+            multiResponse -> executor.execute(() -> {
+                final MultiSearchResponse.Item[] items = multiResponse.getResponses();
+                final List<SearchResponse> responses = new ArrayList<>(items.length);
+                for (int i = 0; i < items.length; i++) {
+                    final MultiSearchResponse.Item item = items[i];
+                    if (!item.isFailure()) {
+                        responses.add(item.getResponse());
+                    } else if (ExceptionsHelper.unwrapCause(item.getFailure()) instanceof IndexNotFoundException) {
+                        LOG.warn("Search failed due to missing index: " + indexNames[i]);
+                        indexRegistry.markUnavailable(indexNames[i]);
+                        responses.add(null);
+                    } else {
+                        future.completeExceptionally(item.getFailure());
+                        return;
+                    }
+                }
+                future.complete(Collections.unmodifiableList(responses));
+            }),
+            e -> executor.execute(() -> future.completeExceptionally(e))));
+        return future;
+    }
+
+    private static boolean hasHits(final SearchResponse response) {
+        return response != null && response.getHits().getTotalHits() > 0;
+    }
+}
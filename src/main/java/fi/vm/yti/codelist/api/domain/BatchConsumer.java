@@ -0,0 +1,15 @@
+package fi.vm.yti.codelist.api.domain;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives search results batch by batch while a result set is being streamed.
+ *
+ * @param <T> The type of the results.
+ */
+@FunctionalInterface
+public interface BatchConsumer<T> {
+
+    void accept(final List<T> batch) throws IOException;
+}
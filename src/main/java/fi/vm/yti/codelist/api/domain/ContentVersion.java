@@ -0,0 +1,39 @@
+package fi.vm.yti.codelist.api.domain;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Identifies the state of an entity or of all the documents a listing matches, so that conditional requests can be
+ * validated without fetching the content itself.
+ *
+ * Listing versions are built from the hit count together with the maximum and an exact long sum of the modified
+ * timestamps of the matching documents, so adding, removing or updating any of them changes the fingerprint.
+ */
+public class ContentVersion {
+
+    private final String fingerprint;
+    private final Date lastModified;
+
+    public ContentVersion(final String fingerprint,
+                          final Date lastModified) {
+        this.fingerprint = fingerprint;
+        this.lastModified = lastModified;
+    }
+
+    public static ContentVersion forEntity(final UUID id,
+                                           final Date modified) {
+        return new ContentVersion(id + ":" + (modified != null ? modified.getTime() : ""), modified);
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return The latest modified date of the content, or null if it is not known.
+     */
+    public Date getLastModified() {
+        return lastModified;
+    }
+}
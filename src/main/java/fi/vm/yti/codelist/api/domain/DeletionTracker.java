@@ -0,0 +1,217 @@
+package fi.vm.yti.codelist.api.domain;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import static fi.vm.yti.codelist.common.constants.ApiConstants.*;
+
+/**
+ * Detects documents that have been deleted from the entity indices and keeps tombstones for them, so that the changes
+ * feed can report deletions as well as modifications.
+ *
+ * The indices are written by another service, so deletions are found by comparing the document ids of each index
+ * between scans. An id is tombstoned when it has been missing from two consecutive scans, and a scan that finds an
+ * index empty is ignored, so that an index being rebuilt is not reported as deleted. A tombstone is dropped if its id
+ * reappears.
+ *
+ * Tombstones are kept in memory up to the configured count. Deletions are only known from the end of the first scan
+ * after startup and for as long as their tombstones are kept, which {@link #canResume} tells the feed. When tracking
+ * is disabled, the feed reports no deletions at all.
+ *
+ * Each node tracks deletions on its own, so tombstones and their times differ between nodes. Cursors carry the random
+ * epoch of the tracker that issued them, and a cursor is only resumed by that same tracker.
+ */
+@Component
+public class DeletionTracker implements PublicMetrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeletionTracker.class);
+    private static final Map<String, String> INDEX_TYPES = new LinkedHashMap<>();
+
+    static {
+        INDEX_TYPES.put(ELASTIC_INDEX_CODEREGISTRY, ELASTIC_TYPE_CODEREGISTRY);
+        INDEX_TYPES.put(ELASTIC_INDEX_CODESCHEME, ELASTIC_TYPE_CODESCHEME);
+        INDEX_TYPES.put(ELASTIC_INDEX_CODE, ELASTIC_TYPE_CODE);
+        INDEX_TYPES.put(ELASTIC_INDEX_PROPERTYTYPE, ELASTIC_TYPE_PROPERTYTYPE);
+        INDEX_TYPES.put(ELASTIC_INDEX_EXTERNALREFERENCE, ELASTIC_TYPE_EXTERNALREFERENCE);
+    }
+
+    private final Domain domain;
+    private final IndexRegistry indexRegistry;
+    private final boolean enabled;
+    private final int maxTombstones;
+    private final long epoch = ThreadLocalRandom.current().nextLong();
+    private final Map<String, Set<String>> knownIds = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> missingIds = new HashMap<>();
+    private final NavigableSet<Tombstone> tombstones = new ConcurrentSkipListSet<>(Tombstone.ORDER);
+    private final Map<String, Tombstone> tombstonesById = new ConcurrentHashMap<>();
+    private volatile long trackingSince = -1;
+    private volatile long evictedUntil;
+
+    @Inject
+    public DeletionTracker(final Domain domain,
+                           final IndexRegistry indexRegistry,
+                           @Value("${application.changes.trackDeletions:true}") final boolean enabled,
+                           @Value("${application.changes.maxTombstones:100000}") final int maxTombstones) {
+        this.domain = domain;
+        this.indexRegistry = indexRegistry;
+        this.enabled = enabled;
+        this.maxTombstones = maxTombstones;
+    }
+
+    /**
+     * @return The epoch that identifies the tombstones of this tracker in feed cursors.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns true if no deletion can have been missed by a client that read the feed at the given time up to the
+     * given position, that is, if the cursor was issued by this tracker, deletions were already tracked when the client
+     * read the feed and no tombstone after the position has been dropped since.
+     *
+     * @param epoch    The epoch of the tracker that issued the cursor.
+     * @param readAt   The time the client read the feed in epoch milliseconds.
+     * @param position The modified timestamp of the last change the client received in epoch milliseconds.
+     * @return true if the client can continue from the position.
+     */
+    public boolean canResume(final long epoch,
+                             final long readAt,
+                             final long position) {
+        if (!enabled) {
+            return true;
+        }
+        final long since = trackingSince;
+        return epoch == this.epoch && since >= 0 && readAt >= since && position > evictedUntil;
+    }
+
+    /**
+     * Returns the tombstones ordered after the given position, as a live view that reflects later changes.
+     *
+     * @param deleted The time of the position in epoch milliseconds.
+     * @param id      The id of the position, or null to return all tombstones.
+     * @return The tombstones after the position.
+     */
+    public NavigableSet<Tombstone> getTombstonesAfter(final long deleted,
+                                                      final String id) {
+        if (id == null) {
+            return tombstones;
+        }
+        return tombstones.tailSet(new Tombstone(null, id, deleted), false);
+    }
+
+    /**
+     * Compares the document ids of every available entity index with the previous scan. Tracking starts only after a
+     * scan has covered every index, so an index that is unavailable keeps deletions unknown until it is scanned.
+     */
+    @Scheduled(fixedDelayString = "${application.changes.deletionScanInterval:300000}")
+    public synchronized void scan() {
+        if (!enabled) {
+            return;
+        }
+        boolean complete = true;
+        for (final Map.Entry<String, String> index : INDEX_TYPES.entrySet()) {
+            if (indexRegistry.isAvailable(index.getKey())) {
+                complete &= scan(index.getKey(), index.getValue());
+            } else {
+                complete = false;
+            }
+        }
+        if (complete && trackingSince < 0) {
+            trackingSince = System.currentTimeMillis();
+            LOG.info("Deletion tracking started");
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        long ids = 0;
+        for (final Set<String> indexIds : knownIds.values()) {
+            ids += indexIds.size();
+        }
+        final List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("changes.tombstones", tombstonesById.size()));
+        metrics.add(new Metric<>("changes.trackedIds", ids));
+        return metrics;
+    }
+
+    private boolean scan(final String indexName,
+                         final String type) {
+        final Set<String> ids = new HashSet<>();
+        try {
+            domain.streamIds(indexName, ids::addAll);
+        } catch (final Exception e) {
+            LOG.error("Deletion scan failed for index: " + indexName + ", message: " + e.getMessage());
+            return false;
+        }
+        final Set<String> previousIds = knownIds.get(indexName);
+        if (ids.isEmpty() && previousIds != null && !previousIds.isEmpty()) {
+            LOG.info("Index " + indexName + " is empty, skipping deletion scan");
+            return true;
+        }
+        final Set<String> previousMissingIds = missingIds.getOrDefault(indexName, Collections.emptySet());
+        final Set<String> currentMissingIds = new HashSet<>();
+        final long now = System.currentTimeMillis();
+        if (previousIds != null) {
+            for (final String id : previousIds) {
+                if (ids.contains(id)) {
+                    continue;
+                }
+                if (previousMissingIds.contains(id)) {
+                    addTombstone(new Tombstone(type, id, now));
+                } else {
+                    currentMissingIds.add(id);
+                }
+            }
+        }
+        if (!tombstonesById.isEmpty()) {
+            for (final String id : ids) {
+                final Tombstone tombstone = tombstonesById.remove(id);
+                if (tombstone != null) {
+                    tombstones.remove(tombstone);
+                }
+            }
+        }
+        ids.addAll(currentMissingIds);
+        knownIds.put(indexName, ids);
+        missingIds.put(indexName, currentMissingIds);
+        return true;
+    }
+
+    private void addTombstone(final Tombstone tombstone) {
+        tombstones.add(tombstone);
+        final Tombstone previous = tombstonesById.put(tombstone.getId(), tombstone);
+        if (previous != null) {
+            tombstones.remove(previous);
+        }
+        while (tombstonesById.size() > maxTombstones) {
+            final Tombstone evicted = tombstones.pollFirst();
+            if (evicted == null) {
+                break;
+            }
+            tombstonesById.remove(evicted.getId(), evicted);
+            evictedUntil = Math.max(evictedUntil, evicted.getDeleted());
+        }
+    }
+}
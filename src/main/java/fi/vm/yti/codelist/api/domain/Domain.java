@@ -1,8 +1,14 @@
 package fi.vm.yti.codelist.api.domain;
 
+import java.io.IOException;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.search.SearchHit;
 
 import fi.vm.yti.codelist.common.model.Code;
 import fi.vm.yti.codelist.common.model.CodeRegistry;
@@ -22,6 +28,7 @@ public interface Domain {
                                         final String codeRegistryCodeValue,
                                         final String codeRegistryPrefLabel,
                                         final Date after,
+                                        final Object[] searchAfter,
                                         final Meta meta,
                                         final List<String> organizations);
 
@@ -44,6 +51,7 @@ public interface Domain {
                                    final List<String> statuses,
                                    final List<String> dataClassifications,
                                    final Date after,
+                                   final Object[] searchAfter,
                                    final Meta meta);
 
     Code getCode(final String codeRegistryCodeValue,
@@ -59,6 +67,7 @@ public interface Domain {
                        final String broaderCodeId,
                        final List<String> statuses,
                        final Date after,
+                       final Object[] searchAfter,
                        final Meta meta);
 
     PropertyType getPropertyType(final String propertyTypeId);
@@ -82,4 +91,143 @@ public interface Domain {
                                                  final CodeScheme codeScheme,
                                                  final Date after,
                                                  final Meta meta);
+
+    void streamCodeRegistries(final String codeRegistryCodeValue,
+                              final String codeRegistryPrefLabel,
+                              final Date after,
+                              final List<String> organizations,
+                              final BatchConsumer<CodeRegistry> consumer) throws IOException;
+
+    void streamCodeSchemes(final String organizationId,
+                           final String codeRegistryCodeValue,
+                           final String codeRegistryPrefLabel,
+                           final String codeSchemeCodeValue,
+                           final String codeSchemeCodePrefLabel,
+                           final List<String> statuses,
+                           final List<String> dataClassifications,
+                           final Date after,
+                           final BatchConsumer<CodeScheme> consumer) throws IOException;
+
+    void streamCodes(final String codeRegistryCodeValue,
+                     final String codeSchemeCodeValue,
+                     final String codeCodeValue,
+                     final String prefLabel,
+                     final String broaderCodeId,
+                     final List<String> statuses,
+                     final Date after,
+                     final BatchConsumer<Code> consumer) throws IOException;
+
+    void streamPropertyTypes(final String propertyTypePrefLabel,
+                             final String context,
+                             final Date after,
+                             final BatchConsumer<PropertyType> consumer) throws IOException;
+
+    void streamExternalReferences(final String externalReferencePrefLabel,
+                                  final CodeScheme codeScheme,
+                                  final Date after,
+                                  final BatchConsumer<ExternalReference> consumer) throws IOException;
+
+    /**
+     * Passes the raw source documents of the matching CodeRegistries to the consumer, a single page of them when a page
+     * size is given and all of them batch by batch otherwise.
+     */
+    void streamCodeRegistrySources(final Integer pageSize,
+                                   final Integer from,
+                                   final Object[] searchAfter,
+                                   final String codeRegistryCodeValue,
+                                   final String codeRegistryPrefLabel,
+                                   final Date after,
+                                   final List<String> organizations,
+                                   final String[] sourceIncludes,
+                                   final String[] sourceExcludes,
+                                   final BatchConsumer<BytesReference> consumer) throws IOException;
+
+    void streamCodeSchemeSources(final Integer pageSize,
+                                 final Integer from,
+                                 final Object[] searchAfter,
+                                 final String organizationId,
+                                 final String codeRegistryCodeValue,
+                                 final String codeRegistryPrefLabel,
+                                 final String codeSchemeCodeValue,
+                                 final String codeSchemePrefLabel,
+                                 final List<String> statuses,
+                                 final List<String> dataClassifications,
+                                 final Date after,
+                                 final String[] sourceIncludes,
+                                 final String[] sourceExcludes,
+                                 final BatchConsumer<BytesReference> consumer) throws IOException;
+
+    void streamCodeSources(final Integer pageSize,
+                           final Integer from,
+                           final Object[] searchAfter,
+                           final String codeRegistryCodeValue,
+                           final String codeSchemeCodeValue,
+                           final String codeCodeValue,
+                           final String prefLabel,
+                           final String broaderCodeId,
+                           final List<String> statuses,
+                           final Date after,
+                           final String[] sourceIncludes,
+                           final String[] sourceExcludes,
+                           final BatchConsumer<BytesReference> consumer) throws IOException;
+
+    void streamPropertyTypeSources(final Integer pageSize,
+                                   final Integer from,
+                                   final String propertyTypePrefLabel,
+                                   final String context,
+                                   final Date after,
+                                   final String[] sourceIncludes,
+                                   final String[] sourceExcludes,
+                                   final BatchConsumer<BytesReference> consumer) throws IOException;
+
+    void streamExternalReferenceSources(final Integer pageSize,
+                                        final Integer from,
+                                        final String externalReferencePrefLabel,
+                                        final CodeScheme codeScheme,
+                                        final Date after,
+                                        final String[] sourceIncludes,
+                                        final String[] sourceExcludes,
+                                        final BatchConsumer<BytesReference> consumer) throws IOException;
+
+    /**
+     * Passes the documents of all entity indices that were modified at or before the given time to the consumer batch
+     * by batch, ordered by the modified timestamp and the id.
+     *
+     * @param limit          The maximum number of documents.
+     * @param searchAfter    The modified timestamp and id to continue after, or null to start from the beginning.
+     * @param before         The latest modified timestamp included.
+     * @param sourceIncludes The _source include patterns, or null for all fields.
+     * @param sourceExcludes The _source exclude patterns.
+     * @param consumer       The consumer of the hits, which carry the index, id, sort values and source.
+     * @throws IOException If the consumer fails.
+     */
+    void streamChanges(final int limit,
+                       final Object[] searchAfter,
+                       final Date before,
+                       final String[] sourceIncludes,
+                       final String[] sourceExcludes,
+                       final BatchConsumer<SearchHit> consumer) throws IOException;
+
+    /**
+     * Scrolls through the ids of all documents in the index.
+     *
+     * @param indexName The name of the index.
+     * @param consumer  The consumer of the ids.
+     * @throws IOException If the consumer fails.
+     */
+    void streamIds(final String indexName,
+                   final BatchConsumer<String> consumer) throws IOException;
+
+    Map<UUID, String> getCodeValues(final Set<UUID> codeIds);
+
+    Map<String, Set<String>> getLanguages(final String indexName,
+                                          final String type,
+                                          final String... fields);
+
+    /**
+     * Returns the languages of localized properties known from the index mappings, without a request to ElasticSearch.
+     *
+     * @return The indexed languages.
+     */
+    Set<String> getIndexedLanguages();
 }
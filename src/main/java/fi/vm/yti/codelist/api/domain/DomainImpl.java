@@ -1,31 +1,53 @@
 package fi.vm.yti.codelist.api.domain;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import javax.inject.Singleton;
 
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.join.ScoreMode;
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
-import org.elasticsearch.index.query.BoolQueryBuilder;
-import org.elasticsearch.index.query.MultiMatchQueryBuilder;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.IndexNotFoundException;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
 import org.elasticsearch.search.sort.SortOrder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.util.ISO8601DateFormat;
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+import com.fasterxml.jackson.databind.ObjectReader;
 
+import fi.vm.yti.codelist.api.util.SingleFlight;
+import fi.vm.yti.codelist.api.util.SingleFlightRegistry;
 import fi.vm.yti.codelist.common.model.Code;
 import fi.vm.yti.codelist.common.model.CodeRegistry;
 import fi.vm.yti.codelist.common.model.CodeScheme;
@@ -33,53 +55,46 @@ import fi.vm.yti.codelist.common.model.ExternalReference;
 import fi.vm.yti.codelist.common.model.Meta;
 import fi.vm.yti.codelist.common.model.PropertyType;
 import static fi.vm.yti.codelist.common.constants.ApiConstants.*;
-import static java.lang.Math.toIntExact;
-import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
-import static org.elasticsearch.index.query.QueryBuilders.matchQuery;
 
+/**
+ * Blocking domain implementation, used for exports and scrolling.
+ *
+ * Identical gets, searches and mapping requests that are in flight at the same time are sent to ElasticSearch only
+ * once, the threads that arrive later wait for the shared response. Scroll searches are never shared, because each
+ * caller consumes and clears its own scroll context.
+ */
 @Singleton
 @Service
-public class DomainImpl implements Domain {
+public class DomainImpl extends AbstractDomain implements Domain {
 
     private static final Logger LOG = LoggerFactory.getLogger(DomainImpl.class);
-    private static int MAX_SIZE = 10000;
-    private Client client;
+    private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+    private static final FetchSourceContext CODE_VALUE_SOURCE = new FetchSourceContext(true, new String[]{ "id", "codeValue" }, null);
+    private final int scrollBatchSize;
+    private final SingleFlight<String, GetResponse> gets;
+    private final SingleFlight<String, SearchResponse> searches;
+    private final SingleFlight<String, GetMappingsResponse> mappings;
 
     @Autowired
-    private DomainImpl(final Client client) {
-        this.client = client;
+    private DomainImpl(final Client client,
+                       final IndexRegistry indexRegistry,
+                       final EntityCache entityCache,
+                       @Value("${application.elastic.scrollBatchSize:1000}") final int scrollBatchSize,
+                       final SingleFlightRegistry singleFlightRegistry) {
+        super(client, indexRegistry, entityCache);
+        this.scrollBatchSize = scrollBatchSize;
+        this.gets = singleFlightRegistry.create("elastic.sync.get");
+        this.searches = singleFlightRegistry.create("elastic.sync.search");
+        this.mappings = singleFlightRegistry.create("elastic.sync.mappings");
     }
 
     public CodeRegistry getCodeRegistry(final String codeRegistryCodeValue) {
-        final boolean exists = client.admin().indices().prepareExists(ELASTIC_INDEX_CODEREGISTRY).execute().actionGet().isExists();
-        if (exists) {
-            final ObjectMapper mapper = new ObjectMapper();
-            final SearchRequestBuilder searchRequest = client
-                .prepareSearch(ELASTIC_INDEX_CODEREGISTRY)
-                .setTypes(ELASTIC_TYPE_CODEREGISTRY)
-                .addSort("codeValue.keyword", SortOrder.ASC);
-            final BoolQueryBuilder builder = boolQuery()
-                .should(matchQuery("id", codeRegistryCodeValue.toLowerCase()))
-                .should(matchQuery("codeValue", codeRegistryCodeValue.toLowerCase()))
-                .minimumShouldMatch(1);
-            searchRequest.setQuery(builder);
-            final SearchResponse response = searchRequest.execute().actionGet();
-            if (response.getHits().getTotalHits() > 0) {
-                final SearchHit hit = response.getHits().getAt(0);
-                try {
-                    if (hit != null) {
-                        return mapper.readValue(hit.getSourceAsString(), CodeRegistry.class);
-                    }
-                } catch (IOException e) {
-                    LOG.error("getCodeRegistry reading value from JSON string failed: " + hit.getSourceAsString() + ", message: " + e.getMessage(), e);
-                }
-            }
-        }
-        return null;
+        return getDocument(ELASTIC_INDEX_CODEREGISTRY, ELASTIC_TYPE_CODEREGISTRY, CODEREGISTRY_READER, codeRegistryCodeValue, codeRegistryCodeValue, codeRegistry -> true,
+            () -> createCodeRegistryRequest(codeRegistryCodeValue));
     }
 
     public Set<CodeRegistry> getCodeRegistries() {
-        return getCodeRegistries(MAX_SIZE, 0, null, null, null, null, null);
+        return getCodeRegistries(MAX_SIZE, 0, null, null, null, null, null, null);
     }
 
     public Set<CodeRegistry> getCodeRegistries(final Integer pageSize,
@@ -87,122 +102,36 @@ public class DomainImpl implements Domain {
                                                final String codeRegistryCodeValue,
                                                final String codeRegistryPrefLabel,
                                                final Date after,
+                                               final Object[] searchAfter,
                                                final Meta meta,
                                                final List<String> organizations) {
-        final Set<CodeRegistry> codeRegistries = new LinkedHashSet<>();
-        final boolean exists = client.admin().indices().prepareExists(ELASTIC_INDEX_CODEREGISTRY).execute().actionGet().isExists();
-        if (exists) {
-            final ObjectMapper mapper = new ObjectMapper();
-            final SearchRequestBuilder searchRequest = client
-                .prepareSearch(ELASTIC_INDEX_CODEREGISTRY)
-                .setTypes(ELASTIC_TYPE_CODEREGISTRY)
-                .addSort("codeValue.keyword", SortOrder.ASC)
-                .setSize(pageSize != null ? pageSize : MAX_SIZE)
-                .setFrom(from != null ? from : 0);
-
-            final BoolQueryBuilder builder = constructSearchQuery(codeRegistryCodeValue, codeRegistryPrefLabel, after);
-            if (organizations != null && !organizations.isEmpty()) {
-                builder.must(QueryBuilders.termsQuery("organizations.id.keyword", organizations));
+        if (indexRegistry.isAvailable(ELASTIC_INDEX_CODEREGISTRY)) {
+            final SearchResponse response = executeSearch(ELASTIC_INDEX_CODEREGISTRY, createCodeRegistriesRequest(pageSize, from, codeRegistryCodeValue, codeRegistryPrefLabel, after, searchAfter, organizations));
+            if (response != null) {
+                return readHits(CODEREGISTRY_READER, response, meta);
             }
-            searchRequest.setQuery(builder);
-            final SearchResponse response = searchRequest.execute().actionGet();
-            setResultCounts(meta, response);
-            response.getHits().forEach(hit -> {
-                try {
-                    codeRegistries.add(mapper.readValue(hit.getSourceAsString(), CodeRegistry.class));
-                } catch (IOException e) {
-                    LOG.error("getCodeRegistries reading value from JSON string failed: " + hit.getSourceAsString() + ", message: " + e.getMessage());
-                }
-            });
         }
-        return codeRegistries;
+        return new LinkedHashSet<>();
     }
 
     public CodeScheme getCodeSchemeWithId(final String codeSchemeId) {
-        final boolean exists = client.admin().indices().prepareExists(ELASTIC_INDEX_CODESCHEME).execute().actionGet().isExists();
-        if (exists) {
-            final ObjectMapper mapper = new ObjectMapper();
-            final SearchRequestBuilder searchRequest = client
-                .prepareSearch(ELASTIC_INDEX_CODESCHEME)
-                .setTypes(ELASTIC_TYPE_CODESCHEME)
-                .addSort("codeValue.keyword", SortOrder.ASC);
-            final BoolQueryBuilder builder = boolQuery()
-                .must(matchQuery("id", codeSchemeId.toLowerCase()));
-            searchRequest.setQuery(builder);
-            final SearchResponse response = searchRequest.execute().actionGet();
-            if (response.getHits().getTotalHits() > 0) {
-                final SearchHit hit = response.getHits().getAt(0);
-                try {
-                    if (hit != null) {
-                        return mapper.readValue(hit.getSourceAsString(), CodeScheme.class);
-                    }
-                } catch (IOException e) {
-                    LOG.error("getCodeScheme reading value from JSON string failed: " + hit.getSourceAsString() + ", message: " + e.getMessage());
-                }
-            }
-        }
-        return null;
+        return getDocument(ELASTIC_INDEX_CODESCHEME, ELASTIC_TYPE_CODESCHEME, CODESCHEME_READER, "id:" + codeSchemeId, codeSchemeId, codeScheme -> true,
+            () -> createCodeSchemeRequest(codeSchemeId));
     }
 
     public CodeScheme getCodeScheme(final String codeSchemeId) {
-        final boolean exists = client.admin().indices().prepareExists(ELASTIC_INDEX_CODESCHEME).execute().actionGet().isExists();
-        if (exists) {
-            final ObjectMapper mapper = new ObjectMapper();
-            final SearchRequestBuilder searchRequest = client
-                .prepareSearch(ELASTIC_INDEX_CODESCHEME)
-                .setTypes(ELASTIC_TYPE_CODESCHEME)
-                .addSort("codeValue.keyword", SortOrder.ASC);
-            final BoolQueryBuilder builder = boolQuery()
-                .should(matchQuery("id", codeSchemeId.toLowerCase()))
-                .minimumShouldMatch(1);
-            searchRequest.setQuery(builder);
-            final SearchResponse response = searchRequest.execute().actionGet();
-            if (response.getHits().getTotalHits() > 0) {
-                final SearchHit hit = response.getHits().getAt(0);
-                try {
-                    if (hit != null) {
-                        return mapper.readValue(hit.getSourceAsString(), CodeScheme.class);
-                    }
-                } catch (IOException e) {
-                    LOG.error("getCodeScheme reading value from JSON string failed: " + hit.getSourceAsString() + ", message: " + e.getMessage());
-                }
-            }
-        }
-        return null;
+        return getDocument(ELASTIC_INDEX_CODESCHEME, ELASTIC_TYPE_CODESCHEME, CODESCHEME_READER, "id:" + codeSchemeId, codeSchemeId, codeScheme -> true,
+            () -> createCodeSchemeRequest(codeSchemeId));
     }
 
     public CodeScheme getCodeScheme(final String codeRegistryCodeValue,
                                     final String codeSchemeCodeValue) {
-        final boolean exists = client.admin().indices().prepareExists(ELASTIC_INDEX_CODESCHEME).execute().actionGet().isExists();
-        if (exists) {
-            final ObjectMapper mapper = new ObjectMapper();
-            final SearchRequestBuilder searchRequest = client
-                .prepareSearch(ELASTIC_INDEX_CODESCHEME)
-                .setTypes(ELASTIC_TYPE_CODESCHEME)
-                .addSort("codeValue.keyword", SortOrder.ASC);
-            final BoolQueryBuilder builder = boolQuery()
-                .should(matchQuery("id", codeSchemeCodeValue.toLowerCase()))
-                .should(matchQuery("codeValue", codeSchemeCodeValue.toLowerCase()))
-                .minimumShouldMatch(1);
-            builder.must(matchQuery("codeRegistry.codeValue", codeRegistryCodeValue.toLowerCase()));
-            searchRequest.setQuery(builder);
-            final SearchResponse response = searchRequest.execute().actionGet();
-            if (response.getHits().getTotalHits() > 0) {
-                final SearchHit hit = response.getHits().getAt(0);
-                try {
-                    if (hit != null) {
-                        return mapper.readValue(hit.getSourceAsString(), CodeScheme.class);
-                    }
-                } catch (IOException e) {
-                    LOG.error("getCodeScheme reading value from JSON string failed: " + hit.getSourceAsString() + ", message: " + e.getMessage());
-                }
-            }
-        }
-        return null;
+        return getDocument(ELASTIC_INDEX_CODESCHEME, ELASTIC_TYPE_CODESCHEME, CODESCHEME_READER, codeRegistryCodeValue + "/" + codeSchemeCodeValue, codeSchemeCodeValue, codeScheme -> isInCodeRegistry(codeScheme, codeRegistryCodeValue),
+            () -> createCodeSchemeRequest(codeRegistryCodeValue, codeSchemeCodeValue));
     }
 
     public Set<CodeScheme> getCodeSchemes() {
-        return getCodeSchemes(MAX_SIZE, 0, null, null, null, null, null, null, null, null, null);
+        return getCodeSchemes(MAX_SIZE, 0, null, null, null, null, null, null, null, null, null, null);
     }
 
     public Set<CodeScheme> getCodeSchemes(final Integer pageSize,
@@ -215,84 +144,22 @@ public class DomainImpl implements Domain {
                                           final List<String> statuses,
                                           final List<String> dataClassifications,
                                           final Date after,
+                                          final Object[] searchAfter,
                                           final Meta meta) {
-        final Set<CodeScheme> codeSchemes = new LinkedHashSet<>();
-        final boolean exists = client.admin().indices().prepareExists(ELASTIC_INDEX_CODESCHEME).execute().actionGet().isExists();
-        if (exists) {
-            final ObjectMapper mapper = new ObjectMapper();
-            final SearchRequestBuilder searchRequest = client
-                .prepareSearch(ELASTIC_INDEX_CODESCHEME)
-                .setTypes(ELASTIC_TYPE_CODESCHEME)
-                .addSort("codeValue.keyword", SortOrder.ASC)
-                .setSize(pageSize != null ? pageSize : MAX_SIZE)
-                .setFrom(from != null ? from : 0);
-            final BoolQueryBuilder builder = constructSearchQuery(codeSchemeCodeValue, codeSchemePrefLabel, after);
-            if (organizationId != null) {
-                builder.must(QueryBuilders.nestedQuery("codeRegistry.organizations", matchQuery("codeRegistry.organizations.id", organizationId.toLowerCase()), ScoreMode.None));
-//                builder.must(QueryBuilders.matchQuery("codeRegistry.organizations.id", organizationId.toLowerCase()));
-            }
-            if (codeRegistryCodeValue != null) {
-                builder.must(matchQuery("codeRegistry.codeValue", codeRegistryCodeValue.toLowerCase()));
-            }
-            if (codeRegistryPrefLabel != null) {
-                builder.must(QueryBuilders.nestedQuery("codeRegistry.prefLabel", QueryBuilders.multiMatchQuery(codeRegistryPrefLabel.toLowerCase() + "*", "prefLabel.*").type(MultiMatchQueryBuilder.Type.PHRASE_PREFIX), ScoreMode.None));
-            }
-            if (dataClassifications != null && !dataClassifications.isEmpty()) {
-                builder.must(QueryBuilders.nestedQuery("dataClassifications", QueryBuilders.termsQuery("dataClassifications.codeValue.keyword", dataClassifications), ScoreMode.None));
-            }
-            if (statuses != null && !statuses.isEmpty()) {
-                builder.must(QueryBuilders.termsQuery("status.keyword", statuses));
+        if (indexRegistry.isAvailable(ELASTIC_INDEX_CODESCHEME)) {
+            final SearchResponse response = executeSearch(ELASTIC_INDEX_CODESCHEME, createCodeSchemesRequest(pageSize, from, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statuses, dataClassifications, after, searchAfter));
+            if (response != null) {
+                return readHits(CODESCHEME_READER, response, meta);
             }
-            searchRequest.setQuery(builder);
-            final SearchResponse response = searchRequest.execute().actionGet();
-            setResultCounts(meta, response);
-            response.getHits().forEach(hit -> {
-                try {
-                    codeSchemes.add(mapper.readValue(hit.getSourceAsString(), CodeScheme.class));
-                } catch (IOException e) {
-                    LOG.error("getCodeSchemes reading value from JSON string failed: " + hit.getSourceAsString() + ", message: " + e.getMessage());
-                }
-            });
         }
-        return codeSchemes;
+        return new LinkedHashSet<>();
     }
 
     public Code getCode(final String codeRegistryCodeValue,
                         final String codeSchemeCodeValue,
                         final String codeCodeValue) {
-        final boolean exists = client.admin().indices().prepareExists(ELASTIC_INDEX_CODE).execute().actionGet().isExists();
-        if (exists) {
-            final ObjectMapper mapper = new ObjectMapper();
-            final SearchRequestBuilder searchRequest = client
-                .prepareSearch(ELASTIC_INDEX_CODE)
-                .setTypes(ELASTIC_TYPE_CODE);
-            final BoolQueryBuilder builder = boolQuery()
-                .should(matchQuery("id", codeCodeValue.toLowerCase()))
-                .should(matchQuery("codeValue", codeCodeValue.toLowerCase()))
-                .minimumShouldMatch(1);
-            builder.must(boolQuery()
-                .should(matchQuery("codeScheme.id", codeSchemeCodeValue.toLowerCase()))
-                .should(matchQuery("codeScheme.codeValue", codeSchemeCodeValue.toLowerCase()))
-                .minimumShouldMatch(1));
-            builder.must(matchQuery("codeScheme.codeRegistry.codeValue", codeRegistryCodeValue.toLowerCase()));
-            searchRequest.setQuery(builder);
-
-            final SearchResponse response = searchRequest.execute().actionGet();
-            LOG.info("getCode found: " + response.getHits().getTotalHits() + " hits.");
-            if (response.getHits().getTotalHits() > 0) {
-                final SearchHit hit = response.getHits().getAt(0);
-                try {
-                    if (hit != null) {
-                        return mapper.readValue(hit.getSourceAsString(), Code.class);
-                    }
-                } catch (IOException e) {
-                    LOG.error("getCode reading value from JSON string failed: " + hit.getSourceAsString() + ", message: " + e.getMessage());
-                }
-            }
-            return null;
-        } else {
-            return null;
-        }
+        return getDocument(ELASTIC_INDEX_CODE, ELASTIC_TYPE_CODE, CODE_READER, codeRegistryCodeValue + "/" + codeSchemeCodeValue + "/" + codeCodeValue, codeCodeValue, code -> isInCodeScheme(code, codeRegistryCodeValue, codeSchemeCodeValue),
+            () -> createCodeRequest(codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue));
     }
 
     public Set<Code> getCodes(final Integer pageSize,
@@ -304,68 +171,20 @@ public class DomainImpl implements Domain {
                               final String broaderCodeId,
                               final List<String> statuses,
                               final Date after,
+                              final Object[] searchAfter,
                               final Meta meta) {
-        final boolean exists = client.admin().indices().prepareExists(ELASTIC_INDEX_CODE).execute().actionGet().isExists();
-        if (exists) {
-            final ObjectMapper mapper = new ObjectMapper();
-            final Set<Code> codes = new LinkedHashSet<>();
-            final SearchRequestBuilder searchRequest = client
-                .prepareSearch(ELASTIC_INDEX_CODE)
-                .setTypes(ELASTIC_TYPE_CODE)
-                .addSort("codeValue.keyword", SortOrder.ASC)
-                .setSize(pageSize != null ? pageSize : MAX_SIZE)
-                .setFrom(from != null ? from : 0);
-
-            final BoolQueryBuilder builder = constructSearchQuery(codeCodeValue, prefLabel, after);
-            builder.must(boolQuery()
-                .should(matchQuery("codeScheme.codeValue", codeSchemeCodeValue.toLowerCase()))
-                .should(matchQuery("codeScheme.id", codeSchemeCodeValue.toLowerCase()))
-                .minimumShouldMatch(1));
-            builder.must(matchQuery("codeScheme.codeRegistry.codeValue", codeRegistryCodeValue.toLowerCase()));
-            searchRequest.setQuery(builder);
-            if (broaderCodeId != null && !broaderCodeId.isEmpty()) {
-                builder.must(matchQuery("broaderCodeId", broaderCodeId.toLowerCase()));
-            }
-            if (!statuses.isEmpty()) {
-                builder.must(QueryBuilders.termsQuery("status.keyword", statuses));
+        if (indexRegistry.isAvailable(ELASTIC_INDEX_CODE)) {
+            final SearchResponse response = executeSearch(ELASTIC_INDEX_CODE, createCodesRequest(pageSize, from, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statuses, after, searchAfter));
+            if (response != null) {
+                return readHits(CODE_READER, response, meta);
             }
-            final SearchResponse response = searchRequest.execute().actionGet();
-            setResultCounts(meta, response);
-            response.getHits().forEach(hit -> {
-                try {
-                    codes.add(mapper.readValue(hit.getSourceAsString(), Code.class));
-                } catch (IOException e) {
-                    LOG.error("getCodes reading value from JSON string failed: " + hit.getSourceAsString() + ", message: " + e.getMessage());
-                }
-            });
-            return codes;
         }
         return null;
     }
 
     public PropertyType getPropertyType(final String propertyTypeId) {
-        final boolean exists = client.admin().indices().prepareExists(ELASTIC_INDEX_PROPERTYTYPE).execute().actionGet().isExists();
-        if (exists) {
-            final ObjectMapper mapper = new ObjectMapper();
-            final SearchRequestBuilder searchRequest = client
-                .prepareSearch(ELASTIC_INDEX_PROPERTYTYPE)
-                .setTypes(ELASTIC_TYPE_PROPERTYTYPE);
-            final BoolQueryBuilder builder = boolQuery()
-                .must(matchQuery("id", propertyTypeId.toLowerCase()));
-            searchRequest.setQuery(builder);
-            final SearchResponse response = searchRequest.execute().actionGet();
-            if (response.getHits().getTotalHits() > 0) {
-                final SearchHit hit = response.getHits().getAt(0);
-                try {
-                    if (hit != null) {
-                        return mapper.readValue(hit.getSourceAsString(), PropertyType.class);
-                    }
-                } catch (IOException e) {
-                    LOG.error("getPropertyType reading value from JSON string failed: " + hit.getSourceAsString() + ", message: " + e.getMessage());
-                }
-            }
-        }
-        return null;
+        return getDocument(ELASTIC_INDEX_PROPERTYTYPE, ELASTIC_TYPE_PROPERTYTYPE, PROPERTYTYPE_READER, null, propertyTypeId, propertyType -> true,
+            () -> createPropertyTypeRequest(propertyTypeId));
     }
 
     public Set<PropertyType> getPropertyTypes() {
@@ -378,57 +197,18 @@ public class DomainImpl implements Domain {
                                               final String context,
                                               final Date after,
                                               final Meta meta) {
-        final Set<PropertyType> propertyTypes = new LinkedHashSet<>();
-        final boolean exists = client.admin().indices().prepareExists(ELASTIC_INDEX_PROPERTYTYPE).execute().actionGet().isExists();
-        if (exists) {
-            final ObjectMapper mapper = new ObjectMapper();
-            final SearchRequestBuilder searchRequest = client
-                .prepareSearch(ELASTIC_INDEX_PROPERTYTYPE)
-                .setTypes(ELASTIC_TYPE_PROPERTYTYPE)
-                .setSize(pageSize != null ? pageSize : MAX_SIZE)
-                .setFrom(from != null ? from : 0);
-            final BoolQueryBuilder builder = constructSearchQuery(null, propertyTypePrefLabel, after);
-            if (context != null) {
-                builder.must(QueryBuilders.prefixQuery("context", context.toLowerCase()));
+        if (indexRegistry.isAvailable(ELASTIC_INDEX_PROPERTYTYPE)) {
+            final SearchResponse response = executeSearch(ELASTIC_INDEX_PROPERTYTYPE, createPropertyTypesRequest(pageSize, from, propertyTypePrefLabel, context, after));
+            if (response != null) {
+                return readHits(PROPERTYTYPE_READER, response, meta);
             }
-            searchRequest.setQuery(builder);
-            final SearchResponse response = searchRequest.execute().actionGet();
-            setResultCounts(meta, response);
-            response.getHits().forEach(hit -> {
-                try {
-                    final PropertyType propertyType = mapper.readValue(hit.getSourceAsString(), PropertyType.class);
-                    propertyTypes.add(propertyType);
-                } catch (IOException e) {
-                    LOG.error("getPropertyTypes reading value from JSON string failed: " + hit.getSourceAsString() + ", message: " + e.getMessage());
-                }
-            });
         }
-        return propertyTypes;
+        return new LinkedHashSet<>();
     }
 
     public ExternalReference getExternalReference(final String externalReferenceId) {
-        final boolean exists = client.admin().indices().prepareExists(ELASTIC_INDEX_EXTERNALREFERENCE).execute().actionGet().isExists();
-        if (exists) {
-            final ObjectMapper mapper = new ObjectMapper();
-            final SearchRequestBuilder searchRequest = client
-                .prepareSearch(ELASTIC_INDEX_EXTERNALREFERENCE)
-                .setTypes(ELASTIC_TYPE_EXTERNALREFERENCE);
-            final BoolQueryBuilder builder = boolQuery()
-                .must(matchQuery("id", externalReferenceId.toLowerCase()));
-            searchRequest.setQuery(builder);
-            final SearchResponse response = searchRequest.execute().actionGet();
-            if (response.getHits().getTotalHits() > 0) {
-                final SearchHit hit = response.getHits().getAt(0);
-                try {
-                    if (hit != null) {
-                        return mapper.readValue(hit.getSourceAsString(), ExternalReference.class);
-                    }
-                } catch (IOException e) {
-                    LOG.error("getExternalReference reading value from JSON string failed: " + hit.getSourceAsString() + ", message: " + e.getMessage());
-                }
-            }
-        }
-        return null;
+        return getDocument(ELASTIC_INDEX_EXTERNALREFERENCE, ELASTIC_TYPE_EXTERNALREFERENCE, EXTERNALREFERENCE_READER, null, externalReferenceId, externalReference -> true,
+            () -> createExternalReferenceRequest(externalReferenceId));
     }
 
     public Set<ExternalReference> getExternalReferences() {
@@ -441,66 +221,371 @@ public class DomainImpl implements Domain {
                                                         final CodeScheme codeScheme,
                                                         final Date after,
                                                         final Meta meta) {
-        final Set<ExternalReference> externalReferences = new LinkedHashSet<>();
-        final boolean exists = client.admin().indices().prepareExists(ELASTIC_INDEX_EXTERNALREFERENCE).execute().actionGet().isExists();
-        if (exists) {
-            final ObjectMapper mapper = new ObjectMapper();
-            final SearchRequestBuilder searchRequest = client
-                .prepareSearch(ELASTIC_INDEX_EXTERNALREFERENCE)
-                .setTypes(ELASTIC_TYPE_EXTERNALREFERENCE)
-                .setSize(pageSize != null ? pageSize : MAX_SIZE)
-                .setFrom(from != null ? from : 0);
-            final BoolQueryBuilder builder = constructSearchQuery(null, externalReferencePrefLabel, after);
-            searchRequest.setQuery(builder);
-            if (codeScheme != null) {
-                builder.should(QueryBuilders.boolQuery()
-                    .should(QueryBuilders.boolQuery()
-                        .must(QueryBuilders.prefixQuery("parentCodeScheme.codeRegistry.codeValue", codeScheme.getCodeRegistry().getCodeValue().toLowerCase()))
-                        .must(QueryBuilders.prefixQuery("parentCodeScheme.id.keyword", codeScheme.getId().toString().toLowerCase())))
-                    .should(QueryBuilders.boolQuery()
-                        .must(matchQuery("global", true))));
+        if (indexRegistry.isAvailable(ELASTIC_INDEX_EXTERNALREFERENCE)) {
+            final SearchResponse response = executeSearch(ELASTIC_INDEX_EXTERNALREFERENCE, createExternalReferencesRequest(pageSize, from, externalReferencePrefLabel, codeScheme, after));
+            if (response != null) {
+                return readHits(EXTERNALREFERENCE_READER, response, meta);
+            }
+        }
+        return new LinkedHashSet<>();
+    }
+
+    public void streamCodeRegistries(final String codeRegistryCodeValue,
+                                     final String codeRegistryPrefLabel,
+                                     final Date after,
+                                     final List<String> organizations,
+                                     final BatchConsumer<CodeRegistry> consumer) throws IOException {
+        scroll(ELASTIC_INDEX_CODEREGISTRY, createCodeRegistriesRequest(scrollBatchSize, 0, codeRegistryCodeValue, codeRegistryPrefLabel, after, null, organizations), response -> readBatch(CODEREGISTRY_READER, response), consumer);
+    }
+
+    public void streamCodeSchemes(final String organizationId,
+                                  final String codeRegistryCodeValue,
+                                  final String codeRegistryPrefLabel,
+                                  final String codeSchemeCodeValue,
+                                  final String codeSchemePrefLabel,
+                                  final List<String> statuses,
+                                  final List<String> dataClassifications,
+                                  final Date after,
+                                  final BatchConsumer<CodeScheme> consumer) throws IOException {
+        scroll(ELASTIC_INDEX_CODESCHEME, createCodeSchemesRequest(scrollBatchSize, 0, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statuses, dataClassifications, after, null), response -> readBatch(CODESCHEME_READER, response), consumer);
+    }
+
+    public void streamCodes(final String codeRegistryCodeValue,
+                            final String codeSchemeCodeValue,
+                            final String codeCodeValue,
+                            final String prefLabel,
+                            final String broaderCodeId,
+                            final List<String> statuses,
+                            final Date after,
+                            final BatchConsumer<Code> consumer) throws IOException {
+        scroll(ELASTIC_INDEX_CODE, createCodesRequest(scrollBatchSize, 0, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statuses, after, null), response -> readBatch(CODE_READER, response), consumer);
+    }
+
+    public void streamPropertyTypes(final String propertyTypePrefLabel,
+                                    final String context,
+                                    final Date after,
+                                    final BatchConsumer<PropertyType> consumer) throws IOException {
+        scroll(ELASTIC_INDEX_PROPERTYTYPE, createPropertyTypesRequest(scrollBatchSize, 0, propertyTypePrefLabel, context, after), response -> readBatch(PROPERTYTYPE_READER, response), consumer);
+    }
 
+    public void streamExternalReferences(final String externalReferencePrefLabel,
+                                         final CodeScheme codeScheme,
+                                         final Date after,
+                                         final BatchConsumer<ExternalReference> consumer) throws IOException {
+        scroll(ELASTIC_INDEX_EXTERNALREFERENCE, createExternalReferencesRequest(scrollBatchSize, 0, externalReferencePrefLabel, codeScheme, after), response -> readBatch(EXTERNALREFERENCE_READER, response), consumer);
+    }
+
+    public void streamCodeRegistrySources(final Integer pageSize,
+                                          final Integer from,
+                                          final Object[] searchAfter,
+                                          final String codeRegistryCodeValue,
+                                          final String codeRegistryPrefLabel,
+                                          final Date after,
+                                          final List<String> organizations,
+                                          final String[] sourceIncludes,
+                                          final String[] sourceExcludes,
+                                          final BatchConsumer<BytesReference> consumer) throws IOException {
+        streamSources(ELASTIC_INDEX_CODEREGISTRY, pageSize, createCodeRegistriesRequest(pageSize != null ? pageSize : scrollBatchSize, pageSize != null ? from : 0, codeRegistryCodeValue, codeRegistryPrefLabel, after, pageSize != null ? searchAfter : null, organizations)
+            .setFetchSource(sourceIncludes, sourceExcludes), consumer);
+    }
+
+    public void streamCodeSchemeSources(final Integer pageSize,
+                                        final Integer from,
+                                        final Object[] searchAfter,
+                                        final String organizationId,
+                                        final String codeRegistryCodeValue,
+                                        final String codeRegistryPrefLabel,
+                                        final String codeSchemeCodeValue,
+                                        final String codeSchemePrefLabel,
+                                        final List<String> statuses,
+                                        final List<String> dataClassifications,
+                                        final Date after,
+                                        final String[] sourceIncludes,
+                                        final String[] sourceExcludes,
+                                        final BatchConsumer<BytesReference> consumer) throws IOException {
+        streamSources(ELASTIC_INDEX_CODESCHEME, pageSize, createCodeSchemesRequest(pageSize != null ? pageSize : scrollBatchSize, pageSize != null ? from : 0, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statuses, dataClassifications, after, pageSize != null ? searchAfter : null)
+            .setFetchSource(sourceIncludes, sourceExcludes), consumer);
+    }
+
+    public void streamCodeSources(final Integer pageSize,
+                                  final Integer from,
+                                  final Object[] searchAfter,
+                                  final String codeRegistryCodeValue,
+                                  final String codeSchemeCodeValue,
+                                  final String codeCodeValue,
+                                  final String prefLabel,
+                                  final String broaderCodeId,
+                                  final List<String> statuses,
+                                  final Date after,
+                                  final String[] sourceIncludes,
+                                  final String[] sourceExcludes,
+                                  final BatchConsumer<BytesReference> consumer) throws IOException {
+        streamSources(ELASTIC_INDEX_CODE, pageSize, createCodesRequest(pageSize != null ? pageSize : scrollBatchSize, pageSize != null ? from : 0, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statuses, after, pageSize != null ? searchAfter : null)
+            .setFetchSource(sourceIncludes, sourceExcludes), consumer);
+    }
+
+    public void streamPropertyTypeSources(final Integer pageSize,
+                                          final Integer from,
+                                          final String propertyTypePrefLabel,
+                                          final String context,
+                                          final Date after,
+                                          final String[] sourceIncludes,
+                                          final String[] sourceExcludes,
+                                          final BatchConsumer<BytesReference> consumer) throws IOException {
+        streamSources(ELASTIC_INDEX_PROPERTYTYPE, pageSize, createPropertyTypesRequest(pageSize != null ? pageSize : scrollBatchSize, pageSize != null ? from : 0, propertyTypePrefLabel, context, after)
+            .setFetchSource(sourceIncludes, sourceExcludes), consumer);
+    }
+
+    public void streamExternalReferenceSources(final Integer pageSize,
+                                               final Integer from,
+                                               final String externalReferencePrefLabel,
+                                               final CodeScheme codeScheme,
+                                               final Date after,
+                                               final String[] sourceIncludes,
+                                               final String[] sourceExcludes,
+                                               final BatchConsumer<BytesReference> consumer) throws IOException {
+        streamSources(ELASTIC_INDEX_EXTERNALREFERENCE, pageSize, createExternalReferencesRequest(pageSize != null ? pageSize : scrollBatchSize, pageSize != null ? from : 0, externalReferencePrefLabel, codeScheme, after)
+            .setFetchSource(sourceIncludes, sourceExcludes), consumer);
+    }
+
+    /**
+     * Resolves code values for the given code ids, used for broader code columns in exports.
+     */
+    public Map<UUID, String> getCodeValues(final Set<UUID> codeIds) {
+        final Map<UUID, String> codeValues = new HashMap<>();
+        if (codeIds.isEmpty() || !indexRegistry.isAvailable(ELASTIC_INDEX_CODE)) {
+            return codeValues;
+        }
+        final MultiGetRequestBuilder multiGetRequest = client.prepareMultiGet().setRealtime(true);
+        for (final UUID codeId : codeIds) {
+            multiGetRequest.add(new MultiGetRequest.Item(ELASTIC_INDEX_CODE, ELASTIC_TYPE_CODE, codeId.toString()).fetchSourceContext(CODE_VALUE_SOURCE));
+        }
+        final MultiGetResponse multiGetResponse;
+        try {
+            multiGetResponse = multiGetRequest.execute().actionGet();
+        } catch (final IndexNotFoundException e) {
+            LOG.warn("Get failed due to missing index: " + ELASTIC_INDEX_CODE);
+            indexRegistry.markUnavailable(ELASTIC_INDEX_CODE);
+            return codeValues;
+        }
+        for (final MultiGetItemResponse item : multiGetResponse) {
+            if (!item.isFailed() && item.getResponse().isExists()) {
+                putCodeValue(codeValues, item.getResponse().getSourceAsMap());
+            }
+        }
+        final Set<UUID> missingIds = codeIds.stream().filter(codeId -> !codeValues.containsKey(codeId)).collect(Collectors.toSet());
+        if (missingIds.isEmpty()) {
+            return codeValues;
+        }
+        final SearchRequestBuilder searchRequest = client
+            .prepareSearch(ELASTIC_INDEX_CODE)
+            .setTypes(ELASTIC_TYPE_CODE)
+            .setFetchSource(CODE_VALUE_SOURCE.includes(), null)
+            .setSize(missingIds.size())
+            .setQuery(QueryBuilders.boolQuery().filter(QueryBuilders.termsQuery("id.keyword", missingIds.stream().map(UUID::toString).collect(Collectors.toList()))));
+        final SearchResponse response = executeSearch(ELASTIC_INDEX_CODE, searchRequest);
+        if (response != null) {
+            for (final SearchHit hit : response.getHits()) {
+                putCodeValue(codeValues, hit.getSourceAsMap());
+            }
+        }
+        return codeValues;
+    }
+
+    /**
+     * Resolves the languages present in the mapping of localized fields, so export columns are known before the
+     * first hit is read.
+     *
+     * @param indexName The name of the index.
+     * @param type      The document type.
+     * @param fields    The localized fields, such as prefLabel.
+     * @return The languages for each field, in field order.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Set<String>> getLanguages(final String indexName,
+                                                 final String type,
+                                                 final String... fields) {
+        final Map<String, Set<String>> languages = new LinkedHashMap<>();
+        for (final String field : fields) {
+            languages.put(field, new TreeSet<>());
+        }
+        if (!indexRegistry.isAvailable(indexName)) {
+            return languages;
+        }
+        final GetMappingsResponse response;
+        try {
+            response = mappings.execute(indexName + "/" + type, () -> client.admin().indices().prepareGetMappings(indexName).setTypes(type).execute().actionGet());
+        } catch (final IndexNotFoundException e) {
+            indexRegistry.markUnavailable(indexName);
+            return languages;
+        }
+        for (final ObjectCursor<ImmutableOpenMap<String, MappingMetaData>> indexMappings : response.getMappings().values()) {
+            final MappingMetaData mapping = indexMappings.value.get(type);
+            if (mapping == null) {
+                continue;
             }
-            final SearchResponse response = searchRequest.execute().actionGet();
-            setResultCounts(meta, response);
-            response.getHits().forEach(hit -> {
-                try {
-                    final ExternalReference externalReference = mapper.readValue(hit.getSourceAsString(), ExternalReference.class);
-                    externalReferences.add(externalReference);
-                } catch (IOException e) {
-                    LOG.error("getExternalReferences reading value from JSON string failed: " + hit.getSourceAsString() + ", message: " + e.getMessage());
+            final Map<String, Object> properties = (Map<String, Object>) mapping.sourceAsMap().get("properties");
+            for (final String field : fields) {
+                final Map<String, Object> fieldMapping = properties != null ? (Map<String, Object>) properties.get(field) : null;
+                if (fieldMapping != null && fieldMapping.get("properties") instanceof Map) {
+                    languages.get(field).addAll(((Map<String, Object>) fieldMapping.get("properties")).keySet());
                 }
-            });
+            }
         }
-        return externalReferences;
+        return languages;
     }
 
-    private BoolQueryBuilder constructSearchQuery(final String codeValue,
-                                                  final String prefLabel,
-                                                  final Date after) {
-        final BoolQueryBuilder builder = boolQuery();
-        if (codeValue != null) {
-            builder.must(QueryBuilders.prefixQuery("codeValue", codeValue.toLowerCase()));
+    public Set<String> getIndexedLanguages() {
+        return indexRegistry.getIndexedLanguages();
+    }
+
+    public void streamChanges(final int limit,
+                              final Object[] searchAfter,
+                              final Date before,
+                              final String[] sourceIncludes,
+                              final String[] sourceExcludes,
+                              final BatchConsumer<SearchHit> consumer) throws IOException {
+        final String[] indexNames = Arrays.stream(IndexRegistry.INDICES).filter(indexRegistry::isAvailable).toArray(String[]::new);
+        if (indexNames.length == 0) {
+            return;
+        }
+        Object[] position = searchAfter;
+        int remaining = limit;
+        while (remaining > 0) {
+            final int size = Math.min(remaining, scrollBatchSize);
+            final SearchResponse response = createChangesRequest(indexNames, size, position, before).setFetchSource(sourceIncludes, sourceExcludes).execute().actionGet();
+            final SearchHit[] hits = response.getHits().getHits();
+            if (hits.length > 0) {
+                consumer.accept(Arrays.asList(hits));
+                position = hits[hits.length - 1].getSortValues();
+            }
+            if (hits.length < size) {
+                return;
+            }
+            remaining -= hits.length;
+        }
+    }
+
+    public void streamIds(final String indexName,
+                          final BatchConsumer<String> consumer) throws IOException {
+        final SearchRequestBuilder searchRequest = client
+            .prepareSearch(indexName)
+            .setFetchSource(false)
+            .addSort("_doc", SortOrder.ASC)
+            .setSize(scrollBatchSize);
+        scroll(indexName, searchRequest, this::readIdBatch, consumer);
+    }
+
+    /**
+     * Passes the raw sources of a single page to the consumer when a page size is given, otherwise scrolls through
+     * all hits of the request.
+     */
+    private void streamSources(final String indexName,
+                               final Integer pageSize,
+                               final SearchRequestBuilder searchRequest,
+                               final BatchConsumer<BytesReference> consumer) throws IOException {
+        if (pageSize == null) {
+            scroll(indexName, searchRequest, this::readSourceBatch, consumer);
+        } else if (indexRegistry.isAvailable(indexName)) {
+            final SearchResponse response = executeSearch(indexName, searchRequest);
+            if (response != null) {
+                consumer.accept(readSourceBatch(response));
+            }
         }
-        if (prefLabel != null) {
-            builder.must(QueryBuilders.nestedQuery("prefLabel", QueryBuilders.multiMatchQuery(prefLabel.toLowerCase() + "*", "prefLabel.*").type(MultiMatchQueryBuilder.Type.PHRASE_PREFIX), ScoreMode.None));
+    }
+
+    /**
+     * Scrolls through all hits of the request, fetching the next batch while the current one is being consumed.
+     */
+    private <T> void scroll(final String indexName,
+                            final SearchRequestBuilder searchRequest,
+                            final Function<SearchResponse, List<T>> batchReader,
+                            final BatchConsumer<T> consumer) throws IOException {
+        if (!indexRegistry.isAvailable(indexName)) {
+            return;
+        }
+        SearchResponse response = executeSearch(indexName, searchRequest.setScroll(SCROLL_KEEP_ALIVE));
+        if (response == null) {
+            return;
         }
-        if (after != null) {
-            final ISO8601DateFormat dateFormat = new ISO8601DateFormat();
-            final String afterString = dateFormat.format(after);
-            builder.must(QueryBuilders.rangeQuery("modified").gt(afterString));
+        String scrollId = response.getScrollId();
+        try {
+            while (response.getHits().getHits().length > 0) {
+                final ActionFuture<SearchResponse> nextBatch = client.prepareSearchScroll(scrollId).setScroll(SCROLL_KEEP_ALIVE).execute();
+                consumer.accept(batchReader.apply(response));
+                response = nextBatch.actionGet();
+                scrollId = response.getScrollId();
+            }
+        } finally {
+            client.prepareClearScroll().addScrollId(scrollId).execute();
         }
-        return builder;
     }
 
-    private void setResultCounts(final Meta meta,
-                                 final SearchResponse response) {
-        final Integer totalResults = toIntExact(response.getHits().totalHits);
-        final Integer resultCount = toIntExact(response.getHits().getHits().length);
-        if (meta != null) {
-            meta.setTotalResults(totalResults);
-            meta.setResultCount(resultCount);
+    private static void putCodeValue(final Map<UUID, String> codeValues,
+                                     final Map<String, Object> source) {
+        codeValues.put(UUID.fromString((String) source.get("id")), (String) source.get("codeValue"));
+    }
+
+    /**
+     * Resolves a single document through the entity cache. Lookups with a cache key are served from the cache when
+     * possible, lookups without one always go to ElasticSearch.
+     */
+    private <T> T getDocument(final String indexName,
+                              final String type,
+                              final ObjectReader reader,
+                              final String cacheKey,
+                              final String idOrCodeValue,
+                              final Predicate<T> scope,
+                              final Supplier<SearchRequestBuilder> searchRequest) {
+        if (!indexRegistry.isAvailable(indexName)) {
+            return null;
+        }
+        return readValue(reader, entityCache.get(indexName, cacheKey, () -> findSource(indexName, type, reader, idOrCodeValue, scope, searchRequest)));
+    }
+
+    /**
+     * Finds the source of a single document. UUID values are fetched with a realtime get on the document id and
+     * accepted if they match the scope, other values and get misses are resolved with the search request.
+     */
+    private <T> byte[] findSource(final String indexName,
+                                  final String type,
+                                  final ObjectReader reader,
+                                  final String idOrCodeValue,
+                                  final Predicate<T> scope,
+                                  final Supplier<SearchRequestBuilder> searchRequest) {
+        if (isUuid(idOrCodeValue)) {
+            final GetResponse response;
+            try {
+                response = gets.execute(indexName + "/" + type + "/" + idOrCodeValue, () -> createGetRequest(indexName, type, idOrCodeValue).execute().actionGet());
+            } catch (final IndexNotFoundException e) {
+                LOG.warn("Get failed due to missing index: " + indexName);
+                indexRegistry.markUnavailable(indexName);
+                return null;
+            }
+            final byte[] source = getSource(response);
+            final T value = readValue(reader, source);
+            if (value != null && scope.test(value)) {
+                return source;
+            }
+        }
+        return getFirstHitSource(executeSearch(indexName, searchRequest.get()));
+    }
+
+    /**
+     * Executes the search, returning null if the index has gone missing. Scroll searches are always executed on their
+     * own, other concurrent identical searches share one request.
+     */
+    private SearchResponse executeSearch(final String indexName,
+                                         final SearchRequestBuilder searchRequest) {
+        try {
+            if (searchRequest.request().scroll() != null) {
+                return searchRequest.execute().actionGet();
+            }
+            return searches.execute(indexName + searchRequest, () -> searchRequest.execute().actionGet());
+        } catch (final IndexNotFoundException e) {
+            LOG.warn("Search failed due to missing index: " + indexName);
+            indexRegistry.markUnavailable(indexName);
+            return null;
         }
-        LOG.info("Search found: " + totalResults + " total hits.");
     }
 }
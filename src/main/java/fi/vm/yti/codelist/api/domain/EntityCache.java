@@ -0,0 +1,162 @@
+package fi.vm.yti.codelist.api.domain;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+/**
+ * Caches the source documents of single CodeRegistry, CodeScheme and Code lookups, so that the parent lookups done by
+ * the nested endpoints are mostly served without a request to ElasticSearch.
+ *
+ * Sources are cached as bytes and deserialized on every hit, so callers never share model instances. The cache is
+ * bounded by the total size of the cached sources and entries expire after the configured time to live. Entries of an
+ * index are invalidated when {@link IndexRegistry} reports the index as changed, and lookups that find nothing are not
+ * cached.
+ *
+ * An index is only reported as changed when it is replaced, so documents updated in place are served stale for at
+ * most the time to live, and so are the ETag and Last-Modified of entity responses derived from them. The default of
+ * ten seconds keeps this on the order of the index refresh interval while still absorbing the parent lookups of
+ * bursts of nested requests.
+ */
+@Component
+public class EntityCache implements IndexChangeListener, PublicMetrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EntityCache.class);
+    private static final String KEY_SEPARATOR = "|";
+    private final Cache<String, byte[]> sources;
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder invalidations = new LongAdder();
+
+    @Inject
+    public EntityCache(@Value("${application.cache.entity.maxBytes:33554432}") final long maxBytes,
+                       @Value("${application.cache.entity.timeToLiveSeconds:10}") final long timeToLiveSeconds) {
+        this.sources = Caffeine.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher((String key, byte[] source) -> 2 * key.length() + source.length)
+            .expireAfterWrite(timeToLiveSeconds, TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * Returns the cached source, or loads it and caches the result if it was found.
+     *
+     * @param indexName The index of the document.
+     * @param cacheKey  The normalized lookup parameters within the index, or null if the lookup is not cached.
+     * @param loader    Loads the source, completing with null if the document does not exist.
+     * @return A future that completes with the source or null.
+     */
+    public CompletableFuture<byte[]> getAsync(final String indexName,
+                                              final String cacheKey,
+                                              final Supplier<CompletableFuture<byte[]>> loader) {
+        if (cacheKey == null) {
+            return loader.get();
+        }
+        final String key = createKey(indexName, cacheKey);
+        final byte[] cached = sources.getIfPresent(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        final long loadGeneration = generation.get();
+        return loader.get().thenApply(source -> {
+            put(key, source, loadGeneration);
+            return source;
+        });
+    }
+
+    /**
+     * Blocking variant of {@link #getAsync}.
+     *
+     * @param indexName The index of the document.
+     * @param cacheKey  The normalized lookup parameters within the index, or null if the lookup is not cached.
+     * @param loader    Loads the source, returning null if the document does not exist.
+     * @return The source or null.
+     */
+    public byte[] get(final String indexName,
+                      final String cacheKey,
+                      final Supplier<byte[]> loader) {
+        if (cacheKey == null) {
+            return loader.get();
+        }
+        final String key = createKey(indexName, cacheKey);
+        final byte[] cached = sources.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+        final long loadGeneration = generation.get();
+        final byte[] source = loader.get();
+        put(key, source, loadGeneration);
+        return source;
+    }
+
+    @Override
+    public void indexChanged(final String indexName) {
+        invalidate(indexName);
+    }
+
+    /**
+     * Removes all cached sources of the index. Lookups that are in flight when the index is invalidated are not cached.
+     *
+     * @param indexName The name of the index.
+     */
+    public void invalidate(final String indexName) {
+        generation.incrementAndGet();
+        sources.asMap().keySet().removeIf(key -> key.startsWith(indexName + KEY_SEPARATOR));
+        invalidations.increment();
+        LOG.info("Entity cache invalidated for index: " + indexName);
+    }
+
+    /**
+     * Removes all cached sources.
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        sources.invalidateAll();
+        invalidations.increment();
+        LOG.info("Entity cache invalidated");
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final CacheStats stats = sources.stats();
+        final List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("cache.entity.size", sources.estimatedSize()));
+        metrics.add(new Metric<>("cache.entity.hits", stats.hitCount()));
+        metrics.add(new Metric<>("cache.entity.misses", stats.missCount()));
+        metrics.add(new Metric<>("cache.entity.hitRatio", stats.hitRate()));
+        metrics.add(new Metric<>("cache.entity.evictions", stats.evictionCount()));
+        metrics.add(new Metric<>("cache.entity.invalidations", invalidations.sum()));
+        return metrics;
+    }
+
+    private void put(final String key,
+                     final byte[] source,
+                     final long loadGeneration) {
+        if (source != null && generation.get() == loadGeneration) {
+            sources.put(key, source);
+        }
+    }
+
+    private static String createKey(final String indexName,
+                                    final String cacheKey) {
+        return indexName + KEY_SEPARATOR + cacheKey.toLowerCase();
+    }
+}
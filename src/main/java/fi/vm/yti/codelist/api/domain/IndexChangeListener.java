@@ -0,0 +1,11 @@
+package fi.vm.yti.codelist.api.domain;
+
+/**
+ * Notified by {@link IndexRegistry} when an index disappears, reappears or is recreated, so that state derived from
+ * its content can be dropped.
+ */
+@FunctionalInterface
+public interface IndexChangeListener {
+
+    void indexChanged(final String indexName);
+}
@@ -0,0 +1,197 @@
+package fi.vm.yti.codelist.api.domain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+
+import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsResponse;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+
+import fi.vm.yti.codelist.api.api.FilterOptions;
+
+import static fi.vm.yti.codelist.common.constants.ApiConstants.*;
+
+/**
+ * Keeps track of which ElasticSearch indices are available, so that queries do not need to probe index existence
+ * with a separate request before every search.
+ *
+ * Availability is refreshed in the background, and queries that hit a missing index report it back to the registry.
+ * The languages of localized properties are read from the index mappings on the same refresh. Indices that disappear,
+ * reappear or are recreated under the same name are reported to the {@link IndexChangeListener} beans.
+ */
+@Component
+public class IndexRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IndexRegistry.class);
+    static final String[] INDICES = {
+        ELASTIC_INDEX_CODEREGISTRY,
+        ELASTIC_INDEX_CODESCHEME,
+        ELASTIC_INDEX_CODE,
+        ELASTIC_INDEX_PROPERTYTYPE,
+        ELASTIC_INDEX_EXTERNALREFERENCE
+    };
+    private final Client client;
+    private final List<IndexChangeListener> indexChangeListeners;
+    private final Map<String, Boolean> availableIndices = new ConcurrentHashMap<>();
+    private final Map<String, String> indexUuids = new ConcurrentHashMap<>();
+    private volatile Set<String> indexedLanguages = Collections.emptySet();
+
+    @Inject
+    public IndexRegistry(final Client client,
+                         final List<IndexChangeListener> indexChangeListeners) {
+        this.client = client;
+        this.indexChangeListeners = indexChangeListeners;
+    }
+
+    /**
+     * Returns the last known availability of the index, probing ElasticSearch only if the index has not been seen yet.
+     *
+     * @param indexName The name of the index.
+     * @return true if the index exists, otherwise false.
+     */
+    public boolean isAvailable(final String indexName) {
+        final Boolean available = availableIndices.get(indexName);
+        if (available != null) {
+            return available;
+        }
+        return refreshIndex(indexName);
+    }
+
+    /**
+     * Marks the index as missing until the next refresh finds it again, called when a query fails with IndexNotFoundException.
+     *
+     * @param indexName The name of the index.
+     */
+    public void markUnavailable(final String indexName) {
+        LOG.info("Index marked as unavailable: " + indexName);
+        availableIndices.put(indexName, false);
+        notifyIndexChanged(indexName);
+    }
+
+    /**
+     * Returns the languages of localized properties in the index mappings, as of the last refresh.
+     *
+     * @return The indexed languages.
+     */
+    public Set<String> getIndexedLanguages() {
+        return indexedLanguages;
+    }
+
+    /**
+     * Refreshes the availability of all tracked indices and the indexed languages.
+     */
+    @Scheduled(fixedDelayString = "${application.elastic.indexRefreshInterval:10000}")
+    public void refresh() {
+        final List<String> available = new ArrayList<>();
+        for (final String indexName : INDICES) {
+            if (refreshIndex(indexName)) {
+                available.add(indexName);
+            }
+        }
+        refreshIndexUuids(available);
+        refreshLanguages(available);
+    }
+
+    private void refreshIndexUuids(final List<String> indexNames) {
+        if (indexNames.isEmpty()) {
+            return;
+        }
+        try {
+            final GetSettingsResponse response = client.admin().indices().prepareGetSettings(indexNames.toArray(new String[indexNames.size()])).execute().actionGet();
+            for (final String indexName : indexNames) {
+                final String uuid = response.getSetting(indexName, IndexMetaData.SETTING_INDEX_UUID);
+                final String previous = uuid != null ? indexUuids.put(indexName, uuid) : null;
+                if (previous != null && !previous.equals(uuid)) {
+                    LOG.info("Index " + indexName + " has been recreated");
+                    notifyIndexChanged(indexName);
+                }
+            }
+        } catch (final Exception e) {
+            LOG.error("Settings check failed for indices: " + indexNames + ", message: " + e.getMessage());
+        }
+    }
+
+    private void refreshLanguages(final List<String> indexNames) {
+        if (indexNames.isEmpty()) {
+            return;
+        }
+        try {
+            final GetMappingsResponse response = client.admin().indices().prepareGetMappings(indexNames.toArray(new String[indexNames.size()])).execute().actionGet();
+            final Set<String> languages = new TreeSet<>();
+            for (final ObjectCursor<ImmutableOpenMap<String, MappingMetaData>> indexMappings : response.getMappings().values()) {
+                for (final ObjectCursor<MappingMetaData> mapping : indexMappings.value.values()) {
+                    collectLanguages(mapping.value.sourceAsMap(), languages);
+                }
+            }
+            if (!languages.equals(indexedLanguages)) {
+                LOG.info("Indexed languages changed to: " + languages);
+                indexedLanguages = Collections.unmodifiableSet(languages);
+            }
+        } catch (final Exception e) {
+            LOG.error("Mapping check failed for indices: " + indexNames + ", message: " + e.getMessage());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void collectLanguages(final Map<String, Object> mapping,
+                                         final Set<String> languages) {
+        final Object properties = mapping.get("properties");
+        if (!(properties instanceof Map)) {
+            return;
+        }
+        ((Map<String, Object>) properties).forEach((name, fieldMapping) -> {
+            if (fieldMapping instanceof Map) {
+                final Map<String, Object> childMapping = (Map<String, Object>) fieldMapping;
+                if (FilterOptions.LOCALIZED_PROPERTIES.contains(name) && childMapping.get("properties") instanceof Map) {
+                    languages.addAll(((Map<String, Object>) childMapping.get("properties")).keySet());
+                } else {
+                    collectLanguages(childMapping, languages);
+                }
+            }
+        });
+    }
+
+    private boolean refreshIndex(final String indexName) {
+        try {
+            final boolean exists = client.admin().indices().prepareExists(indexName).execute().actionGet().isExists();
+            final Boolean previous = availableIndices.put(indexName, exists);
+            if (previous == null || previous != exists) {
+                LOG.info("Index " + indexName + " availability changed to: " + exists);
+                if (previous != null) {
+                    notifyIndexChanged(indexName);
+                }
+            }
+            return exists;
+        } catch (final Exception e) {
+            LOG.error("Index existence check failed for index: " + indexName + ", message: " + e.getMessage());
+            final Boolean available = availableIndices.get(indexName);
+            return available != null ? available : false;
+        }
+    }
+
+    private void notifyIndexChanged(final String indexName) {
+        for (final IndexChangeListener listener : indexChangeListeners) {
+            try {
+                listener.indexChanged(indexName);
+            } catch (final Exception e) {
+                LOG.error("Index change listener failed for index: " + indexName + ", message: " + e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package fi.vm.yti.codelist.api.domain;
+
+import java.util.List;
+
+import org.elasticsearch.common.bytes.BytesReference;
+
+/**
+ * The raw source documents of one search page, in hit order, together with the sort values of the last hit and, when
+ * the search computed it, the version of everything the search matches.
+ */
+public class SourceHits {
+
+    private final List<BytesReference> sources;
+    private final Object[] lastSortValues;
+    private final ContentVersion version;
+
+    public SourceHits(final List<BytesReference> sources,
+                      final Object[] lastSortValues) {
+        this(sources, lastSortValues, null);
+    }
+
+    public SourceHits(final List<BytesReference> sources,
+                      final Object[] lastSortValues,
+                      final ContentVersion version) {
+        this.sources = sources;
+        this.lastSortValues = lastSortValues;
+        this.version = version;
+    }
+
+    /**
+     * Returns a copy of the hits with the given version.
+     */
+    public SourceHits withVersion(final ContentVersion version) {
+        return new SourceHits(sources, lastSortValues, version);
+    }
+
+    public List<BytesReference> getSources() {
+        return sources;
+    }
+
+    public Object[] getLastSortValues() {
+        return lastSortValues;
+    }
+
+    /**
+     * @return The version of all documents the search matches regardless of paging, or null if it was not computed.
+     */
+    public ContentVersion getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return sources.size();
+    }
+}
@@ -0,0 +1,44 @@
+package fi.vm.yti.codelist.api.domain;
+
+import java.util.Comparator;
+
+/**
+ * Records that a document has been deleted from an index, so that the deletion can be reported in the changes feed.
+ *
+ * Tombstones are ordered by the time the deletion was detected and the id, the same way the feed orders documents by
+ * their modified timestamp and id.
+ */
+public class Tombstone {
+
+    static final Comparator<Tombstone> ORDER = Comparator.comparingLong(Tombstone::getDeleted).thenComparing(Tombstone::getId);
+
+    private final String type;
+    private final String id;
+    private final long deleted;
+
+    public Tombstone(final String type,
+                     final String id,
+                     final long deleted) {
+        this.type = type;
+        this.id = id;
+        this.deleted = deleted;
+    }
+
+    /**
+     * @return The ElasticSearch type of the deleted document, such as code or codescheme.
+     */
+    public String getType() {
+        return type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return The time the deletion was detected in epoch milliseconds.
+     */
+    public long getDeleted() {
+        return deleted;
+    }
+}
@@ -0,0 +1,84 @@
+package fi.vm.yti.codelist.api.export;
+
+import java.io.BufferedWriter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental CSV encoder that writes buffered UTF-8 directly to an OutputStream.
+ *
+ * Values containing separators, quotes or line breaks are quoted, and embedded quotes are doubled as per RFC 4180.
+ * The underlying stream is never closed, as it is owned by the caller.
+ */
+public class CsvWriter implements Flushable {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final char SEPARATOR = ',';
+    private static final char QUOTE = '"';
+    private final Writer writer;
+    private boolean rowStarted;
+
+    public CsvWriter(final OutputStream output) {
+        this.writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * Writes one value to the current row, null values are written as empty.
+     *
+     * @param value The value to write.
+     * @return This writer.
+     * @throws IOException If writing to the underlying stream fails.
+     */
+    public CsvWriter value(final String value) throws IOException {
+        if (rowStarted) {
+            writer.write(SEPARATOR);
+        }
+        rowStarted = true;
+        if (value == null || value.isEmpty()) {
+            return this;
+        }
+        if (requiresQuoting(value)) {
+            writer.write(QUOTE);
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if (c == QUOTE) {
+                    writer.write(QUOTE);
+                }
+                writer.write(c);
+            }
+            writer.write(QUOTE);
+        } else {
+            writer.write(value);
+        }
+        return this;
+    }
+
+    /**
+     * Terminates the current row.
+     *
+     * @throws IOException If writing to the underlying stream fails.
+     */
+    public void endRow() throws IOException {
+        writer.write('\n');
+        rowStarted = false;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    private static boolean requiresQuoting(final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == SEPARATOR || c == QUOTE || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,343 @@
+package fi.vm.yti.codelist.api.export;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+import javax.inject.Inject;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import fi.vm.yti.codelist.api.domain.AsyncDomain;
+import fi.vm.yti.codelist.api.domain.ContentVersion;
+import fi.vm.yti.codelist.api.domain.Domain;
+import fi.vm.yti.codelist.common.model.CodeRegistry;
+import fi.vm.yti.codelist.common.model.CodeScheme;
+import static fi.vm.yti.codelist.common.constants.ApiConstants.FORMAT_CSV;
+import static fi.vm.yti.codelist.common.constants.ApiConstants.FORMAT_EXCEL_XLS;
+
+/**
+ * Writes the full CodeScheme export of every CodeRegistry and the full Code export of every CodeScheme to files in a
+ * local directory, so that unfiltered export downloads are sent from disk instead of being built from ElasticSearch.
+ *
+ * Every file is stored together with the content version it was built from. A file is only handed out when the version
+ * of the request, which is resolved anyway for conditional requests, still matches, so a stale file is never served.
+ * Files are rebuilt on the next run after their content changes, and files that have been replaced or whose content no
+ * longer exists are deleted on the run after that, so that downloads which already started can finish.
+ *
+ * CSV and XLS files are also stored gzip compressed next to the plain file, so that clients accepting gzip are sent
+ * the compressed file without compressing it per request. XLSX files are zip archives already.
+ */
+@Component
+public class ExportMaterializer implements PublicMetrics {
+
+    public static final String KIND_CODESCHEMES = "codeschemes";
+    public static final String KIND_CODES = "codes";
+    private static final Logger LOG = LoggerFactory.getLogger(ExportMaterializer.class);
+    private static final String FILE_PREFIX = "export-";
+    private static final String COMPRESSED_FILE_SUFFIX = ".gz";
+    private final ExportService exportService;
+    private final Domain domain;
+    private final AsyncDomain asyncDomain;
+    private final boolean enabled;
+    private final Path directory;
+    private final List<String> formats;
+    private final boolean compress;
+    private final Map<String, MaterializedExport> exports = new ConcurrentHashMap<>();
+    private final LongAdder builds = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private Set<Path> unusedFiles = Collections.emptySet();
+
+    @Inject
+    public ExportMaterializer(final ExportService exportService,
+                              final Domain domain,
+                              final AsyncDomain asyncDomain,
+                              @Value("${application.export.materialize.enabled:false}") final boolean enabled,
+                              @Value("${application.export.materialize.directory:${java.io.tmpdir}/codelist-api-exports}") final String directory,
+                              @Value("${application.export.materialize.formats:csv,xlsx}") final String formats,
+                              @Value("${application.export.materialize.compress:true}") final boolean compress) {
+        this.exportService = exportService;
+        this.domain = domain;
+        this.asyncDomain = asyncDomain;
+        this.enabled = enabled;
+        this.directory = Paths.get(directory);
+        this.formats = Arrays.asList(formats.toLowerCase().split("\\s*,\\s*"));
+        this.compress = compress;
+    }
+
+    /**
+     * Returns the materialized export for an unfiltered export request, if it was built from the current content.
+     *
+     * @param kind                  {@link #KIND_CODESCHEMES} or {@link #KIND_CODES}.
+     * @param codeRegistryCodeValue The CodeRegistry codeValue from the request.
+     * @param codeSchemeCodeValue   The CodeScheme codeValue from the request, or null for CodeScheme exports.
+     * @param format                The requested format.
+     * @param version               The current version of the exported content, may be null.
+     * @return The export, or null if there is no file for the current content.
+     */
+    public MaterializedExport find(final String kind,
+                                   final String codeRegistryCodeValue,
+                                   final String codeSchemeCodeValue,
+                                   final String format,
+                                   final ContentVersion version) {
+        if (!enabled || version == null) {
+            return null;
+        }
+        final MaterializedExport export = exports.get(createKey(kind, codeRegistryCodeValue, codeSchemeCodeValue, format));
+        if (export == null || !export.fingerprint.equals(version.getFingerprint()) || !Files.isRegularFile(export.file)) {
+            return null;
+        }
+        hits.increment();
+        return export;
+    }
+
+    /**
+     * Builds the files whose content has changed since the previous run and deletes the files that are no longer
+     * used.
+     */
+    @Scheduled(initialDelayString = "${application.export.materialize.initialDelay:60000}", fixedDelayString = "${application.export.materialize.interval:600000}")
+    public void materialize() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            final List<String> codeRegistryCodeValues = new ArrayList<>();
+            domain.streamCodeRegistries(null, null, null, null, batch -> {
+                for (final CodeRegistry codeRegistry : batch) {
+                    codeRegistryCodeValues.add(codeRegistry.getCodeValue());
+                }
+            });
+            final List<String[]> codeSchemeCodeValues = new ArrayList<>();
+            domain.streamCodeSchemes(null, null, null, null, null, null, null, null, batch -> {
+                for (final CodeScheme codeScheme : batch) {
+                    if (codeScheme.getCodeRegistry() != null) {
+                        codeSchemeCodeValues.add(new String[]{ codeScheme.getCodeRegistry().getCodeValue(), codeScheme.getCodeValue() });
+                    }
+                }
+            });
+            final Set<String> keys = new HashSet<>();
+            for (final String codeRegistryCodeValue : codeRegistryCodeValues) {
+                for (final String format : formats) {
+                    keys.add(materialize(KIND_CODESCHEMES, codeRegistryCodeValue, null, format,
+                        () -> asyncDomain.getCodeRegistryCodeSchemesVersion(codeRegistryCodeValue, null, null, null, Collections.emptyList(), Collections.emptyList(), null).join(),
+                        output -> {
+                            if (FORMAT_CSV.equalsIgnoreCase(format)) {
+                                exportService.writeCodeSchemesCsv(output, null, 0, null, null, codeRegistryCodeValue, null, null, null, Collections.emptyList(), Collections.emptyList(), null, null);
+                            } else {
+                                exportService.writeCodeSchemesExcel(output, format, null, 0, null, null, codeRegistryCodeValue, null, null, null, Collections.emptyList(), Collections.emptyList(), null, null);
+                            }
+                        }));
+                }
+            }
+            for (final String[] codeValues : codeSchemeCodeValues) {
+                for (final String format : formats) {
+                    keys.add(materialize(KIND_CODES, codeValues[0], codeValues[1], format,
+                        () -> asyncDomain.getCodeSchemeCodesVersion(codeValues[0], codeValues[1], null, null, null, Collections.emptyList(), null).join(),
+                        output -> {
+                            if (FORMAT_CSV.equalsIgnoreCase(format)) {
+                                exportService.writeCodesCsv(output, null, 0, null, codeValues[0], codeValues[1], null, null, null, Collections.emptyList(), null, null);
+                            } else {
+                                exportService.writeCodesExcel(output, format, null, 0, null, codeValues[0], codeValues[1], null, null, null, Collections.emptyList(), null, null);
+                            }
+                        }));
+                }
+            }
+            exports.keySet().retainAll(keys);
+            deleteUnusedFiles();
+        } catch (final Exception e) {
+            failures.increment();
+            LOG.error("Export materialization failed, message: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        long bytes = 0;
+        for (final MaterializedExport export : exports.values()) {
+            bytes += export.length + export.compressedLength;
+        }
+        final List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("export.materialized.files", exports.size()));
+        metrics.add(new Metric<>("export.materialized.bytes", bytes));
+        metrics.add(new Metric<>("export.materialized.builds", builds.sum()));
+        metrics.add(new Metric<>("export.materialized.hits", hits.sum()));
+        metrics.add(new Metric<>("export.materialized.failures", failures.sum()));
+        return metrics;
+    }
+
+    private String materialize(final String kind,
+                               final String codeRegistryCodeValue,
+                               final String codeSchemeCodeValue,
+                               final String format,
+                               final Supplier<ContentVersion> versionSupplier,
+                               final ExportWriter writer) {
+        final String key = createKey(kind, codeRegistryCodeValue, codeSchemeCodeValue, format);
+        try {
+            final ContentVersion version = versionSupplier.get();
+            final MaterializedExport existing = exports.get(key);
+            if (version == null || (existing != null && existing.fingerprint.equals(version.getFingerprint()) && Files.isRegularFile(existing.file))) {
+                return key;
+            }
+            final Path temporaryFile = Files.createTempFile(directory, FILE_PREFIX, ".tmp");
+            final Path temporaryCompressedFile = isCompressible(format) ? Files.createTempFile(directory, FILE_PREFIX, ".tmp") : null;
+            try {
+                try (final OutputStream output = Files.newOutputStream(temporaryFile)) {
+                    writer.write(output);
+                }
+                if (temporaryCompressedFile != null) {
+                    try (final InputStream input = Files.newInputStream(temporaryFile);
+                         final OutputStream output = new GZIPOutputStream(Files.newOutputStream(temporaryCompressedFile), 8192)) {
+                        IOUtils.copy(input, output);
+                    }
+                }
+                final ContentVersion writtenVersion = versionSupplier.get();
+                if (writtenVersion == null || !writtenVersion.getFingerprint().equals(version.getFingerprint())) {
+                    LOG.info("Content changed while materializing export " + key + ", retrying on the next run");
+                    return key;
+                }
+                final Path file = directory.resolve(FILE_PREFIX + hash(key + "#" + version.getFingerprint()) + "." + format);
+                Path compressedFile = null;
+                if (temporaryCompressedFile != null) {
+                    compressedFile = file.resolveSibling(file.getFileName() + COMPRESSED_FILE_SUFFIX);
+                    Files.move(temporaryCompressedFile, compressedFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                exports.put(key, new MaterializedExport(file, Files.size(file), compressedFile, compressedFile != null ? Files.size(compressedFile) : 0, version.getFingerprint()));
+                builds.increment();
+            } finally {
+                Files.deleteIfExists(temporaryFile);
+                if (temporaryCompressedFile != null) {
+                    Files.deleteIfExists(temporaryCompressedFile);
+                }
+            }
+        } catch (final Exception e) {
+            failures.increment();
+            LOG.error("Materializing export " + key + " failed, message: " + e.getMessage(), e);
+        }
+        return key;
+    }
+
+    /**
+     * Deletes the files that were already unused on the previous run and remembers the ones that became unused now.
+     */
+    private void deleteUnusedFiles() throws IOException {
+        final Set<Path> used = new HashSet<>();
+        for (final MaterializedExport export : exports.values()) {
+            used.add(export.file);
+            if (export.compressedFile != null) {
+                used.add(export.compressedFile);
+            }
+        }
+        final Set<Path> unused = new HashSet<>();
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(directory, FILE_PREFIX + "*")) {
+            for (final Path file : files) {
+                if (used.contains(file)) {
+                    continue;
+                }
+                if (unusedFiles.contains(file)) {
+                    Files.deleteIfExists(file);
+                } else {
+                    unused.add(file);
+                }
+            }
+        }
+        unusedFiles = unused;
+    }
+
+    private boolean isCompressible(final String format) {
+        return compress && (FORMAT_CSV.equalsIgnoreCase(format) || FORMAT_EXCEL_XLS.equalsIgnoreCase(format));
+    }
+
+    private static String createKey(final String kind,
+                                    final String codeRegistryCodeValue,
+                                    final String codeSchemeCodeValue,
+                                    final String format) {
+        return kind + "/" + codeRegistryCodeValue.toLowerCase() + "/" + (codeSchemeCodeValue != null ? codeSchemeCodeValue.toLowerCase() : "") + "/" + format.toLowerCase();
+    }
+
+    private static String hash(final String value) throws NoSuchAlgorithmException {
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8))) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    @FunctionalInterface
+    private interface ExportWriter {
+
+        void write(final OutputStream output) throws IOException;
+    }
+
+    /**
+     * An export file together with the content version it was built from.
+     */
+    public static class MaterializedExport {
+
+        private final Path file;
+        private final long length;
+        private final Path compressedFile;
+        private final long compressedLength;
+        private final String fingerprint;
+
+        private MaterializedExport(final Path file,
+                                   final long length,
+                                   final Path compressedFile,
+                                   final long compressedLength,
+                                   final String fingerprint) {
+            this.file = file;
+            this.length = length;
+            this.compressedFile = compressedFile;
+            this.compressedLength = compressedLength;
+            this.fingerprint = fingerprint;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return The gzip compressed copy of the file, or null if the format is not compressed.
+         */
+        public Path getCompressedFile() {
+            return compressedFile;
+        }
+
+        public long getCompressedLength() {
+            return compressedLength;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package fi.vm.yti.codelist.api.export;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+/**
+ * Export counters published through the actuator metrics endpoint.
+ */
+@Component
+public class ExportMetrics implements PublicMetrics {
+
+    private final LongAdder csvRows = new LongAdder();
+    private final LongAdder excelRows = new LongAdder();
+    private final LongAdder ndjsonLines = new LongAdder();
+    private final LongAdder workbooks = new LongAdder();
+    private final AtomicLong activeWorkbooks = new AtomicLong();
+
+    public void csvRowsWritten(final int count) {
+        csvRows.add(count);
+    }
+
+    public void excelRowsWritten(final int count) {
+        excelRows.add(count);
+    }
+
+    public void ndjsonLinesWritten(final int count) {
+        ndjsonLines.add(count);
+    }
+
+    public void workbookOpened() {
+        workbooks.increment();
+        activeWorkbooks.incrementAndGet();
+    }
+
+    public void workbookClosed() {
+        activeWorkbooks.decrementAndGet();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("export.csv.rows", csvRows.sum()));
+        metrics.add(new Metric<>("export.excel.rows", excelRows.sum()));
+        metrics.add(new Metric<>("export.ndjson.lines", ndjsonLines.sum()));
+        metrics.add(new Metric<>("export.excel.workbooks", workbooks.sum()));
+        metrics.add(new Metric<>("export.excel.workbooks.active", activeWorkbooks.get()));
+        return metrics;
+    }
+}
@@ -0,0 +1,1072 @@
+package fi.vm.yti.codelist.api.export;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import fi.vm.yti.codelist.api.api.FilterOptions;
+import fi.vm.yti.codelist.api.api.SourceDocumentCopier;
+import fi.vm.yti.codelist.api.domain.BatchConsumer;
+import fi.vm.yti.codelist.api.domain.Domain;
+import fi.vm.yti.codelist.api.util.CappedCopyOutputStream;
+import fi.vm.yti.codelist.api.util.SingleFlight;
+import fi.vm.yti.codelist.api.util.SingleFlightRegistry;
+import fi.vm.yti.codelist.common.model.Code;
+import fi.vm.yti.codelist.common.model.CodeRegistry;
+import fi.vm.yti.codelist.common.model.CodeScheme;
+import fi.vm.yti.codelist.common.model.ExternalReference;
+import fi.vm.yti.codelist.common.model.PropertyType;
+import static fi.vm.yti.codelist.common.constants.ApiConstants.*;
+
+/**
+ * Writes CodeRegistry, CodeScheme, Code, PropertyType and ExternalReference exports batch by batch, so that rows are written to the response while
+ * the remaining results are still being fetched from ElasticSearch.
+ *
+ * Without a page size the whole result set is scrolled through. Localized columns are resolved from the index
+ * mapping, because the header has to be written before the first batch arrives. Excel exports use a streaming XLSX
+ * workbook, so heap use stays bounded by the configured row window regardless of export size. Only exports explicitly
+ * requested as XLS are built in memory in the binary format, and they end at its limit of 65536 rows.
+ *
+ * NDJSON exports copy the indexed source documents one per line with the same filtering as JSON listings, so neither
+ * side has to hold more than a batch of documents in memory.
+ *
+ * Identical exports that are requested while one is being written are not built again: the first request streams
+ * its export as usual and keeps a copy of the bytes, which the waiting requests write once it completes. Exports
+ * larger than the configured limit are not copied, and the waiting requests build their own. As the first request
+ * writes at the pace of its own client, the others wait for it at most the configured time before building their own
+ * export, so a slow client does not hold up the rest.
+ */
+@Component
+public class ExportService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExportService.class);
+    private static final String FIELD_PREFLABEL = "prefLabel";
+    private static final String FIELD_DEFINITION = "definition";
+    private static final String FIELD_DESCRIPTION = "description";
+    private static final String FIELD_CHANGENOTE = "changeNote";
+    private static final String FIELD_TITLE = "title";
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private final Domain domain;
+    private final ExportMetrics exportMetrics;
+    private final int excelRowWindow;
+    private final boolean excelCompressTempFiles;
+    private final boolean excelSharedStrings;
+    private final int sharedExportMaxBytes;
+    private final long sharedExportMaxWaitMillis;
+    private final SingleFlight<String, byte[]> exports;
+
+    @Inject
+    public ExportService(final Domain domain,
+                         final ExportMetrics exportMetrics,
+                         final SingleFlightRegistry singleFlightRegistry,
+                         @Value("${application.export.excelRowWindow:100}") final int excelRowWindow,
+                         @Value("${application.export.excelCompressTempFiles:true}") final boolean excelCompressTempFiles,
+                         @Value("${application.export.excelSharedStrings:false}") final boolean excelSharedStrings,
+                         @Value("${application.export.sharedMaxBytes:16777216}") final int sharedExportMaxBytes,
+                         @Value("${application.export.sharedMaxWaitMillis:5000}") final long sharedExportMaxWaitMillis) {
+        this.domain = domain;
+        this.exportMetrics = exportMetrics;
+        this.excelRowWindow = excelRowWindow;
+        this.excelCompressTempFiles = excelCompressTempFiles;
+        this.excelSharedStrings = excelSharedStrings;
+        this.sharedExportMaxBytes = sharedExportMaxBytes;
+        this.sharedExportMaxWaitMillis = sharedExportMaxWaitMillis;
+        this.exports = singleFlightRegistry.create("export");
+    }
+
+    public void writeCodeRegistriesCsv(final OutputStream output,
+                                       final Integer pageSize,
+                                       final Integer from,
+                                       final Object[] searchAfter,
+                                       final String codeRegistryCodeValue,
+                                       final String codeRegistryPrefLabel,
+                                       final Date after,
+                                       final List<String> organizations,
+                                       final List<String> requestedLanguages) throws IOException {
+        writeShared(output, exportKey("coderegistries.csv", pageSize, from, searchAfter, codeRegistryCodeValue, codeRegistryPrefLabel, after, organizations, requestedLanguages), out -> {
+            final Map<String, Set<String>> languages = domain.getLanguages(ELASTIC_INDEX_CODEREGISTRY, ELASTIC_TYPE_CODEREGISTRY, FIELD_PREFLABEL, FIELD_DEFINITION);
+            final Set<String> prefLabelLanguages = selectLanguages(languages.get(FIELD_PREFLABEL), requestedLanguages);
+            final Set<String> definitionLanguages = selectLanguages(languages.get(FIELD_DEFINITION), requestedLanguages);
+            final CsvWriter csv = new CsvWriter(out);
+            csv.value(CONTENT_HEADER_CODEVALUE);
+            csv.value(CONTENT_HEADER_ID);
+            for (final String language : prefLabelLanguages) {
+                csv.value(CONTENT_HEADER_PREFLABEL_PREFIX + language.toUpperCase());
+            }
+            for (final String language : definitionLanguages) {
+                csv.value(CONTENT_HEADER_DEFINITION_PREFIX + language.toUpperCase());
+            }
+            csv.endRow();
+            csv.flush();
+            streamCodeRegistries(pageSize, from, searchAfter, codeRegistryCodeValue, codeRegistryPrefLabel, after, organizations, batch -> {
+                for (final CodeRegistry codeRegistry : batch) {
+                    csv.value(codeRegistry.getCodeValue());
+                    csv.value(codeRegistry.getId().toString());
+                    for (final String language : prefLabelLanguages) {
+                        csv.value(codeRegistry.getPrefLabel().get(language));
+                    }
+                    for (final String language : definitionLanguages) {
+                        csv.value(codeRegistry.getDefinition().get(language));
+                    }
+                    csv.endRow();
+                }
+                csv.flush();
+                exportMetrics.csvRowsWritten(batch.size());
+            });
+        });
+    }
+
+    public void writeCodeRegistriesExcel(final OutputStream output,
+                                         final String format,
+                                         final Integer pageSize,
+                                         final Integer from,
+                                         final Object[] searchAfter,
+                                         final String codeRegistryCodeValue,
+                                         final String codeRegistryPrefLabel,
+                                         final Date after,
+                                         final List<String> organizations,
+                                         final List<String> requestedLanguages) throws IOException {
+        writeShared(output, exportKey("coderegistries.excel", format, pageSize, from, searchAfter, codeRegistryCodeValue, codeRegistryPrefLabel, after, organizations, requestedLanguages), out -> {
+            final Map<String, Set<String>> languages = domain.getLanguages(ELASTIC_INDEX_CODEREGISTRY, ELASTIC_TYPE_CODEREGISTRY, FIELD_PREFLABEL, FIELD_DEFINITION);
+            final Set<String> prefLabelLanguages = selectLanguages(languages.get(FIELD_PREFLABEL), requestedLanguages);
+            final Set<String> definitionLanguages = selectLanguages(languages.get(FIELD_DEFINITION), requestedLanguages);
+            final Workbook workbook = createWorkbook(format);
+            try {
+                final Sheet sheet = workbook.createSheet(EXCEL_SHEET_CODEREGISTRIES);
+                final Row rowhead = sheet.createRow((short) 0);
+                int j = 0;
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_CODEVALUE);
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_ID);
+                for (final String language : prefLabelLanguages) {
+                    rowhead.createCell(j++).setCellValue(CONTENT_HEADER_PREFLABEL_PREFIX + language.toUpperCase());
+                }
+                for (final String language : definitionLanguages) {
+                    rowhead.createCell(j++).setCellValue(CONTENT_HEADER_DEFINITION_PREFIX + language.toUpperCase());
+                }
+                final AtomicInteger rowIndex = new AtomicInteger(1);
+                streamCodeRegistries(pageSize, from, searchAfter, codeRegistryCodeValue, codeRegistryPrefLabel, after, organizations, batch -> {
+                    for (final CodeRegistry codeRegistry : batch) {
+                        final Row row = createRow(sheet, rowIndex);
+                        if (row == null) {
+                            break;
+                        }
+                        int k = 0;
+                        row.createCell(k++).setCellValue(checkEmptyValue(codeRegistry.getCodeValue()));
+                        row.createCell(k++).setCellValue(checkEmptyValue(codeRegistry.getId().toString()));
+                        for (final String language : prefLabelLanguages) {
+                            row.createCell(k++).setCellValue(codeRegistry.getPrefLabel().get(language));
+                        }
+                        for (final String language : definitionLanguages) {
+                            row.createCell(k++).setCellValue(codeRegistry.getDefinition().get(language));
+                        }
+                    }
+                    exportMetrics.excelRowsWritten(batch.size());
+                });
+                workbook.write(out);
+            } finally {
+                closeWorkbook(workbook);
+            }
+        });
+    }
+
+    public void writeCodeSchemesCsv(final OutputStream output,
+                                    final Integer pageSize,
+                                    final Integer from,
+                                    final Object[] searchAfter,
+                                    final String organizationId,
+                                    final String codeRegistryCodeValue,
+                                    final String codeRegistryPrefLabel,
+                                    final String codeSchemeCodeValue,
+                                    final String codeSchemePrefLabel,
+                                    final List<String> statuses,
+                                    final List<String> dataClassifications,
+                                    final Date after,
+                                    final List<String> requestedLanguages) throws IOException {
+        writeShared(output, exportKey("codeschemes.csv", pageSize, from, searchAfter, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statuses, dataClassifications, after, requestedLanguages), out -> {
+            final Map<String, Set<String>> languages = domain.getLanguages(ELASTIC_INDEX_CODESCHEME, ELASTIC_TYPE_CODESCHEME, FIELD_PREFLABEL, FIELD_DEFINITION, FIELD_DESCRIPTION, FIELD_CHANGENOTE);
+            final Set<String> prefLabelLanguages = selectLanguages(languages.get(FIELD_PREFLABEL), requestedLanguages);
+            final Set<String> definitionLanguages = selectLanguages(languages.get(FIELD_DEFINITION), requestedLanguages);
+            final Set<String> descriptionLanguages = selectLanguages(languages.get(FIELD_DESCRIPTION), requestedLanguages);
+            final Set<String> changeNoteLanguages = selectLanguages(languages.get(FIELD_CHANGENOTE), requestedLanguages);
+            final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+            final CsvWriter csv = new CsvWriter(out);
+            csv.value(CONTENT_HEADER_CODEVALUE);
+            csv.value(CONTENT_HEADER_ID);
+            csv.value(CONTENT_HEADER_CLASSIFICATION);
+            csv.value(CONTENT_HEADER_VERSION);
+            csv.value(CONTENT_HEADER_STATUS);
+            csv.value(CONTENT_HEADER_SOURCE);
+            csv.value(CONTENT_HEADER_LEGALBASE);
+            csv.value(CONTENT_HEADER_GOVERNANCEPOLICY);
+            csv.value(CONTENT_HEADER_LICENSE);
+            for (final String language : prefLabelLanguages) {
+                csv.value(CONTENT_HEADER_PREFLABEL_PREFIX + language.toUpperCase());
+            }
+            for (final String language : definitionLanguages) {
+                csv.value(CONTENT_HEADER_DEFINITION_PREFIX + language.toUpperCase());
+            }
+            for (final String language : descriptionLanguages) {
+                csv.value(CONTENT_HEADER_DESCRIPTION_PREFIX + language.toUpperCase());
+            }
+            for (final String language : changeNoteLanguages) {
+                csv.value(CONTENT_HEADER_CHANGENOTE_PREFIX + language.toUpperCase());
+            }
+            csv.value(CONTENT_HEADER_STARTDATE);
+            csv.value(CONTENT_HEADER_ENDDATE);
+            csv.endRow();
+            csv.flush();
+            streamCodeSchemes(pageSize, from, searchAfter, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statuses, dataClassifications, after, batch -> {
+                for (final CodeScheme codeScheme : batch) {
+                    csv.value(codeScheme.getCodeValue());
+                    csv.value(codeScheme.getId().toString());
+                    csv.value(formatDataClassificationsToString(codeScheme.getDataClassifications()));
+                    csv.value(codeScheme.getVersion());
+                    csv.value(codeScheme.getStatus());
+                    csv.value(codeScheme.getSource());
+                    csv.value(codeScheme.getLegalBase());
+                    csv.value(codeScheme.getGovernancePolicy());
+                    csv.value(codeScheme.getLicense());
+                    for (final String language : prefLabelLanguages) {
+                        csv.value(codeScheme.getPrefLabel().get(language));
+                    }
+                    for (final String language : definitionLanguages) {
+                        csv.value(codeScheme.getDefinition().get(language));
+                    }
+                    for (final String language : descriptionLanguages) {
+                        csv.value(codeScheme.getDescription().get(language));
+                    }
+                    for (final String language : changeNoteLanguages) {
+                        csv.value(codeScheme.getChangeNote().get(language));
+                    }
+                    csv.value(codeScheme.getStartDate() != null ? dateFormat.format(codeScheme.getStartDate()) : "");
+                    csv.value(codeScheme.getEndDate() != null ? dateFormat.format(codeScheme.getEndDate()) : "");
+                    csv.endRow();
+                }
+                csv.flush();
+                exportMetrics.csvRowsWritten(batch.size());
+            });
+        });
+    }
+
+    public void writeCodeSchemesExcel(final OutputStream output,
+                                      final String format,
+                                      final Integer pageSize,
+                                      final Integer from,
+                                      final Object[] searchAfter,
+                                      final String organizationId,
+                                      final String codeRegistryCodeValue,
+                                      final String codeRegistryPrefLabel,
+                                      final String codeSchemeCodeValue,
+                                      final String codeSchemePrefLabel,
+                                      final List<String> statuses,
+                                      final List<String> dataClassifications,
+                                      final Date after,
+                                      final List<String> requestedLanguages) throws IOException {
+        writeShared(output, exportKey("codeschemes.excel", format, pageSize, from, searchAfter, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statuses, dataClassifications, after, requestedLanguages), out -> {
+            final Map<String, Set<String>> languages = domain.getLanguages(ELASTIC_INDEX_CODESCHEME, ELASTIC_TYPE_CODESCHEME, FIELD_PREFLABEL, FIELD_DEFINITION, FIELD_DESCRIPTION, FIELD_CHANGENOTE);
+            final Set<String> prefLabelLanguages = selectLanguages(languages.get(FIELD_PREFLABEL), requestedLanguages);
+            final Set<String> definitionLanguages = selectLanguages(languages.get(FIELD_DEFINITION), requestedLanguages);
+            final Set<String> descriptionLanguages = selectLanguages(languages.get(FIELD_DESCRIPTION), requestedLanguages);
+            final Set<String> changeNoteLanguages = selectLanguages(languages.get(FIELD_CHANGENOTE), requestedLanguages);
+            final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+            final Workbook workbook = createWorkbook(format);
+            try {
+                final Sheet sheet = workbook.createSheet(EXCEL_SHEET_CODESCHEMES);
+                final Row rowhead = sheet.createRow((short) 0);
+                int j = 0;
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_CODEVALUE);
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_ID);
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_CLASSIFICATION);
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_VERSION);
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_STATUS);
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_SOURCE);
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_LEGALBASE);
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_GOVERNANCEPOLICY);
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_LICENSE);
+                for (final String language : prefLabelLanguages) {
+                    rowhead.createCell(j++).setCellValue(CONTENT_HEADER_PREFLABEL_PREFIX + language.toUpperCase());
+                }
+                for (final String language : definitionLanguages) {
+                    rowhead.createCell(j++).setCellValue(CONTENT_HEADER_DEFINITION_PREFIX + language.toUpperCase());
+                }
+                for (final String language : descriptionLanguages) {
+                    rowhead.createCell(j++).setCellValue(CONTENT_HEADER_DESCRIPTION_PREFIX + language.toUpperCase());
+                }
+                for (final String language : changeNoteLanguages) {
+                    rowhead.createCell(j++).setCellValue(CONTENT_HEADER_CHANGENOTE_PREFIX + language.toUpperCase());
+                }
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_STARTDATE);
+                rowhead.createCell(j).setCellValue(CONTENT_HEADER_ENDDATE);
+                final AtomicInteger rowIndex = new AtomicInteger(1);
+                streamCodeSchemes(pageSize, from, searchAfter, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statuses, dataClassifications, after, batch -> {
+                    for (final CodeScheme codeScheme : batch) {
+                        final Row row = createRow(sheet, rowIndex);
+                        if (row == null) {
+                            break;
+                        }
+                        int k = 0;
+                        row.createCell(k++).setCellValue(checkEmptyValue(codeScheme.getCodeValue()));
+                        row.createCell(k++).setCellValue(checkEmptyValue(codeScheme.getId().toString()));
+                        row.createCell(k++).setCellValue(checkEmptyValue(formatDataClassificationsToString(codeScheme.getDataClassifications())));
+                        row.createCell(k++).setCellValue(checkEmptyValue(codeScheme.getVersion()));
+                        row.createCell(k++).setCellValue(checkEmptyValue(codeScheme.getStatus()));
+                        row.createCell(k++).setCellValue(checkEmptyValue(codeScheme.getSource()));
+                        row.createCell(k++).setCellValue(checkEmptyValue(codeScheme.getLegalBase()));
+                        row.createCell(k++).setCellValue(checkEmptyValue(codeScheme.getGovernancePolicy()));
+                        row.createCell(k++).setCellValue(checkEmptyValue(codeScheme.getLicense()));
+                        for (final String language : prefLabelLanguages) {
+                            row.createCell(k++).setCellValue(codeScheme.getPrefLabel().get(language));
+                        }
+                        for (final String language : definitionLanguages) {
+                            row.createCell(k++).setCellValue(codeScheme.getDefinition().get(language));
+                        }
+                        for (final String language : descriptionLanguages) {
+                            row.createCell(k++).setCellValue(codeScheme.getDescription().get(language));
+                        }
+                        for (final String language : changeNoteLanguages) {
+                            row.createCell(k++).setCellValue(codeScheme.getChangeNote().get(language));
+                        }
+                        row.createCell(k++).setCellValue(codeScheme.getStartDate() != null ? dateFormat.format(codeScheme.getStartDate()) : "");
+                        row.createCell(k).setCellValue(codeScheme.getEndDate() != null ? dateFormat.format(codeScheme.getEndDate()) : "");
+                    }
+                    exportMetrics.excelRowsWritten(batch.size());
+                });
+                workbook.write(out);
+            } finally {
+                closeWorkbook(workbook);
+            }
+        });
+    }
+
+    public void writeCodesCsv(final OutputStream output,
+                              final Integer pageSize,
+                              final Integer from,
+                              final Object[] searchAfter,
+                              final String codeRegistryCodeValue,
+                              final String codeSchemeCodeValue,
+                              final String codeCodeValue,
+                              final String prefLabel,
+                              final String broaderCodeId,
+                              final List<String> statuses,
+                              final Date after,
+                              final List<String> requestedLanguages) throws IOException {
+        writeShared(output, exportKey("codes.csv", pageSize, from, searchAfter, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statuses, after, requestedLanguages), out -> {
+            final Map<String, Set<String>> languages = domain.getLanguages(ELASTIC_INDEX_CODE, ELASTIC_TYPE_CODE, FIELD_PREFLABEL, FIELD_DEFINITION, FIELD_DESCRIPTION);
+            final Set<String> prefLabelLanguages = selectLanguages(languages.get(FIELD_PREFLABEL), requestedLanguages);
+            final Set<String> definitionLanguages = selectLanguages(languages.get(FIELD_DEFINITION), requestedLanguages);
+            final Set<String> descriptionLanguages = selectLanguages(languages.get(FIELD_DESCRIPTION), requestedLanguages);
+            final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+            final CsvWriter csv = new CsvWriter(out);
+            csv.value(CONTENT_HEADER_CODEVALUE);
+            csv.value(CONTENT_HEADER_BROADER);
+            csv.value(CONTENT_HEADER_ID);
+            csv.value(CONTENT_HEADER_STATUS);
+            for (final String language : prefLabelLanguages) {
+                csv.value(CONTENT_HEADER_PREFLABEL_PREFIX + language.toUpperCase());
+            }
+            for (final String language : definitionLanguages) {
+                csv.value(CONTENT_HEADER_DEFINITION_PREFIX + language.toUpperCase());
+            }
+            for (final String language : descriptionLanguages) {
+                csv.value(CONTENT_HEADER_DESCRIPTION_PREFIX + language.toUpperCase());
+            }
+            csv.value(CONTENT_HEADER_SHORTNAME);
+            csv.value(CONTENT_HEADER_HIERARCHYLEVEL);
+            csv.value(CONTENT_HEADER_STARTDATE);
+            csv.value(CONTENT_HEADER_ENDDATE);
+            csv.endRow();
+            csv.flush();
+            streamCodes(pageSize, from, searchAfter, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statuses, after, batch -> {
+                final Map<UUID, String> broaderCodeValues = resolveBroaderCodeValues(batch);
+                for (final Code code : batch) {
+                    csv.value(code.getCodeValue());
+                    csv.value(broaderCodeValues.get(code.getBroaderCodeId()));
+                    csv.value(code.getId().toString());
+                    csv.value(code.getStatus());
+                    for (final String language : prefLabelLanguages) {
+                        csv.value(code.getPrefLabel().get(language));
+                    }
+                    for (final String language : definitionLanguages) {
+                        csv.value(code.getDefinition().get(language));
+                    }
+                    for (final String language : descriptionLanguages) {
+                        csv.value(code.getDescription().get(language));
+                    }
+                    csv.value(code.getShortName());
+                    csv.value(code.getHierarchyLevel());
+                    csv.value(code.getStartDate() != null ? dateFormat.format(code.getStartDate()) : "");
+                    csv.value(code.getEndDate() != null ? dateFormat.format(code.getEndDate()) : "");
+                    csv.endRow();
+                }
+                csv.flush();
+                exportMetrics.csvRowsWritten(batch.size());
+            });
+        });
+    }
+
+    public void writeCodesExcel(final OutputStream output,
+                                final String format,
+                                final Integer pageSize,
+                                final Integer from,
+                                final Object[] searchAfter,
+                                final String codeRegistryCodeValue,
+                                final String codeSchemeCodeValue,
+                                final String codeCodeValue,
+                                final String prefLabel,
+                                final String broaderCodeId,
+                                final List<String> statuses,
+                                final Date after,
+                                final List<String> requestedLanguages) throws IOException {
+        writeShared(output, exportKey("codes.excel", format, pageSize, from, searchAfter, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statuses, after, requestedLanguages), out -> {
+            final Map<String, Set<String>> languages = domain.getLanguages(ELASTIC_INDEX_CODE, ELASTIC_TYPE_CODE, FIELD_PREFLABEL, FIELD_DEFINITION, FIELD_DESCRIPTION);
+            final Set<String> prefLabelLanguages = selectLanguages(languages.get(FIELD_PREFLABEL), requestedLanguages);
+            final Set<String> definitionLanguages = selectLanguages(languages.get(FIELD_DEFINITION), requestedLanguages);
+            final Set<String> descriptionLanguages = selectLanguages(languages.get(FIELD_DESCRIPTION), requestedLanguages);
+            final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+            final Workbook workbook = createWorkbook(format);
+            try {
+                final Sheet sheet = workbook.createSheet(EXCEL_SHEET_CODES);
+                final Row rowhead = sheet.createRow((short) 0);
+                int j = 0;
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_CODEVALUE);
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_BROADER);
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_ID);
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_STATUS);
+                for (final String language : prefLabelLanguages) {
+                    rowhead.createCell(j++).setCellValue(CONTENT_HEADER_PREFLABEL_PREFIX + language.toUpperCase());
+                }
+                for (final String language : definitionLanguages) {
+                    rowhead.createCell(j++).setCellValue(CONTENT_HEADER_DEFINITION_PREFIX + language.toUpperCase());
+                }
+                for (final String language : descriptionLanguages) {
+                    rowhead.createCell(j++).setCellValue(CONTENT_HEADER_DESCRIPTION_PREFIX + language.toUpperCase());
+                }
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_SHORTNAME);
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_HIERARCHYLEVEL);
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_STARTDATE);
+                rowhead.createCell(j).setCellValue(CONTENT_HEADER_ENDDATE);
+                final AtomicInteger rowIndex = new AtomicInteger(1);
+                streamCodes(pageSize, from, searchAfter, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statuses, after, batch -> {
+                    final Map<UUID, String> broaderCodeValues = resolveBroaderCodeValues(batch);
+                    for (final Code code : batch) {
+                        final Row row = createRow(sheet, rowIndex);
+                        if (row == null) {
+                            break;
+                        }
+                        int k = 0;
+                        row.createCell(k++).setCellValue(code.getCodeValue());
+                        row.createCell(k++).setCellValue(checkEmptyValue(broaderCodeValues.get(code.getBroaderCodeId())));
+                        row.createCell(k++).setCellValue(code.getId().toString());
+                        row.createCell(k++).setCellValue(code.getStatus());
+                        for (final String language : prefLabelLanguages) {
+                            row.createCell(k++).setCellValue(code.getPrefLabel().get(language));
+                        }
+                        for (final String language : definitionLanguages) {
+                            row.createCell(k++).setCellValue(code.getDefinition().get(language));
+                        }
+                        for (final String language : descriptionLanguages) {
+                            row.createCell(k++).setCellValue(code.getDescription().get(language));
+                        }
+                        row.createCell(k++).setCellValue(checkEmptyValue(code.getShortName()));
+                        row.createCell(k++).setCellValue(checkEmptyValue(code.getHierarchyLevel()));
+                        row.createCell(k++).setCellValue(code.getStartDate() != null ? dateFormat.format(code.getStartDate()) : "");
+                        row.createCell(k).setCellValue(code.getEndDate() != null ? dateFormat.format(code.getEndDate()) : "");
+                    }
+                    exportMetrics.excelRowsWritten(batch.size());
+                });
+                workbook.write(out);
+            } finally {
+                closeWorkbook(workbook);
+            }
+        });
+    }
+
+    public void writePropertyTypesCsv(final OutputStream output,
+                                      final Integer pageSize,
+                                      final Integer from,
+                                      final String propertyTypePrefLabel,
+                                      final String context,
+                                      final Date after,
+                                      final List<String> requestedLanguages) throws IOException {
+        writeShared(output, exportKey("propertytypes.csv", pageSize, from, propertyTypePrefLabel, context, after, requestedLanguages), out -> {
+            final Map<String, Set<String>> languages = domain.getLanguages(ELASTIC_INDEX_PROPERTYTYPE, ELASTIC_TYPE_PROPERTYTYPE, FIELD_PREFLABEL, FIELD_DEFINITION);
+            final Set<String> prefLabelLanguages = selectLanguages(languages.get(FIELD_PREFLABEL), requestedLanguages);
+            final Set<String> definitionLanguages = selectLanguages(languages.get(FIELD_DEFINITION), requestedLanguages);
+            final CsvWriter csv = new CsvWriter(out);
+            csv.value(CONTENT_HEADER_ID);
+            csv.value(CONTENT_HEADER_LOCALNAME);
+            csv.value(CONTENT_HEADER_TYPE);
+            csv.value(CONTENT_HEADER_PROPERTYURI);
+            csv.value(CONTENT_HEADER_CONTEXT);
+            for (final String language : prefLabelLanguages) {
+                csv.value(CONTENT_HEADER_PREFLABEL_PREFIX + language.toUpperCase());
+            }
+            for (final String language : definitionLanguages) {
+                csv.value(CONTENT_HEADER_DEFINITION_PREFIX + language.toUpperCase());
+            }
+            csv.endRow();
+            csv.flush();
+            streamPropertyTypes(pageSize, from, propertyTypePrefLabel, context, after, batch -> {
+                for (final PropertyType propertyType : batch) {
+                    csv.value(propertyType.getId().toString());
+                    csv.value(propertyType.getLocalName());
+                    csv.value(propertyType.getType());
+                    csv.value(propertyType.getPropertyUri());
+                    csv.value(propertyType.getContext());
+                    for (final String language : prefLabelLanguages) {
+                        csv.value(propertyType.getPrefLabel().get(language));
+                    }
+                    for (final String language : definitionLanguages) {
+                        csv.value(propertyType.getDefinition().get(language));
+                    }
+                    csv.endRow();
+                }
+                csv.flush();
+                exportMetrics.csvRowsWritten(batch.size());
+            });
+        });
+    }
+
+    public void writePropertyTypesExcel(final OutputStream output,
+                                        final String format,
+                                        final Integer pageSize,
+                                        final Integer from,
+                                        final String propertyTypePrefLabel,
+                                        final String context,
+                                        final Date after,
+                                        final List<String> requestedLanguages) throws IOException {
+        writeShared(output, exportKey("propertytypes.excel", format, pageSize, from, propertyTypePrefLabel, context, after, requestedLanguages), out -> {
+            final Map<String, Set<String>> languages = domain.getLanguages(ELASTIC_INDEX_PROPERTYTYPE, ELASTIC_TYPE_PROPERTYTYPE, FIELD_PREFLABEL, FIELD_DEFINITION);
+            final Set<String> prefLabelLanguages = selectLanguages(languages.get(FIELD_PREFLABEL), requestedLanguages);
+            final Set<String> definitionLanguages = selectLanguages(languages.get(FIELD_DEFINITION), requestedLanguages);
+            final Workbook workbook = createWorkbook(format);
+            try {
+                final Sheet sheet = workbook.createSheet(EXCEL_SHEET_PROPERTYTYPES);
+                final Row rowhead = sheet.createRow((short) 0);
+                int j = 0;
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_ID);
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_LOCALNAME);
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_TYPE);
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_PROPERTYURI);
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_CONTEXT);
+                for (final String language : prefLabelLanguages) {
+                    rowhead.createCell(j++).setCellValue(CONTENT_HEADER_PREFLABEL_PREFIX + language.toUpperCase());
+                }
+                for (final String language : definitionLanguages) {
+                    rowhead.createCell(j++).setCellValue(CONTENT_HEADER_DEFINITION_PREFIX + language.toUpperCase());
+                }
+                final AtomicInteger rowIndex = new AtomicInteger(1);
+                streamPropertyTypes(pageSize, from, propertyTypePrefLabel, context, after, batch -> {
+                    for (final PropertyType propertyType : batch) {
+                        final Row row = createRow(sheet, rowIndex);
+                        if (row == null) {
+                            break;
+                        }
+                        int k = 0;
+                        row.createCell(k++).setCellValue(checkEmptyValue(propertyType.getId().toString()));
+                        row.createCell(k++).setCellValue(checkEmptyValue(propertyType.getLocalName()));
+                        row.createCell(k++).setCellValue(checkEmptyValue(propertyType.getType()));
+                        row.createCell(k++).setCellValue(checkEmptyValue(propertyType.getPropertyUri()));
+                        row.createCell(k++).setCellValue(checkEmptyValue(propertyType.getContext()));
+                        for (final String language : prefLabelLanguages) {
+                            row.createCell(k++).setCellValue(propertyType.getPrefLabel().get(language));
+                        }
+                        for (final String language : definitionLanguages) {
+                            row.createCell(k++).setCellValue(propertyType.getDefinition().get(language));
+                        }
+                    }
+                    exportMetrics.excelRowsWritten(batch.size());
+                });
+                workbook.write(out);
+            } finally {
+                closeWorkbook(workbook);
+            }
+        });
+    }
+
+    public void writeExternalReferencesCsv(final OutputStream output,
+                                           final Integer pageSize,
+                                           final Integer from,
+                                           final String externalReferencePrefLabel,
+                                           final CodeScheme codeScheme,
+                                           final Date after,
+                                           final List<String> requestedLanguages) throws IOException {
+        writeShared(output, exportKey("externalreferences.csv", pageSize, from, externalReferencePrefLabel, codeScheme != null ? codeScheme.getId() : null, after, requestedLanguages), out -> {
+            final Map<String, Set<String>> languages = domain.getLanguages(ELASTIC_INDEX_EXTERNALREFERENCE, ELASTIC_TYPE_EXTERNALREFERENCE, FIELD_TITLE, FIELD_DESCRIPTION);
+            final Set<String> titleLanguages = selectLanguages(languages.get(FIELD_TITLE), requestedLanguages);
+            final Set<String> descriptionLanguages = selectLanguages(languages.get(FIELD_DESCRIPTION), requestedLanguages);
+            final CsvWriter csv = new CsvWriter(out);
+            csv.value(CONTENT_HEADER_ID);
+            for (final String language : titleLanguages) {
+                csv.value(CONTENT_HEADER_PREFLABEL_PREFIX + language.toUpperCase());
+            }
+            for (final String language : descriptionLanguages) {
+                csv.value(CONTENT_HEADER_DEFINITION_PREFIX + language.toUpperCase());
+            }
+            csv.endRow();
+            csv.flush();
+            streamExternalReferences(pageSize, from, externalReferencePrefLabel, codeScheme, after, batch -> {
+                for (final ExternalReference externalReference : batch) {
+                    csv.value(externalReference.getId().toString());
+                    for (final String language : titleLanguages) {
+                        csv.value(externalReference.getTitle().get(language));
+                    }
+                    for (final String language : descriptionLanguages) {
+                        csv.value(externalReference.getDescription().get(language));
+                    }
+                    csv.endRow();
+                }
+                csv.flush();
+                exportMetrics.csvRowsWritten(batch.size());
+            });
+        });
+    }
+
+    public void writeExternalReferencesExcel(final OutputStream output,
+                                             final String format,
+                                             final Integer pageSize,
+                                             final Integer from,
+                                             final String externalReferencePrefLabel,
+                                             final CodeScheme codeScheme,
+                                             final Date after,
+                                             final List<String> requestedLanguages) throws IOException {
+        writeShared(output, exportKey("externalreferences.excel", format, pageSize, from, externalReferencePrefLabel, codeScheme != null ? codeScheme.getId() : null, after, requestedLanguages), out -> {
+            final Map<String, Set<String>> languages = domain.getLanguages(ELASTIC_INDEX_EXTERNALREFERENCE, ELASTIC_TYPE_EXTERNALREFERENCE, FIELD_TITLE, FIELD_DESCRIPTION);
+            final Set<String> titleLanguages = selectLanguages(languages.get(FIELD_TITLE), requestedLanguages);
+            final Set<String> descriptionLanguages = selectLanguages(languages.get(FIELD_DESCRIPTION), requestedLanguages);
+            final Workbook workbook = createWorkbook(format);
+            try {
+                final Sheet sheet = workbook.createSheet(EXCEL_SHEET_EXTERNALREFERENCES);
+                final Row rowhead = sheet.createRow((short) 0);
+                int j = 0;
+                rowhead.createCell(j++).setCellValue(CONTENT_HEADER_ID);
+                for (final String language : titleLanguages) {
+                    rowhead.createCell(j++).setCellValue(CONTENT_HEADER_TITLE_PREFIX + language.toUpperCase());
+                }
+                for (final String language : descriptionLanguages) {
+                    rowhead.createCell(j++).setCellValue(CONTENT_HEADER_DESCRIPTION_PREFIX + language.toUpperCase());
+                }
+                final AtomicInteger rowIndex = new AtomicInteger(1);
+                streamExternalReferences(pageSize, from, externalReferencePrefLabel, codeScheme, after, batch -> {
+                    for (final ExternalReference externalReference : batch) {
+                        final Row row = createRow(sheet, rowIndex);
+                        if (row == null) {
+                            break;
+                        }
+                        int k = 0;
+                        row.createCell(k++).setCellValue(checkEmptyValue(externalReference.getId().toString()));
+                        for (final String language : titleLanguages) {
+                            row.createCell(k++).setCellValue(externalReference.getTitle().get(language));
+                        }
+                        for (final String language : descriptionLanguages) {
+                            row.createCell(k++).setCellValue(externalReference.getDescription().get(language));
+                        }
+                    }
+                    exportMetrics.excelRowsWritten(batch.size());
+                });
+                workbook.write(out);
+            } finally {
+                closeWorkbook(workbook);
+            }
+        });
+    }
+
+    public void writeCodeRegistriesNdjson(final OutputStream output,
+                                          final Integer pageSize,
+                                          final Integer from,
+                                          final Object[] searchAfter,
+                                          final String codeRegistryCodeValue,
+                                          final String codeRegistryPrefLabel,
+                                          final Date after,
+                                          final List<String> organizations,
+                                          final FilterOptions filterOptions) throws IOException {
+        writeShared(output, exportKey("coderegistries.ndjson", pageSize, from, searchAfter, codeRegistryCodeValue, codeRegistryPrefLabel, after, organizations, filterOptions), out ->
+            writeNdjson(out, filterOptions, consumer -> domain.streamCodeRegistrySources(pageSize, from, searchAfter, codeRegistryCodeValue, codeRegistryPrefLabel, after, organizations, filterOptions.getSourceIncludes(), filterOptions.getSourceExcludes(domain.getIndexedLanguages()), consumer)));
+    }
+
+    public void writeCodeSchemesNdjson(final OutputStream output,
+                                       final Integer pageSize,
+                                       final Integer from,
+                                       final Object[] searchAfter,
+                                       final String organizationId,
+                                       final String codeRegistryCodeValue,
+                                       final String codeRegistryPrefLabel,
+                                       final String codeSchemeCodeValue,
+                                       final String codeSchemePrefLabel,
+                                       final List<String> statuses,
+                                       final List<String> dataClassifications,
+                                       final Date after,
+                                       final FilterOptions filterOptions) throws IOException {
+        writeShared(output, exportKey("codeschemes.ndjson", pageSize, from, searchAfter, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statuses, dataClassifications, after, filterOptions), out ->
+            writeNdjson(out, filterOptions, consumer -> domain.streamCodeSchemeSources(pageSize, from, searchAfter, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statuses, dataClassifications, after, filterOptions.getSourceIncludes(), filterOptions.getSourceExcludes(domain.getIndexedLanguages()), consumer)));
+    }
+
+    public void writeCodesNdjson(final OutputStream output,
+                                 final Integer pageSize,
+                                 final Integer from,
+                                 final Object[] searchAfter,
+                                 final String codeRegistryCodeValue,
+                                 final String codeSchemeCodeValue,
+                                 final String codeCodeValue,
+                                 final String prefLabel,
+                                 final String broaderCodeId,
+                                 final List<String> statuses,
+                                 final Date after,
+                                 final FilterOptions filterOptions) throws IOException {
+        writeShared(output, exportKey("codes.ndjson", pageSize, from, searchAfter, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statuses, after, filterOptions), out ->
+            writeNdjson(out, filterOptions, consumer -> domain.streamCodeSources(pageSize, from, searchAfter, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statuses, after, filterOptions.getSourceIncludes(), filterOptions.getSourceExcludes(domain.getIndexedLanguages()), consumer)));
+    }
+
+    public void writePropertyTypesNdjson(final OutputStream output,
+                                         final Integer pageSize,
+                                         final Integer from,
+                                         final String propertyTypePrefLabel,
+                                         final String context,
+                                         final Date after,
+                                         final FilterOptions filterOptions) throws IOException {
+        writeShared(output, exportKey("propertytypes.ndjson", pageSize, from, propertyTypePrefLabel, context, after, filterOptions), out ->
+            writeNdjson(out, filterOptions, consumer -> domain.streamPropertyTypeSources(pageSize, from, propertyTypePrefLabel, context, after, filterOptions.getSourceIncludes(), filterOptions.getSourceExcludes(domain.getIndexedLanguages()), consumer)));
+    }
+
+    public void writeExternalReferencesNdjson(final OutputStream output,
+                                              final Integer pageSize,
+                                              final Integer from,
+                                              final String externalReferencePrefLabel,
+                                              final CodeScheme codeScheme,
+                                              final Date after,
+                                              final FilterOptions filterOptions) throws IOException {
+        writeShared(output, exportKey("externalreferences.ndjson", pageSize, from, externalReferencePrefLabel, codeScheme != null ? codeScheme.getId() : null, after, filterOptions), out ->
+            writeNdjson(out, filterOptions, consumer -> domain.streamExternalReferenceSources(pageSize, from, externalReferencePrefLabel, codeScheme, after, filterOptions.getSourceIncludes(), filterOptions.getSourceExcludes(domain.getIndexedLanguages()), consumer)));
+    }
+
+    /**
+     * Writes the source documents as newline delimited JSON, one document per line, filtered like JSON listings.
+     * Every batch is flushed as soon as it has been written, so that clients can process the lines while the remaining
+     * batches are still being fetched.
+     */
+    private void writeNdjson(final OutputStream output,
+                             final FilterOptions filterOptions,
+                             final SourceStream sources) throws IOException {
+        try (final JsonGenerator generator = JSON_FACTORY.createGenerator(output, JsonEncoding.UTF8)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.setRootValueSeparator(null);
+            final SourceDocumentCopier copier = new SourceDocumentCopier(JSON_FACTORY, filterOptions);
+            sources.stream(batch -> {
+                for (final BytesReference source : batch) {
+                    copier.copy(source, generator);
+                    generator.writeRaw('\n');
+                }
+                generator.flush();
+                exportMetrics.ndjsonLinesWritten(batch.size());
+            });
+        }
+    }
+
+    /**
+     * Writes an export, sharing it with identical exports requested while it is being written. The export that runs
+     * streams directly to its own output, the waiting exports write the copied bytes, or build their own if the
+     * export failed or was too large to copy.
+     */
+    private void writeShared(final OutputStream output,
+                             final String key,
+                             final ExportWriter writer) throws IOException {
+        final AtomicBoolean executed = new AtomicBoolean();
+        byte[] shared;
+        try {
+            shared = exports.execute(key, () -> {
+                executed.set(true);
+                final CappedCopyOutputStream copyingOutput = new CappedCopyOutputStream(output, sharedExportMaxBytes);
+                try {
+                    writer.write(copyingOutput);
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return copyingOutput.getCopy();
+            }, sharedExportMaxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            shared = null;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a shared export");
+        } catch (final RuntimeException e) {
+            if (!executed.get()) {
+                shared = null;
+            } else if (e instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e).getCause();
+            } else {
+                throw e;
+            }
+        }
+        if (!executed.get()) {
+            if (shared != null) {
+                output.write(shared);
+                output.flush();
+            } else {
+                writer.write(output);
+            }
+        }
+    }
+
+    private static String exportKey(final Object... parameters) {
+        final StringBuilder key = new StringBuilder();
+        for (final Object parameter : parameters) {
+            if (parameter instanceof Date) {
+                key.append(((Date) parameter).getTime());
+            } else if (parameter instanceof Object[]) {
+                key.append(Arrays.deepToString((Object[]) parameter));
+            } else {
+                key.append(parameter);
+            }
+            key.append('|');
+        }
+        return key.toString();
+    }
+
+    private void streamCodeRegistries(final Integer pageSize,
+                                      final Integer from,
+                                      final Object[] searchAfter,
+                                      final String codeRegistryCodeValue,
+                                      final String codeRegistryPrefLabel,
+                                      final Date after,
+                                      final List<String> organizations,
+                                      final BatchConsumer<CodeRegistry> consumer) throws IOException {
+        if (pageSize != null) {
+            consumer.accept(new ArrayList<>(domain.getCodeRegistries(pageSize, from, codeRegistryCodeValue, codeRegistryPrefLabel, after, searchAfter, null, organizations)));
+        } else {
+            domain.streamCodeRegistries(codeRegistryCodeValue, codeRegistryPrefLabel, after, organizations, consumer);
+        }
+    }
+
+    private void streamCodeSchemes(final Integer pageSize,
+                                   final Integer from,
+                                   final Object[] searchAfter,
+                                   final String organizationId,
+                                   final String codeRegistryCodeValue,
+                                   final String codeRegistryPrefLabel,
+                                   final String codeSchemeCodeValue,
+                                   final String codeSchemePrefLabel,
+                                   final List<String> statuses,
+                                   final List<String> dataClassifications,
+                                   final Date after,
+                                   final BatchConsumer<CodeScheme> consumer) throws IOException {
+        if (pageSize != null) {
+            consumer.accept(new ArrayList<>(domain.getCodeSchemes(pageSize, from, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statuses, dataClassifications, after, searchAfter, null)));
+        } else {
+            domain.streamCodeSchemes(organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statuses, dataClassifications, after, consumer);
+        }
+    }
+
+    private void streamCodes(final Integer pageSize,
+                             final Integer from,
+                             final Object[] searchAfter,
+                             final String codeRegistryCodeValue,
+                             final String codeSchemeCodeValue,
+                             final String codeCodeValue,
+                             final String prefLabel,
+                             final String broaderCodeId,
+                             final List<String> statuses,
+                             final Date after,
+                             final BatchConsumer<Code> consumer) throws IOException {
+        if (pageSize != null) {
+            final Set<Code> codes = domain.getCodes(pageSize, from, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statuses, after, searchAfter, null);
+            if (codes != null) {
+                consumer.accept(new ArrayList<>(codes));
+            }
+        } else {
+            domain.streamCodes(codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statuses, after, consumer);
+        }
+    }
+
+    private void streamPropertyTypes(final Integer pageSize,
+                                     final Integer from,
+                                     final String propertyTypePrefLabel,
+                                     final String context,
+                                     final Date after,
+                                     final BatchConsumer<PropertyType> consumer) throws IOException {
+        if (pageSize != null) {
+            consumer.accept(new ArrayList<>(domain.getPropertyTypes(pageSize, from, propertyTypePrefLabel, context, after, null)));
+        } else {
+            domain.streamPropertyTypes(propertyTypePrefLabel, context, after, consumer);
+        }
+    }
+
+    private void streamExternalReferences(final Integer pageSize,
+                                          final Integer from,
+                                          final String externalReferencePrefLabel,
+                                          final CodeScheme codeScheme,
+                                          final Date after,
+                                          final BatchConsumer<ExternalReference> consumer) throws IOException {
+        if (pageSize != null) {
+            consumer.accept(new ArrayList<>(domain.getExternalReferences(pageSize, from, externalReferencePrefLabel, codeScheme, after, null)));
+        } else {
+            domain.streamExternalReferences(externalReferencePrefLabel, codeScheme, after, consumer);
+        }
+    }
+
+    /**
+     * Resolves broader code values for a batch, looking up only the broader codes that are not in the batch itself.
+     */
+    private Map<UUID, String> resolveBroaderCodeValues(final List<Code> codes) {
+        final Map<UUID, String> codeValues = new HashMap<>();
+        for (final Code code : codes) {
+            codeValues.put(code.getId(), code.getCodeValue());
+        }
+        final Set<UUID> missingIds = new HashSet<>();
+        for (final Code code : codes) {
+            if (code.getBroaderCodeId() != null && !codeValues.containsKey(code.getBroaderCodeId())) {
+                missingIds.add(code.getBroaderCodeId());
+            }
+        }
+        codeValues.putAll(domain.getCodeValues(missingIds));
+        return codeValues;
+    }
+
+    /**
+     * Selects the language columns of an export. Without requested languages all available languages are exported,
+     * otherwise the requested languages that are available, in the requested order.
+     *
+     * @param availableLanguages The languages found in the data or in the index mapping.
+     * @param requestedLanguages The requested languages, may be empty.
+     * @return The languages to export.
+     */
+    public static Set<String> selectLanguages(final Set<String> availableLanguages,
+                                              final List<String> requestedLanguages) {
+        if (requestedLanguages == null || requestedLanguages.isEmpty()) {
+            return availableLanguages;
+        }
+        final Set<String> languages = new LinkedHashSet<>();
+        for (final String language : requestedLanguages) {
+            if (availableLanguages.contains(language)) {
+                languages.add(language);
+            }
+        }
+        return languages;
+    }
+
+    /**
+     * Creates a workbook for the requested format. Only the XLS format gets a binary workbook, every other Excel format
+     * is streamed as XLSX, keeping only a window of rows in memory and flushing older rows to a temporary file, so
+     * workbooks must be released with {@link #writeWorkbook}.
+     *
+     * @param format The requested export format.
+     * @return A new workbook.
+     */
+    public Workbook createWorkbook(final String format) {
+        final Workbook workbook;
+        if (FORMAT_EXCEL_XLS.equalsIgnoreCase(format)) {
+            workbook = new HSSFWorkbook();
+        } else {
+            workbook = new SXSSFWorkbook(null, excelRowWindow, excelCompressTempFiles, excelSharedStrings);
+        }
+        exportMetrics.workbookOpened();
+        return workbook;
+    }
+
+    /**
+     * Writes the workbook to the output and releases its temporary resources.
+     *
+     * @param workbook The workbook created with {@link #createWorkbook}.
+     * @param output The stream to write to.
+     * @throws IOException If writing fails.
+     */
+    public void writeWorkbook(final Workbook workbook,
+                              final OutputStream output) throws IOException {
+        try {
+            workbook.write(output);
+        } finally {
+            closeWorkbook(workbook);
+        }
+    }
+
+    /**
+     * Creates the next row of a sheet, or returns null once the sheet is full. XLS sheets end at 65536 rows, so rows
+     * past that are left out instead of failing the export halfway through the response.
+     */
+    static Row createRow(final Sheet sheet,
+                         final AtomicInteger rowIndex) {
+        final int lastRowIndex = sheet.getWorkbook().getSpreadsheetVersion().getLastRowIndex();
+        final int index = rowIndex.getAndIncrement();
+        if (index > lastRowIndex) {
+            if (index == lastRowIndex + 1) {
+                LOG.warn("Export to sheet " + sheet.getSheetName() + " truncated at " + (lastRowIndex + 1) + " rows");
+            }
+            return null;
+        }
+        return sheet.createRow(index);
+    }
+
+    private void closeWorkbook(final Workbook workbook) throws IOException {
+        try {
+            if (workbook instanceof SXSSFWorkbook) {
+                ((SXSSFWorkbook) workbook).dispose();
+            }
+            workbook.close();
+        } finally {
+            exportMetrics.workbookClosed();
+        }
+    }
+
+    public static String checkEmptyValue(final String value) {
+        if (value == null) {
+            return "";
+        }
+        return value;
+    }
+
+    private String formatDataClassificationsToString(final Set<Code> classifications) {
+        final StringBuilder csvClassifications = new StringBuilder();
+        for (final Code code : classifications) {
+            if (csvClassifications.length() > 0) {
+                csvClassifications.append(";");
+            }
+            csvClassifications.append(code.getCodeValue().trim());
+        }
+        return csvClassifications.toString();
+    }
+
+    @FunctionalInterface
+    private interface ExportWriter {
+
+        void write(final OutputStream output) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface SourceStream {
+
+        void stream(final BatchConsumer<BytesReference> consumer) throws IOException;
+    }
+}
@@ -1,44 +1,69 @@
 package fi.vm.yti.codelist.api.resource;
 
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Base64;
+import java.util.Date;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
-
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.core.Variant;
 
-import org.apache.poi.hssf.usermodel.HSSFWorkbook;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.slf4j.Logger;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.ser.FilterProvider;
 import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
 import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
+import com.fasterxml.jackson.jaxrs.cbor.CBORMediaTypes;
 import com.fasterxml.jackson.jaxrs.cfg.EndpointConfigBase;
+import com.fasterxml.jackson.jaxrs.cfg.ObjectWriterInjector;
 import com.fasterxml.jackson.jaxrs.cfg.ObjectWriterModifier;
+import com.fasterxml.jackson.jaxrs.smile.SmileMediaTypes;
 
 import fi.vm.yti.codelist.api.api.ErrorWrapper;
-import fi.vm.yti.codelist.common.model.Code;
-import fi.vm.yti.codelist.common.model.CodeRegistry;
-import fi.vm.yti.codelist.common.model.CodeScheme;
+import fi.vm.yti.codelist.api.api.FileRegionOutput;
+import fi.vm.yti.codelist.api.api.FilterOptions;
+import fi.vm.yti.codelist.api.api.LocalizedPropertyFilter;
+import fi.vm.yti.codelist.api.api.SourceListingOutput;
+import fi.vm.yti.codelist.api.domain.ContentVersion;
+import fi.vm.yti.codelist.api.domain.SourceHits;
+import fi.vm.yti.codelist.api.export.ExportMaterializer;
+import fi.vm.yti.codelist.api.util.CursorUtils;
 import fi.vm.yti.codelist.common.model.Meta;
 import fi.vm.yti.codelist.common.model.Status;
+import static fi.vm.yti.codelist.api.util.ContentEncodingUtils.ENCODING_GZIP;
+import static fi.vm.yti.codelist.api.util.ContentEncodingUtils.acceptsGzip;
 import static fi.vm.yti.codelist.common.constants.ApiConstants.*;
 
 abstract class AbstractBaseResource {
@@ -47,17 +72,57 @@ abstract class AbstractBaseResource {
     public static final String DOWNLOAD_FILENAME_CODESCHEMES = "codeschemes";
     public static final String DOWNLOAD_FILENAME_CODES = "codes";
 
+    public static final String FORMAT_NDJSON = "ndjson";
+    public static final String MEDIA_TYPE_NDJSON = "application/x-ndjson";
+    public static final String MEDIA_TYPE_SMILE = SmileMediaTypes.APPLICATION_JACKSON_SMILE;
+    public static final String MEDIA_TYPE_CBOR = CBORMediaTypes.APPLICATION_JACKSON_CBOR;
     public static final String HEADER_CONTENT_DISPOSITION = "content-disposition";
+    public static final String HEADER_RANGE = "Range";
+    public static final String HEADER_IF_RANGE = "If-Range";
+    static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+    static final String HEADER_CONTENT_RANGE = "Content-Range";
+    private static final Pattern BYTE_RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    /**
+     * The content types the resources negotiate with the Accept header, in the order the resources prefer them.
+     */
+    private static final List<Variant> NEGOTIATED_VARIANTS = Variant.mediaTypes(
+        MediaType.APPLICATION_JSON_TYPE,
+        MediaType.valueOf(MEDIA_TYPE_SMILE),
+        MediaType.valueOf(MEDIA_TYPE_CBOR),
+        MediaType.valueOf("application/xlsx"),
+        MediaType.valueOf("application/csv"),
+        MediaType.valueOf(MEDIA_TYPE_NDJSON)).build();
+
+    /**
+     * Shared filter modifiers per normalized filter options. Normalization drops unknown expand values, so the number
+     * of entries is bounded by the combinations of known filter names. Options with a sparse fieldset or languages are
+     * not shared, as the field names and language codes come from the client as such.
+     */
+    private static final Map<FilterOptions, FilterModifier> FILTER_MODIFIERS = new ConcurrentHashMap<>();
+
+    private Executor responseWriterExecutor;
+
+    @Inject
+    void setResponseWriterExecutor(@Named("responseWriterExecutor") final Executor responseWriterExecutor) {
+        this.responseWriterExecutor = responseWriterExecutor;
+    }
 
-    public SimpleFilterProvider createSimpleFilterProvider(final String baseFilter,
-                                                           final String expand) {
-        final List<String> baseFilters = new ArrayList<>();
-        baseFilters.add(baseFilter);
-        return createSimpleFilterProvider(baseFilters, expand);
+    public FilterOptions createFilterOptions(final String baseFilter,
+                                             final String expand,
+                                             final String fields,
+                                             final String lang) {
+        return FilterOptions.of(baseFilter, expand, fields, lang);
     }
 
-    public SimpleFilterProvider createSimpleFilterProvider(final List<String> baseFilters,
-                                                           final String expand) {
+    static FilterModifier getFilterModifier(final FilterOptions filterOptions) {
+        if (filterOptions.hasFields() || filterOptions.hasLanguages()) {
+            return new FilterModifier(createSimpleFilterProvider(filterOptions));
+        }
+        return FILTER_MODIFIERS.computeIfAbsent(filterOptions, options -> new FilterModifier(createSimpleFilterProvider(options)));
+    }
+
+    private static SimpleFilterProvider createSimpleFilterProvider(final FilterOptions filterOptions) {
         final SimpleFilterProvider filterProvider = new SimpleFilterProvider();
         filterProvider.addFilter(FILTER_NAME_CODEREGISTRY, SimpleBeanPropertyFilter.filterOutAllExcept(FIELD_NAME_URI));
         filterProvider.addFilter(FILTER_NAME_CODESCHEME, SimpleBeanPropertyFilter.filterOutAllExcept(FIELD_NAME_URI));
@@ -67,12 +132,17 @@ abstract class AbstractBaseResource {
         filterProvider.addFilter(FILTER_NAME_DATACLASSIFICATION, SimpleBeanPropertyFilter.filterOutAllExcept(FIELD_NAME_URI));
         filterProvider.addFilter(FILTER_NAME_ORGANIZATION, SimpleBeanPropertyFilter.filterOutAllExcept(FIELD_NAME_ID));
         filterProvider.setFailOnUnknownId(false);
-        for (final String baseFilter : baseFilters) {
-            filterProvider.removeFilter(baseFilter);
+        for (final String baseFilter : filterOptions.getBaseFilters()) {
+            if (filterOptions.hasFields() || filterOptions.hasLanguages()) {
+                filterProvider.addFilter(baseFilter, new LocalizedPropertyFilter(filterOptions.hasFields() ? filterOptions.getFields() : null, filterOptions));
+            } else {
+                filterProvider.removeFilter(baseFilter);
+            }
         }
-        if (expand != null && !expand.isEmpty()) {
-            final List<String> filterOptions = Arrays.asList(expand.split(","));
-            for (final String filter : filterOptions) {
+        for (final String filter : filterOptions.getExpand()) {
+            if (filterOptions.hasLanguages()) {
+                filterProvider.addFilter(filter, new LocalizedPropertyFilter(null, filterOptions));
+            } else {
                 filterProvider.removeFilter(filter);
             }
         }
@@ -89,451 +159,359 @@ abstract class AbstractBaseResource {
         return Response.status(Response.Status.NOT_FOUND).entity(error).type(MediaType.APPLICATION_JSON_TYPE).build();
     }
 
-    public List<String> parseStatus(final String statusCsl) {
-        final Set<String> statusSet = new HashSet<>();
-        if (statusCsl != null) {
-            for (final String s : Arrays.asList(statusCsl.split(","))) {
-                final Status status = Status.valueOf(s.toUpperCase().trim());
-                statusSet.add(status.toString());
+    /**
+     * Resumes the suspended response when the future completes. Jersey writes the response on the resuming thread,
+     * so the response is resumed on the response writer executor instead of the thread that completed the future,
+     * and the filter modifier is injected on that thread. When the writer queue is full, the request is answered
+     * with 503 Service Unavailable.
+     *
+     * @param asyncResponse  The suspended response.
+     * @param future         Future that completes with the response to be written.
+     * @param filterOptions  Filter options for JSON serialization, or null for non-JSON content.
+     */
+    void resume(final AsyncResponse asyncResponse,
+                final CompletableFuture<Response> future,
+                final FilterOptions filterOptions) {
+        future.whenComplete((response, throwable) -> {
+            try {
+                responseWriterExecutor.execute(() -> write(asyncResponse, response, throwable, filterOptions));
+            } catch (final RejectedExecutionException e) {
+                asyncResponse.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE).build());
             }
-        }
-        return new ArrayList<String>(statusSet);
+        });
     }
 
-    public List<String> parseDataClassifications(final String dataClassificationCsl) {
-        final Set<String> dataClassificationsSet = new HashSet<>();
-        if (dataClassificationCsl != null) {
-            for (final String s : Arrays.asList(dataClassificationCsl.split(","))) {
-                dataClassificationsSet.add(s.toUpperCase().trim());
+    private static void write(final AsyncResponse asyncResponse,
+                              final Response response,
+                              final Throwable throwable,
+                              final FilterOptions filterOptions) {
+        if (filterOptions != null) {
+            ObjectWriterInjector.set(getFilterModifier(filterOptions));
+        }
+        try {
+            if (throwable != null) {
+                asyncResponse.resume(throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable);
+            } else {
+                asyncResponse.resume(response);
             }
+        } finally {
+            ObjectWriterInjector.getAndClear();
         }
-        return new ArrayList<String>(dataClassificationsSet);
     }
 
-    public void logApiRequest(final Logger logger,
-                              final String method,
-                              final String apiVersionPath,
-                              final String apiPath) {
-        logger.info(method + " " + apiVersionPath + apiPath + " requested!");
-    }
-
-    public void appendNotNull(final StringBuilder builder,
-                              final String string) {
-        if (string != null) {
-            builder.append(string);
+    /**
+     * Parses the cursor query parameter into the codeValue and id sort values used for search_after.
+     *
+     * @param cursor The cursor from the request, may be null.
+     * @return The sort values, or null if no cursor was given.
+     */
+    public Object[] parseCursor(final String cursor) {
+        try {
+            return CursorUtils.decodeCursor(cursor, 2);
+        } catch (final IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
         }
     }
 
-    private Set<String> resolveCodeRegistryPrefLabelLanguages(final Set<CodeRegistry> registries) {
-        final Set<String> languages = new LinkedHashSet<>();
-        for (final CodeRegistry registry : registries) {
-            final Map<String, String> prefLabel = registry.getPrefLabel();
-            languages.addAll(prefLabel.keySet());
-        }
-        return languages;
+    /**
+     * Returns true if a page is full and more results may follow it.
+     */
+    boolean hasNextPage(final Integer pageSize,
+                        final Integer from,
+                        final String cursor,
+                        final SourceHits hits,
+                        final Meta meta) {
+        return pageSize != null && hits != null && hits.size() == pageSize && (cursor != null || from + pageSize < meta.getTotalResults());
     }
 
-    private Set<String> resolveCodeRegistryDefinitionLanguages(final Set<CodeRegistry> registries) {
-        final Set<String> languages = new LinkedHashSet<>();
-        for (final CodeRegistry registry : registries) {
-            final Map<String, String> definition = registry.getDefinition();
-            languages.addAll(definition.keySet());
-        }
-        return languages;
+    /**
+     * Creates a listing response that copies the source documents of the hits directly to the client. The listing is
+     * written as JSON, Smile or CBOR depending on the negotiated content type.
+     *
+     * @param objectMapper  The object mapper used for the meta block.
+     * @param meta          The response meta.
+     * @param hits          The source hits of the page.
+     * @param filterOptions Filter options applied to the meta block and the copied documents.
+     * @return The listing response.
+     */
+    Response createSourceListingResponse(final ObjectMapper objectMapper,
+                                         final Meta meta,
+                                         final SourceHits hits,
+                                         final FilterOptions filterOptions) {
+        return Response.ok(new SourceListingOutput(createMetaWriter(objectMapper, filterOptions), meta, hits.getSources(), filterOptions)).build();
     }
 
-    public String constructRegistersCsv(final Set<CodeRegistry> registries) {
-        final Set<String> prefLabelLanguages = resolveCodeRegistryPrefLabelLanguages(registries);
-        final Set<String> definitionLanguages = resolveCodeRegistryDefinitionLanguages(registries);
-        final String csvSeparator = ",";
-        final StringBuilder csv = new StringBuilder();
-        appendValue(csv, csvSeparator, CONTENT_HEADER_CODEVALUE);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_ID);
-        prefLabelLanguages.forEach(language -> {
-            appendValue(csv, csvSeparator, CONTENT_HEADER_PREFLABEL_PREFIX + language.toUpperCase());
-        });
-        definitionLanguages.forEach(language -> {
-            appendValue(csv, csvSeparator, CONTENT_HEADER_DEFINITION_PREFIX + language.toUpperCase());
-        });
-        csv.append("\n");
-        for (final CodeRegistry codeRegistry : registries) {
-            appendValue(csv, csvSeparator, codeRegistry.getCodeValue());
-            appendValue(csv, csvSeparator, codeRegistry.getId().toString());
-            prefLabelLanguages.forEach(language -> {
-                appendValue(csv, csvSeparator, codeRegistry.getPrefLabel().get(language));
-            });
-            definitionLanguages.forEach(language -> {
-                appendValue(csv, csvSeparator, codeRegistry.getDefinition().get(language));
-            });
-            csv.append("\n");
-        }
-        return csv.toString();
+    /**
+     * Creates the writer for the meta block of responses whose documents are copied from their sources.
+     */
+    ObjectWriter createMetaWriter(final ObjectMapper objectMapper,
+                                  final FilterOptions filterOptions) {
+        return objectMapper.writer(getFilterModifier(filterOptions).provider);
     }
 
-    public Workbook constructRegistriesExcel(final String format,
-                                             final Set<CodeRegistry> registries) {
-        final Workbook workbook = createWorkBook(format);
-        final Set<String> prefLabelLanguages = resolveCodeRegistryPrefLabelLanguages(registries);
-        final Set<String> definitionLanguages = resolveCodeRegistryDefinitionLanguages(registries);
-        final Sheet sheet = workbook.createSheet(EXCEL_SHEET_CODEREGISTRIES);
-        final Row rowhead = sheet.createRow((short) 0);
-        int j = 0;
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_CODEVALUE);
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_ID);
-        for (final String language : prefLabelLanguages) {
-            rowhead.createCell(j++).setCellValue(CONTENT_HEADER_PREFLABEL_PREFIX + language.toUpperCase());
-        }
-        for (final String language : definitionLanguages) {
-            rowhead.createCell(j++).setCellValue(CONTENT_HEADER_DEFINITION_PREFIX + language.toUpperCase());
-        }
-        int i = 1;
-        for (final CodeRegistry codeRegistry : registries) {
-            final Row row = sheet.createRow(i++);
-            int k = 0;
-            row.createCell(k++).setCellValue(checkEmptyValue(codeRegistry.getCodeValue()));
-            row.createCell(k++).setCellValue(checkEmptyValue(codeRegistry.getId().toString()));
-            for (final String language : prefLabelLanguages) {
-                row.createCell(k++).setCellValue(codeRegistry.getPrefLabel().get(language));
+    /**
+     * Answers a conditional GET with 304 Not Modified when the content version satisfies the preconditions of the
+     * request, otherwise builds the response and tags it with the ETag and Last-Modified of the version.
+     *
+     * The version is resolved before the content, so content that changes in between is tagged with an older version
+     * and is simply transferred again on the next request.
+     *
+     * @param request        The request carrying the preconditions.
+     * @param uriInfo        The request URI, which selects the representation.
+     * @param version        Future that completes with the content version, or null if the content does not exist.
+     * @param createResponse Builds the full response from the content version when it is needed.
+     * @return Future that completes with the response.
+     */
+    CompletableFuture<Response> createConditionalResponse(final Request request,
+                                                          final UriInfo uriInfo,
+                                                          final CompletableFuture<ContentVersion> version,
+                                                          final Function<ContentVersion, CompletableFuture<Response>> createResponse) {
+        return version.thenCompose(contentVersion -> {
+            if (contentVersion == null) {
+                return createResponse.apply(null);
             }
-            for (final String language : definitionLanguages) {
-                row.createCell(k++).setCellValue(codeRegistry.getDefinition().get(language));
+            final EntityTag entityTag = createEntityTag(request, uriInfo, contentVersion);
+            final Response notModified = evaluatePreconditions(request, entityTag, contentVersion.getLastModified());
+            if (notModified != null) {
+                return CompletableFuture.completedFuture(notModified);
             }
-        }
-        return workbook;
+            return createResponse.apply(contentVersion).thenApply(response -> tagResponse(response, entityTag, contentVersion.getLastModified()));
+        });
     }
 
-    private Set<String> resolveCodeSchemePrefLabelLanguages(final Set<CodeScheme> codeSchemes) {
-        final Set<String> languages = new LinkedHashSet<>();
-        for (final CodeScheme codeScheme : codeSchemes) {
-            final Map<String, String> prefLabel = codeScheme.getPrefLabel();
-            languages.addAll(prefLabel.keySet());
-        }
-        return languages;
+    /**
+     * Creates a listing response from source hits that carry the version of the listing. A conditional request is
+     * validated with a separate version query first, so that an unchanged listing is answered with 304 without
+     * fetching it. Other requests fetch the listing right away and tag it with the version computed by the same
+     * search, so that validating is never paid for by requests that cannot use it.
+     *
+     * @param request        The request carrying the preconditions.
+     * @param headers        The request headers, which tell whether the request is conditional.
+     * @param uriInfo        The request URI, which selects the representation.
+     * @param version        Starts the version query, called only for conditional requests.
+     * @param sources        Starts the listing search.
+     * @param createResponse Builds the response from the source hits, which are null if the parent does not exist.
+     * @return Future that completes with the response.
+     */
+    CompletableFuture<Response> createConditionalListingResponse(final Request request,
+                                                                 final HttpHeaders headers,
+                                                                 final UriInfo uriInfo,
+                                                                 final Supplier<CompletableFuture<ContentVersion>> version,
+                                                                 final Supplier<CompletableFuture<SourceHits>> sources,
+                                                                 final Function<SourceHits, Response> createResponse) {
+        if (isConditional(headers)) {
+            return createConditionalResponse(request, uriInfo, version.get(), contentVersion -> sources.get().thenApply(createResponse));
+        }
+        return sources.get().thenApply(hits -> {
+            final Response response = createResponse.apply(hits);
+            if (hits == null || hits.getVersion() == null) {
+                return response;
+            }
+            return tagResponse(response, createEntityTag(request, uriInfo, hits.getVersion()), hits.getVersion().getLastModified());
+        });
     }
 
-    private Set<String> resolveCodeSchemeDefinitionLanguages(final Set<CodeScheme> codeSchemes) {
-        final Set<String> languages = new LinkedHashSet<>();
-        for (final CodeScheme codeScheme : codeSchemes) {
-            final Map<String, String> definition = codeScheme.getDefinition();
-            languages.addAll(definition.keySet());
-        }
-        return languages;
+    /**
+     * Returns true if the request has preconditions to evaluate.
+     */
+    static boolean isConditional(final HttpHeaders headers) {
+        return headers.getHeaderString(HttpHeaders.IF_NONE_MATCH) != null ||
+            headers.getHeaderString(HttpHeaders.IF_MODIFIED_SINCE) != null ||
+            headers.getHeaderString(HttpHeaders.IF_MATCH) != null ||
+            headers.getHeaderString(HttpHeaders.IF_UNMODIFIED_SINCE) != null;
     }
 
-    private Set<String> resolveCodeSchemeDescriptionLanguages(final Set<CodeScheme> codeSchemes) {
-        final Set<String> languages = new LinkedHashSet<>();
-        for (final CodeScheme codeScheme : codeSchemes) {
-            final Map<String, String> description = codeScheme.getDescription();
-            languages.addAll(description.keySet());
-        }
-        return languages;
+    /**
+     * Creates the response for a single entity, answering a conditional GET with 304 Not Modified when the entity has
+     * not changed.
+     *
+     * @param request The request carrying the preconditions.
+     * @param uriInfo The request URI, which selects the representation.
+     * @param entity  The entity, or null if it does not exist.
+     * @param version The version of the entity.
+     * @return The response.
+     */
+    Response createConditionalEntityResponse(final Request request,
+                                             final UriInfo uriInfo,
+                                             final Object entity,
+                                             final ContentVersion version) {
+        if (entity == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        final EntityTag entityTag = createEntityTag(request, uriInfo, version);
+        final Response notModified = evaluatePreconditions(request, entityTag, version.getLastModified());
+        if (notModified != null) {
+            return notModified;
+        }
+        return tagResponse(Response.ok(entity).build(), entityTag, version.getLastModified());
     }
 
-    private Set<String> resolveCodeSchemeChangeNoteLanguages(final Set<CodeScheme> codeSchemes) {
-        final Set<String> languages = new LinkedHashSet<>();
-        for (final CodeScheme codeScheme : codeSchemes) {
-            final Map<String, String> changeNote = codeScheme.getChangeNote();
-            languages.addAll(changeNote.keySet());
+    /**
+     * Creates a strong entity tag from the content version, the path and sorted query parameters of the request and the
+     * content type negotiated from its Accept header, so that every representation of the same content has its own tag.
+     */
+    static EntityTag createEntityTag(final Request request,
+                                     final UriInfo uriInfo,
+                                     final ContentVersion version) {
+        final StringBuilder variant = new StringBuilder(uriInfo.getPath(false));
+        new TreeMap<>(uriInfo.getQueryParameters(false)).forEach((name, values) -> values.forEach(value -> variant.append('&').append(name).append('=').append(value)));
+        final Variant negotiated = request.selectVariant(NEGOTIATED_VARIANTS);
+        variant.append('#').append(negotiated != null ? negotiated.getMediaType() : "");
+        variant.append('#').append(version.getFingerprint());
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(variant.toString().getBytes(StandardCharsets.UTF_8));
+            return new EntityTag(Base64.getUrlEncoder().withoutPadding().encodeToString(digest));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
-        return languages;
     }
 
-    public String constructCodeSchemesCsv(final Set<CodeScheme> codeSchemes) {
-        final Set<String> prefLabelLanguages = resolveCodeSchemePrefLabelLanguages(codeSchemes);
-        final Set<String> definitionLanguages = resolveCodeSchemeDefinitionLanguages(codeSchemes);
-        final Set<String> descriptionLanguages = resolveCodeSchemeDescriptionLanguages(codeSchemes);
-        final Set<String> changeNoteLanguages = resolveCodeSchemeChangeNoteLanguages(codeSchemes);
-        final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-        final String csvSeparator = ",";
-        final StringBuilder csv = new StringBuilder();
-        appendValue(csv, csvSeparator, CONTENT_HEADER_CODEVALUE);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_ID);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_CLASSIFICATION);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_VERSION);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_STATUS);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_SOURCE);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_LEGALBASE);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_GOVERNANCEPOLICY);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_LICENSE);
-        prefLabelLanguages.forEach(language -> {
-            appendValue(csv, csvSeparator, CONTENT_HEADER_PREFLABEL_PREFIX + language.toUpperCase());
-        });
-        definitionLanguages.forEach(language -> {
-            appendValue(csv, csvSeparator, CONTENT_HEADER_DEFINITION_PREFIX + language.toUpperCase());
-        });
-        descriptionLanguages.forEach(language -> {
-            appendValue(csv, csvSeparator, CONTENT_HEADER_DESCRIPTION_PREFIX + language.toUpperCase());
-        });
-        changeNoteLanguages.forEach(language -> {
-            appendValue(csv, csvSeparator, CONTENT_HEADER_CHANGENOTE_PREFIX + language.toUpperCase());
-        });
-        appendValue(csv, csvSeparator, CONTENT_HEADER_STARTDATE);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_ENDDATE, true);
-        for (final CodeScheme codeScheme : codeSchemes) {
-            appendValue(csv, csvSeparator, codeScheme.getCodeValue());
-            appendValue(csv, csvSeparator, codeScheme.getId().toString());
-            appendValue(csv, csvSeparator, formatDataClassificationsToString(codeScheme.getDataClassifications()));
-            appendValue(csv, csvSeparator, codeScheme.getVersion());
-            appendValue(csv, csvSeparator, codeScheme.getStatus());
-            appendValue(csv, csvSeparator, codeScheme.getSource());
-            appendValue(csv, csvSeparator, codeScheme.getLegalBase());
-            appendValue(csv, csvSeparator, codeScheme.getGovernancePolicy());
-            appendValue(csv, csvSeparator, codeScheme.getLicense());
-            prefLabelLanguages.forEach(language -> {
-                appendValue(csv, csvSeparator, codeScheme.getPrefLabel().get(language));
-            });
-            definitionLanguages.forEach(language -> {
-                appendValue(csv, csvSeparator, codeScheme.getDefinition().get(language));
-            });
-            descriptionLanguages.forEach(language -> {
-                appendValue(csv, csvSeparator, codeScheme.getDescription().get(language));
-            });
-            changeNoteLanguages.forEach(language -> {
-                appendValue(csv, csvSeparator, codeScheme.getChangeNote().get(language));
-            });
-            appendValue(csv, csvSeparator, codeScheme.getStartDate() != null ? dateFormat.format(codeScheme.getStartDate()) : "");
-            appendValue(csv, csvSeparator, codeScheme.getEndDate() != null ? dateFormat.format(codeScheme.getEndDate()) : "", true);
-        }
-        return csv.toString();
+    /**
+     * Creates a response that sends a materialized export, or the single byte range requested with a Range header. A
+     * Range header with several ranges is answered with the whole file, as is a range whose If-Range does not match the
+     * current entity tag. Clients accepting gzip are sent the compressed copy of the file when there is one and no
+     * range was requested.
+     *
+     * @param export         The export to send.
+     * @param range          The Range header, may be null.
+     * @param ifRange        The If-Range header, may be null.
+     * @param acceptEncoding The Accept-Encoding header, may be null.
+     * @param entityTag      The entity tag of the current content.
+     * @return The response builder.
+     */
+    Response.ResponseBuilder createFileResponse(final ExportMaterializer.MaterializedExport export,
+                                                final String range,
+                                                final String ifRange,
+                                                final String acceptEncoding,
+                                                final EntityTag entityTag) {
+        if (export.getCompressedFile() == null) {
+            return createFileResponse(export.getFile(), export.getLength(), range, ifRange, entityTag);
+        }
+        if (range == null && acceptsGzip(acceptEncoding)) {
+            return Response.ok(new FileRegionOutput(export.getCompressedFile(), 0, export.getCompressedLength()))
+                .header(HttpHeaders.CONTENT_LENGTH, export.getCompressedLength())
+                .header(HttpHeaders.CONTENT_ENCODING, ENCODING_GZIP)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        return createFileResponse(export.getFile(), export.getLength(), range, ifRange, entityTag).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
     }
 
-    public Workbook createWorkBook(final String format) {
-        if (FORMAT_EXCEL_XLSX.equals(format)) {
-            return new XSSFWorkbook();
-        } else {
-            return new HSSFWorkbook();
-        }
-    }
-
-    public Workbook constructCodeSchemesExcel(final String format,
-                                              final Set<CodeScheme> codeSchemes) {
-        final Workbook workbook = createWorkBook(format);
-        final Set<String> prefLabelLanguages = resolveCodeSchemePrefLabelLanguages(codeSchemes);
-        final Set<String> definitionLanguages = resolveCodeSchemeDefinitionLanguages(codeSchemes);
-        final Set<String> descriptionLanguages = resolveCodeSchemeDescriptionLanguages(codeSchemes);
-        final Set<String> changeNoteLanguages = resolveCodeSchemeChangeNoteLanguages(codeSchemes);
-        final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-        final Sheet sheet = workbook.createSheet(EXCEL_SHEET_CODESCHEMES);
-        final Row rowhead = sheet.createRow((short) 0);
-        int j = 0;
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_CODEVALUE);
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_ID);
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_CLASSIFICATION);
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_VERSION);
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_STATUS);
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_SOURCE);
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_LEGALBASE);
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_GOVERNANCEPOLICY);
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_LICENSE);
-        for (final String language : prefLabelLanguages) {
-            rowhead.createCell(j++).setCellValue(CONTENT_HEADER_PREFLABEL_PREFIX + language.toUpperCase());
-        }
-        for (final String language : definitionLanguages) {
-            rowhead.createCell(j++).setCellValue(CONTENT_HEADER_DEFINITION_PREFIX + language.toUpperCase());
-        }
-        for (final String language : descriptionLanguages) {
-            rowhead.createCell(j++).setCellValue(CONTENT_HEADER_DESCRIPTION_PREFIX + language.toUpperCase());
-        }
-        for (final String language : changeNoteLanguages) {
-            rowhead.createCell(j++).setCellValue(CONTENT_HEADER_CHANGENOTE_PREFIX + language.toUpperCase());
-        }
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_STARTDATE);
-        rowhead.createCell(j).setCellValue(CONTENT_HEADER_ENDDATE);
-        int i = 1;
-        for (final CodeScheme codeScheme : codeSchemes) {
-            final Row row = sheet.createRow(i++);
-            int k = 0;
-            row.createCell(k++).setCellValue(checkEmptyValue(codeScheme.getCodeValue()));
-            row.createCell(k++).setCellValue(checkEmptyValue(codeScheme.getId().toString()));
-            row.createCell(k++).setCellValue(checkEmptyValue(formatDataClassificationsToString(codeScheme.getDataClassifications())));
-            row.createCell(k++).setCellValue(checkEmptyValue(codeScheme.getVersion()));
-            row.createCell(k++).setCellValue(checkEmptyValue(codeScheme.getStatus()));
-            row.createCell(k++).setCellValue(checkEmptyValue(codeScheme.getSource()));
-            row.createCell(k++).setCellValue(checkEmptyValue(codeScheme.getLegalBase()));
-            row.createCell(k++).setCellValue(checkEmptyValue(codeScheme.getGovernancePolicy()));
-            row.createCell(k++).setCellValue(checkEmptyValue(codeScheme.getLicense()));
-            for (final String language : prefLabelLanguages) {
-                row.createCell(k++).setCellValue(codeScheme.getPrefLabel().get(language));
-            }
-            for (final String language : definitionLanguages) {
-                row.createCell(k++).setCellValue(codeScheme.getDefinition().get(language));
+    static Response.ResponseBuilder createFileResponse(final Path file,
+                                                       final long length,
+                                                       final String range,
+                                                       final String ifRange,
+                                                       final EntityTag entityTag) {
+        final Matcher matcher = range != null && (ifRange == null || ifRange.trim().equals(entityTag.toString())) ? BYTE_RANGE.matcher(range.trim()) : null;
+        if (matcher == null || !matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+            return createFullFileResponse(file, length);
+        }
+        final long start;
+        long end = length - 1;
+        try {
+            if (matcher.group(1).isEmpty()) {
+                start = Math.max(0, length - Long.parseLong(matcher.group(2)));
+            } else {
+                start = Long.parseLong(matcher.group(1));
+                if (!matcher.group(2).isEmpty()) {
+                    end = Math.min(end, Long.parseLong(matcher.group(2)));
+                }
             }
-            for (final String language : descriptionLanguages) {
-                row.createCell(k++).setCellValue(codeScheme.getDescription().get(language));
-            }
-            for (final String language : changeNoteLanguages) {
-                row.createCell(k++).setCellValue(codeScheme.getChangeNote().get(language));
-            }
-            row.createCell(k++).setCellValue(codeScheme.getStartDate() != null ? dateFormat.format(codeScheme.getStartDate()) : "");
-            row.createCell(k).setCellValue(codeScheme.getEndDate() != null ? dateFormat.format(codeScheme.getEndDate()) : "");
-        }
-        return workbook;
+        } catch (final NumberFormatException e) {
+            return createFullFileResponse(file, length);
+        }
+        if (start >= length || start > end) {
+            return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .header(HEADER_CONTENT_RANGE, "bytes */" + length);
+        }
+        return Response.status(Response.Status.PARTIAL_CONTENT)
+            .entity(new FileRegionOutput(file, start, end - start + 1))
+            .header(HttpHeaders.CONTENT_LENGTH, end - start + 1)
+            .header(HEADER_CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length)
+            .header(HEADER_ACCEPT_RANGES, "bytes");
     }
 
-    private Set<String> resolveCodePrefLabelLanguages(final Set<Code> codes) {
-        final Set<String> languages = new LinkedHashSet<>();
-        for (final Code code : codes) {
-            final Map<String, String> prefLabel = code.getPrefLabel();
-            languages.addAll(prefLabel.keySet());
-        }
-        return languages;
+    private static Response.ResponseBuilder createFullFileResponse(final Path file,
+                                                                   final long length) {
+        return Response.ok(new FileRegionOutput(file, 0, length))
+            .header(HttpHeaders.CONTENT_LENGTH, length)
+            .header(HEADER_ACCEPT_RANGES, "bytes");
     }
 
-    private Set<String> resolveCodeDefinitionLanguages(final Set<Code> codes) {
-        final Set<String> languages = new LinkedHashSet<>();
-        for (final Code code : codes) {
-            final Map<String, String> definition = code.getDefinition();
-            languages.addAll(definition.keySet());
+    private static Response evaluatePreconditions(final Request request,
+                                                  final EntityTag entityTag,
+                                                  final Date lastModified) {
+        final Response.ResponseBuilder notModified = lastModified != null ? request.evaluatePreconditions(lastModified, entityTag) : request.evaluatePreconditions(entityTag);
+        if (notModified == null) {
+            return null;
         }
-        return languages;
+        return addVaryAccept(notModified.tag(entityTag).lastModified(lastModified).build());
     }
 
-    private Set<String> resolveCodeDescriptionLanguages(final Set<Code> codes) {
-        final Set<String> languages = new LinkedHashSet<>();
-        for (final Code code : codes) {
-            final Map<String, String> description = code.getDescription();
-            languages.addAll(description.keySet());
+    private static Response tagResponse(final Response response,
+                                        final EntityTag entityTag,
+                                        final Date lastModified) {
+        if (response.getStatus() != Response.Status.OK.getStatusCode() && response.getStatus() != Response.Status.PARTIAL_CONTENT.getStatusCode()) {
+            return response;
         }
-        return languages;
+        return addVaryAccept(Response.fromResponse(response).tag(entityTag).lastModified(lastModified).build());
     }
 
-    public String constructCodesCsv(final Set<Code> codes) {
-        final Map<UUID, String> codeValueIdMap = new HashMap<>();
-        for (final Code code : codes) {
-            codeValueIdMap.put(code.getId(), code.getCodeValue());
-        }
-        final Set<String> prefLabelLanguages = resolveCodePrefLabelLanguages(codes);
-        final Set<String> definitionLanguages = resolveCodeDefinitionLanguages(codes);
-        final Set<String> descriptionLanguages = resolveCodeDescriptionLanguages(codes);
-        final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-        final String csvSeparator = ",";
-        final StringBuilder csv = new StringBuilder();
-        appendValue(csv, csvSeparator, CONTENT_HEADER_CODEVALUE);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_BROADER);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_ID);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_STATUS);
-        prefLabelLanguages.forEach(language -> {
-            appendValue(csv, csvSeparator, CONTENT_HEADER_PREFLABEL_PREFIX + language.toUpperCase());
-        });
-        definitionLanguages.forEach(language -> {
-            appendValue(csv, csvSeparator, CONTENT_HEADER_DEFINITION_PREFIX + language.toUpperCase());
-        });
-        descriptionLanguages.forEach(language -> {
-            appendValue(csv, csvSeparator, CONTENT_HEADER_DESCRIPTION_PREFIX + language.toUpperCase());
-        });
-        appendValue(csv, csvSeparator, CONTENT_HEADER_SHORTNAME);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_HIERARCHYLEVEL);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_STARTDATE);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_ENDDATE, true);
-        for (final Code code : codes) {
-            appendValue(csv, csvSeparator, code.getCodeValue());
-            appendValue(csv, csvSeparator, codeValueIdMap.get(code.getBroaderCodeId()));
-            appendValue(csv, csvSeparator, code.getId().toString());
-            appendValue(csv, csvSeparator, code.getStatus());
-            prefLabelLanguages.forEach(language -> {
-                appendValue(csv, csvSeparator, code.getPrefLabel().get(language));
-            });
-            definitionLanguages.forEach(language -> {
-                appendValue(csv, csvSeparator, code.getDefinition().get(language));
-            });
-            descriptionLanguages.forEach(language -> {
-                appendValue(csv, csvSeparator, code.getDescription().get(language));
-            });
-            appendValue(csv, csvSeparator, code.getShortName());
-            appendValue(csv, csvSeparator, code.getHierarchyLevel());
-            appendValue(csv, csvSeparator, code.getStartDate() != null ? dateFormat.format(code.getStartDate()) : "");
-            appendValue(csv, csvSeparator, code.getEndDate() != null ? dateFormat.format(code.getEndDate()) : "", true);
+    /**
+     * Adds Accept to the Vary header of a tagged response, since its entity tag depends on the negotiated content type.
+     */
+    private static Response addVaryAccept(final Response response) {
+        final String vary = response.getHeaderString(HttpHeaders.VARY);
+        if (vary == null || vary.isEmpty()) {
+            return Response.fromResponse(response).header(HttpHeaders.VARY, HttpHeaders.ACCEPT).build();
+        }
+        for (final String header : vary.split(",")) {
+            if (HttpHeaders.ACCEPT.equalsIgnoreCase(header.trim())) {
+                return response;
+            }
         }
-        return csv.toString();
+        return Response.fromResponse(response).header(HttpHeaders.VARY, null).header(HttpHeaders.VARY, HttpHeaders.ACCEPT + ", " + vary).build();
     }
 
-    public Workbook constructCodesExcel(final String format,
-                                        final Set<Code> codes) {
-        final Map<UUID, String> codeValueIdMap = new HashMap<>();
-        for (final Code code : codes) {
-            codeValueIdMap.put(code.getId(), code.getCodeValue());
-        }
-        final Workbook workbook = createWorkBook(format);
-        final Set<String> prefLabelLanguages = resolveCodePrefLabelLanguages(codes);
-        final Set<String> definitionLanguages = resolveCodeDefinitionLanguages(codes);
-        final Set<String> descriptionLanguages = resolveCodeDescriptionLanguages(codes);
-        final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-        final Sheet sheet = workbook.createSheet(EXCEL_SHEET_CODES);
-        final Row rowhead = sheet.createRow((short) 0);
-        int j = 0;
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_CODEVALUE);
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_BROADER);
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_ID);
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_STATUS);
-        for (final String language : prefLabelLanguages) {
-            rowhead.createCell(j++).setCellValue(CONTENT_HEADER_PREFLABEL_PREFIX + language.toUpperCase());
-        }
-        for (final String language : definitionLanguages) {
-            rowhead.createCell(j++).setCellValue(CONTENT_HEADER_DEFINITION_PREFIX + language.toUpperCase());
-        }
-        for (final String language : descriptionLanguages) {
-            rowhead.createCell(j++).setCellValue(CONTENT_HEADER_DESCRIPTION_PREFIX + language.toUpperCase());
-        }
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_SHORTNAME);
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_HIERARCHYLEVEL);
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_STARTDATE);
-        rowhead.createCell(j).setCellValue(CONTENT_HEADER_ENDDATE);
-        int i = 1;
-        for (final Code code : codes) {
-            final Row row = sheet.createRow(i++);
-            int k = 0;
-            row.createCell(k++).setCellValue(code.getCodeValue());
-            row.createCell(k++).setCellValue(checkEmptyValue(codeValueIdMap.get(code.getBroaderCodeId())));
-            row.createCell(k++).setCellValue(code.getId().toString());
-            row.createCell(k++).setCellValue(code.getStatus());
-            for (final String language : prefLabelLanguages) {
-                row.createCell(k++).setCellValue(code.getPrefLabel().get(language));
-            }
-            for (final String language : definitionLanguages) {
-                row.createCell(k++).setCellValue(code.getDefinition().get(language));
-            }
-            for (final String language : descriptionLanguages) {
-                row.createCell(k++).setCellValue(code.getDescription().get(language));
+    public List<String> parseStatus(final String statusCsl) {
+        final Set<String> statusSet = new HashSet<>();
+        if (statusCsl != null) {
+            for (final String s : Arrays.asList(statusCsl.split(","))) {
+                final Status status = Status.valueOf(s.toUpperCase().trim());
+                statusSet.add(status.toString());
             }
-            row.createCell(k++).setCellValue(checkEmptyValue(code.getShortName()));
-            row.createCell(k++).setCellValue(checkEmptyValue(code.getHierarchyLevel()));
-            row.createCell(k++).setCellValue(code.getStartDate() != null ? dateFormat.format(code.getStartDate()) : "");
-            row.createCell(k).setCellValue(code.getEndDate() != null ? dateFormat.format(code.getEndDate()) : "");
         }
-        return workbook;
+        return new ArrayList<String>(statusSet);
     }
 
-    public String checkEmptyValue(final String value) {
-        if (value == null) {
-            return "";
+    public List<String> parseDataClassifications(final String dataClassificationCsl) {
+        final Set<String> dataClassificationsSet = new HashSet<>();
+        if (dataClassificationCsl != null) {
+            for (final String s : Arrays.asList(dataClassificationCsl.split(","))) {
+                dataClassificationsSet.add(s.toUpperCase().trim());
+            }
         }
-        return value;
+        return new ArrayList<String>(dataClassificationsSet);
     }
 
-    public void appendValue(final StringBuilder builder, final String separator, final String value) {
-        appendValue(builder, separator, value, false);
+    public void logApiRequest(final Logger logger,
+                              final String method,
+                              final String apiVersionPath,
+                              final String apiPath) {
+        logger.info(method + " " + apiVersionPath + apiPath + " requested!");
     }
 
-    private void appendValue(final StringBuilder builder, final String separator, final String value, final boolean isLast) {
-        if (value != null && (value.contains(",") || value.contains("\n"))) {
-            builder.append("\"");
-            builder.append(checkEmptyValue(value));
-            builder.append("\"");
-        } else {
-            builder.append(checkEmptyValue(value));
-        }
-        if (isLast) {
-            builder.append("\n");
-        } else {
-            builder.append(separator);
+    public void appendNotNull(final StringBuilder builder,
+                              final String string) {
+        if (string != null) {
+            builder.append(string);
         }
     }
 
     public String createDownloadFilename(final String format,
                                          final String filename) {
-        if (FORMAT_EXCEL.equalsIgnoreCase(format) || FORMAT_EXCEL_XLS.equalsIgnoreCase(format)) {
+        if (FORMAT_EXCEL_XLS.equalsIgnoreCase(format)) {
             return filename + "." + FORMAT_EXCEL_XLS;
-        } else if (FORMAT_EXCEL_XLSX.equalsIgnoreCase(format)) {
+        } else if (FORMAT_EXCEL.equalsIgnoreCase(format) || FORMAT_EXCEL_XLSX.equalsIgnoreCase(format)) {
             return filename + "." + FORMAT_EXCEL_XLSX;
         } else {
             return filename + "." + FORMAT_CSV;
@@ -557,18 +535,4 @@ abstract class AbstractBaseResource {
             return w.with(provider);
         }
     }
-
-    private String formatDataClassificationsToString(final Set<Code> classifications) {
-        final StringBuilder csvClassifications = new StringBuilder();
-        int i = 0;
-        for (final Code code : classifications) {
-            i++;
-            csvClassifications.append(code.getCodeValue().trim());
-            if (i < classifications.size()) {
-                csvClassifications.append(";");
-            }
-            i++;
-        }
-        return csvClassifications.toString();
-    }
 }
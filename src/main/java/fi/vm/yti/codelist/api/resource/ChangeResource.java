@@ -0,0 +1,138 @@
+package fi.vm.yti.codelist.api.resource;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fi.vm.yti.codelist.api.api.ApiUtils;
+import fi.vm.yti.codelist.api.api.ChangeFeedOutput;
+import fi.vm.yti.codelist.api.api.ErrorWrapper;
+import fi.vm.yti.codelist.api.api.FilterOptions;
+import fi.vm.yti.codelist.api.domain.AsyncDomain;
+import fi.vm.yti.codelist.api.domain.DeletionTracker;
+import fi.vm.yti.codelist.api.domain.Domain;
+import fi.vm.yti.codelist.api.util.CursorUtils;
+import fi.vm.yti.codelist.common.model.Meta;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
+import io.swagger.annotations.ApiResponse;
+import static fi.vm.yti.codelist.common.constants.ApiConstants.API_PATH_VERSION_V1;
+import static fi.vm.yti.codelist.common.constants.ApiConstants.API_VERSION;
+import static fi.vm.yti.codelist.common.constants.ApiConstants.METHOD_GET;
+
+/**
+ * REST resources for the changes feed, which lists the modified and deleted CodeRegistries, CodeSchemes, Codes,
+ * PropertyTypes and ExternalReferences in one sequence, so that mirrors can be kept in sync incrementally.
+ *
+ * Changes are ordered by their modified or deletion time and id, and each page ends with a cursor that the next
+ * request continues from. Changes newer than the settle time are held back, so that documents which are not yet
+ * searchable are not skipped by a cursor that has already moved past their modified time. A cursor from before the
+ * deletion tracking horizon, or one issued by another node whose deletion tracker has different tombstones, is
+ * answered with 410 Gone, and the client must sync again from the beginning.
+ */
+@Component
+@Path("/v1/changes")
+@Api(value = "changes")
+@Produces(MediaType.APPLICATION_JSON + ";charset=UTF-8")
+public class ChangeResource extends AbstractBaseResource {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeResource.class);
+    private static final String API_PATH_CHANGES = "/changes";
+    private final ApiUtils apiUtils;
+    private final Domain domain;
+    private final AsyncDomain asyncDomain;
+    private final DeletionTracker deletionTracker;
+    private final ObjectMapper objectMapper;
+    private final int defaultPageSize;
+    private final int maxPageSize;
+    private final long settleMillis;
+
+    @Inject
+    public ChangeResource(final ApiUtils apiUtils,
+                          final Domain domain,
+                          final AsyncDomain asyncDomain,
+                          final DeletionTracker deletionTracker,
+                          final ObjectMapper objectMapper,
+                          @Value("${application.changes.defaultPageSize:1000}") final int defaultPageSize,
+                          @Value("${application.changes.maxPageSize:10000}") final int maxPageSize,
+                          @Value("${application.changes.settleSeconds:30}") final long settleSeconds) {
+        this.apiUtils = apiUtils;
+        this.domain = domain;
+        this.asyncDomain = asyncDomain;
+        this.deletionTracker = deletionTracker;
+        this.objectMapper = objectMapper;
+        this.defaultPageSize = defaultPageSize;
+        this.maxPageSize = maxPageSize;
+        this.settleMillis = TimeUnit.SECONDS.toMillis(settleSeconds);
+    }
+
+    @GET
+    @ApiOperation(value = "Return the changes after the cursor across all content types, including deletions.")
+    @ApiResponse(code = 200, message = "Returns a page of changes and the cursor to continue from, or 410 if the cursor is too old.")
+    public void getChanges(@ApiParam(value = "Pagination parameter for page size.") @QueryParam("pageSize") final Integer pageSize,
+                           @ApiParam(value = "Cursor from the previous page, omit to start from the beginning.") @QueryParam("cursor") final String cursor,
+                           @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand,
+                           @ApiParam(value = "Filter string (csl) for the fields included in the response.") @QueryParam("fields") final String fields,
+                           @ApiParam(value = "Language codes (csl) in order of preference for localized values.") @QueryParam("lang") final String lang,
+                           @Suspended final AsyncResponse asyncResponse) {
+        logApiRequest(LOG, METHOD_GET, API_PATH_VERSION_V1, API_PATH_CHANGES + "/");
+        final long readAt = System.currentTimeMillis();
+        final Object[] cursorValues = parseChangesCursor(cursor);
+        if (cursorValues != null && !deletionTracker.canResume(((Number) cursorValues[3]).longValue(), ((Number) cursorValues[2]).longValue(), ((Number) cursorValues[0]).longValue())) {
+            resume(asyncResponse, CompletableFuture.completedFuture(createGoneResponse()), null);
+            return;
+        }
+        final int limit = pageSize != null && pageSize > 0 ? Math.min(pageSize, maxPageSize) : defaultPageSize;
+        final FilterOptions filterOptions = FilterOptions.of(Collections.emptyList(), expand, fields, lang);
+        final ChangeFeedOutput output = new ChangeFeedOutput(domain, deletionTracker, createMetaWriter(objectMapper, filterOptions), filterOptions,
+            filterOptions.getSourceExcludes(asyncDomain.getIndexedLanguages()), limit, cursorValues != null ? new Object[]{ cursorValues[0], cursorValues[1] } : null,
+            readAt, new Date(readAt - settleMillis), nextCursor -> apiUtils.createNextPageCursorUrl(API_VERSION, API_PATH_CHANGES, null, limit, nextCursor));
+        resume(asyncResponse, CompletableFuture.completedFuture(Response.ok(output).type(MediaType.APPLICATION_JSON + ";charset=UTF-8").build()), null);
+    }
+
+    /**
+     * Parses a changes cursor into the modified timestamp and id of the last change, the time of the read and the epoch
+     * of the deletion tracker.
+     */
+    private static Object[] parseChangesCursor(final String cursor) {
+        final Object[] cursorValues;
+        try {
+            cursorValues = CursorUtils.decodeCursor(cursor, 4);
+        } catch (final IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+        if (cursorValues != null && (!(cursorValues[0] instanceof Number) || !(cursorValues[1] instanceof String) || !(cursorValues[2] instanceof Number) || !(cursorValues[3] instanceof Number))) {
+            throw new BadRequestException("Malformed cursor: " + cursor);
+        }
+        return cursorValues;
+    }
+
+    private static Response createGoneResponse() {
+        final ErrorWrapper error = new ErrorWrapper();
+        final Meta meta = new Meta();
+        meta.setCode(Response.Status.GONE.getStatusCode());
+        meta.setMessage("Deletions after the cursor are no longer known, sync again without a cursor.");
+        error.setMeta(meta);
+        return Response.status(Response.Status.GONE).entity(error).type(MediaType.APPLICATION_JSON_TYPE).build();
+    }
+}
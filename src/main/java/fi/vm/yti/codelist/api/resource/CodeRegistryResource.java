@@ -1,35 +1,45 @@
 package fi.vm.yti.codelist.api.resource;
 
-import java.nio.charset.StandardCharsets;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 import javax.inject.Inject;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
 
-import org.apache.poi.ss.usermodel.Workbook;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
-import com.fasterxml.jackson.jaxrs.cfg.ObjectWriterInjector;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import fi.vm.yti.codelist.api.api.ApiUtils;
+import fi.vm.yti.codelist.api.api.FilterOptions;
 import fi.vm.yti.codelist.api.api.ResponseWrapper;
-import fi.vm.yti.codelist.api.domain.Domain;
+import fi.vm.yti.codelist.api.domain.AsyncDomain;
+import fi.vm.yti.codelist.api.domain.ContentVersion;
+import fi.vm.yti.codelist.api.export.ExportMaterializer;
+import fi.vm.yti.codelist.api.export.ExportService;
+import fi.vm.yti.codelist.api.util.CursorUtils;
 import fi.vm.yti.codelist.common.model.Code;
 import fi.vm.yti.codelist.common.model.CodeRegistry;
 import fi.vm.yti.codelist.common.model.CodeScheme;
-import fi.vm.yti.codelist.common.model.ExternalReference;
 import fi.vm.yti.codelist.common.model.Meta;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -44,65 +54,90 @@ import static java.util.Arrays.asList;
 @Component
 @Path("/v1/coderegistries")
 @Api(value = "coderegistries")
-@Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", "application/xlsx", "application/csv"})
+@Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", AbstractBaseResource.MEDIA_TYPE_SMILE, AbstractBaseResource.MEDIA_TYPE_CBOR, "application/xlsx", "application/csv"})
 public class CodeRegistryResource extends AbstractBaseResource {
 
     private static final Logger LOG = LoggerFactory.getLogger(CodeRegistryResource.class);
     private final ApiUtils apiUtils;
-    private final Domain domain;
+    private final AsyncDomain domain;
+    private final ExportService exportService;
+    private final ExportMaterializer exportMaterializer;
+    private final ObjectMapper objectMapper;
 
     @Inject
     public CodeRegistryResource(final ApiUtils apiUtils,
-                                final Domain domain) {
+                                final AsyncDomain domain,
+                                final ExportService exportService,
+                                final ExportMaterializer exportMaterializer,
+                                final ObjectMapper objectMapper) {
         this.apiUtils = apiUtils;
         this.domain = domain;
+        this.exportService = exportService;
+        this.exportMaterializer = exportMaterializer;
+        this.objectMapper = objectMapper;
     }
 
     @GET
     @ApiOperation(value = "Return a list of available CodeRegistries.", response = CodeRegistry.class, responseContainer = "List")
     @ApiResponse(code = 200, message = "Returns all CodeRegistries in specified format.")
-    @Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", "application/xlsx", "application/csv"})
-    public Response getCodeRegistries(@ApiParam(value = "Pagination parameter for page size.") @QueryParam("pageSize") final Integer pageSize,
-                                      @ApiParam(value = "Pagination parameter for start index.") @QueryParam("from") @DefaultValue("0") final Integer from,
-                                      @ApiParam(value = "CodeRegistry CodeValue as string value.") @QueryParam("codeValue") final String codeRegistryCodeValue,
-                                      @ApiParam(value = "CodeRegistry name as string value.") @QueryParam("name") final String name,
-                                      @ApiParam(value = "Format for content.") @QueryParam("format") @DefaultValue(FORMAT_JSON) final String format,
-                                      @ApiParam(value = "After date filtering parameter, results will be codes with modified date after this ISO 8601 formatted date string.") @QueryParam("after") final String after,
-                                      @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand,
-                                      @ApiParam(value = "Organizations filtering parameter, results will be registries belonging to these organizations") @QueryParam("organizations") final String organizationsCsv) {
+    @Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", MEDIA_TYPE_SMILE, MEDIA_TYPE_CBOR, "application/xlsx", "application/csv", MEDIA_TYPE_NDJSON})
+    public void getCodeRegistries(@ApiParam(value = "Pagination parameter for page size.") @QueryParam("pageSize") final Integer pageSize,
+                                  @ApiParam(value = "Pagination parameter for start index.") @QueryParam("from") @DefaultValue("0") final Integer from,
+                                  @ApiParam(value = "CodeRegistry CodeValue as string value.") @QueryParam("codeValue") final String codeRegistryCodeValue,
+                                  @ApiParam(value = "CodeRegistry name as string value.") @QueryParam("name") final String name,
+                                  @ApiParam(value = "Format for content.") @QueryParam("format") @DefaultValue(FORMAT_JSON) final String format,
+                                  @ApiParam(value = "After date filtering parameter, results will be codes with modified date after this ISO 8601 formatted date string.") @QueryParam("after") final String after,
+                                  @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand,
+                                  @ApiParam(value = "Filter string (csl) for the fields included in the response.") @QueryParam("fields") final String fields,
+                                  @ApiParam(value = "Language codes (csl) in order of preference for localized values.") @QueryParam("lang") final String lang,
+                                  @ApiParam(value = "Organizations filtering parameter, results will be registries belonging to these organizations") @QueryParam("organizations") final String organizationsCsv,
+                                  @ApiParam(value = "Pagination cursor from the nextPage link of the previous page, takes precedence over from.") @QueryParam("cursor") final String cursor,
+                                  @Context final Request request,
+                                  @Context final HttpHeaders headers,
+                                  @Context final UriInfo uriInfo,
+                                  @Suspended final AsyncResponse asyncResponse) {
         logApiRequest(LOG, METHOD_GET, API_PATH_VERSION_V1, API_PATH_CODEREGISTRIES);
         final List<String> organizations = organizationsCsv == null ? null : asList(organizationsCsv.split(","));
-        if (FORMAT_CSV.equalsIgnoreCase(format)) {
-            final Set<CodeRegistry> codeRegistries = domain.getCodeRegistries(pageSize, from, codeRegistryCodeValue, name, Meta.parseAfterFromString(after), null, organizations);
-            final String csv = constructRegistersCsv(codeRegistries);
+        final Object[] searchAfter = parseCursor(cursor);
+        final Supplier<CompletableFuture<ContentVersion>> version = () -> domain.getCodeRegistriesVersion(codeRegistryCodeValue, name, Meta.parseAfterFromString(after), organizations);
+        if (FORMAT_NDJSON.equalsIgnoreCase(format)) {
+            final FilterOptions filterOptions = createFilterOptions(FILTER_NAME_CODEREGISTRY, expand, fields, lang);
             final StreamingOutput stream = output -> {
                 try {
-                    output.write(csv.getBytes(StandardCharsets.UTF_8));
+                    exportService.writeCodeRegistriesNdjson(output, pageSize, from, searchAfter, codeRegistryCodeValue, name, Meta.parseAfterFromString(after), organizations, filterOptions);
                 } catch (final Exception e) {
                     throw new WebApplicationException(e);
                 }
             };
-            return Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODEREGISTRIES)).build();
+            resume(asyncResponse, createConditionalResponse(request, uriInfo, version.get(), contentVersion -> CompletableFuture.completedFuture(Response.ok(stream, MEDIA_TYPE_NDJSON).build())), null);
+        } else if (FORMAT_CSV.equalsIgnoreCase(format)) {
+            final StreamingOutput stream = output -> {
+                try {
+                    exportService.writeCodeRegistriesCsv(output, pageSize, from, searchAfter, codeRegistryCodeValue, name, Meta.parseAfterFromString(after), organizations, FilterOptions.parseLanguages(lang));
+                } catch (final Exception e) {
+                    throw new WebApplicationException(e);
+                }
+            };
+            resume(asyncResponse, createConditionalResponse(request, uriInfo, version.get(), contentVersion -> CompletableFuture.completedFuture(Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODEREGISTRIES)).build())), null);
         } else if (FORMAT_EXCEL.equalsIgnoreCase(format) || FORMAT_EXCEL_XLS.equalsIgnoreCase(format) || FORMAT_EXCEL_XLSX.equalsIgnoreCase(format)) {
-            final Set<CodeRegistry> codeRegistries = domain.getCodeRegistries(pageSize, from, codeRegistryCodeValue, name, Meta.parseAfterFromString(after), null, organizations);
-            final Workbook workbook = constructRegistriesExcel(format, codeRegistries);
             final StreamingOutput stream = output -> {
                 try {
-                    workbook.write(output);
+                    exportService.writeCodeRegistriesExcel(output, format, pageSize, from, searchAfter, codeRegistryCodeValue, name, Meta.parseAfterFromString(after), organizations, FilterOptions.parseLanguages(lang));
                 } catch (final Exception e) {
                     throw new WebApplicationException(e);
                 }
             };
-            return Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODEREGISTRIES)).build();
+            resume(asyncResponse, createConditionalResponse(request, uriInfo, version.get(), contentVersion -> CompletableFuture.completedFuture(Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODEREGISTRIES)).build())), null);
         } else {
             final Meta meta = new Meta(200, null, null, after);
-            ObjectWriterInjector.set(new AbstractBaseResource.FilterModifier(createSimpleFilterProvider(FILTER_NAME_CODEREGISTRY, expand)));
-            final Set<CodeRegistry> codeRegistries = domain.getCodeRegistries(pageSize, from, codeRegistryCodeValue, name, meta.getAfter(), meta, organizations);
-            meta.setResultCount(codeRegistries.size());
-            final ResponseWrapper<CodeRegistry> wrapper = new ResponseWrapper<>();
-            wrapper.setResults(codeRegistries);
-            wrapper.setMeta(meta);
-            return Response.ok(wrapper).build();
+            final FilterOptions filterOptions = createFilterOptions(FILTER_NAME_CODEREGISTRY, expand, fields, lang);
+            resume(asyncResponse, createConditionalListingResponse(request, headers, uriInfo, version, () -> domain.getCodeRegistrySources(pageSize, from, codeRegistryCodeValue, name, meta.getAfter(), searchAfter, meta, organizations, filterOptions.getSourceIncludes(), filterOptions.getSourceExcludes(domain.getIndexedLanguages())), hits -> {
+                meta.setResultCount(hits.size());
+                if (hasNextPage(pageSize, from, cursor, hits, meta)) {
+                    meta.setNextPage(apiUtils.createNextPageCursorUrl(API_VERSION, API_PATH_CODEREGISTRIES, after, pageSize, CursorUtils.encodeCursor(hits.getLastSortValues())));
+                }
+                return createSourceListingResponse(objectMapper, meta, hits, filterOptions);
+            }), filterOptions);
         }
     }
 
@@ -110,222 +145,297 @@ public class CodeRegistryResource extends AbstractBaseResource {
     @Path("{codeRegistryCodeValue}")
     @ApiOperation(value = "Return one specific CodeRegistry.", response = CodeRegistry.class, responseContainer = "List")
     @ApiResponse(code = 200, message = "Returns one specific CodeRegistry in JSON format.")
-    @Produces(MediaType.APPLICATION_JSON + ";charset=UTF-8")
-    public Response getCodeRegistry(@ApiParam(value = "CodeRegistry CodeValue.", required = true) @PathParam("codeRegistryCodeValue") final String codeRegistryCodeValue,
-                                    @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand) {
+    @Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", MEDIA_TYPE_SMILE, MEDIA_TYPE_CBOR})
+    public void getCodeRegistry(@ApiParam(value = "CodeRegistry CodeValue.", required = true) @PathParam("codeRegistryCodeValue") final String codeRegistryCodeValue,
+                                @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand,
+                                @ApiParam(value = "Filter string (csl) for the fields included in the response.") @QueryParam("fields") final String fields,
+                                @ApiParam(value = "Language codes (csl) in order of preference for localized values.") @QueryParam("lang") final String lang,
+                                @Context final Request request,
+                                @Context final UriInfo uriInfo,
+                                @Suspended final AsyncResponse asyncResponse) {
         logApiRequest(LOG, METHOD_GET, API_PATH_VERSION_V1, API_PATH_CODEREGISTRIES + "/" + codeRegistryCodeValue + "/");
-        ObjectWriterInjector.set(new AbstractBaseResource.FilterModifier(createSimpleFilterProvider(FILTER_NAME_CODEREGISTRY, expand)));
-        final CodeRegistry codeRegistry = domain.getCodeRegistry(codeRegistryCodeValue);
-        if (codeRegistry != null) {
-            return Response.ok(codeRegistry).build();
-        } else {
-            return Response.status(Response.Status.NOT_FOUND).build();
-        }
+        resume(asyncResponse, domain.getCodeRegistry(codeRegistryCodeValue).thenApply(codeRegistry -> {
+            if (codeRegistry != null) {
+                return createConditionalEntityResponse(request, uriInfo, codeRegistry, ContentVersion.forEntity(codeRegistry.getId(), codeRegistry.getModified()));
+            } else {
+                return Response.status(Response.Status.NOT_FOUND).build();
+            }
+        }), createFilterOptions(FILTER_NAME_CODEREGISTRY, expand, fields, lang));
     }
 
     @GET
     @Path("{codeRegistryCodeValue}/codeschemes")
     @ApiOperation(value = "Return CodeSchemes for a CodeRegistry.", response = CodeRegistry.class, responseContainer = "List")
     @ApiResponse(code = 200, message = "Returns CodeSchemes for a CodeRegistry in specified format.")
-    @Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", "application/xlsx", "application/csv"})
-    public Response getCodeRegistryCodeSchemes(@ApiParam(value = "CodeRegistry CodeValue.", required = true) @PathParam("codeRegistryCodeValue") final String codeRegistryCodeValue,
-                                               @ApiParam(value = "Pagination parameter for page size.") @QueryParam("pageSize") final Integer pageSize,
-                                               @ApiParam(value = "Pagination parameter for start index.") @QueryParam("from") @DefaultValue("0") final Integer from,
-                                               @ApiParam(value = "Service classifications in CSL format.") @QueryParam("dataClassification") final String dataClassification,
-                                               @ApiParam(value = "CodeRegistry PrefLabel as string value for searching.") @QueryParam("codeRegistryPrefLabel") final String codeRegistryPrefLabel,
-                                               @ApiParam(value = "CodeScheme codeValue as string value for searching.") @QueryParam("codeValue") final String codeSchemeCodeValue,
-                                               @ApiParam(value = "CodeScheme PrefLabel as string value for searching.") @QueryParam("prefLabel") final String codeSchemePrefLabel,
-                                               @ApiParam(value = "Status enumerations in CSL format.") @QueryParam("status") final String status,
-                                               @ApiParam(value = "Format for content.") @QueryParam("format") @DefaultValue(FORMAT_JSON) final String format,
-                                               @ApiParam(value = "After date filtering parameter, results will be codes with modified date after this ISO 8601 formatted date string.") @QueryParam("after") final String after,
-                                               @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand) {
+    @Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", MEDIA_TYPE_SMILE, MEDIA_TYPE_CBOR, "application/xlsx", "application/csv", MEDIA_TYPE_NDJSON})
+    public void getCodeRegistryCodeSchemes(@ApiParam(value = "CodeRegistry CodeValue.", required = true) @PathParam("codeRegistryCodeValue") final String codeRegistryCodeValue,
+                                           @ApiParam(value = "Pagination parameter for page size.") @QueryParam("pageSize") final Integer pageSize,
+                                           @ApiParam(value = "Pagination parameter for start index.") @QueryParam("from") @DefaultValue("0") final Integer from,
+                                           @ApiParam(value = "Service classifications in CSL format.") @QueryParam("dataClassification") final String dataClassification,
+                                           @ApiParam(value = "CodeRegistry PrefLabel as string value for searching.") @QueryParam("codeRegistryPrefLabel") final String codeRegistryPrefLabel,
+                                           @ApiParam(value = "CodeScheme codeValue as string value for searching.") @QueryParam("codeValue") final String codeSchemeCodeValue,
+                                           @ApiParam(value = "CodeScheme PrefLabel as string value for searching.") @QueryParam("prefLabel") final String codeSchemePrefLabel,
+                                           @ApiParam(value = "Status enumerations in CSL format.") @QueryParam("status") final String status,
+                                           @ApiParam(value = "Format for content.") @QueryParam("format") @DefaultValue(FORMAT_JSON) final String format,
+                                           @ApiParam(value = "After date filtering parameter, results will be codes with modified date after this ISO 8601 formatted date string.") @QueryParam("after") final String after,
+                                           @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand,
+                                           @ApiParam(value = "Filter string (csl) for the fields included in the response.") @QueryParam("fields") final String fields,
+                                           @ApiParam(value = "Language codes (csl) in order of preference for localized values.") @QueryParam("lang") final String lang,
+                                           @ApiParam(value = "Pagination cursor from the nextPage link of the previous page, takes precedence over from.") @QueryParam("cursor") final String cursor,
+                                           @HeaderParam(HEADER_RANGE) final String range,
+                                           @HeaderParam(HEADER_IF_RANGE) final String ifRange,
+                                           @HeaderParam(HttpHeaders.ACCEPT_ENCODING) final String acceptEncoding,
+                                           @Context final Request request,
+                                           @Context final HttpHeaders headers,
+                                           @Context final UriInfo uriInfo,
+                                           @Suspended final AsyncResponse asyncResponse) {
         logApiRequest(LOG, METHOD_GET, API_PATH_VERSION_V1, API_PATH_CODEREGISTRIES + "/" + codeRegistryCodeValue + API_PATH_CODESCHEMES + "/");
         final Meta meta = new Meta(200, null, null, after);
         final List<String> dataClassificationList = parseDataClassifications(dataClassification);
         final List<String> statusList = parseStatus(status);
-        final CodeRegistry codeRegistry = domain.getCodeRegistry(codeRegistryCodeValue);
-        if (codeRegistry != null) {
-            if (FORMAT_CSV.startsWith(format.toLowerCase())) {
-                final Set<CodeScheme> codeSchemes = domain.getCodeSchemes(pageSize, from, null, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statusList, dataClassificationList, Meta.parseAfterFromString(after), null);
-                final String csv = constructCodeSchemesCsv(codeSchemes);
+        final Object[] searchAfter = parseCursor(cursor);
+        final boolean ndjson = FORMAT_NDJSON.equalsIgnoreCase(format);
+        final boolean json = !ndjson && !FORMAT_CSV.startsWith(format.toLowerCase()) && !(FORMAT_EXCEL.equalsIgnoreCase(format) || FORMAT_EXCEL_XLS.equalsIgnoreCase(format) || FORMAT_EXCEL_XLSX.equalsIgnoreCase(format));
+        final Supplier<CompletableFuture<ContentVersion>> version = () -> domain.getCodeRegistryCodeSchemesVersion(codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statusList, dataClassificationList, meta.getAfter());
+        if (json) {
+            final FilterOptions filterOptions = createFilterOptions(FILTER_NAME_CODESCHEME, expand, fields, lang);
+            resume(asyncResponse, createConditionalListingResponse(request, headers, uriInfo, version, () -> domain.getCodeRegistryCodeSchemeSources(pageSize, from, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statusList, dataClassificationList, meta.getAfter(), searchAfter, meta, filterOptions.getSourceIncludes(), filterOptions.getSourceExcludes(domain.getIndexedLanguages())), hits -> {
+                if (hits == null) {
+                    final ResponseWrapper<CodeScheme> wrapper = new ResponseWrapper<>();
+                    wrapper.setMeta(meta);
+                    meta.setCode(404);
+                    meta.setMessage("No such resource.");
+                    return Response.status(Response.Status.NOT_FOUND).entity(wrapper).build();
+                }
+                meta.setResultCount(hits.size());
+                if (hasNextPage(pageSize, from, cursor, hits, meta)) {
+                    meta.setNextPage(apiUtils.createNextPageCursorUrl(API_VERSION, API_PATH_CODEREGISTRIES + "/" + codeRegistryCodeValue + API_PATH_CODESCHEMES, after, pageSize, CursorUtils.encodeCursor(hits.getLastSortValues())));
+                }
+                return createSourceListingResponse(objectMapper, meta, hits, filterOptions);
+            }), filterOptions);
+            return;
+        }
+        final boolean fullExport = pageSize == null && from == 0 && cursor == null && dataClassification == null && codeRegistryPrefLabel == null && codeSchemeCodeValue == null && codeSchemePrefLabel == null && status == null && after == null && lang == null;
+        resume(asyncResponse, createConditionalResponse(request, uriInfo, version.get(), contentVersion -> {
+            if (contentVersion == null) {
+                final ResponseWrapper<CodeScheme> wrapper = new ResponseWrapper<>();
+                wrapper.setMeta(meta);
+                meta.setCode(404);
+                meta.setMessage("No such resource.");
+                return CompletableFuture.completedFuture(Response.status(Response.Status.NOT_FOUND).entity(wrapper).build());
+            }
+            final ExportMaterializer.MaterializedExport export = fullExport ? exportMaterializer.find(ExportMaterializer.KIND_CODESCHEMES, codeRegistryCodeValue, null, format, contentVersion) : null;
+            if (export != null) {
+                return CompletableFuture.completedFuture(createFileResponse(export, range, ifRange, acceptEncoding, createEntityTag(request, uriInfo, contentVersion)).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODESCHEMES)).build());
+            }
+            if (ndjson) {
+                final FilterOptions filterOptions = createFilterOptions(FILTER_NAME_CODESCHEME, expand, fields, lang);
                 final StreamingOutput stream = output -> {
                     try {
-                        output.write(csv.getBytes(StandardCharsets.UTF_8));
+                        exportService.writeCodeSchemesNdjson(output, pageSize, from, searchAfter, null, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statusList, dataClassificationList, Meta.parseAfterFromString(after), filterOptions);
                     } catch (final Exception e) {
                         throw new WebApplicationException(e);
                     }
                 };
-                return Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODESCHEMES)).build();
-            } else if (FORMAT_EXCEL.equalsIgnoreCase(format) || FORMAT_EXCEL_XLS.equalsIgnoreCase(format) || FORMAT_EXCEL_XLSX.equalsIgnoreCase(format)) {
-                final Set<CodeScheme> codeSchemes = domain.getCodeSchemes(pageSize, from, null, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statusList, dataClassificationList, Meta.parseAfterFromString(after), null);
-                final Workbook workbook = constructCodeSchemesExcel(format, codeSchemes);
+                return CompletableFuture.completedFuture(Response.ok(stream, MEDIA_TYPE_NDJSON).build());
+            } else if (FORMAT_CSV.startsWith(format.toLowerCase())) {
                 final StreamingOutput stream = output -> {
                     try {
-                        workbook.write(output);
+                        exportService.writeCodeSchemesCsv(output, pageSize, from, searchAfter, null, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statusList, dataClassificationList, Meta.parseAfterFromString(after), FilterOptions.parseLanguages(lang));
                     } catch (final Exception e) {
                         throw new WebApplicationException(e);
                     }
                 };
-                return Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODESCHEMES)).build();
+                return CompletableFuture.completedFuture(Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODESCHEMES)).build());
             } else {
-                ObjectWriterInjector.set(new AbstractBaseResource.FilterModifier(createSimpleFilterProvider(FILTER_NAME_CODESCHEME, expand)));
-                final Set<CodeScheme> codeSchemes = domain.getCodeSchemes(pageSize, from, null, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statusList, dataClassificationList, meta.getAfter(), meta);
-                meta.setResultCount(codeSchemes.size());
-                final ResponseWrapper<CodeScheme> wrapper = new ResponseWrapper<>();
-                wrapper.setResults(codeSchemes);
-                wrapper.setMeta(meta);
-                return Response.ok(wrapper).build();
+                final StreamingOutput stream = output -> {
+                    try {
+                        exportService.writeCodeSchemesExcel(output, format, pageSize, from, searchAfter, null, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statusList, dataClassificationList, Meta.parseAfterFromString(after), FilterOptions.parseLanguages(lang));
+                    } catch (final Exception e) {
+                        throw new WebApplicationException(e);
+                    }
+                };
+                return CompletableFuture.completedFuture(Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODESCHEMES)).build());
             }
-        } else {
-            final ResponseWrapper<CodeScheme> wrapper = new ResponseWrapper<>();
-            wrapper.setMeta(meta);
-            meta.setCode(404);
-            meta.setMessage("No such resource.");
-            return Response.status(Response.Status.NOT_FOUND).entity(wrapper).build();
-        }
+        }), null);
     }
 
     @GET
     @Path("{codeRegistryCodeValue}/codeschemes/{codeSchemeCodeValue}")
     @ApiOperation(value = "Return one specific CodeScheme.", response = CodeScheme.class)
     @ApiResponse(code = 200, message = "Returns one specific CodeScheme in JSON format.")
-    @Produces(MediaType.APPLICATION_JSON + ";charset=UTF-8")
-    public Response getCodeRegistryCodeScheme(@ApiParam(value = "CodeRegistry CodeValue.", required = true) @PathParam("codeRegistryCodeValue") final String codeRegistryCodeValue,
-                                              @ApiParam(value = "CodeScheme CodeValue.", required = true) @PathParam("codeSchemeCodeValue") final String codeSchemeCodeValue,
-                                              @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand) {
+    @Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", MEDIA_TYPE_SMILE, MEDIA_TYPE_CBOR})
+    public void getCodeRegistryCodeScheme(@ApiParam(value = "CodeRegistry CodeValue.", required = true) @PathParam("codeRegistryCodeValue") final String codeRegistryCodeValue,
+                                          @ApiParam(value = "CodeScheme CodeValue.", required = true) @PathParam("codeSchemeCodeValue") final String codeSchemeCodeValue,
+                                          @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand,
+                                          @ApiParam(value = "Filter string (csl) for the fields included in the response.") @QueryParam("fields") final String fields,
+                                          @ApiParam(value = "Language codes (csl) in order of preference for localized values.") @QueryParam("lang") final String lang,
+                                          @Context final Request request,
+                                          @Context final UriInfo uriInfo,
+                                          @Suspended final AsyncResponse asyncResponse) {
         logApiRequest(LOG, METHOD_GET, API_PATH_VERSION_V1, API_PATH_CODEREGISTRIES + "/" + codeRegistryCodeValue + API_PATH_CODESCHEMES + "/" + codeSchemeCodeValue + "/");
-        ObjectWriterInjector.set(new AbstractBaseResource.FilterModifier(createSimpleFilterProvider(FILTER_NAME_CODESCHEME, expand)));
-        final CodeRegistry codeRegistry = domain.getCodeRegistry(codeRegistryCodeValue);
-        if (codeRegistry != null) {
-            final CodeScheme codeScheme = domain.getCodeScheme(codeRegistryCodeValue, codeSchemeCodeValue);
-            return Response.ok(codeScheme).build();
-        } else {
-            return Response.status(Response.Status.NOT_FOUND).build();
-        }
+        resume(asyncResponse, domain.getCodeRegistry(codeRegistryCodeValue).thenCompose(codeRegistry -> {
+            if (codeRegistry != null) {
+                return domain.getCodeScheme(codeRegistryCodeValue, codeSchemeCodeValue).thenApply(codeScheme -> codeScheme != null ? createConditionalEntityResponse(request, uriInfo, codeScheme, ContentVersion.forEntity(codeScheme.getId(), codeScheme.getModified())) : Response.ok().build());
+            } else {
+                return CompletableFuture.completedFuture(Response.status(Response.Status.NOT_FOUND).build());
+            }
+        }), createFilterOptions(FILTER_NAME_CODESCHEME, expand, fields, lang));
     }
 
     @GET
     @Path("{codeRegistryCodeValue}/codeschemes/{codeSchemeCodeValue}/codes")
     @ApiOperation(value = "Return codes for a CodeScheme.", response = Code.class)
     @ApiResponse(code = 200, message = "Returns all Codes for CodeScheme in specified format.")
-    @Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", "application/xlsx", "application/csv"})
-    public Response getCodeRegistryCodeSchemeCodes(@ApiParam(value = "Pagination parameter for page size.") @QueryParam("pageSize") final Integer pageSize,
-                                                   @ApiParam(value = "Pagination parameter for start index.") @QueryParam("from") @DefaultValue("0") final Integer from,
-                                                   @ApiParam(value = "CodeRegistry CodeValue.", required = true) @PathParam("codeRegistryCodeValue") final String codeRegistryCodeValue,
-                                                   @ApiParam(value = "CodeScheme CodeValue.", required = true) @PathParam("codeSchemeCodeValue") final String codeSchemeCodeValue,
-                                                   @ApiParam(value = "Code code.") @QueryParam("codeValue") final String codeCodeValue,
-                                                   @ApiParam(value = "Code PrefLabel.") @QueryParam("prefLabel") final String prefLabel,
-                                                   @ApiParam(value = "Code Broader Code Id.") @QueryParam("broaderCodeId") final String broaderCodeId,
-                                                   @ApiParam(value = "Status enumerations in CSL format.") @QueryParam("status") final String status,
-                                                   @ApiParam(value = "Format for content.") @QueryParam("format") @DefaultValue(FORMAT_JSON) final String format,
-                                                   @ApiParam(value = "After date filtering parameter, results will be codes with modified date after this ISO 8601 formatted date string.") @QueryParam("after") final String after,
-                                                   @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand) {
+    @Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", MEDIA_TYPE_SMILE, MEDIA_TYPE_CBOR, "application/xlsx", "application/csv", MEDIA_TYPE_NDJSON})
+    public void getCodeRegistryCodeSchemeCodes(@ApiParam(value = "Pagination parameter for page size.") @QueryParam("pageSize") final Integer pageSize,
+                                               @ApiParam(value = "Pagination parameter for start index.") @QueryParam("from") @DefaultValue("0") final Integer from,
+                                               @ApiParam(value = "CodeRegistry CodeValue.", required = true) @PathParam("codeRegistryCodeValue") final String codeRegistryCodeValue,
+                                               @ApiParam(value = "CodeScheme CodeValue.", required = true) @PathParam("codeSchemeCodeValue") final String codeSchemeCodeValue,
+                                               @ApiParam(value = "Code code.") @QueryParam("codeValue") final String codeCodeValue,
+                                               @ApiParam(value = "Code PrefLabel.") @QueryParam("prefLabel") final String prefLabel,
+                                               @ApiParam(value = "Code Broader Code Id.") @QueryParam("broaderCodeId") final String broaderCodeId,
+                                               @ApiParam(value = "Status enumerations in CSL format.") @QueryParam("status") final String status,
+                                               @ApiParam(value = "Format for content.") @QueryParam("format") @DefaultValue(FORMAT_JSON) final String format,
+                                               @ApiParam(value = "After date filtering parameter, results will be codes with modified date after this ISO 8601 formatted date string.") @QueryParam("after") final String after,
+                                               @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand,
+                                               @ApiParam(value = "Filter string (csl) for the fields included in the response.") @QueryParam("fields") final String fields,
+                                               @ApiParam(value = "Language codes (csl) in order of preference for localized values.") @QueryParam("lang") final String lang,
+                                               @ApiParam(value = "Pagination cursor from the nextPage link of the previous page, takes precedence over from.") @QueryParam("cursor") final String cursor,
+                                               @HeaderParam(HEADER_RANGE) final String range,
+                                               @HeaderParam(HEADER_IF_RANGE) final String ifRange,
+                                               @HeaderParam(HttpHeaders.ACCEPT_ENCODING) final String acceptEncoding,
+                                               @Context final Request request,
+                                               @Context final HttpHeaders headers,
+                                               @Context final UriInfo uriInfo,
+                                               @Suspended final AsyncResponse asyncResponse) {
         logApiRequest(LOG, METHOD_GET, API_PATH_VERSION_V1, API_PATH_CODEREGISTRIES + "/" + codeRegistryCodeValue + API_PATH_CODESCHEMES + "/" + codeSchemeCodeValue + API_PATH_CODES + "/");
         final Meta meta = new Meta(Response.Status.OK.getStatusCode(), pageSize, from, after);
         final List<String> statusList = parseStatus(status);
-        final CodeScheme codeScheme = domain.getCodeScheme(codeRegistryCodeValue, codeSchemeCodeValue);
-        if (codeScheme != null) {
-            if (FORMAT_CSV.equalsIgnoreCase(format)) {
-                final Set<Code> codes = domain.getCodes(pageSize, from, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statusList, Meta.parseAfterFromString(after), null);
-                final String csv = constructCodesCsv(codes);
+        final Object[] searchAfter = parseCursor(cursor);
+        final boolean ndjson = FORMAT_NDJSON.equalsIgnoreCase(format);
+        final boolean json = !ndjson && !FORMAT_CSV.equalsIgnoreCase(format) && !(FORMAT_EXCEL.equalsIgnoreCase(format) || FORMAT_EXCEL_XLS.equalsIgnoreCase(format) || FORMAT_EXCEL_XLSX.equalsIgnoreCase(format));
+        final Supplier<CompletableFuture<ContentVersion>> version = () -> domain.getCodeSchemeCodesVersion(codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statusList, meta.getAfter());
+        if (json) {
+            final FilterOptions filterOptions = createFilterOptions(FILTER_NAME_CODE, expand, fields, lang);
+            resume(asyncResponse, createConditionalListingResponse(request, headers, uriInfo, version, () -> domain.getCodeSchemeCodeSources(pageSize, from, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statusList, meta.getAfter(), searchAfter, meta, filterOptions.getSourceIncludes(), filterOptions.getSourceExcludes(domain.getIndexedLanguages())), hits -> {
+                if (hits == null) {
+                    final ResponseWrapper<Code> wrapper = new ResponseWrapper<>();
+                    wrapper.setMeta(meta);
+                    meta.setCode(404);
+                    meta.setMessage("No such resource.");
+                    return Response.status(Response.Status.NOT_FOUND).entity(wrapper).build();
+                }
+                if (hasNextPage(pageSize, from, cursor, hits, meta)) {
+                    meta.setNextPage(apiUtils.createNextPageCursorUrl(API_VERSION, API_PATH_CODEREGISTRIES + "/" + codeRegistryCodeValue + API_PATH_CODESCHEMES + "/" + codeSchemeCodeValue + API_PATH_CODES, after, pageSize, CursorUtils.encodeCursor(hits.getLastSortValues())));
+                }
+                return createSourceListingResponse(objectMapper, meta, hits, filterOptions);
+            }), filterOptions);
+            return;
+        }
+        final boolean fullExport = pageSize == null && from == 0 && cursor == null && codeCodeValue == null && prefLabel == null && broaderCodeId == null && status == null && after == null && lang == null;
+        resume(asyncResponse, createConditionalResponse(request, uriInfo, version.get(), contentVersion -> {
+            if (contentVersion == null) {
+                final ResponseWrapper<CodeScheme> wrapper = new ResponseWrapper<>();
+                wrapper.setMeta(meta);
+                meta.setCode(404);
+                meta.setMessage("No such resource.");
+                return CompletableFuture.completedFuture(Response.status(Response.Status.NOT_FOUND).entity(wrapper).build());
+            }
+            final ExportMaterializer.MaterializedExport export = fullExport ? exportMaterializer.find(ExportMaterializer.KIND_CODES, codeRegistryCodeValue, codeSchemeCodeValue, format, contentVersion) : null;
+            if (export != null) {
+                return CompletableFuture.completedFuture(createFileResponse(export, range, ifRange, acceptEncoding, createEntityTag(request, uriInfo, contentVersion)).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODES)).build());
+            }
+            if (ndjson) {
+                final FilterOptions filterOptions = createFilterOptions(FILTER_NAME_CODE, expand, fields, lang);
                 final StreamingOutput stream = output -> {
                     try {
-                        output.write(csv.getBytes(StandardCharsets.UTF_8));
+                        exportService.writeCodesNdjson(output, pageSize, from, searchAfter, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statusList, Meta.parseAfterFromString(after), filterOptions);
                     } catch (final Exception e) {
                         throw new WebApplicationException(e);
                     }
                 };
-                return Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODES)).build();
-            } else if (FORMAT_EXCEL.equalsIgnoreCase(format) || FORMAT_EXCEL_XLS.equalsIgnoreCase(format) || FORMAT_EXCEL_XLSX.equalsIgnoreCase(format)) {
-                final Set<Code> codes = domain.getCodes(pageSize, from, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statusList, Meta.parseAfterFromString(after), null);
-                final Workbook workbook = constructCodesExcel(format, codes);
+                return CompletableFuture.completedFuture(Response.ok(stream, MEDIA_TYPE_NDJSON).build());
+            } else if (FORMAT_CSV.equalsIgnoreCase(format)) {
                 final StreamingOutput stream = output -> {
                     try {
-                        workbook.write(output);
+                        exportService.writeCodesCsv(output, pageSize, from, searchAfter, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statusList, Meta.parseAfterFromString(after), FilterOptions.parseLanguages(lang));
                     } catch (final Exception e) {
                         throw new WebApplicationException(e);
                     }
                 };
-                return Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODES)).build();
+                return CompletableFuture.completedFuture(Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODES)).build());
             } else {
-                ObjectWriterInjector.set(new AbstractBaseResource.FilterModifier(createSimpleFilterProvider(FILTER_NAME_CODE, expand)));
-                final Set<Code> codes = domain.getCodes(pageSize, from, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statusList, meta.getAfter(), meta);
-                if (pageSize != null && from + pageSize < meta.getTotalResults()) {
-                    meta.setNextPage(apiUtils.createNextPageUrl(API_VERSION, API_PATH_CODEREGISTRIES + "/" + codeRegistryCodeValue + API_PATH_CODESCHEMES + "/" + codeSchemeCodeValue + API_PATH_CODES, after, pageSize, from + pageSize));
-                }
-                final ResponseWrapper<Code> wrapper = new ResponseWrapper<>();
-                wrapper.setMeta(meta);
-                if (codes == null) {
-                    meta.setCode(404);
-                    meta.setMessage("No such resource.");
-                    return Response.status(Response.Status.NOT_FOUND).entity(wrapper).build();
-                }
-                wrapper.setResults(codes);
-                return Response.ok(wrapper).build();
+                final StreamingOutput stream = output -> {
+                    try {
+                        exportService.writeCodesExcel(output, format, pageSize, from, searchAfter, codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue, prefLabel, broaderCodeId, statusList, Meta.parseAfterFromString(after), FilterOptions.parseLanguages(lang));
+                    } catch (final Exception e) {
+                        throw new WebApplicationException(e);
+                    }
+                };
+                return CompletableFuture.completedFuture(Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODES)).build());
             }
-        } else {
-            final ResponseWrapper<CodeScheme> wrapper = new ResponseWrapper<>();
-            wrapper.setMeta(meta);
-            meta.setCode(404);
-            meta.setMessage("No such resource.");
-            return Response.status(Response.Status.NOT_FOUND).entity(wrapper).build();
-        }
+        }), null);
     }
 
     @GET
     @Path("{codeRegistryCodeValue}/codeschemes/{codeSchemeCodeValue}/externalreferences")
     @ApiOperation(value = "Return codes for a CodeScheme.", response = Code.class)
     @ApiResponse(code = 200, message = "Returns all Codes for CodeScheme in specified format.")
-    @Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", "application/xlsx", "application/csv"})
-    public Response getCodeRegistryCodeSchemeExternalReferences(@ApiParam(value = "Pagination parameter for page size.") @QueryParam("pageSize") final Integer pageSize,
-                                                                @ApiParam(value = "Pagination parameter for start index.") @QueryParam("from") @DefaultValue("0") final Integer from,
-                                                                @ApiParam(value = "CodeRegistry CodeValue.", required = true) @PathParam("codeRegistryCodeValue") final String codeRegistryCodeValue,
-                                                                @ApiParam(value = "CodeScheme CodeValue.", required = true) @PathParam("codeSchemeCodeValue") final String codeSchemeCodeValue,
-                                                                @ApiParam(value = "ExternalReference PrefLabel.") @QueryParam("prefLabel") final String prefLabel,
-                                                                @ApiParam(value = "After date filtering parameter, results will be codes with modified date after this ISO 8601 formatted date string.") @QueryParam("after") final String after,
-                                                                @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand) {
+    @Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", MEDIA_TYPE_SMILE, MEDIA_TYPE_CBOR, "application/xlsx", "application/csv"})
+    public void getCodeRegistryCodeSchemeExternalReferences(@ApiParam(value = "Pagination parameter for page size.") @QueryParam("pageSize") final Integer pageSize,
+                                                            @ApiParam(value = "Pagination parameter for start index.") @QueryParam("from") @DefaultValue("0") final Integer from,
+                                                            @ApiParam(value = "CodeRegistry CodeValue.", required = true) @PathParam("codeRegistryCodeValue") final String codeRegistryCodeValue,
+                                                            @ApiParam(value = "CodeScheme CodeValue.", required = true) @PathParam("codeSchemeCodeValue") final String codeSchemeCodeValue,
+                                                            @ApiParam(value = "ExternalReference PrefLabel.") @QueryParam("prefLabel") final String prefLabel,
+                                                            @ApiParam(value = "After date filtering parameter, results will be codes with modified date after this ISO 8601 formatted date string.") @QueryParam("after") final String after,
+                                                            @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand,
+                                                            @ApiParam(value = "Filter string (csl) for the fields included in the response.") @QueryParam("fields") final String fields,
+                                                            @ApiParam(value = "Language codes (csl) in order of preference for localized values.") @QueryParam("lang") final String lang,
+                                                            @Context final Request request,
+                                                            @Context final HttpHeaders headers,
+                                                            @Context final UriInfo uriInfo,
+                                                            @Suspended final AsyncResponse asyncResponse) {
         logApiRequest(LOG, METHOD_GET, API_PATH_VERSION_V1, API_PATH_CODEREGISTRIES + "/" + codeRegistryCodeValue + API_PATH_CODESCHEMES + "/" + codeSchemeCodeValue + API_PATH_EXTERNALREFERENCES + "/");
         final Meta meta = new Meta(Response.Status.OK.getStatusCode(), pageSize, from, after);
-        final CodeScheme codeScheme = domain.getCodeScheme(codeRegistryCodeValue, codeSchemeCodeValue);
-        if (codeScheme != null) {
-            ObjectWriterInjector.set(new AbstractBaseResource.FilterModifier(createSimpleFilterProvider(FILTER_NAME_CODE, expand)));
-            final Set<ExternalReference> externalReferences = domain.getExternalReferences(pageSize, from, prefLabel, codeScheme, meta.getAfter(), meta);
-            if (pageSize != null && from + pageSize < meta.getTotalResults()) {
-                meta.setNextPage(apiUtils.createNextPageUrl(API_VERSION, API_PATH_CODEREGISTRIES + "/" + codeRegistryCodeValue + API_PATH_CODESCHEMES + "/" + codeSchemeCodeValue + API_PATH_EXTERNALREFERENCES, after, pageSize, from + pageSize));
-            }
-            final ResponseWrapper<ExternalReference> wrapper = new ResponseWrapper<>();
-            wrapper.setMeta(meta);
-            if (externalReferences == null) {
+        final FilterOptions filterOptions = createFilterOptions(FILTER_NAME_EXTERNALREFERENCE, expand, fields, lang);
+        resume(asyncResponse, domain.getCodeScheme(codeRegistryCodeValue, codeSchemeCodeValue).thenCompose(codeScheme -> {
+            if (codeScheme == null) {
+                final ResponseWrapper<CodeScheme> wrapper = new ResponseWrapper<>();
+                wrapper.setMeta(meta);
                 meta.setCode(404);
                 meta.setMessage("No such resource.");
-                return Response.status(Response.Status.NOT_FOUND).entity(wrapper).build();
+                return CompletableFuture.completedFuture(Response.status(Response.Status.NOT_FOUND).entity(wrapper).build());
             }
-            wrapper.setResults(externalReferences);
-            return Response.ok(wrapper).build();
-        } else {
-            final ResponseWrapper<CodeScheme> wrapper = new ResponseWrapper<>();
-            wrapper.setMeta(meta);
-            meta.setCode(404);
-            meta.setMessage("No such resource.");
-            return Response.status(Response.Status.NOT_FOUND).entity(wrapper).build();
-        }
+            return createConditionalListingResponse(request, headers, uriInfo, () -> domain.getExternalReferencesVersion(prefLabel, codeScheme, meta.getAfter()), () -> domain.getExternalReferenceSources(pageSize, from, prefLabel, codeScheme, meta.getAfter(), meta, filterOptions.getSourceIncludes(), filterOptions.getSourceExcludes(domain.getIndexedLanguages())), hits -> {
+                if (pageSize != null && from + pageSize < meta.getTotalResults()) {
+                    meta.setNextPage(apiUtils.createNextPageUrl(API_VERSION, API_PATH_CODEREGISTRIES + "/" + codeRegistryCodeValue + API_PATH_CODESCHEMES + "/" + codeSchemeCodeValue + API_PATH_EXTERNALREFERENCES, after, pageSize, from + pageSize));
+                }
+                return createSourceListingResponse(objectMapper, meta, hits, filterOptions);
+            });
+        }), filterOptions);
     }
 
     @GET
     @Path("{codeRegistryCodeValue}/codeschemes/{codeSchemeCodeValue}/codes/{codeCodeValue}")
     @ApiOperation(value = "Return one code from specific codescheme under specific coderegistry.", response = Code.class)
     @ApiResponse(code = 200, message = "Returns one registeritem from specific register in JSON format.")
-    @Produces(MediaType.APPLICATION_JSON + ";charset=UTF-8")
-    public Response getCodeRegistryCodeSchemeCode(@ApiParam(value = "CodeRegistry CodeValue.", required = true) @PathParam("codeRegistryCodeValue") final String codeRegistryCodeValue,
-                                                  @ApiParam(value = "CodeScheme CodeValue.", required = true) @PathParam("codeSchemeCodeValue") final String codeSchemeCodeValue,
-                                                  @ApiParam(value = "Code code.", required = true) @PathParam("codeCodeValue") final String codeCodeValue,
-                                                  @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand) {
+    @Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", MEDIA_TYPE_SMILE, MEDIA_TYPE_CBOR})
+    public void getCodeRegistryCodeSchemeCode(@ApiParam(value = "CodeRegistry CodeValue.", required = true) @PathParam("codeRegistryCodeValue") final String codeRegistryCodeValue,
+                                              @ApiParam(value = "CodeScheme CodeValue.", required = true) @PathParam("codeSchemeCodeValue") final String codeSchemeCodeValue,
+                                              @ApiParam(value = "Code code.", required = true) @PathParam("codeCodeValue") final String codeCodeValue,
+                                              @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand,
+                                              @ApiParam(value = "Filter string (csl) for the fields included in the response.") @QueryParam("fields") final String fields,
+                                              @ApiParam(value = "Language codes (csl) in order of preference for localized values.") @QueryParam("lang") final String lang,
+                                              @Context final Request request,
+                                              @Context final UriInfo uriInfo,
+                                              @Suspended final AsyncResponse asyncResponse) {
         logApiRequest(LOG, METHOD_GET, API_PATH_VERSION_V1, API_PATH_CODEREGISTRIES + "/" + codeRegistryCodeValue + API_PATH_CODESCHEMES + "/" + codeSchemeCodeValue + API_PATH_CODES + "/" + codeCodeValue);
-        ObjectWriterInjector.set(new AbstractBaseResource.FilterModifier(createSimpleFilterProvider(FILTER_NAME_CODE, expand)));
-        final Code code = domain.getCode(codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue);
-        if (code == null) {
-            return Response.status(Response.Status.NOT_FOUND).build();
-        }
-        return Response.ok(code).build();
+        resume(asyncResponse, domain.getCode(codeRegistryCodeValue, codeSchemeCodeValue, codeCodeValue).thenApply(code -> {
+            if (code == null) {
+                return Response.status(Response.Status.NOT_FOUND).build();
+            }
+            return createConditionalEntityResponse(request, uriInfo, code, ContentVersion.forEntity(code.getId(), code.getModified()));
+        }), createFilterOptions(FILTER_NAME_CODE, expand, fields, lang));
     }
 }
@@ -6,8 +6,11 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,6 +18,7 @@ import org.springframework.stereotype.Component;
 
 import com.fasterxml.jackson.jaxrs.cfg.ObjectWriterInjector;
 
+import fi.vm.yti.codelist.api.domain.ContentVersion;
 import fi.vm.yti.codelist.api.domain.Domain;
 import fi.vm.yti.codelist.common.model.Code;
 import fi.vm.yti.codelist.common.model.CodeScheme;
@@ -33,7 +37,7 @@ import static fi.vm.yti.codelist.common.constants.ApiConstants.METHOD_GET;
 @Component
 @Path("/v1/codes")
 @Api(value = "codes")
-@Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", "application/xlsx", "application/csv"})
+@Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", AbstractBaseResource.MEDIA_TYPE_SMILE, AbstractBaseResource.MEDIA_TYPE_CBOR, "application/xlsx", "application/csv"})
 public class CodeResource extends AbstractBaseResource {
 
     private static final Logger LOG = LoggerFactory.getLogger(CodeResource.class);
@@ -48,16 +52,16 @@ public class CodeResource extends AbstractBaseResource {
     @Path("{codeId}")
     @ApiOperation(value = "Return one specific Code.", response = Code.class)
     @ApiResponse(code = 200, message = "Returns one specific Code in JSON format.")
-    @Produces(MediaType.APPLICATION_JSON + ";charset=UTF-8")
+    @Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", MEDIA_TYPE_SMILE, MEDIA_TYPE_CBOR})
     public Response getCode(@ApiParam(value = "Code Id.", required = true) @PathParam("codeId") final String codeId,
-                            @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand) {
+                            @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand,
+                            @ApiParam(value = "Filter string (csl) for the fields included in the response.") @QueryParam("fields") final String fields,
+                            @ApiParam(value = "Language codes (csl) in order of preference for localized values.") @QueryParam("lang") final String lang,
+                            @Context final Request request,
+                            @Context final UriInfo uriInfo) {
         logApiRequest(LOG, METHOD_GET, API_PATH_VERSION_V1, API_PATH_CODES + "/" + codeId + "/");
-        ObjectWriterInjector.set(new AbstractBaseResource.FilterModifier(createSimpleFilterProvider(FILTER_NAME_CODE, expand)));
+        ObjectWriterInjector.set(getFilterModifier(createFilterOptions(FILTER_NAME_CODE, expand, fields, lang)));
         final CodeScheme codeScheme = domain.getCodeScheme(codeId);
-        if (codeScheme != null) {
-            return Response.ok(codeScheme).build();
-        } else {
-            return Response.status(Response.Status.NOT_FOUND).build();
-        }
+        return createConditionalEntityResponse(request, uriInfo, codeScheme, codeScheme != null ? ContentVersion.forEntity(codeScheme.getId(), codeScheme.getModified()) : null);
     }
 }
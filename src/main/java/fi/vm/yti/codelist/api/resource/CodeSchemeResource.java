@@ -1,8 +1,8 @@
 package fi.vm.yti.codelist.api.resource;
 
-import java.nio.charset.StandardCharsets;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 import javax.inject.Inject;
 import javax.ws.rs.DefaultValue;
@@ -12,19 +12,28 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
 
-import org.apache.poi.ss.usermodel.Workbook;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
-import com.fasterxml.jackson.jaxrs.cfg.ObjectWriterInjector;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
-import fi.vm.yti.codelist.api.api.ResponseWrapper;
-import fi.vm.yti.codelist.api.domain.Domain;
+import fi.vm.yti.codelist.api.api.ApiUtils;
+import fi.vm.yti.codelist.api.api.FilterOptions;
+import fi.vm.yti.codelist.api.domain.AsyncDomain;
+import fi.vm.yti.codelist.api.domain.ContentVersion;
+import fi.vm.yti.codelist.api.export.ExportService;
+import fi.vm.yti.codelist.api.util.CursorUtils;
 import fi.vm.yti.codelist.common.model.CodeRegistry;
 import fi.vm.yti.codelist.common.model.CodeScheme;
 import fi.vm.yti.codelist.common.model.Meta;
@@ -34,6 +43,7 @@ import io.swagger.annotations.ApiParam;
 import io.swagger.annotations.ApiResponse;
 import static fi.vm.yti.codelist.common.constants.ApiConstants.API_PATH_CODESCHEMES;
 import static fi.vm.yti.codelist.common.constants.ApiConstants.API_PATH_VERSION_V1;
+import static fi.vm.yti.codelist.common.constants.ApiConstants.API_VERSION;
 import static fi.vm.yti.codelist.common.constants.ApiConstants.FILTER_NAME_CODESCHEME;
 import static fi.vm.yti.codelist.common.constants.ApiConstants.FORMAT_CSV;
 import static fi.vm.yti.codelist.common.constants.ApiConstants.FORMAT_EXCEL;
@@ -48,67 +58,92 @@ import static fi.vm.yti.codelist.common.constants.ApiConstants.METHOD_GET;
 @Component
 @Path("/v1/codeschemes")
 @Api(value = "codeschemes")
-@Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", "application/xlsx", "application/csv"})
+@Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", AbstractBaseResource.MEDIA_TYPE_SMILE, AbstractBaseResource.MEDIA_TYPE_CBOR, "application/xlsx", "application/csv"})
 public class CodeSchemeResource extends AbstractBaseResource {
 
     private static final Logger LOG = LoggerFactory.getLogger(CodeSchemeResource.class);
-    private final Domain domain;
+    private final ApiUtils apiUtils;
+    private final AsyncDomain domain;
+    private final ExportService exportService;
+    private final ObjectMapper objectMapper;
 
     @Inject
-    public CodeSchemeResource(final Domain domain) {
+    public CodeSchemeResource(final ApiUtils apiUtils,
+                              final AsyncDomain domain,
+                              final ExportService exportService,
+                              final ObjectMapper objectMapper) {
+        this.apiUtils = apiUtils;
         this.domain = domain;
+        this.exportService = exportService;
+        this.objectMapper = objectMapper;
     }
 
     @GET
     @ApiOperation(value = "Return list of available CodeSchemes.", response = CodeRegistry.class, responseContainer = "List")
     @ApiResponse(code = 200, message = "Returns all Registers in JSON format.")
-    @Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", MediaType.TEXT_PLAIN})
-    public Response getCodeSchemes(@ApiParam(value = "CodeRegistry CodeValue.") @QueryParam("codeRegistryCodeValue") final String codeRegistryCodeValue,
-                                   @ApiParam(value = "CodeRegistry Name.") @QueryParam("codeRegistryName") final String codeRegistryPrefLabel,
-                                   @ApiParam(value = "Pagination parameter for page size.") @QueryParam("pageSize") final Integer pageSize,
-                                   @ApiParam(value = "Pagination parameter for start index.") @QueryParam("from") @DefaultValue("0") final Integer from,
-                                   @ApiParam(value = "Service classifications in CSL format.") @QueryParam("dataClassification") final String dataClassification,
-                                   @ApiParam(value = "Organization id for content filtering.") @QueryParam("organizationId") final String organizationId,
-                                   @ApiParam(value = "CodeScheme codeValue as string value.") @QueryParam("codeValue") final String codeSchemeCodeValue,
-                                   @ApiParam(value = "CodeScheme PrefLabel as string value.") @QueryParam("prefLabel") final String codeSchemePrefLabel,
-                                   @ApiParam(value = "Status enumerations in CSL format.") @QueryParam("status") final String status,
-                                   @ApiParam(value = "Format for content.") @QueryParam("format") @DefaultValue(FORMAT_JSON) final String format,
-                                   @ApiParam(value = "After date filtering parameter, results will be codes with modified date after this ISO 8601 formatted date string.") @QueryParam("after") final String after,
-                                   @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand) {
+    @Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", MEDIA_TYPE_SMILE, MEDIA_TYPE_CBOR, MediaType.TEXT_PLAIN, MEDIA_TYPE_NDJSON})
+    public void getCodeSchemes(@ApiParam(value = "CodeRegistry CodeValue.") @QueryParam("codeRegistryCodeValue") final String codeRegistryCodeValue,
+                               @ApiParam(value = "CodeRegistry Name.") @QueryParam("codeRegistryName") final String codeRegistryPrefLabel,
+                               @ApiParam(value = "Pagination parameter for page size.") @QueryParam("pageSize") final Integer pageSize,
+                               @ApiParam(value = "Pagination parameter for start index.") @QueryParam("from") @DefaultValue("0") final Integer from,
+                               @ApiParam(value = "Service classifications in CSL format.") @QueryParam("dataClassification") final String dataClassification,
+                               @ApiParam(value = "Organization id for content filtering.") @QueryParam("organizationId") final String organizationId,
+                               @ApiParam(value = "CodeScheme codeValue as string value.") @QueryParam("codeValue") final String codeSchemeCodeValue,
+                               @ApiParam(value = "CodeScheme PrefLabel as string value.") @QueryParam("prefLabel") final String codeSchemePrefLabel,
+                               @ApiParam(value = "Status enumerations in CSL format.") @QueryParam("status") final String status,
+                               @ApiParam(value = "Format for content.") @QueryParam("format") @DefaultValue(FORMAT_JSON) final String format,
+                               @ApiParam(value = "After date filtering parameter, results will be codes with modified date after this ISO 8601 formatted date string.") @QueryParam("after") final String after,
+                               @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand,
+                               @ApiParam(value = "Filter string (csl) for the fields included in the response.") @QueryParam("fields") final String fields,
+                               @ApiParam(value = "Language codes (csl) in order of preference for localized values.") @QueryParam("lang") final String lang,
+                               @ApiParam(value = "Pagination cursor from the nextPage link of the previous page, takes precedence over from.") @QueryParam("cursor") final String cursor,
+                               @Context final Request request,
+                               @Context final HttpHeaders headers,
+                               @Context final UriInfo uriInfo,
+                               @Suspended final AsyncResponse asyncResponse) {
         logApiRequest(LOG, METHOD_GET, API_PATH_VERSION_V1, API_PATH_CODESCHEMES + "/");
         final List<String> dataClassificationList = parseDataClassifications(dataClassification);
         final List<String> statusList = parseStatus(status);
-        if (FORMAT_CSV.startsWith(format.toLowerCase())) {
-            final Set<CodeScheme> codeSchemes = domain.getCodeSchemes(pageSize, from, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statusList, dataClassificationList, Meta.parseAfterFromString(after), null);
-            final String csv = constructCodeSchemesCsv(codeSchemes);
+        final Object[] searchAfter = parseCursor(cursor);
+        final Supplier<CompletableFuture<ContentVersion>> version = () -> domain.getCodeSchemesVersion(organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statusList, dataClassificationList, Meta.parseAfterFromString(after));
+        if (FORMAT_NDJSON.equalsIgnoreCase(format)) {
+            final FilterOptions filterOptions = createFilterOptions(FILTER_NAME_CODESCHEME, expand, fields, lang);
             final StreamingOutput stream = output -> {
                 try {
-                    output.write(csv.getBytes(StandardCharsets.UTF_8));
+                    exportService.writeCodeSchemesNdjson(output, pageSize, from, searchAfter, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statusList, dataClassificationList, Meta.parseAfterFromString(after), filterOptions);
                 } catch (final Exception e) {
                     throw new WebApplicationException(e);
                 }
             };
-            return Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODESCHEMES)).build();
+            resume(asyncResponse, createConditionalResponse(request, uriInfo, version.get(), contentVersion -> CompletableFuture.completedFuture(Response.ok(stream, MEDIA_TYPE_NDJSON).build())), null);
+        } else if (FORMAT_CSV.startsWith(format.toLowerCase())) {
+            final StreamingOutput stream = output -> {
+                try {
+                    exportService.writeCodeSchemesCsv(output, pageSize, from, searchAfter, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statusList, dataClassificationList, Meta.parseAfterFromString(after), FilterOptions.parseLanguages(lang));
+                } catch (final Exception e) {
+                    throw new WebApplicationException(e);
+                }
+            };
+            resume(asyncResponse, createConditionalResponse(request, uriInfo, version.get(), contentVersion -> CompletableFuture.completedFuture(Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODESCHEMES)).build())), null);
         } else if (FORMAT_EXCEL.equalsIgnoreCase(format) || FORMAT_EXCEL_XLS.equalsIgnoreCase(format) || FORMAT_EXCEL_XLSX.equalsIgnoreCase(format)) {
-            final Set<CodeScheme> codeSchemes = domain.getCodeSchemes(pageSize, from, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statusList, dataClassificationList, Meta.parseAfterFromString(after), null);
-            final Workbook workbook = constructCodeSchemesExcel(format, codeSchemes);
             final StreamingOutput stream = output -> {
                 try {
-                    workbook.write(output);
+                    exportService.writeCodeSchemesExcel(output, format, pageSize, from, searchAfter, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statusList, dataClassificationList, Meta.parseAfterFromString(after), FilterOptions.parseLanguages(lang));
                 } catch (final Exception e) {
                     throw new WebApplicationException(e);
                 }
             };
-            return Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODESCHEMES)).build();
+            resume(asyncResponse, createConditionalResponse(request, uriInfo, version.get(), contentVersion -> CompletableFuture.completedFuture(Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODESCHEMES)).build())), null);
         } else {
             final Meta meta = new Meta(200, null, null, after);
-            ObjectWriterInjector.set(new AbstractBaseResource.FilterModifier(createSimpleFilterProvider(FILTER_NAME_CODESCHEME, expand)));
-            final Set<CodeScheme> codeSchemes = domain.getCodeSchemes(pageSize, from, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statusList, dataClassificationList, meta.getAfter(), meta);
-            meta.setResultCount(codeSchemes.size());
-            final ResponseWrapper<CodeScheme> wrapper = new ResponseWrapper<>();
-            wrapper.setResults(codeSchemes);
-            wrapper.setMeta(meta);
-            return Response.ok(wrapper).build();
+            final FilterOptions filterOptions = createFilterOptions(FILTER_NAME_CODESCHEME, expand, fields, lang);
+            resume(asyncResponse, createConditionalListingResponse(request, headers, uriInfo, version, () -> domain.getCodeSchemeSources(pageSize, from, organizationId, codeRegistryCodeValue, codeRegistryPrefLabel, codeSchemeCodeValue, codeSchemePrefLabel, statusList, dataClassificationList, meta.getAfter(), searchAfter, meta, filterOptions.getSourceIncludes(), filterOptions.getSourceExcludes(domain.getIndexedLanguages())), hits -> {
+                meta.setResultCount(hits.size());
+                if (hasNextPage(pageSize, from, cursor, hits, meta)) {
+                    meta.setNextPage(apiUtils.createNextPageCursorUrl(API_VERSION, API_PATH_CODESCHEMES, after, pageSize, CursorUtils.encodeCursor(hits.getLastSortValues())));
+                }
+                return createSourceListingResponse(objectMapper, meta, hits, filterOptions);
+            }), filterOptions);
         }
     }
 
@@ -116,16 +151,15 @@ public class CodeSchemeResource extends AbstractBaseResource {
     @Path("{codeSchemeId}")
     @ApiOperation(value = "Return one specific CodeScheme.", response = CodeScheme.class)
     @ApiResponse(code = 200, message = "Returns one specific CodeScheme in JSON format.")
-    @Produces(MediaType.APPLICATION_JSON + ";charset=UTF-8")
-    public Response getCodeScheme(@ApiParam(value = "CodeScheme CodeValue.", required = true) @PathParam("codeSchemeId") final String codeSchemeId,
-                                  @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand) {
+    @Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", MEDIA_TYPE_SMILE, MEDIA_TYPE_CBOR})
+    public void getCodeScheme(@ApiParam(value = "CodeScheme CodeValue.", required = true) @PathParam("codeSchemeId") final String codeSchemeId,
+                              @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand,
+                              @ApiParam(value = "Filter string (csl) for the fields included in the response.") @QueryParam("fields") final String fields,
+                              @ApiParam(value = "Language codes (csl) in order of preference for localized values.") @QueryParam("lang") final String lang,
+                              @Context final Request request,
+                              @Context final UriInfo uriInfo,
+                              @Suspended final AsyncResponse asyncResponse) {
         logApiRequest(LOG, METHOD_GET, API_PATH_VERSION_V1, API_PATH_CODESCHEMES + "/" + codeSchemeId + "/");
-        ObjectWriterInjector.set(new AbstractBaseResource.FilterModifier(createSimpleFilterProvider(FILTER_NAME_CODESCHEME, expand)));
-        final CodeScheme codeScheme = domain.getCodeScheme(codeSchemeId);
-        if (codeScheme != null) {
-            return Response.ok(codeScheme).build();
-        } else {
-            return Response.status(Response.Status.NOT_FOUND).build();
-        }
+        resume(asyncResponse, domain.getCodeScheme(codeSchemeId).thenApply(codeScheme -> createConditionalEntityResponse(request, uriInfo, codeScheme, codeScheme != null ? ContentVersion.forEntity(codeScheme.getId(), codeScheme.getModified()) : null)), createFilterOptions(FILTER_NAME_CODESCHEME, expand, fields, lang));
     }
 }
@@ -1,9 +1,7 @@
 package fi.vm.yti.codelist.api.resource;
 
-import java.nio.charset.StandardCharsets;
-import java.util.LinkedHashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 import javax.inject.Inject;
 import javax.ws.rs.DefaultValue;
@@ -13,21 +11,26 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
 
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
-import com.fasterxml.jackson.jaxrs.cfg.ObjectWriterInjector;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
-import fi.vm.yti.codelist.api.api.ResponseWrapper;
-import fi.vm.yti.codelist.api.domain.Domain;
+import fi.vm.yti.codelist.api.api.FilterOptions;
+import fi.vm.yti.codelist.api.domain.AsyncDomain;
+import fi.vm.yti.codelist.api.domain.ContentVersion;
+import fi.vm.yti.codelist.api.export.ExportService;
 import fi.vm.yti.codelist.common.model.CodeRegistry;
 import fi.vm.yti.codelist.common.model.Meta;
 import fi.vm.yti.codelist.common.model.PropertyType;
@@ -43,60 +46,77 @@ import static fi.vm.yti.codelist.common.constants.ApiConstants.*;
 @Component
 @Path("/v1/propertytypes")
 @Api(value = "propertytypes")
-@Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", "application/xlsx", "application/csv"})
+@Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", AbstractBaseResource.MEDIA_TYPE_SMILE, AbstractBaseResource.MEDIA_TYPE_CBOR, "application/xlsx", "application/csv"})
 public class PropertyTypeResource extends AbstractBaseResource {
 
     private static final Logger LOG = LoggerFactory.getLogger(ExternalReferenceResource.class);
-    private final Domain domain;
+    private final AsyncDomain domain;
+    private final ExportService exportService;
+    private final ObjectMapper objectMapper;
 
     @Inject
-    public PropertyTypeResource(final Domain domain) {
+    public PropertyTypeResource(final AsyncDomain domain,
+                                final ExportService exportService,
+                                final ObjectMapper objectMapper) {
         this.domain = domain;
+        this.exportService = exportService;
+        this.objectMapper = objectMapper;
     }
 
     @GET
     @ApiOperation(value = "Return a list of available PropertyTypes.", response = PropertyType.class, responseContainer = "List")
     @ApiResponse(code = 200, message = "Returns all PropertyTypes in specified format.")
-    @Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", "application/xlsx", "application/csv"})
-    public Response getPropertyTypes(@ApiParam(value = "Pagination parameter for page size.") @QueryParam("pageSize") final Integer pageSize,
-                                     @ApiParam(value = "Pagination parameter for start index.") @QueryParam("from") @DefaultValue("0") final Integer from,
-                                     @ApiParam(value = "PropertyType name as string value.") @QueryParam("name") final String name,
-                                     @ApiParam(value = "Context name as string value.") @QueryParam("context") final String context,
-                                     @ApiParam(value = "Format for content.") @QueryParam("format") @DefaultValue(FORMAT_JSON) final String format,
-                                     @ApiParam(value = "After date filtering parameter, results will be codes with modified date after this ISO 8601 formatted date string.") @QueryParam("after") final String after,
-                                     @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand) {
+    @Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", MEDIA_TYPE_SMILE, MEDIA_TYPE_CBOR, "application/xlsx", "application/csv", MEDIA_TYPE_NDJSON})
+    public void getPropertyTypes(@ApiParam(value = "Pagination parameter for page size.") @QueryParam("pageSize") final Integer pageSize,
+                                 @ApiParam(value = "Pagination parameter for start index.") @QueryParam("from") @DefaultValue("0") final Integer from,
+                                 @ApiParam(value = "PropertyType name as string value.") @QueryParam("name") final String name,
+                                 @ApiParam(value = "Context name as string value.") @QueryParam("context") final String context,
+                                 @ApiParam(value = "Format for content.") @QueryParam("format") @DefaultValue(FORMAT_JSON) final String format,
+                                 @ApiParam(value = "After date filtering parameter, results will be codes with modified date after this ISO 8601 formatted date string.") @QueryParam("after") final String after,
+                                 @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand,
+                                 @ApiParam(value = "Filter string (csl) for the fields included in the response.") @QueryParam("fields") final String fields,
+                                 @ApiParam(value = "Language codes (csl) in order of preference for localized values.") @QueryParam("lang") final String lang,
+                                 @Context final Request request,
+                                 @Context final HttpHeaders headers,
+                                 @Context final UriInfo uriInfo,
+                                 @Suspended final AsyncResponse asyncResponse) {
         logApiRequest(LOG, METHOD_GET, API_PATH_VERSION_V1, API_PATH_PROPERTYTYPES);
-        if (FORMAT_CSV.equalsIgnoreCase(format)) {
-            final Set<PropertyType> propertyTypes = domain.getPropertyTypes(pageSize, from, name, context, Meta.parseAfterFromString(after), null);
-            final String csv = constructPropertyTypesCsv(propertyTypes);
+        final Supplier<CompletableFuture<ContentVersion>> version = () -> domain.getPropertyTypesVersion(name, context, Meta.parseAfterFromString(after));
+        if (FORMAT_NDJSON.equalsIgnoreCase(format)) {
+            final FilterOptions filterOptions = createFilterOptions(FILTER_NAME_PROPERTYTYPE, expand, fields, lang);
             final StreamingOutput stream = output -> {
                 try {
-                    output.write(csv.getBytes(StandardCharsets.UTF_8));
+                    exportService.writePropertyTypesNdjson(output, pageSize, from, name, context, Meta.parseAfterFromString(after), filterOptions);
                 } catch (final Exception e) {
                     throw new WebApplicationException(e);
                 }
             };
-            return Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODEREGISTRIES)).build();
+            resume(asyncResponse, createConditionalResponse(request, uriInfo, version.get(), contentVersion -> CompletableFuture.completedFuture(Response.ok(stream, MEDIA_TYPE_NDJSON).build())), null);
+        } else if (FORMAT_CSV.equalsIgnoreCase(format)) {
+            final StreamingOutput stream = output -> {
+                try {
+                    exportService.writePropertyTypesCsv(output, pageSize, from, name, context, Meta.parseAfterFromString(after), FilterOptions.parseLanguages(lang));
+                } catch (final Exception e) {
+                    throw new WebApplicationException(e);
+                }
+            };
+            resume(asyncResponse, createConditionalResponse(request, uriInfo, version.get(), contentVersion -> CompletableFuture.completedFuture(Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODEREGISTRIES)).build())), null);
         } else if (FORMAT_EXCEL.equalsIgnoreCase(format) || FORMAT_EXCEL_XLS.equalsIgnoreCase(format) || FORMAT_EXCEL_XLSX.equalsIgnoreCase(format)) {
-            final Set<PropertyType> propertyTypes = domain.getPropertyTypes(pageSize, from, name, context, Meta.parseAfterFromString(after), null);
-            final Workbook workbook = constructPropertyTypesExcel(format, propertyTypes);
             final StreamingOutput stream = output -> {
                 try {
-                    workbook.write(output);
+                    exportService.writePropertyTypesExcel(output, format, pageSize, from, name, context, Meta.parseAfterFromString(after), FilterOptions.parseLanguages(lang));
                 } catch (final Exception e) {
                     throw new WebApplicationException(e);
                 }
             };
-            return Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODEREGISTRIES)).build();
+            resume(asyncResponse, createConditionalResponse(request, uriInfo, version.get(), contentVersion -> CompletableFuture.completedFuture(Response.ok(stream).header(HEADER_CONTENT_DISPOSITION, "attachment; filename = " + createDownloadFilename(format, DOWNLOAD_FILENAME_CODEREGISTRIES)).build())), null);
         } else {
             final Meta meta = new Meta(200, null, null, after);
-            ObjectWriterInjector.set(new AbstractBaseResource.FilterModifier(createSimpleFilterProvider(FILTER_NAME_PROPERTYTYPE, expand)));
-            final Set<PropertyType> propertyTypes = domain.getPropertyTypes(pageSize, from, name, context, meta.getAfter(), meta);
-            meta.setResultCount(propertyTypes.size());
-            final ResponseWrapper<PropertyType> wrapper = new ResponseWrapper<>();
-            wrapper.setResults(propertyTypes);
-            wrapper.setMeta(meta);
-            return Response.ok(wrapper).build();
+            final FilterOptions filterOptions = createFilterOptions(FILTER_NAME_PROPERTYTYPE, expand, fields, lang);
+            resume(asyncResponse, createConditionalListingResponse(request, headers, uriInfo, version, () -> domain.getPropertyTypeSources(pageSize, from, name, context, meta.getAfter(), meta, filterOptions.getSourceIncludes(), filterOptions.getSourceExcludes(domain.getIndexedLanguages())), hits -> {
+                meta.setResultCount(hits.size());
+                return createSourceListingResponse(objectMapper, meta, hits, filterOptions);
+            }), filterOptions);
         }
     }
 
@@ -104,106 +124,15 @@ public class PropertyTypeResource extends AbstractBaseResource {
     @Path("{propertyTypeId}")
     @ApiOperation(value = "Return one specific CodeRegistry.", response = CodeRegistry.class, responseContainer = "List")
     @ApiResponse(code = 200, message = "Returns one specific CodeRegistry in JSON format.")
-    @Produces(MediaType.APPLICATION_JSON + ";charset=UTF-8")
-    public Response getCodeRegistry(@ApiParam(value = "CodeRegistry CodeValue.", required = true) @PathParam("propertyTypeId") final String propertyTypeId,
-                                    @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand) {
+    @Produces({MediaType.APPLICATION_JSON + ";charset=UTF-8", MEDIA_TYPE_SMILE, MEDIA_TYPE_CBOR})
+    public void getCodeRegistry(@ApiParam(value = "CodeRegistry CodeValue.", required = true) @PathParam("propertyTypeId") final String propertyTypeId,
+                                @ApiParam(value = "Filter string (csl) for expanding specific child resources.") @QueryParam("expand") final String expand,
+                                @ApiParam(value = "Filter string (csl) for the fields included in the response.") @QueryParam("fields") final String fields,
+                                @ApiParam(value = "Language codes (csl) in order of preference for localized values.") @QueryParam("lang") final String lang,
+                                @Context final Request request,
+                                @Context final UriInfo uriInfo,
+                                @Suspended final AsyncResponse asyncResponse) {
         logApiRequest(LOG, METHOD_GET, API_PATH_VERSION_V1, API_PATH_PROPERTYTYPES + "/" + propertyTypeId + "/");
-        ObjectWriterInjector.set(new AbstractBaseResource.FilterModifier(createSimpleFilterProvider(FILTER_NAME_PROPERTYTYPE, expand)));
-        final PropertyType propertyType = domain.getPropertyType(propertyTypeId);
-        if (propertyType != null) {
-            return Response.ok(propertyType).build();
-        } else {
-            return Response.status(Response.Status.NOT_FOUND).build();
-        }
-    }
-
-    private Set<String> resolvePropertyTypePrefLabelLanguages(final Set<PropertyType> propertyTypes) {
-        final Set<String> languages = new LinkedHashSet<>();
-        for (final PropertyType propertyType : propertyTypes) {
-            final Map<String, String> prefLabel = propertyType.getPrefLabel();
-            languages.addAll(prefLabel.keySet());
-        }
-        return languages;
-    }
-
-    private Set<String> resolvePropertyTypeDefinitionLanguages(final Set<PropertyType> propertyTypes) {
-        final Set<String> languages = new LinkedHashSet<>();
-        for (final PropertyType propertyType : propertyTypes) {
-            final Map<String, String> definition = propertyType.getDefinition();
-            languages.addAll(definition.keySet());
-        }
-        return languages;
-    }
-
-    public String constructPropertyTypesCsv(final Set<PropertyType> propertyTypes) {
-        final Set<String> prefLabelLanguages = resolvePropertyTypePrefLabelLanguages(propertyTypes);
-        final Set<String> definitionLanguages = resolvePropertyTypeDefinitionLanguages(propertyTypes);
-        final String csvSeparator = ",";
-        final StringBuilder csv = new StringBuilder();
-        appendValue(csv, csvSeparator, CONTENT_HEADER_ID);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_LOCALNAME);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_TYPE);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_PROPERTYURI);
-        appendValue(csv, csvSeparator, CONTENT_HEADER_CONTEXT);
-        prefLabelLanguages.forEach(language -> {
-            appendValue(csv, csvSeparator, CONTENT_HEADER_PREFLABEL_PREFIX + language.toUpperCase());
-        });
-        definitionLanguages.forEach(language -> {
-            appendValue(csv, csvSeparator, CONTENT_HEADER_DEFINITION_PREFIX + language.toUpperCase());
-        });
-        csv.append("\n");
-        for (final PropertyType propertyType : propertyTypes) {
-            appendValue(csv, csvSeparator, propertyType.getId().toString());
-            appendValue(csv, csvSeparator, propertyType.getLocalName());
-            appendValue(csv, csvSeparator, propertyType.getType());
-            appendValue(csv, csvSeparator, propertyType.getPropertyUri());
-            appendValue(csv, csvSeparator, propertyType.getContext());
-            prefLabelLanguages.forEach(language -> {
-                appendValue(csv, csvSeparator, propertyType.getPrefLabel().get(language));
-            });
-            definitionLanguages.forEach(language -> {
-                appendValue(csv, csvSeparator, propertyType.getDefinition().get(language));
-            });
-            csv.append("\n");
-        }
-        return csv.toString();
-    }
-
-    public Workbook constructPropertyTypesExcel(final String format,
-                                                final Set<PropertyType> propertyTypes) {
-        final Workbook workbook = createWorkBook(format);
-        final Set<String> prefLabelLanguages = resolvePropertyTypePrefLabelLanguages(propertyTypes);
-        final Set<String> definitionLanguages = resolvePropertyTypeDefinitionLanguages(propertyTypes);
-        final Sheet sheet = workbook.createSheet(EXCEL_SHEET_PROPERTYTYPES);
-        final Row rowhead = sheet.createRow((short) 0);
-        int j = 0;
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_ID);
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_LOCALNAME);
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_TYPE);
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_PROPERTYURI);
-        rowhead.createCell(j++).setCellValue(CONTENT_HEADER_CONTEXT);
-        for (final String language : prefLabelLanguages) {
-            rowhead.createCell(j++).setCellValue(CONTENT_HEADER_PREFLABEL_PREFIX + language.toUpperCase());
-        }
-        for (final String language : definitionLanguages) {
-            rowhead.createCell(j++).setCellValue(CONTENT_HEADER_DEFINITION_PREFIX + language.toUpperCase());
-        }
-        int i = 1;
-        for (final PropertyType propertyType : propertyTypes) {
-            final Row row = sheet.createRow(i++);
-            int k = 0;
-            row.createCell(k++).setCellValue(checkEmptyValue(propertyType.getId().toString()));
-            row.createCell(k++).setCellValue(checkEmptyValue(propertyType.getLocalName()));
-            row.createCell(k++).setCellValue(checkEmptyValue(propertyType.getType()));
-            row.createCell(k++).setCellValue(checkEmptyValue(propertyType.getPropertyUri()));
-            row.createCell(k++).setCellValue(checkEmptyValue(propertyType.getContext()));
-            for (final String language : prefLabelLanguages) {
-                row.createCell(k++).setCellValue(propertyType.getPrefLabel().get(language));
-            }
-            for (final String language : definitionLanguages) {
-                row.createCell(k++).setCellValue(propertyType.getDefinition().get(language));
-            }
-        }
-        return workbook;
+        resume(asyncResponse, domain.getPropertyType(propertyTypeId).thenApply(propertyType -> createConditionalEntityResponse(request, uriInfo, propertyType, propertyType != null ? ContentVersion.forEntity(propertyType.getId(), propertyType.getModified()) : null)), createFilterOptions(FILTER_NAME_PROPERTYTYPE, expand, fields, lang));
     }
 }
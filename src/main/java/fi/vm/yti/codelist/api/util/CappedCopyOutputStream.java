@@ -0,0 +1,63 @@
+package fi.vm.yti.codelist.api.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Passes writes through to the underlying stream and keeps a copy of them, until the copy would exceed the limit.
+ *
+ * The underlying stream is never closed, as it is owned by the caller.
+ */
+public class CappedCopyOutputStream extends FilterOutputStream {
+
+    private final int maxBytes;
+    private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+    public CappedCopyOutputStream(final OutputStream output,
+                                  final int maxBytes) {
+        super(output);
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        out.write(b);
+        if (copy != null) {
+            if (copy.size() < maxBytes) {
+                copy.write(b);
+            } else {
+                copy = null;
+            }
+        }
+    }
+
+    @Override
+    public void write(final byte[] b,
+                      final int off,
+                      final int len) throws IOException {
+        out.write(b, off, len);
+        if (copy != null) {
+            if (copy.size() + len <= maxBytes) {
+                copy.write(b, off, len);
+            } else {
+                copy = null;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * Returns the copied bytes, or null if the output exceeded the limit.
+     *
+     * @return The bytes written or null.
+     */
+    public byte[] getCopy() {
+        return copy != null ? copy.toByteArray() : null;
+    }
+}
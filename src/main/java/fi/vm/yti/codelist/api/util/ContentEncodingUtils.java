@@ -0,0 +1,79 @@
+package fi.vm.yti.codelist.api.util;
+
+import javax.ws.rs.core.EntityTag;
+
+/**
+ * Negotiates the gzip content encoding and derives the entity tags of gzip encoded representations.
+ *
+ * A gzip encoded representation is tagged with the entity tag of the unencoded one with a "--gzip" suffix, so that
+ * caches do not mix the two up. The suffix is removed from the validators of incoming requests before they are
+ * compared, so both representations are validated against the same content version.
+ */
+public abstract class ContentEncodingUtils {
+
+    public static final String ENCODING_GZIP = "gzip";
+    private static final String ENCODING_X_GZIP = "x-gzip";
+    private static final String ENCODING_ANY = "*";
+    private static final String ETAG_GZIP_SUFFIX = "--gzip";
+    private static final String ETAG_GZIP_QUOTE = ETAG_GZIP_SUFFIX + "\"";
+
+    /**
+     * Tells whether an Accept-Encoding header accepts gzip with a non-zero quality.
+     *
+     * @param acceptEncoding The Accept-Encoding header, may be null.
+     * @return True if gzip is accepted.
+     */
+    public static boolean acceptsGzip(final String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Boolean acceptsAny = null;
+        for (final String coding : acceptEncoding.split(",")) {
+            final String[] parts = coding.split(";");
+            final String name = parts[0].trim().toLowerCase();
+            final boolean accepted = parseQuality(parts) > 0;
+            if (ENCODING_GZIP.equals(name) || ENCODING_X_GZIP.equals(name)) {
+                return accepted;
+            }
+            if (ENCODING_ANY.equals(name)) {
+                acceptsAny = accepted;
+            }
+        }
+        return acceptsAny != null && acceptsAny;
+    }
+
+    /**
+     * Returns the entity tag of the gzip encoded representation.
+     *
+     * @param entityTag The entity tag of the unencoded representation, as an {@link EntityTag} or a header value.
+     * @return The entity tag with the gzip suffix.
+     */
+    public static EntityTag toGzipEntityTag(final Object entityTag) {
+        final EntityTag tag = entityTag instanceof EntityTag ? (EntityTag) entityTag : EntityTag.valueOf(entityTag.toString());
+        return tag.getValue().endsWith(ETAG_GZIP_SUFFIX) ? tag : new EntityTag(tag.getValue() + ETAG_GZIP_SUFFIX, tag.isWeak());
+    }
+
+    /**
+     * Removes the gzip suffix from the entity tags in an If-None-Match, If-Match or If-Range header.
+     *
+     * @param header The header value, may be null.
+     * @return The header value without gzip suffixes.
+     */
+    public static String removeGzipSuffixes(final String header) {
+        return header != null ? header.replace(ETAG_GZIP_QUOTE, "\"") : null;
+    }
+
+    private static double parseQuality(final String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            final String parameter = parameters[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (final NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
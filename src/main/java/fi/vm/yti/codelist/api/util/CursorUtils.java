@@ -0,0 +1,60 @@
+package fi.vm.yti.codelist.api.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Encodes and decodes opaque pagination cursors that carry the sort values of the last returned hit.
+ */
+public abstract class CursorUtils {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Encodes sort values into a URL safe cursor string.
+     *
+     * @param sortValues The sort values of the last hit on the page.
+     * @return The cursor string.
+     */
+    public static String encodeCursor(final Object... sortValues) {
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(MAPPER.writeValueAsBytes(sortValues));
+        } catch (final JsonProcessingException e) {
+            throw new IllegalStateException("Cursor encoding failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Decodes a cursor string back into sort values for search_after.
+     *
+     * @param cursor         The cursor string from the request, may be null.
+     * @param sortValueCount The number of sort values the cursor must contain.
+     * @return The sort values, or null if no cursor was given.
+     * @throws IllegalArgumentException if the cursor is malformed.
+     */
+    public static Object[] decodeCursor(final String cursor,
+                                        final int sortValueCount) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        final Object[] sortValues;
+        try {
+            sortValues = MAPPER.readValue(Base64.getUrlDecoder().decode(cursor.getBytes(StandardCharsets.US_ASCII)), Object[].class);
+        } catch (final IllegalArgumentException | IOException e) {
+            throw new IllegalArgumentException("Malformed cursor: " + cursor);
+        }
+        if (sortValues == null || sortValues.length != sortValueCount) {
+            throw new IllegalArgumentException("Malformed cursor: " + cursor);
+        }
+        for (final Object sortValue : sortValues) {
+            if (!(sortValue instanceof String) && !(sortValue instanceof Number)) {
+                throw new IllegalArgumentException("Malformed cursor: " + cursor);
+            }
+        }
+        return sortValues;
+    }
+}
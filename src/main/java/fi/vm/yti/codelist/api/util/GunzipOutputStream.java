@@ -0,0 +1,75 @@
+package fi.vm.yti.codelist.api.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses gzip data written to it and passes the decompressed bytes to the underlying stream, so stored
+ * compressed content can be sent to clients that do not accept a content encoding.
+ *
+ * Only single member gzip data without optional header fields is supported, as written by
+ * {@link java.util.zip.GZIPOutputStream}. The trailer is not verified. The underlying stream is never closed, as it is
+ * owned by the caller.
+ */
+public class GunzipOutputStream extends FilterOutputStream {
+
+    private static final int HEADER_LENGTH = 10;
+    private static final int FLAGS_OFFSET = 3;
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] header = new byte[HEADER_LENGTH];
+    private final byte[] buffer = new byte[8192];
+    private int headerLength;
+
+    public GunzipOutputStream(final OutputStream output) {
+        super(output);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[]{ (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b,
+                      final int off,
+                      final int len) throws IOException {
+        int offset = off;
+        int length = len;
+        if (headerLength < HEADER_LENGTH) {
+            final int count = Math.min(HEADER_LENGTH - headerLength, length);
+            System.arraycopy(b, offset, header, headerLength, count);
+            headerLength += count;
+            offset += count;
+            length -= count;
+            if (headerLength == HEADER_LENGTH && (header[0] != (byte) 0x1f || header[1] != (byte) 0x8b || header[FLAGS_OFFSET] != 0)) {
+                throw new ZipException("Unsupported gzip header");
+            }
+        }
+        if (length == 0 || inflater.finished()) {
+            return;
+        }
+        inflater.setInput(b, offset, length);
+        try {
+            while (!inflater.finished() && !inflater.needsInput()) {
+                final int inflated = inflater.inflate(buffer);
+                if (inflated > 0) {
+                    out.write(buffer, 0, inflated);
+                } else if (inflater.needsDictionary()) {
+                    throw new ZipException("Unsupported deflate dictionary");
+                }
+            }
+        } catch (final DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        flush();
+    }
+}
@@ -0,0 +1,42 @@
+package fi.vm.yti.codelist.api.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A {@link GZIPOutputStream} whose deflater can be released without finishing the stream, and is released even if
+ * finishing fails, so that abandoned compression does not hold native memory until the stream is garbage collected.
+ */
+public class GzipOutputStream extends GZIPOutputStream {
+
+    private boolean ended;
+
+    public GzipOutputStream(final OutputStream output,
+                            final int size,
+                            final boolean syncFlush) throws IOException {
+        super(output, size, syncFlush);
+    }
+
+    /**
+     * Releases the deflater without writing the rest of the stream. The stream cannot be written to afterwards.
+     */
+    public void end() {
+        if (!ended) {
+            ended = true;
+            def.end();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ended) {
+            return;
+        }
+        try {
+            super.close();
+        } finally {
+            end();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package fi.vm.yti.codelist.api.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical concurrent computations: while a computation for a key is in flight, callers with the same key
+ * wait for its result instead of starting their own.
+ *
+ * The key is removed as soon as the computation completes, so results are never reused for later calls and no
+ * invalidation is needed. Shared results are handed to every waiting caller and must be treated as read-only.
+ *
+ * @param <K> The key type, which must implement equals and hashCode over the normalized parameters.
+ * @param <V> The result type.
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final boolean enabled;
+
+    public SingleFlight(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns the result of the computation in flight for the key, or starts the computation if there is none.
+     *
+     * @param key         The normalized parameters of the computation.
+     * @param computation Starts the computation, called only if no computation for the key is in flight.
+     * @return A future that completes with the shared result.
+     */
+    public CompletableFuture<V> executeAsync(final K key,
+                                             final Supplier<CompletableFuture<V>> computation) {
+        if (!enabled) {
+            return computation.get();
+        }
+        final CompletableFuture<V> call = new CompletableFuture<>();
+        final CompletableFuture<V> existing = calls.putIfAbsent(key, call);
+        if (existing != null) {
+            coalesced.increment();
+            return existing.thenApply(Function.identity());
+        }
+        executions.increment();
+        CompletableFuture<V> result;
+        try {
+            result = computation.get();
+        } catch (final RuntimeException e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        result.whenComplete((value, throwable) -> {
+            calls.remove(key, call);
+            if (throwable != null) {
+                call.completeExceptionally(throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable);
+            } else {
+                call.complete(value);
+            }
+        });
+        return call.thenApply(Function.identity());
+    }
+
+    /**
+     * Blocking variant of {@link #executeAsync}, the computation runs on the calling thread of the first caller.
+     *
+     * @param key         The normalized parameters of the computation.
+     * @param computation The computation, called only if no computation for the key is in flight.
+     * @return The shared result.
+     */
+    public V execute(final K key,
+                     final Supplier<V> computation) {
+        if (!enabled) {
+            return computation.get();
+        }
+        try {
+            return executeAsync(key, () -> CompletableFuture.completedFuture(computation.get())).join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Blocking variant of {@link #executeAsync} with a bounded wait. The first caller runs the computation on its own
+     * thread as in {@link #execute}, while the other callers wait for its result at most the given time.
+     *
+     * @param key         The normalized parameters of the computation.
+     * @param computation The computation, called only if no computation for the key is in flight.
+     * @param timeout     The maximum time to wait for a computation started by another caller.
+     * @param unit        The unit of the timeout.
+     * @return The shared result.
+     * @throws TimeoutException     If the computation of another caller did not complete in time.
+     * @throws InterruptedException If the calling thread was interrupted while waiting.
+     */
+    public V execute(final K key,
+                     final Supplier<V> computation,
+                     final long timeout,
+                     final TimeUnit unit) throws TimeoutException, InterruptedException {
+        if (!enabled) {
+            return computation.get();
+        }
+        try {
+            return executeAsync(key, () -> CompletableFuture.completedFuture(computation.get())).get(timeout, unit);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new CompletionException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the number of computations started.
+     */
+    public long getExecutions() {
+        return executions.sum();
+    }
+
+    /**
+     * Returns the number of calls that waited for a computation started by another caller.
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * Returns the number of computations currently in flight.
+     */
+    public int getInFlight() {
+        return calls.size();
+    }
+}
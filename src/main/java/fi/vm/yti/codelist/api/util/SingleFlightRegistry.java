@@ -0,0 +1,47 @@
+package fi.vm.yti.codelist.api.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.inject.Inject;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+/**
+ * Creates the named {@link SingleFlight} groups used by the domain and export layers and publishes their counters
+ * through the actuator metrics endpoint.
+ */
+@Component
+public class SingleFlightRegistry implements PublicMetrics {
+
+    private final Map<String, SingleFlight<?, ?>> groups = new ConcurrentSkipListMap<>();
+    private final boolean enabled;
+
+    @Inject
+    public SingleFlightRegistry(@Value("${application.singleFlight.enabled:true}") final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public <K, V> SingleFlight<K, V> create(final String name) {
+        final SingleFlight<K, V> group = new SingleFlight<>(enabled);
+        groups.put(name, group);
+        return group;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final List<Metric<?>> metrics = new ArrayList<>();
+        groups.forEach((name, group) -> {
+            metrics.add(new Metric<>("singleflight." + name + ".executions", group.getExecutions()));
+            metrics.add(new Metric<>("singleflight." + name + ".coalesced", group.getCoalesced()));
+            metrics.add(new Metric<>("singleflight." + name + ".inflight", group.getInFlight()));
+        });
+        return metrics;
+    }
+}
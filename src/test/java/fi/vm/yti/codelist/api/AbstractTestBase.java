@@ -78,6 +78,8 @@ abstract public class AbstractTestBase {
         createAndIndexMockCodeRegistries();
         createAndIndexMockCodeSchemes(domain.getCodeRegistries());
         createAndIndexMockCodes(domain.getCodeSchemes());
+        createIndexWithNestedPrefLabel(ELASTIC_INDEX_PROPERTYTYPE, ELASTIC_TYPE_PROPERTYTYPE);
+        createIndexWithNestedPrefLabel(ELASTIC_INDEX_EXTERNALREFERENCE, ELASTIC_TYPE_EXTERNALREFERENCE);
         LOG.info("Mock data indexed!");
     }
 
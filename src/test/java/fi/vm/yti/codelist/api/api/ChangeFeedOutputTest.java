@@ -0,0 +1,111 @@
+package fi.vm.yti.codelist.api.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.search.SearchHit;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
+
+import fi.vm.yti.codelist.api.domain.BatchConsumer;
+import fi.vm.yti.codelist.api.domain.DeletionTracker;
+import fi.vm.yti.codelist.api.domain.Domain;
+import fi.vm.yti.codelist.api.domain.Tombstone;
+import fi.vm.yti.codelist.api.util.CursorUtils;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ChangeFeedOutputTest {
+
+    private static final String TYPE_CODE = "code";
+    private static final long READ_AT = 1000;
+    private static final long EPOCH = 42;
+
+    @Test
+    public void testTombstonesAreMergedInOrder() throws IOException {
+        final JsonNode page = writePage(10, new Date(100), hit("b", 10), hit("d", 30));
+        assertResults(page, "a", true, "b", false, "c", true, "d", false);
+        assertEquals(4, page.get("meta").get("resultCount").asInt());
+        assertFalse(page.get("meta").path("nextPage").isTextual());
+    }
+
+    @Test
+    public void testFullPageEndsWithCursorAfterLastChange() throws IOException {
+        final JsonNode page = writePage(2, new Date(100), hit("b", 10), hit("d", 30));
+        assertResults(page, "a", true, "b", false);
+        assertEquals("next", page.get("meta").get("nextPage").asText());
+        final Object[] cursor = CursorUtils.decodeCursor(page.get("cursor").asText(), 4);
+        assertEquals(10L, ((Number) cursor[0]).longValue());
+        assertEquals("b", cursor[1]);
+        assertEquals(READ_AT, ((Number) cursor[2]).longValue());
+        assertEquals(EPOCH, ((Number) cursor[3]).longValue());
+    }
+
+    @Test
+    public void testTombstonesAfterSettleTimeAreLeftOut() throws IOException {
+        final JsonNode page = writePage(10, new Date(15), hit("b", 10));
+        assertResults(page, "a", true, "b", false);
+    }
+
+    private static JsonNode writePage(final int pageSize,
+                                      final Date before,
+                                      final SearchHit... hits) throws IOException {
+        final NavigableSet<Tombstone> tombstones = new TreeSet<>((a, b) -> a.getDeleted() != b.getDeleted() ? Long.compare(a.getDeleted(), b.getDeleted()) : a.getId().compareTo(b.getId()));
+        tombstones.add(new Tombstone(TYPE_CODE, "a", 10));
+        tombstones.add(new Tombstone(TYPE_CODE, "c", 20));
+        final DeletionTracker deletionTracker = mock(DeletionTracker.class);
+        when(deletionTracker.getTombstonesAfter(0L, null)).thenReturn(tombstones);
+        when(deletionTracker.getEpoch()).thenReturn(EPOCH);
+        final Domain domain = mock(Domain.class);
+        final List<SearchHit> batch = Arrays.asList(hits);
+        doAnswer(invocation -> {
+            @SuppressWarnings("unchecked") final BatchConsumer<SearchHit> consumer = (BatchConsumer<SearchHit>) invocation.getArguments()[5];
+            consumer.accept(batch);
+            return null;
+        }).when(domain).streamChanges(anyInt(), any(), any(), any(), any(), any());
+
+        final ObjectMapper mapper = new ObjectMapper();
+        final ChangeFeedOutput output = new ChangeFeedOutput(domain, deletionTracker, mapper.writer(new SimpleFilterProvider().setFailOnUnknownId(false)),
+            FilterOptions.of(Collections.emptyList(), null, null, null), new String[0], pageSize, null, READ_AT, before, cursor -> "next");
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        output.write(body);
+        return mapper.readTree(body.toByteArray());
+    }
+
+    private static SearchHit hit(final String id,
+                                 final long modified) {
+        final SearchHit hit = new SearchHit(0, id, new Text(TYPE_CODE), null);
+        hit.sourceRef(new BytesArray("{\"id\":\"" + id + "\"}"));
+        hit.sortValues(new Object[]{ modified, id }, new DocValueFormat[]{ DocValueFormat.RAW, DocValueFormat.RAW });
+        return hit;
+    }
+
+    private static void assertResults(final JsonNode page,
+                                      final Object... expected) {
+        final JsonNode results = page.get("results");
+        assertEquals(expected.length / 2, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(expected[2 * i], results.get(i).get("id").asText());
+            assertEquals(expected[2 * i + 1], results.get(i).get("deleted").asBoolean());
+            assertTrue(results.get(i).has("content") != (Boolean) expected[2 * i + 1]);
+        }
+    }
+}
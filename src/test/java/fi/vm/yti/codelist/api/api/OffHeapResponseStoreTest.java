@@ -0,0 +1,166 @@
+package fi.vm.yti.codelist.api.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapResponseStoreTest {
+
+    private static final int BLOCK_SIZE = 16;
+    private static final String CONTENT_TYPE = "application/json";
+
+    @Test
+    public void testPutAndAcquire() throws IOException {
+        final OffHeapResponseStore store = new OffHeapResponseStore(4 * BLOCK_SIZE, BLOCK_SIZE, 4 * BLOCK_SIZE, 60000);
+        final byte[] body = body('a', 20);
+        assertTrue(store.put("a", body, CONTENT_TYPE, Collections.singletonMap("ETag", "\"a\"")));
+        assertEquals(2 * BLOCK_SIZE, store.getUsedBytes());
+
+        final OffHeapResponseStore.Entry entry = store.acquire("a");
+        assertNotNull(entry);
+        assertEquals(body.length, entry.getLength());
+        assertEquals(CONTENT_TYPE, entry.getContentType());
+        assertEquals("\"a\"", entry.getHeaders().get("ETag"));
+        assertEquals(new String(body, StandardCharsets.UTF_8), read(entry));
+        assertEquals(1, store.getHits());
+        assertNull(store.acquire("b"));
+        assertEquals(1, store.getMisses());
+    }
+
+    @Test
+    public void testEvictionWhileReading() throws IOException {
+        final OffHeapResponseStore store = new OffHeapResponseStore(4 * BLOCK_SIZE, BLOCK_SIZE, 4 * BLOCK_SIZE, 60000);
+        final byte[] bodyA = body('a', 2 * BLOCK_SIZE);
+        store.put("a", bodyA, CONTENT_TYPE, Collections.emptyMap());
+        final OffHeapResponseStore.Entry reading = store.acquire("a");
+        store.put("b", body('b', 2 * BLOCK_SIZE), CONTENT_TYPE, Collections.emptyMap());
+        assertEquals(4 * BLOCK_SIZE, store.getUsedBytes());
+
+        assertTrue(store.put("c", body('c', 2 * BLOCK_SIZE), CONTENT_TYPE, Collections.emptyMap()));
+        assertEquals(2, store.getEvictions());
+        assertEquals(1, store.size());
+        assertNull(store.acquire("a"));
+        assertEquals(4 * BLOCK_SIZE, store.getUsedBytes());
+
+        assertEquals(new String(bodyA, StandardCharsets.UTF_8), read(reading));
+        assertEquals(2 * BLOCK_SIZE, store.getUsedBytes());
+        assertEquals(new String(body('c', 2 * BLOCK_SIZE), StandardCharsets.UTF_8), read(store.acquire("c")));
+    }
+
+    @Test
+    public void testReplacement() throws IOException {
+        final OffHeapResponseStore store = new OffHeapResponseStore(4 * BLOCK_SIZE, BLOCK_SIZE, 4 * BLOCK_SIZE, 60000);
+        final byte[] oldBody = body('o', BLOCK_SIZE);
+        final byte[] newBody = body('n', BLOCK_SIZE);
+        store.put("a", oldBody, CONTENT_TYPE, Collections.emptyMap());
+        final OffHeapResponseStore.Entry reading = store.acquire("a");
+
+        assertTrue(store.put("a", newBody, CONTENT_TYPE, Collections.emptyMap()));
+        assertEquals(1, store.size());
+        assertEquals(2 * BLOCK_SIZE, store.getUsedBytes());
+        assertEquals(new String(newBody, StandardCharsets.UTF_8), read(store.acquire("a")));
+
+        assertEquals(new String(oldBody, StandardCharsets.UTF_8), read(reading));
+        assertEquals(BLOCK_SIZE, store.getUsedBytes());
+    }
+
+    @Test
+    public void testReplacementWithoutReaderFreesBlocks() {
+        final OffHeapResponseStore store = new OffHeapResponseStore(4 * BLOCK_SIZE, BLOCK_SIZE, 4 * BLOCK_SIZE, 60000);
+        store.put("a", body('o', 2 * BLOCK_SIZE), CONTENT_TYPE, Collections.emptyMap());
+        store.put("a", body('n', BLOCK_SIZE), CONTENT_TYPE, Collections.emptyMap());
+        assertEquals(1, store.size());
+        assertEquals(BLOCK_SIZE, store.getUsedBytes());
+    }
+
+    @Test
+    public void testEntryLargerThanLimitIsNotStored() throws IOException {
+        final OffHeapResponseStore store = new OffHeapResponseStore(4 * BLOCK_SIZE, BLOCK_SIZE, 2 * BLOCK_SIZE, 60000);
+        final OffHeapResponseStore.Writer writer = store.newWriter();
+        writer.write(body('a', BLOCK_SIZE), 0, BLOCK_SIZE);
+        assertEquals(BLOCK_SIZE, store.getUsedBytes());
+        writer.write(body('a', 2 * BLOCK_SIZE), 0, 2 * BLOCK_SIZE);
+        assertTrue(writer.isOverflow());
+        assertEquals(0, store.getUsedBytes());
+        assertFalse(writer.commit("a", CONTENT_TYPE, Collections.emptyMap()));
+        assertEquals(0, store.size());
+        assertFalse(store.put("b", body('b', 3 * BLOCK_SIZE), CONTENT_TYPE, Collections.emptyMap()));
+        assertEquals(0, store.getUsedBytes());
+    }
+
+    @Test
+    public void testOverflowWhenBlocksAreHeldByReaders() throws IOException {
+        final OffHeapResponseStore store = new OffHeapResponseStore(2 * BLOCK_SIZE, BLOCK_SIZE, 2 * BLOCK_SIZE, 60000);
+        store.put("a", body('a', 2 * BLOCK_SIZE), CONTENT_TYPE, Collections.emptyMap());
+        final OffHeapResponseStore.Entry reading = store.acquire("a");
+
+        assertFalse(store.put("b", body('b', BLOCK_SIZE), CONTENT_TYPE, Collections.emptyMap()));
+        assertEquals(0, store.size());
+        assertEquals(2 * BLOCK_SIZE, store.getUsedBytes());
+
+        read(reading);
+        assertEquals(0, store.getUsedBytes());
+        assertTrue(store.put("b", body('b', BLOCK_SIZE), CONTENT_TYPE, Collections.emptyMap()));
+    }
+
+    @Test
+    public void testDiscardFreesBlocks() throws IOException {
+        final OffHeapResponseStore store = new OffHeapResponseStore(4 * BLOCK_SIZE, BLOCK_SIZE, 4 * BLOCK_SIZE, 60000);
+        final OffHeapResponseStore.Writer writer = store.newWriter();
+        writer.write(body('a', BLOCK_SIZE + 1), 0, BLOCK_SIZE + 1);
+        assertEquals(2 * BLOCK_SIZE, store.getUsedBytes());
+        writer.discard();
+        assertEquals(0, store.getUsedBytes());
+        assertFalse(writer.commit("a", CONTENT_TYPE, Collections.emptyMap()));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testExpiredEntryIsRemoved() {
+        final OffHeapResponseStore store = new OffHeapResponseStore(4 * BLOCK_SIZE, BLOCK_SIZE, 4 * BLOCK_SIZE, -1);
+        store.put("a", body('a', BLOCK_SIZE), CONTENT_TYPE, Collections.emptyMap());
+        assertEquals(BLOCK_SIZE, store.getUsedBytes());
+        assertNull(store.acquire("a"));
+        assertEquals(1, store.getMisses());
+        assertEquals(0, store.size());
+        assertEquals(0, store.getUsedBytes());
+    }
+
+    @Test
+    public void testClearWhileReading() throws IOException {
+        final OffHeapResponseStore store = new OffHeapResponseStore(4 * BLOCK_SIZE, BLOCK_SIZE, 4 * BLOCK_SIZE, 60000);
+        final byte[] body = body('a', BLOCK_SIZE);
+        store.put("a", body, CONTENT_TYPE, Collections.emptyMap());
+        store.put("b", body('b', BLOCK_SIZE), CONTENT_TYPE, Collections.emptyMap());
+        final OffHeapResponseStore.Entry reading = store.acquire("a");
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals(BLOCK_SIZE, store.getUsedBytes());
+        assertEquals(new String(body, StandardCharsets.UTF_8), read(reading));
+        assertEquals(0, store.getUsedBytes());
+    }
+
+    private static byte[] body(final char c,
+                               final int length) {
+        final byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) (c + (i % 2 == 0 ? 0 : 1));
+        }
+        return body;
+    }
+
+    private static String read(final OffHeapResponseStore.Entry entry) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        entry.writeTo(output);
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
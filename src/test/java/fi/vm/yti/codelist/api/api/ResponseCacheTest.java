@@ -0,0 +1,190 @@
+package fi.vm.yti.codelist.api.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.core.HttpHeaders;
+
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import static fi.vm.yti.codelist.api.util.ContentEncodingUtils.ENCODING_GZIP;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResponseCacheTest {
+
+    private static final int BLOCK_SIZE = 64;
+    private static final String CONTENT_TYPE = "application/json";
+
+    @Test
+    public void testReleaseWithoutWriting() throws IOException {
+        final ResponseCache cache = createCache();
+        record(cache, "a", body(100));
+        assertEquals(2 * BLOCK_SIZE, getOffHeapBytes(cache));
+
+        final ResponseCache.CachedResponse cached = cache.get("a");
+        assertNotNull(cached);
+        cache.invalidateAll();
+        assertEquals(2 * BLOCK_SIZE, getOffHeapBytes(cache));
+
+        cached.release();
+        assertEquals(0, getOffHeapBytes(cache));
+    }
+
+    @Test
+    public void testReleaseAfterWritingHasNoEffect() throws IOException {
+        final ResponseCache cache = createCache();
+        final byte[] body = body(100);
+        record(cache, "a", body);
+
+        final ResponseCache.CachedResponse written = cache.get("a");
+        final ResponseCache.CachedResponse held = cache.get("a");
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        written.writeTo(output);
+        assertArrayEquals(body, output.toByteArray());
+        written.release();
+        written.release();
+
+        cache.invalidateAll();
+        assertEquals(2 * BLOCK_SIZE, getOffHeapBytes(cache));
+        held.release();
+        assertEquals(0, getOffHeapBytes(cache));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testWriteAfterReleaseFails() throws IOException {
+        final ResponseCache cache = createCache();
+        record(cache, "a", body(100));
+        final ResponseCache.CachedResponse cached = cache.get("a");
+        cached.release();
+        cached.writeTo(new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void testEvictionWhileHeld() throws IOException {
+        final ResponseCache cache = createCache();
+        record(cache, "a", body(100));
+        final ResponseCache.CachedResponse held = cache.get("a");
+        record(cache, "b", body(100));
+        record(cache, "c", body(100));
+        assertNull(cache.get("a"));
+        assertEquals(4 * BLOCK_SIZE, getOffHeapBytes(cache));
+
+        held.release();
+        assertEquals(2 * BLOCK_SIZE, getOffHeapBytes(cache));
+    }
+
+    @Test
+    public void testSmallResponseStaysOnHeap() throws IOException {
+        final ResponseCache cache = createCache();
+        final byte[] body = body(10);
+        record(cache, "a", body);
+        assertEquals(0, getOffHeapBytes(cache));
+
+        final ResponseCache.CachedResponse cached = cache.get("a");
+        cached.release();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        cache.get("a").writeTo(output);
+        assertArrayEquals(body, output.toByteArray());
+    }
+
+    @Test
+    public void testEncodedBodyIsStoredOnceClosed() throws IOException {
+        final ResponseCache cache = createCache();
+        final byte[] body = body(100);
+        final byte[] compressed = gzip(body);
+        final ResponseCache.Recorder recorder = cache.startRecording(true);
+        recorder.write(body, 0, 10);
+        final OutputStream encoded = recorder.recordEncoded();
+        encoded.write(compressed);
+        recorder.write(body, 10, 90);
+        recorder.commit("a", CONTENT_TYPE, Collections.emptyMap());
+        assertNull(cache.get("a"));
+
+        encoded.close();
+        final ResponseCache.CachedResponse cached = cache.get("a");
+        assertNotNull(cached);
+        assertEquals(ENCODING_GZIP, cached.getHeaders().get(HttpHeaders.CONTENT_ENCODING));
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        cached.writeTo(output);
+        assertArrayEquals(compressed, output.toByteArray());
+    }
+
+    @Test
+    public void testDiscardBeforeEncodedBodyIsClosed() throws IOException {
+        final ResponseCache cache = createCache();
+        final ResponseCache.Recorder recorder = cache.startRecording(true);
+        final OutputStream encoded = recorder.recordEncoded();
+        encoded.write(body(100));
+        recorder.commit("a", CONTENT_TYPE, Collections.emptyMap());
+        assertEquals(2 * BLOCK_SIZE, getOffHeapBytes(cache));
+
+        recorder.discard();
+        encoded.close();
+        assertNull(cache.get("a"));
+        assertEquals(0, getOffHeapBytes(cache));
+    }
+
+    @Test
+    public void testDroppedCompressedBodyIsNotStored() throws IOException {
+        final ResponseCache cache = createCache();
+        final byte[] body = new byte[64 * 1024];
+        new Random(1).nextBytes(body);
+        final ResponseCache.Recorder recorder = cache.startRecording(true);
+        assertTrue(recorder.isCompressing());
+        for (int i = 0; i < body.length; i += 1024) {
+            recorder.write(body, i, 1024);
+        }
+        assertFalse(recorder.isCompressing());
+        assertEquals(0, getOffHeapBytes(cache));
+        recorder.commit("a", CONTENT_TYPE, Collections.emptyMap());
+        assertNull(cache.get("a"));
+        assertEquals(0, getOffHeapBytes(cache));
+    }
+
+    private static ResponseCache createCache() {
+        return new ResponseCache(1024, 16, 60, 4 * BLOCK_SIZE, BLOCK_SIZE, 4 * BLOCK_SIZE);
+    }
+
+    private static void record(final ResponseCache cache,
+                               final String key,
+                               final byte[] body) throws IOException {
+        final ResponseCache.Recorder recorder = cache.startRecording(false);
+        recorder.write(body);
+        recorder.commit(key, CONTENT_TYPE, Collections.emptyMap());
+    }
+
+    private static byte[] gzip(final byte[] body) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (final GZIPOutputStream compressing = new GZIPOutputStream(output)) {
+            compressing.write(body);
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] body(final int length) {
+        final byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) i;
+        }
+        return body;
+    }
+
+    private static long getOffHeapBytes(final ResponseCache cache) {
+        for (final Metric<?> metric : cache.metrics()) {
+            if ("cache.response.offheap.bytes".equals(metric.getName())) {
+                return metric.getValue().longValue();
+            }
+        }
+        throw new AssertionError("Off-heap metrics missing");
+    }
+}
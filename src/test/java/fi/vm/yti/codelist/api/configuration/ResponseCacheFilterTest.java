@@ -0,0 +1,127 @@
+package fi.vm.yti.codelist.api.configuration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import fi.vm.yti.codelist.api.api.ChangeFeedOutput;
+import fi.vm.yti.codelist.api.api.ResponseCache;
+import static fi.vm.yti.codelist.common.constants.ApiConstants.API_PATH_VERSION_V1;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ResponseCacheFilterTest {
+
+    private static final int BLOCK_SIZE = 64;
+    private static final String PATH = API_PATH_VERSION_V1 + "/coderegistries";
+    private static final String ENTITY_TAG = "\"tag\"";
+    private static final String VARY = HttpHeaders.ACCEPT;
+
+    @Test
+    public void testNotModifiedHitReleasesCachedResponse() throws IOException {
+        final ResponseCache cache = createCache();
+        final ResponseCacheFilter filter = new ResponseCacheFilter(cache, new CompressionFilter(false, 2048, "application/json"));
+        final ContainerRequestContext request = mockRequest(ENTITY_TAG, Response.notModified());
+
+        filter.filter(request);
+        final ArgumentCaptor<Response> response = ArgumentCaptor.forClass(Response.class);
+        verify(request).abortWith(response.capture());
+        assertEquals(Response.Status.NOT_MODIFIED.getStatusCode(), response.getValue().getStatus());
+        assertEquals(VARY, response.getValue().getHeaderString(HttpHeaders.VARY));
+
+        cache.invalidateAll();
+        assertEquals(0, getOffHeapBytes(cache));
+    }
+
+    @Test
+    public void testHitIsReleasedAfterWriting() throws IOException {
+        final ResponseCache cache = createCache();
+        final ResponseCacheFilter filter = new ResponseCacheFilter(cache, new CompressionFilter(false, 2048, "application/json"));
+        final ContainerRequestContext request = mockRequest(null, null);
+
+        filter.filter(request);
+        final ArgumentCaptor<Response> response = ArgumentCaptor.forClass(Response.class);
+        verify(request).abortWith(response.capture());
+        assertEquals(Response.Status.OK.getStatusCode(), response.getValue().getStatus());
+        assertEquals(ENTITY_TAG, response.getValue().getHeaderString(HttpHeaders.ETAG));
+        assertEquals(VARY, response.getValue().getHeaderString(HttpHeaders.VARY));
+
+        cache.invalidateAll();
+        assertEquals(2 * BLOCK_SIZE, getOffHeapBytes(cache));
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getValue().getEntity()).write(output);
+        assertEquals(100, output.size());
+        assertEquals(0, getOffHeapBytes(cache));
+    }
+
+    @Test
+    public void testChangeFeedIsNotCached() throws IOException {
+        final ResponseCacheFilter filter = new ResponseCacheFilter(createCache(), new CompressionFilter(false, 2048, "application/json"));
+        final ContainerRequestContext request = mockRequest(null, null);
+        when(request.getProperty(anyString())).thenReturn(PATH);
+        final ContainerResponseContext response = mock(ContainerResponseContext.class);
+        when(response.getStatus()).thenReturn(Response.Status.OK.getStatusCode());
+        when(response.hasEntity()).thenReturn(true);
+        when(response.getEntity()).thenReturn(mock(ChangeFeedOutput.class));
+
+        filter.filter(request, response);
+        verify(request).removeProperty(anyString());
+        verify(request, never()).setProperty(anyString(), any());
+    }
+
+    private static ResponseCache createCache() throws IOException {
+        final ResponseCache cache = new ResponseCache(1024, 16, 60, 4 * BLOCK_SIZE, BLOCK_SIZE, 4 * BLOCK_SIZE);
+        final ResponseCache.Recorder recorder = cache.startRecording(false);
+        recorder.write(new byte[100]);
+        final Map<String, String> headers = new LinkedHashMap<>();
+        headers.put(HttpHeaders.ETAG, ENTITY_TAG);
+        headers.put(HttpHeaders.VARY, VARY);
+        recorder.commit(PATH + "#", "application/json", headers);
+        return cache;
+    }
+
+    private static ContainerRequestContext mockRequest(final String ifNoneMatch,
+                                                       final Response.ResponseBuilder preconditionResult) {
+        final UriInfo uriInfo = mock(UriInfo.class);
+        when(uriInfo.getPath(false)).thenReturn(PATH);
+        when(uriInfo.getQueryParameters(false)).thenReturn(new MultivaluedHashMap<>());
+        final Request jaxrsRequest = mock(Request.class);
+        when(jaxrsRequest.evaluatePreconditions(any(EntityTag.class))).thenReturn(preconditionResult);
+        final ContainerRequestContext request = mock(ContainerRequestContext.class);
+        when(request.getMethod()).thenReturn(HttpMethod.GET);
+        when(request.getUriInfo()).thenReturn(uriInfo);
+        when(request.getRequest()).thenReturn(jaxrsRequest);
+        when(request.getHeaderString(HttpHeaders.IF_NONE_MATCH)).thenReturn(ifNoneMatch);
+        return request;
+    }
+
+    private static long getOffHeapBytes(final ResponseCache cache) {
+        for (final Metric<?> metric : cache.metrics()) {
+            if ("cache.response.offheap.bytes".equals(metric.getName())) {
+                return metric.getValue().longValue();
+            }
+        }
+        throw new AssertionError("Off-heap metrics missing");
+    }
+}
@@ -0,0 +1,146 @@
+package fi.vm.yti.codelist.api.domain;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static fi.vm.yti.codelist.common.constants.ApiConstants.ELASTIC_INDEX_CODE;
+import static fi.vm.yti.codelist.common.constants.ApiConstants.ELASTIC_INDEX_CODEREGISTRY;
+import static fi.vm.yti.codelist.common.constants.ApiConstants.ELASTIC_TYPE_CODE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DeletionTrackerTest {
+
+    private final Map<String, List<String>> indexIds = new HashMap<>();
+    private Domain domain;
+    private IndexRegistry indexRegistry;
+
+    @Before
+    public void setUp() throws IOException {
+        domain = mock(Domain.class);
+        indexRegistry = mock(IndexRegistry.class);
+        when(indexRegistry.isAvailable(anyString())).thenReturn(true);
+        doAnswer(invocation -> {
+            @SuppressWarnings("unchecked") final BatchConsumer<String> consumer = (BatchConsumer<String>) invocation.getArguments()[1];
+            consumer.accept(indexIds.getOrDefault((String) invocation.getArguments()[0], Collections.emptyList()));
+            return null;
+        }).when(domain).streamIds(anyString(), any());
+    }
+
+    @Test
+    public void testTrackingStartsAfterCompleteScan() {
+        final DeletionTracker tracker = new DeletionTracker(domain, indexRegistry, true, 100);
+        assertFalse(tracker.canResume(tracker.getEpoch(), System.currentTimeMillis(), 1));
+
+        tracker.scan();
+        assertTrue(tracker.canResume(tracker.getEpoch(), System.currentTimeMillis(), 1));
+        assertFalse(tracker.canResume(tracker.getEpoch(), 0, 1));
+    }
+
+    @Test
+    public void testCursorFromAnotherTrackerIsNotResumed() {
+        final DeletionTracker tracker = new DeletionTracker(domain, indexRegistry, true, 100);
+        tracker.scan();
+        assertTrue(tracker.canResume(tracker.getEpoch(), System.currentTimeMillis(), 1));
+        assertFalse(tracker.canResume(tracker.getEpoch() + 1, System.currentTimeMillis(), 1));
+    }
+
+    @Test
+    public void testUnavailableIndexKeepsTrackingStopped() {
+        when(indexRegistry.isAvailable(ELASTIC_INDEX_CODEREGISTRY)).thenReturn(false);
+        final DeletionTracker tracker = new DeletionTracker(domain, indexRegistry, true, 100);
+        tracker.scan();
+        assertFalse(tracker.canResume(tracker.getEpoch(), System.currentTimeMillis(), 1));
+
+        when(indexRegistry.isAvailable(ELASTIC_INDEX_CODEREGISTRY)).thenReturn(true);
+        tracker.scan();
+        assertTrue(tracker.canResume(tracker.getEpoch(), System.currentTimeMillis(), 1));
+    }
+
+    @Test
+    public void testFailedScanKeepsTrackingStopped() throws IOException {
+        doAnswer(invocation -> {
+            throw new IOException("unavailable");
+        }).when(domain).streamIds(anyString(), any());
+        final DeletionTracker tracker = new DeletionTracker(domain, indexRegistry, true, 100);
+        tracker.scan();
+        assertFalse(tracker.canResume(tracker.getEpoch(), System.currentTimeMillis(), 1));
+    }
+
+    @Test
+    public void testIdMissingFromTwoScansIsTombstoned() {
+        final DeletionTracker tracker = new DeletionTracker(domain, indexRegistry, true, 100);
+        indexIds.put(ELASTIC_INDEX_CODE, Arrays.asList("a", "b"));
+        tracker.scan();
+        indexIds.put(ELASTIC_INDEX_CODE, Collections.singletonList("a"));
+        tracker.scan();
+        assertTrue(tracker.getTombstonesAfter(0, null).isEmpty());
+
+        tracker.scan();
+        final NavigableSet<Tombstone> tombstones = tracker.getTombstonesAfter(0, null);
+        assertEquals(1, tombstones.size());
+        assertEquals("b", tombstones.first().getId());
+        assertEquals(ELASTIC_TYPE_CODE, tombstones.first().getType());
+    }
+
+    @Test
+    public void testReappearingIdDropsTombstone() {
+        final DeletionTracker tracker = new DeletionTracker(domain, indexRegistry, true, 100);
+        indexIds.put(ELASTIC_INDEX_CODE, Arrays.asList("a", "b"));
+        tracker.scan();
+        indexIds.put(ELASTIC_INDEX_CODE, Collections.singletonList("a"));
+        tracker.scan();
+        tracker.scan();
+        assertEquals(1, tracker.getTombstonesAfter(0, null).size());
+
+        indexIds.put(ELASTIC_INDEX_CODE, Arrays.asList("a", "b"));
+        tracker.scan();
+        assertTrue(tracker.getTombstonesAfter(0, null).isEmpty());
+    }
+
+    @Test
+    public void testEmptiedIndexIsNotTombstoned() {
+        final DeletionTracker tracker = new DeletionTracker(domain, indexRegistry, true, 100);
+        indexIds.put(ELASTIC_INDEX_CODE, Arrays.asList("a", "b"));
+        tracker.scan();
+        indexIds.remove(ELASTIC_INDEX_CODE);
+        tracker.scan();
+        tracker.scan();
+        assertTrue(tracker.getTombstonesAfter(0, null).isEmpty());
+    }
+
+    @Test
+    public void testEvictedTombstonePreventsResume() {
+        final DeletionTracker tracker = new DeletionTracker(domain, indexRegistry, true, 1);
+        indexIds.put(ELASTIC_INDEX_CODE, Arrays.asList("a", "b", "c"));
+        tracker.scan();
+        indexIds.put(ELASTIC_INDEX_CODE, Collections.singletonList("a"));
+        tracker.scan();
+        tracker.scan();
+        final NavigableSet<Tombstone> tombstones = tracker.getTombstonesAfter(0, null);
+        assertEquals(1, tombstones.size());
+        assertFalse(tracker.canResume(tracker.getEpoch(), System.currentTimeMillis(), tombstones.first().getDeleted()));
+    }
+
+    @Test
+    public void testDisabledTrackerAlwaysResumes() {
+        final DeletionTracker tracker = new DeletionTracker(domain, indexRegistry, false, 100);
+        tracker.scan();
+        assertTrue(tracker.canResume(tracker.getEpoch(), 0, 0));
+        assertTrue(tracker.getTombstonesAfter(0, null).isEmpty());
+    }
+}
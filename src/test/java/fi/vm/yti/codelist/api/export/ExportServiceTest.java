@@ -0,0 +1,74 @@
+package fi.vm.yti.codelist.api.export;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.junit.Test;
+
+import fi.vm.yti.codelist.api.domain.Domain;
+import fi.vm.yti.codelist.api.util.SingleFlightRegistry;
+import static fi.vm.yti.codelist.common.constants.ApiConstants.FORMAT_EXCEL;
+import static fi.vm.yti.codelist.common.constants.ApiConstants.FORMAT_EXCEL_XLS;
+import static fi.vm.yti.codelist.common.constants.ApiConstants.FORMAT_EXCEL_XLSX;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class ExportServiceTest {
+
+    private static final int XLS_LAST_ROW_INDEX = 65535;
+
+    @Test
+    public void testExcelFormatsAreStreamedExceptXls() throws IOException {
+        final ExportService exportService = createExportService();
+        assertWorkbook(exportService, FORMAT_EXCEL, SXSSFWorkbook.class);
+        assertWorkbook(exportService, FORMAT_EXCEL_XLSX, SXSSFWorkbook.class);
+        assertWorkbook(exportService, FORMAT_EXCEL_XLS, HSSFWorkbook.class);
+    }
+
+    @Test
+    public void testXlsRowsEndAtFormatLimit() throws IOException {
+        try (final Workbook workbook = new HSSFWorkbook()) {
+            final Sheet sheet = workbook.createSheet("test");
+            final AtomicInteger rowIndex = new AtomicInteger(XLS_LAST_ROW_INDEX);
+            assertNotNull(ExportService.createRow(sheet, rowIndex));
+            assertNull(ExportService.createRow(sheet, rowIndex));
+            assertNull(ExportService.createRow(sheet, rowIndex));
+            assertEquals(XLS_LAST_ROW_INDEX, sheet.getLastRowNum());
+        }
+    }
+
+    @Test
+    public void testXlsxRowsContinuePastXlsLimit() throws IOException {
+        final SXSSFWorkbook workbook = new SXSSFWorkbook(10);
+        try {
+            final Sheet sheet = workbook.createSheet("test");
+            final AtomicInteger rowIndex = new AtomicInteger(XLS_LAST_ROW_INDEX);
+            assertNotNull(ExportService.createRow(sheet, rowIndex));
+            assertNotNull(ExportService.createRow(sheet, rowIndex));
+        } finally {
+            workbook.dispose();
+            workbook.close();
+        }
+    }
+
+    private static void assertWorkbook(final ExportService exportService,
+                                       final String format,
+                                       final Class<? extends Workbook> type) throws IOException {
+        final Workbook workbook = exportService.createWorkbook(format);
+        assertTrue(format, type.isInstance(workbook));
+        workbook.createSheet("test");
+        exportService.writeWorkbook(workbook, new ByteArrayOutputStream());
+    }
+
+    private static ExportService createExportService() {
+        return new ExportService(mock(Domain.class), new ExportMetrics(), new SingleFlightRegistry(true), 100, true, false, 1024, 1000);
+    }
+}
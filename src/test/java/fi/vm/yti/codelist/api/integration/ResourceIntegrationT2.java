@@ -1,33 +1,52 @@
 package fi.vm.yti.codelist.api.integration;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
+import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.embedded.LocalServerPort;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.web.client.TestRestTemplate;
 import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.web.client.RestTemplate;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
 import fi.vm.yti.codelist.api.AbstractTestBase;
 import fi.vm.yti.codelist.api.PublicApiServiceApplication;
+import fi.vm.yti.codelist.api.domain.DeletionTracker;
+import fi.vm.yti.codelist.api.domain.IndexRegistry;
+import fi.vm.yti.codelist.api.util.CursorUtils;
 import fi.vm.yti.codelist.common.model.Code;
 import fi.vm.yti.codelist.common.model.CodeRegistry;
 import fi.vm.yti.codelist.common.model.CodeScheme;
 import static fi.vm.yti.codelist.common.constants.ApiConstants.*;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest(classes = {PublicApiServiceApplication.class}, webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
@@ -38,6 +57,12 @@ public class ResourceIntegrationT2 extends AbstractTestBase {
     @LocalServerPort
     private int randomServerPort;
 
+    @Autowired
+    private IndexRegistry indexRegistry;
+
+    @Autowired
+    private DeletionTracker deletionTracker;
+
     private TestRestTemplate restTemplate = new TestRestTemplate();
 
     @Test
@@ -138,4 +163,238 @@ public class ResourceIntegrationT2 extends AbstractTestBase {
             Assert.fail("Exception " + e);
         }
     }
+
+    @Test
+    public void getCodesWithCursorTest() {
+        final String apiUrl = createApiUrl(randomServerPort, API_PATH_CODEREGISTRIES) + "/" + TEST_CODEREGISTRY_CODEVALUE + API_PATH_CODESCHEMES + "/" + TEST_CODESCHEME_CODEVALUE + API_PATH_CODES + "/";
+        final LinkedMultiValueMap<String, Object> parameters = new LinkedMultiValueMap<String, Object>();
+        final HttpEntity<LinkedMultiValueMap<String, Object>> entity = new HttpEntity<LinkedMultiValueMap<String, Object>>(parameters, null);
+        final ObjectMapper mapper = new ObjectMapper();
+        final Set<String> codeValues = new HashSet<>();
+        String cursor = null;
+        int pages = 0;
+        try {
+            do {
+                final String pageUrl = apiUrl + "?pageSize=3" + (cursor != null ? "&cursor=" + cursor : "");
+                final ResponseEntity<String> response = restTemplate.exchange(pageUrl, HttpMethod.GET, entity, String.class, "");
+                assertEquals(HttpStatus.OK, response.getStatusCode());
+                final ObjectNode jsonObject = (ObjectNode) mapper.readTree(response.getBody().toString());
+                final ArrayNode codesArray = (ArrayNode) jsonObject.get("results");
+                for (final JsonNode code : codesArray) {
+                    codeValues.add(code.get("codeValue").asText());
+                }
+                final JsonNode nextPage = jsonObject.get("meta").get("nextPage");
+                cursor = nextPage != null && !nextPage.isNull() ? nextPage.asText().replaceAll(".*[?&]cursor=([^&]*).*", "$1") : null;
+                pages++;
+            } while (cursor != null && pages < 10);
+        } catch (IOException e) {
+            Assert.fail("Exception " + e);
+        }
+        assertEquals(8, codeValues.size());
+    }
+
+    @Test
+    public void getCodesWithMalformedCursorTest() {
+        final String apiUrl = createApiUrl(randomServerPort, API_PATH_CODEREGISTRIES) + "/" + TEST_CODEREGISTRY_CODEVALUE + API_PATH_CODESCHEMES + "/" + TEST_CODESCHEME_CODEVALUE + API_PATH_CODES + "/?pageSize=3&cursor=notacursor";
+        final LinkedMultiValueMap<String, Object> parameters = new LinkedMultiValueMap<String, Object>();
+        final HttpEntity<LinkedMultiValueMap<String, Object>> entity = new HttpEntity<LinkedMultiValueMap<String, Object>>(parameters, null);
+        final ResponseEntity<String> response = restTemplate.exchange(apiUrl, HttpMethod.GET, entity, String.class, "");
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
+    @Test
+    public void getCodesWithMissingCodeSchemeTest() {
+        final String apiUrl = createApiUrl(randomServerPort, API_PATH_CODEREGISTRIES) + "/" + TEST_CODEREGISTRY_CODEVALUE + API_PATH_CODESCHEMES + "/nosuchscheme" + API_PATH_CODES + "/";
+        final LinkedMultiValueMap<String, Object> parameters = new LinkedMultiValueMap<String, Object>();
+        final HttpEntity<LinkedMultiValueMap<String, Object>> entity = new HttpEntity<LinkedMultiValueMap<String, Object>>(parameters, null);
+        final ResponseEntity<String> response = restTemplate.exchange(apiUrl, HttpMethod.GET, entity, String.class, "");
+        assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+    }
+
+    @Test
+    public void getCodesExpandCodeSchemeTest() {
+        final String apiUrl = createApiUrl(randomServerPort, API_PATH_CODEREGISTRIES) + "/" + TEST_CODEREGISTRY_CODEVALUE + API_PATH_CODESCHEMES + "/" + TEST_CODESCHEME_CODEVALUE + API_PATH_CODES + "/";
+        final LinkedMultiValueMap<String, Object> parameters = new LinkedMultiValueMap<String, Object>();
+        final HttpEntity<LinkedMultiValueMap<String, Object>> entity = new HttpEntity<LinkedMultiValueMap<String, Object>>(parameters, null);
+        final ObjectMapper mapper = new ObjectMapper();
+        try {
+            final ResponseEntity<String> response = restTemplate.exchange(apiUrl, HttpMethod.GET, entity, String.class, "");
+            assertEquals(HttpStatus.OK, response.getStatusCode());
+            final JsonNode collapsedCodeScheme = mapper.readTree(response.getBody()).get("results").get(0).get("codeScheme");
+            assertEquals(1, collapsedCodeScheme.size());
+            Assert.assertNotNull(collapsedCodeScheme.get("uri"));
+            final ResponseEntity<String> expandedResponse = restTemplate.exchange(apiUrl + "?expand=" + FILTER_NAME_CODESCHEME, HttpMethod.GET, entity, String.class, "");
+            assertEquals(HttpStatus.OK, expandedResponse.getStatusCode());
+            final JsonNode expandedCodeScheme = mapper.readTree(expandedResponse.getBody()).get("results").get(0).get("codeScheme");
+            assertEquals(TEST_CODESCHEME_CODEVALUE, expandedCodeScheme.get("codeValue").asText());
+            assertEquals(1, expandedCodeScheme.get("codeRegistry").size());
+        } catch (IOException e) {
+            Assert.fail("Exception " + e);
+        }
+    }
+
+    @Test
+    public void getCodesWithFieldsTest() {
+        final String apiUrl = createApiUrl(randomServerPort, API_PATH_CODEREGISTRIES) + "/" + TEST_CODEREGISTRY_CODEVALUE + API_PATH_CODESCHEMES + "/" + TEST_CODESCHEME_CODEVALUE + API_PATH_CODES + "/?fields=codeValue,uri";
+        final LinkedMultiValueMap<String, Object> parameters = new LinkedMultiValueMap<String, Object>();
+        final HttpEntity<LinkedMultiValueMap<String, Object>> entity = new HttpEntity<LinkedMultiValueMap<String, Object>>(parameters, null);
+        final ObjectMapper mapper = new ObjectMapper();
+        try {
+            final ResponseEntity<String> response = restTemplate.exchange(apiUrl, HttpMethod.GET, entity, String.class, "");
+            assertEquals(HttpStatus.OK, response.getStatusCode());
+            final JsonNode code = mapper.readTree(response.getBody()).get("results").get(0);
+            assertEquals(2, code.size());
+            Assert.assertNotNull(code.get("codeValue"));
+            Assert.assertNotNull(code.get("uri"));
+        } catch (IOException e) {
+            Assert.fail("Exception " + e);
+        }
+    }
+
+    @Test
+    public void getCodeSchemesWithLanguageTest() {
+        final String apiUrl = createApiUrl(randomServerPort, API_PATH_CODEREGISTRIES) + "/" + TEST_CODEREGISTRY_CODEVALUE + API_PATH_CODESCHEMES + "/?lang=de," + LANGUAGE_CODE_SV;
+        final LinkedMultiValueMap<String, Object> parameters = new LinkedMultiValueMap<String, Object>();
+        final HttpEntity<LinkedMultiValueMap<String, Object>> entity = new HttpEntity<LinkedMultiValueMap<String, Object>>(parameters, null);
+        final ObjectMapper mapper = new ObjectMapper();
+        try {
+            final ResponseEntity<String> response = restTemplate.exchange(apiUrl, HttpMethod.GET, entity, String.class, "");
+            assertEquals(HttpStatus.OK, response.getStatusCode());
+            final JsonNode prefLabel = mapper.readTree(response.getBody()).get("results").get(0).get("prefLabel");
+            assertEquals(1, prefLabel.size());
+            assertEquals("Test kodlist", prefLabel.get(LANGUAGE_CODE_SV).asText());
+        } catch (IOException e) {
+            Assert.fail("Exception " + e);
+        }
+    }
+
+    @Test
+    public void getCodesNotModifiedTest() {
+        final String apiUrl = createApiUrl(randomServerPort, API_PATH_CODEREGISTRIES) + "/" + TEST_CODEREGISTRY_CODEVALUE + API_PATH_CODESCHEMES + "/" + TEST_CODESCHEME_CODEVALUE + API_PATH_CODES + "/";
+        final LinkedMultiValueMap<String, Object> parameters = new LinkedMultiValueMap<String, Object>();
+        final HttpEntity<LinkedMultiValueMap<String, Object>> entity = new HttpEntity<LinkedMultiValueMap<String, Object>>(parameters, null);
+        final ResponseEntity<String> response = restTemplate.exchange(apiUrl, HttpMethod.GET, entity, String.class, "");
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        final String entityTag = response.getHeaders().getETag();
+        assertNotNull(entityTag);
+        assertNotNull(response.getHeaders().getFirst(HttpHeaders.LAST_MODIFIED));
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setIfNoneMatch(entityTag);
+        final ResponseEntity<String> conditionalResponse = restTemplate.exchange(apiUrl, HttpMethod.GET, new HttpEntity<LinkedMultiValueMap<String, Object>>(parameters, headers), String.class, "");
+        assertEquals(HttpStatus.NOT_MODIFIED, conditionalResponse.getStatusCode());
+        assertEquals(entityTag, conditionalResponse.getHeaders().getETag());
+        headers.setIfNoneMatch("\"stale\"");
+        final ResponseEntity<String> staleResponse = restTemplate.exchange(apiUrl, HttpMethod.GET, new HttpEntity<LinkedMultiValueMap<String, Object>>(parameters, headers), String.class, "");
+        assertEquals(HttpStatus.OK, staleResponse.getStatusCode());
+    }
+
+    @Test
+    public void getCodesCompressedTest() throws IOException {
+        final String apiUrl = createApiUrl(randomServerPort, API_PATH_CODEREGISTRIES) + "/" + TEST_CODEREGISTRY_CODEVALUE + API_PATH_CODESCHEMES + "/" + TEST_CODESCHEME_CODEVALUE + API_PATH_CODES + "/";
+        final LinkedMultiValueMap<String, Object> parameters = new LinkedMultiValueMap<String, Object>();
+        final RestTemplate rawRestTemplate = new RestTemplate(new SimpleClientHttpRequestFactory());
+        final ResponseEntity<byte[]> response = rawRestTemplate.exchange(apiUrl, HttpMethod.GET, new HttpEntity<LinkedMultiValueMap<String, Object>>(parameters, null), byte[].class, "");
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertNull(response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        final HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        final ResponseEntity<byte[]> compressedResponse = rawRestTemplate.exchange(apiUrl, HttpMethod.GET, new HttpEntity<LinkedMultiValueMap<String, Object>>(parameters, headers), byte[].class, "");
+        assertEquals(HttpStatus.OK, compressedResponse.getStatusCode());
+        assertEquals("gzip", compressedResponse.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        assertTrue(compressedResponse.getHeaders().getVary().contains(HttpHeaders.ACCEPT_ENCODING));
+        final String entityTag = compressedResponse.getHeaders().getETag();
+        assertTrue(entityTag.endsWith("--gzip\""));
+        final byte[] body = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressedResponse.getBody())));
+        assertNotNull(new ObjectMapper().readTree(body).get("results"));
+        assertArrayEquals(response.getBody(), body);
+        headers.setIfNoneMatch(entityTag);
+        final ResponseEntity<byte[]> conditionalResponse = rawRestTemplate.exchange(apiUrl, HttpMethod.GET, new HttpEntity<LinkedMultiValueMap<String, Object>>(parameters, headers), byte[].class, "");
+        assertEquals(HttpStatus.NOT_MODIFIED, conditionalResponse.getStatusCode());
+        assertEquals(entityTag, conditionalResponse.getHeaders().getETag());
+    }
+
+    @Test
+    public void getCodesNdjsonTest() throws IOException {
+        final String apiUrl = createApiUrl(randomServerPort, API_PATH_CODEREGISTRIES) + "/" + TEST_CODEREGISTRY_CODEVALUE + API_PATH_CODESCHEMES + "/" + TEST_CODESCHEME_CODEVALUE + API_PATH_CODES + "/?format=ndjson";
+        final LinkedMultiValueMap<String, Object> parameters = new LinkedMultiValueMap<String, Object>();
+        final HttpEntity<LinkedMultiValueMap<String, Object>> entity = new HttpEntity<LinkedMultiValueMap<String, Object>>(parameters, null);
+        final ResponseEntity<String> response = restTemplate.exchange(apiUrl, HttpMethod.GET, entity, String.class, "");
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals("application/x-ndjson", response.getHeaders().getContentType().toString());
+        final ObjectMapper mapper = new ObjectMapper();
+        final String[] lines = response.getBody().split("\n");
+        assertEquals(8, lines.length);
+        for (final String line : lines) {
+            final JsonNode code = mapper.readTree(line);
+            assertNotNull(code.get("codeValue"));
+        }
+    }
+
+    @Test
+    public void getCodesSmileTest() throws IOException {
+        final String apiUrl = createApiUrl(randomServerPort, API_PATH_CODEREGISTRIES) + "/" + TEST_CODEREGISTRY_CODEVALUE + API_PATH_CODESCHEMES + "/" + TEST_CODESCHEME_CODEVALUE + API_PATH_CODES + "/";
+        final LinkedMultiValueMap<String, Object> parameters = new LinkedMultiValueMap<String, Object>();
+        final HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.ACCEPT, "application/x-jackson-smile");
+        final ResponseEntity<byte[]> response = restTemplate.exchange(apiUrl, HttpMethod.GET, new HttpEntity<LinkedMultiValueMap<String, Object>>(parameters, headers), byte[].class, "");
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals("application/x-jackson-smile", response.getHeaders().getContentType().toString());
+        final ObjectMapper mapper = new ObjectMapper(new SmileFactory());
+        final ObjectNode jsonObject = (ObjectNode) mapper.readTree(response.getBody());
+        final ArrayNode codesArray = (ArrayNode) jsonObject.get("results");
+        assertEquals(8, codesArray.size());
+    }
+
+    @Test
+    public void getChangesTest() throws IOException {
+        final String apiUrl = createApiUrl(randomServerPort, "/changes");
+        final LinkedMultiValueMap<String, Object> parameters = new LinkedMultiValueMap<String, Object>();
+        final HttpEntity<LinkedMultiValueMap<String, Object>> entity = new HttpEntity<LinkedMultiValueMap<String, Object>>(parameters, null);
+        final ResponseEntity<String> response = restTemplate.exchange(apiUrl + "?pageSize=5", HttpMethod.GET, entity, String.class, "");
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        final ObjectMapper mapper = new ObjectMapper();
+        final ObjectNode jsonObject = (ObjectNode) mapper.readTree(response.getBody());
+        final ArrayNode changesArray = (ArrayNode) jsonObject.get("results");
+        assertTrue(changesArray.size() <= 5);
+        assertEquals(changesArray.size(), jsonObject.get("meta").get("resultCount").asInt());
+        final ResponseEntity<String> malformedResponse = restTemplate.exchange(apiUrl + "?cursor=malformed", HttpMethod.GET, entity, String.class, "");
+        assertEquals(HttpStatus.BAD_REQUEST, malformedResponse.getStatusCode());
+    }
+
+    @Test
+    public void getChangesCursorTest() throws IOException {
+        indexRegistry.refresh();
+        deletionTracker.scan();
+        final String apiUrl = createApiUrl(randomServerPort, "/changes");
+        final LinkedMultiValueMap<String, Object> parameters = new LinkedMultiValueMap<String, Object>();
+        final HttpEntity<LinkedMultiValueMap<String, Object>> entity = new HttpEntity<LinkedMultiValueMap<String, Object>>(parameters, null);
+        final ObjectMapper mapper = new ObjectMapper();
+        final ResponseEntity<String> firstResponse = restTemplate.exchange(apiUrl + "?pageSize=2", HttpMethod.GET, entity, String.class, "");
+        assertEquals(HttpStatus.OK, firstResponse.getStatusCode());
+        final JsonNode firstPage = mapper.readTree(firstResponse.getBody());
+        assertEquals(2, firstPage.get("results").size());
+        assertNotNull(firstPage.get("meta").get("nextPage"));
+        final Object[] firstCursor = CursorUtils.decodeCursor(firstPage.get("cursor").asText(), 4);
+        assertEquals(firstPage.get("results").get(1).get("id").asText(), firstCursor[1]);
+        assertEquals(deletionTracker.getEpoch(), ((Number) firstCursor[3]).longValue());
+
+        final ResponseEntity<String> secondResponse = restTemplate.exchange(apiUrl + "?pageSize=2&cursor=" + firstPage.get("cursor").asText(), HttpMethod.GET, entity, String.class, "");
+        assertEquals(HttpStatus.OK, secondResponse.getStatusCode());
+        final JsonNode secondPage = mapper.readTree(secondResponse.getBody());
+        assertEquals(2, secondPage.get("results").size());
+        final Set<String> firstIds = new HashSet<>();
+        firstPage.get("results").forEach(change -> firstIds.add(change.get("id").asText()));
+        for (final JsonNode change : secondPage.get("results")) {
+            assertFalse(firstIds.contains(change.get("id").asText()));
+            assertTrue(change.get("modified").asText().compareTo(firstPage.get("results").get(1).get("modified").asText()) >= 0);
+        }
+
+        final ResponseEntity<String> goneResponse = restTemplate.exchange(apiUrl + "?cursor=" + CursorUtils.encodeCursor(0L, "x", 0L, deletionTracker.getEpoch()), HttpMethod.GET, entity, String.class, "");
+        assertEquals(HttpStatus.GONE, goneResponse.getStatusCode());
+        assertEquals(HttpStatus.GONE.value(), mapper.readTree(goneResponse.getBody()).get("meta").get("code").asInt());
+
+        final String otherNodeCursor = CursorUtils.encodeCursor(firstCursor[0], firstCursor[1], firstCursor[2], deletionTracker.getEpoch() + 1);
+        final ResponseEntity<String> otherNodeResponse = restTemplate.exchange(apiUrl + "?cursor=" + otherNodeCursor, HttpMethod.GET, entity, String.class, "");
+        assertEquals(HttpStatus.GONE, otherNodeResponse.getStatusCode());
+    }
 }
@@ -0,0 +1,147 @@
+package fi.vm.yti.codelist.api.resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static fi.vm.yti.codelist.api.resource.AbstractBaseResource.HEADER_CONTENT_RANGE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FileResponseTest {
+
+    private static final int LENGTH = 100;
+    private static final EntityTag ENTITY_TAG = new EntityTag("tag");
+
+    private Path file;
+    private byte[] content;
+
+    @Before
+    public void createFile() throws IOException {
+        content = new byte[LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            content[i] = (byte) i;
+        }
+        file = Files.createTempFile("export", ".json");
+        Files.write(file, content);
+    }
+
+    @After
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testNoRangeSendsWholeFile() throws IOException {
+        final Response response = createResponse(null, null);
+        assertFullResponse(response);
+    }
+
+    @Test
+    public void testClosedRangeIsPartial() throws IOException {
+        final Response response = createResponse("bytes=10-19", null);
+        assertPartialResponse(response, 10, 19);
+    }
+
+    @Test
+    public void testOpenRangeEndsAtEndOfFile() throws IOException {
+        final Response response = createResponse("bytes=90-", null);
+        assertPartialResponse(response, 90, LENGTH - 1);
+    }
+
+    @Test
+    public void testRangePastEndOfFileIsTruncated() throws IOException {
+        final Response response = createResponse("bytes=90-500", null);
+        assertPartialResponse(response, 90, LENGTH - 1);
+    }
+
+    @Test
+    public void testSuffixRange() throws IOException {
+        final Response response = createResponse("bytes=-10", null);
+        assertPartialResponse(response, 90, LENGTH - 1);
+    }
+
+    @Test
+    public void testSuffixRangeLongerThanFileSendsWholeFileAsPartial() throws IOException {
+        final Response response = createResponse("bytes=-500", null);
+        assertPartialResponse(response, 0, LENGTH - 1);
+    }
+
+    @Test
+    public void testRangeStartingAtEndOfFileIsNotSatisfiable() {
+        final Response response = createResponse("bytes=100-", null);
+        assertEquals(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE.getStatusCode(), response.getStatus());
+        assertEquals("bytes */" + LENGTH, response.getHeaderString(HEADER_CONTENT_RANGE));
+        assertNull(response.getEntity());
+    }
+
+    @Test
+    public void testReversedRangeIsNotSatisfiable() {
+        final Response response = createResponse("bytes=20-10", null);
+        assertEquals(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE.getStatusCode(), response.getStatus());
+        assertEquals("bytes */" + LENGTH, response.getHeaderString(HEADER_CONTENT_RANGE));
+    }
+
+    @Test
+    public void testMatchingIfRangeIsPartial() throws IOException {
+        final Response response = createResponse("bytes=10-19", ENTITY_TAG.toString());
+        assertPartialResponse(response, 10, 19);
+    }
+
+    @Test
+    public void testMismatchingIfRangeSendsWholeFile() throws IOException {
+        final Response response = createResponse("bytes=10-19", new EntityTag("other").toString());
+        assertFullResponse(response);
+    }
+
+    @Test
+    public void testMultipleRangesSendWholeFile() throws IOException {
+        final Response response = createResponse("bytes=0-9,20-29", null);
+        assertFullResponse(response);
+    }
+
+    @Test
+    public void testEmptyRangeSendsWholeFile() throws IOException {
+        final Response response = createResponse("bytes=-", null);
+        assertFullResponse(response);
+    }
+
+    private Response createResponse(final String range,
+                                    final String ifRange) {
+        return AbstractBaseResource.createFileResponse(file, LENGTH, range, ifRange, ENTITY_TAG).build();
+    }
+
+    private void assertFullResponse(final Response response) throws IOException {
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals(String.valueOf(LENGTH), response.getHeaderString(HttpHeaders.CONTENT_LENGTH));
+        assertNull(response.getHeaderString(HEADER_CONTENT_RANGE));
+        assertArrayEquals(content, readBody(response));
+    }
+
+    private void assertPartialResponse(final Response response,
+                                       final int start,
+                                       final int end) throws IOException {
+        assertEquals(Response.Status.PARTIAL_CONTENT.getStatusCode(), response.getStatus());
+        assertEquals("bytes " + start + "-" + end + "/" + LENGTH, response.getHeaderString(HEADER_CONTENT_RANGE));
+        assertEquals(String.valueOf(end - start + 1), response.getHeaderString(HttpHeaders.CONTENT_LENGTH));
+        assertArrayEquals(Arrays.copyOfRange(content, start, end + 1), readBody(response));
+    }
+
+    private static byte[] readBody(final Response response) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(output);
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,150 @@
+package fi.vm.yti.codelist.api.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testConcurrentCallsAreCoalesced() {
+        final SingleFlight<String, String> singleFlight = new SingleFlight<>(true);
+        final AtomicInteger computations = new AtomicInteger();
+        final CompletableFuture<String> pending = new CompletableFuture<>();
+        final CompletableFuture<String> first = singleFlight.executeAsync("key", () -> {
+            computations.incrementAndGet();
+            return pending;
+        });
+        final CompletableFuture<String> second = singleFlight.executeAsync("key", () -> {
+            computations.incrementAndGet();
+            return CompletableFuture.completedFuture("other");
+        });
+        assertEquals(1, computations.get());
+        assertEquals(1, singleFlight.getExecutions());
+        assertEquals(1, singleFlight.getCoalesced());
+        assertEquals(1, singleFlight.getInFlight());
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+
+        pending.complete("value");
+        assertEquals("value", first.join());
+        assertEquals("value", second.join());
+        assertEquals(0, singleFlight.getInFlight());
+
+        assertEquals("next", singleFlight.executeAsync("key", () -> CompletableFuture.completedFuture("next")).join());
+        assertEquals(2, singleFlight.getExecutions());
+    }
+
+    @Test
+    public void testDifferentKeysAreNotCoalesced() {
+        final SingleFlight<String, String> singleFlight = new SingleFlight<>(true);
+        singleFlight.executeAsync("a", CompletableFuture::new);
+        singleFlight.executeAsync("b", CompletableFuture::new);
+        assertEquals(2, singleFlight.getExecutions());
+        assertEquals(0, singleFlight.getCoalesced());
+        assertEquals(2, singleFlight.getInFlight());
+    }
+
+    @Test
+    public void testFailureIsPropagatedToAllCallers() {
+        final SingleFlight<String, String> singleFlight = new SingleFlight<>(true);
+        final CompletableFuture<String> pending = new CompletableFuture<>();
+        final CompletableFuture<String> first = singleFlight.executeAsync("key", () -> pending);
+        final CompletableFuture<String> second = singleFlight.executeAsync("key", CompletableFuture::new);
+        final IllegalStateException failure = new IllegalStateException("failed");
+        pending.completeExceptionally(new CompletionException(failure));
+
+        assertFailedWith(failure, first);
+        assertFailedWith(failure, second);
+        assertEquals(0, singleFlight.getInFlight());
+    }
+
+    @Test
+    public void testSynchronousFailureCompletesExceptionally() {
+        final SingleFlight<String, String> singleFlight = new SingleFlight<>(true);
+        final IllegalStateException failure = new IllegalStateException("failed");
+        final CompletableFuture<String> result = singleFlight.executeAsync("key", () -> {
+            throw failure;
+        });
+
+        assertFailedWith(failure, result);
+        assertEquals(0, singleFlight.getInFlight());
+    }
+
+    @Test
+    public void testExecuteRethrowsFailure() {
+        final SingleFlight<String, String> singleFlight = new SingleFlight<>(true);
+        final IllegalStateException failure = new IllegalStateException("failed");
+        try {
+            singleFlight.execute("key", () -> {
+                throw failure;
+            });
+            fail("Expected the failure to be rethrown");
+        } catch (final IllegalStateException e) {
+            assertEquals(failure, e);
+        }
+        assertEquals(0, singleFlight.getInFlight());
+    }
+
+    @Test
+    public void testDisabledDoesNotCoalesce() {
+        final SingleFlight<String, String> singleFlight = new SingleFlight<>(false);
+        final AtomicInteger computations = new AtomicInteger();
+        singleFlight.executeAsync("key", () -> {
+            computations.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        singleFlight.executeAsync("key", () -> {
+            computations.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        assertEquals(2, computations.get());
+        assertEquals(0, singleFlight.getCoalesced());
+        assertEquals(0, singleFlight.getInFlight());
+    }
+
+    @Test
+    public void testBoundedWaitRunsComputationWithoutLeader() throws Exception {
+        final SingleFlight<String, String> singleFlight = new SingleFlight<>(true);
+        assertEquals("value", singleFlight.execute("key", () -> "value", 1, TimeUnit.MILLISECONDS));
+        assertEquals(1, singleFlight.getExecutions());
+        assertEquals(0, singleFlight.getInFlight());
+    }
+
+    @Test
+    public void testBoundedWaitTimesOut() throws Exception {
+        final SingleFlight<String, String> singleFlight = new SingleFlight<>(true);
+        final AtomicInteger computations = new AtomicInteger();
+        singleFlight.executeAsync("key", CompletableFuture::new);
+        try {
+            singleFlight.execute("key", () -> {
+                computations.incrementAndGet();
+                return "value";
+            }, 10, TimeUnit.MILLISECONDS);
+            fail("Expected the wait to time out");
+        } catch (final TimeoutException e) {
+            assertEquals(0, computations.get());
+            assertEquals(1, singleFlight.getCoalesced());
+        }
+    }
+
+    private static void assertFailedWith(final Throwable expected,
+                                         final CompletableFuture<?> future) {
+        assertTrue(future.isCompletedExceptionally());
+        try {
+            future.join();
+            fail("Expected the future to fail");
+        } catch (final CompletionException e) {
+            assertEquals(expected, e.getCause());
+        }
+    }
+}